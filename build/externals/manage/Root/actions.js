@@ -1,6 +1,6 @@
 /**
   * main action, show server-stats
-  * perform start, stop, restart and flush-action
+  * perform start, stop, restart, flush and reload-action
   *
   */
 function main_action() {
@@ -32,6 +32,10 @@ function main_action() {
             appObj.clearCache();
             res.redirect(appObj.href("main"));
 
+        } else if (req.data.action == "reload") {
+            appObj.reloadCode();
+            res.redirect(appObj.href("main"));
+
         }
 
     }
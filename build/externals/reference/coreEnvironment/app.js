@@ -742,6 +742,16 @@ app.log = function(filenameOrText,text) {};
 app.registerUser = function(username, password) {};
 
 
+/**
+ * Makes the application check its code repositories for updates on the
+ * next request.
+ * <br /><br />
+ * If the freezeCode property is set in app.properties, code changes are
+ * not picked up automatically, and this method has to be called to load them.
+ */
+app.reloadCode = function() {};
+
+
 /**
  * Removes a CronJob, identified through the passed function name, from the list of CronJobs.
  * 
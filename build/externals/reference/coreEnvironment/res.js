@@ -363,6 +363,24 @@ res.skinpath = new Array();
 res.status = new Number();
 
 
+/**
+ * Enables streaming for the current response.
+ * <br /><br />
+ * A streamed response is sent to the client in chunks while 
+ * it is being rendered, using chunked transfer encoding. 
+ * Status, headers and cookies have to be set before the 
+ * first chunk is sent. Responses that are rendered completely 
+ * before this happens are sent like buffered responses.
+ * <br /><br />
+ * Example:
+ * <pre>res.stream = true;</pre>
+ * 
+ * @type Boolean
+ * @see res.flush
+ */
+res.stream = new Boolean();
+
+
 /**
  * Aborts the current transaction by throwing an Error
  * 
@@ -567,6 +585,15 @@ res.format = function(textToFormat) {};
 res.forward = function(path) {};
 
 
+/**
+ * Sends the output written so far to the client if 
+ * res.stream is enabled. Does nothing otherwise.
+ * 
+ * @see res.stream
+ */
+res.flush = function() {};
+
+
 /**
  * Provides access to the contents of the current repsonse buffer.
  * <br /><br />
@@ -652,7 +679,8 @@ res.push = function() {};
  * <br /><br />
  * This function "pushes" the provided StringBuffer to the 
  * response object. All further writes will be redirected 
- * to this buffer.
+ * to this buffer. The output is added to the StringBuffer 
+ * when it is popped again using res.pop() or res.popBuffer().
  * 
  * @param {StringBuffer} strBuffer as StringBuffer Java object, the StringBuffer to be pushed to the reponse object
  * @see res.pop
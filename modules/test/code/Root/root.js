@@ -33,3 +33,22 @@ function macro_macro(param) {
     return this.string;
 }
 
+
+/**
+ * Render a table of rows with many macros to a string, for measuring the
+ * rendering path with helma.main.BenchmarkRunner, e.g.
+ * <code>java -cp launcher.jar helma.main.BenchmarkRunner test.renderBenchmark</code>
+ */
+function renderBenchmark() {
+    res.data.title = "Benchmark <&>";
+    var param = {text: "Text with <markup> & \"quotes\"\nand a line break"};
+    res.push();
+    this.renderSkin("benchmark");
+    for (var i = 0; i < 100; i++) {
+        param.index = i;
+        param.cls = i % 2 ? "odd" : "even";
+        param.name = "Row " + i + " <b>";
+        this.renderSkin("benchmark#row", param);
+    }
+    return res.pop();
+}
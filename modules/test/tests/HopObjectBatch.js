@@ -0,0 +1,44 @@
+tests = [
+   "testFailedBatch"
+];
+
+var personId;
+
+function setup() {
+}
+
+function testFailedBatch() {
+   var person = new Person();
+   person.name = "Batch";
+   root.persons.add(person);
+   personId = person._id;
+
+   // take the new person's id, so that its batched insert fails
+   var con = app.getDbSource("dbcTest").getConnection();
+   var stmt = con.createStatement();
+   stmt.executeUpdate("INSERT INTO tb_person (person_id) VALUES (" + personId + ")");
+   stmt.close();
+
+   var failed = false;
+   try {
+      res.commit();
+   } catch (x) {
+      failed = true;
+   }
+   assertTrue(failed);
+   res.rollback();
+
+   // the person must not have been cached as if it had been written
+   var stored = Person.getById(personId);
+   assertNotNull(stored);
+   assertNull(stored.name);
+}
+
+function cleanup() {
+   var con = app.getDbSource("dbcTest").getConnection();
+   var stmt = con.createStatement();
+   stmt.executeUpdate("DELETE FROM tb_person WHERE person_id = " + personId);
+   stmt.close();
+   res.commit();
+   app.clearCache();
+}
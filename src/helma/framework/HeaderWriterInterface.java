@@ -0,0 +1,32 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.framework;
+
+import java.io.IOException;
+
+/**
+ * Interface implemented by servlet clients to write the status line, headers
+ * and cookies of a streamed response before its body has been rendered
+ * completely.
+ *
+ * @see ResponseTrans#setStream(boolean)
+ */
+public interface HeaderWriterInterface {
+    /**
+     * Write the status, headers and cookies of the given response to the
+     * HTTP client, without setting a content length.
+     *
+     * @param res the response
+     * @throws IOException if the headers couldn't be written
+     */
+    public void writeHeaders(ResponseTrans res) throws IOException;
+}
@@ -55,6 +55,9 @@ public class RequestTrans implements Serializable {
     final HttpServletRequest request;
     final HttpServletResponse response;
 
+    // writes the headers of streamed responses, may be null
+    private transient HeaderWriterInterface headerWriter;
+
     // the path info of the request
     private final String path;
 
@@ -368,6 +371,21 @@ public class RequestTrans implements Serializable {
         return this.response;
     }
 
+    /**
+     * Returns the header writer used to commit the headers of a streamed response.
+     * Returns null if streaming is not supported for this request.
+     */
+    public HeaderWriterInterface getHeaderWriter() {
+        return this.headerWriter;
+    }
+
+    /**
+     * Set the header writer used to commit the headers of a streamed response.
+     */
+    public void setHeaderWriter(HeaderWriterInterface headerWriter) {
+        this.headerWriter = headerWriter;
+    }
+
     /**
      *  The hash code is computed from the session id if available. This is used to
      *  detect multiple identic requests.
@@ -530,9 +548,39 @@ public class RequestTrans implements Serializable {
         if (etagHeader.indexOf(",") > -1) { //$NON-NLS-1$
             StringTokenizer st = new StringTokenizer(etagHeader, ", \r\n"); //$NON-NLS-1$
             while (st.hasMoreTokens())
-                this.etags.add(st.nextToken());
+                addETag(st.nextToken());
         } else {
-            this.etags.add(etagHeader);
+            addETag(etagHeader);
+        }
+    }
+
+    /**
+     * Add an ETag sent by the client.
+     */
+    private void addETag(String etag) {
+        this.etags.add(etag);
+    }
+
+    /**
+     * Let the ETags of compressed variants of a response sent by the client
+     * also match the ETag of the uncompressed response. This is only done if
+     * response compression is enabled, since otherwise an ETag ending with the
+     * name of an encoding doesn't denote a compressed variant.
+     */
+    public void addUncompressedETags() {
+        String[] encodings = {"-gzip", "-deflate"}; //$NON-NLS-1$ //$NON-NLS-2$
+        Object[] tags = this.etags.toArray();
+        for (int i = 0; i < tags.length; i++) {
+            String etag = (String) tags[i];
+            boolean quoted = etag.length() > 1 && etag.endsWith("\""); //$NON-NLS-1$
+            String tag = quoted ? etag.substring(0, etag.length() - 1) : etag;
+            for (int j = 0; j < encodings.length; j++) {
+                if (tag.endsWith(encodings[j])) {
+                    tag = tag.substring(0, tag.length() - encodings[j].length());
+                    this.etags.add(quoted ? tag + "\"" : tag); //$NON-NLS-1$
+                    break;
+                }
+            }
         }
     }
 
@@ -283,6 +283,36 @@ public class ResponseBean implements Serializable {
         this.res.setCacheable(cache);
     }
 
+    /**
+     * Returns true if the response is streamed to the client while it is rendered
+     *
+     * @return true if the response is streamed
+     */
+    public boolean getStream() {
+        return this.res.isStream();
+    }
+
+    /**
+     * Enable streaming for this response. A streamed response is sent to the
+     * client in chunks while it is rendered, so headers and cookies have to be
+     * set before any output is written. Small responses that are rendered
+     * completely before the first chunk is sent are still handled like
+     * buffered responses.
+     *
+     * @param stream true to stream the response
+     */
+    public void setStream(boolean stream) {
+        this.res.setStream(stream);
+    }
+
+    /**
+     * Send the output written so far to the client if the response is streamed.
+     * Does nothing for buffered responses.
+     */
+    public void flush() {
+        this.res.flush();
+    }
+
     /**
      * Get the current charset/encoding name for the response
      *
@@ -565,7 +595,7 @@ public class ResponseBean implements Serializable {
      * writes will be redirected to this buffer.
      */
     public void push() {
-        this.res.pushBuffer(null);
+        this.res.pushBuilder();
     }
 
     /**
@@ -584,7 +614,7 @@ public class ResponseBean implements Serializable {
      */
     @Deprecated
     public void pushStringBuffer() {
-        this.res.pushBuffer(null);
+        this.res.pushBuilder();
     }
 
     /**
@@ -630,7 +660,7 @@ public class ResponseBean implements Serializable {
     * @return the response buffer as string
     */
    public String getBuffer() {
-       return this.res.getBuffer().toString();
+       return this.res.getBuilder().toString();
    }
 
     /**
@@ -11,16 +11,18 @@
 
 package helma.framework;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Stack;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -30,6 +32,7 @@ import org.apache.xmlrpc.XmlRpcResponseProcessor;
 import helma.framework.core.Application;
 import helma.framework.core.Skin;
 import helma.scripting.ScriptingException;
+import helma.util.BufferPool;
 import helma.util.HtmlEncoder;
 import helma.util.SystemMap;
 
@@ -41,6 +44,8 @@ public final class ResponseTrans extends Writer implements Serializable {
 
     static final long serialVersionUID = -8627370766119740844L;
     static final int INITIAL_BUFFER_SIZE = 2048;
+    // number of buffered chars after which a streamed response is sent to the client
+    static final int STREAM_BUFFER_SIZE = 8192;
 
     static final String newLine = System.getProperty("line.separator"); //$NON-NLS-1$
 
@@ -80,14 +85,38 @@ public final class ResponseTrans extends Writer implements Serializable {
     // cookies
     Map cookies;
 
-    // the buffer used to build the response
-    private transient StringBuffer buffer = null;
+    // the buffer used to build the response. It is only written by the thread
+    // evaluating the request, so it doesn't need to be synchronized
+    private transient StringBuilder buffer = null;
 
-    // an idle StringBuffer waiting to be reused
-    private transient StringBuffer cachedBuffer = null;
+    // idle buffers of the request evaluator waiting to be reused, may be null
+    private transient BufferPool bufferPool;
 
     // these are used to implement the _as_string variants for Hop templates.
-    private transient Stack buffers;
+    private transient ArrayList buffers;
+
+    // StringBuffers passed to or returned by pushBuffer(StringBuffer) for each
+    // pushed buffer, or null for buffers pushed with pushBuilder()
+    private transient ArrayList bufferTargets;
+
+    // number of buffers pushed on top of the response buffer
+    private transient int bufferDepth = 0;
+
+    // true if the response should be streamed to the client while being rendered
+    private transient boolean stream = false;
+
+    // number of operations depending on the content of the response buffer,
+    // the buffer is not streamed to the client while this is greater than zero
+    private transient int bufferLocks = 0;
+
+    // writer for the body of a streamed response, set once the headers are written
+    private transient volatile Writer streamWriter;
+
+    // true if writing the streamed response failed, e.g. because the client went away
+    private transient volatile boolean streamFailed = false;
+
+    // true if the response was aborted after it had been committed
+    private transient volatile boolean aborted = false;
 
     // the path used to tell where to look for skins
     private transient Object[] skinpath = null;
@@ -98,6 +127,10 @@ public final class ResponseTrans extends Writer implements Serializable {
     // buffer for debug messages - will be automatically appended to response
     private transient StringBuffer debugBuffer;
 
+    // StringBuffer returned by getBuffer() and the builder it was copied from
+    private transient StringBuffer exposedBuffer;
+    private transient StringBuilder exposedBuilder;
+
     // field for generic message to be displayed
     private transient String message;
 
@@ -132,8 +165,20 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @param req the RequestTrans for this response
      */
     public ResponseTrans(Application app, RequestTrans req) {
+        this(app, req, null);
+    }
+
+    /**
+     * Creates a new ResponseTrans object using the buffer pool of a request evaluator.
+     *
+     * @param req the RequestTrans for this response
+     * @param bufferPool the pool to take buffers for rendering to strings from,
+     *                   or null to always create new buffers
+     */
+    public ResponseTrans(Application app, RequestTrans req, BufferPool bufferPool) {
         this.app = app;
         this.reqtrans = req;
+        this.bufferPool = bufferPool;
     }
 
     /**
@@ -179,7 +224,8 @@ public final class ResponseTrans extends Writer implements Serializable {
     /**
      * Reset the current response buffer.
      */
-    public synchronized void resetBuffer() {
+    public void resetBuffer() {
+        syncBuffer();
         if (this.buffer != null) {
             this.buffer.setLength(0);
         }
@@ -189,11 +235,15 @@ public final class ResponseTrans extends Writer implements Serializable {
      * Reset the response object to its initial empty state.
      */
     public synchronized void reset() {
+        syncBuffer();
         if (this.buffer != null) {
             this.buffer.setLength(0);
         }
 
         this.buffers = null;
+        this.bufferTargets = null;
+        this.bufferDepth = 0;
+        this.bufferLocks = 0;
         this.response = null;
         this.cacheable = true;
         this.redir = this.forward = this.message = null;
@@ -217,76 +267,154 @@ public final class ResponseTrans extends Writer implements Serializable {
     /**
      * This is called before a skin is rendered as string
      * (renderSkinAsString) to redirect the output to a new
-     * string buffer.
-     * @param buf the StringBuffer to use, or null
-     * @return the new StringBuffer instance
+     * string builder, taken from the evaluator's buffer pool.
+     * @return the new StringBuilder instance
      */
-    public synchronized StringBuffer pushBuffer(StringBuffer buf) {
+    public StringBuilder pushBuilder() {
+        return pushBuilder(null);
+    }
+
+    private StringBuilder pushBuilder(StringBuffer target) {
+        syncBuffer();
         if (this.buffers == null) {
-            this.buffers = new Stack();
+            this.buffers = new ArrayList();
+            this.bufferTargets = new ArrayList();
         }
 
         if (this.buffer != null) {
-            this.buffers.push(this.buffer);
+            this.buffers.add(this.buffer);
         }
+        this.bufferTargets.add(target);
+        this.bufferDepth++;
 
-        if (buf != null) {
-            this.buffer = buf;
-        } else if (this.cachedBuffer != null) {
-            this.buffer = this.cachedBuffer;
-            this.cachedBuffer = null;
-        } else {
-            this.buffer = new StringBuffer(64);
-        }
+        this.buffer = (this.bufferPool != null) ?
+                this.bufferPool.get() : new StringBuilder(64);
         return this.buffer;
     }
 
+    /**
+     * Redirect the output to a new string buffer. This is kept for compatibility
+     * with code using StringBuffers, the output is only added to the returned
+     * StringBuffer when the buffer is popped again.
+     * @param buf the StringBuffer to use, or null
+     * @return the StringBuffer the output is added to
+     */
+    public StringBuffer pushBuffer(StringBuffer buf) {
+        if (buf == null) {
+            buf = new StringBuffer(64);
+        }
+        pushBuilder(buf);
+        return buf;
+    }
+
     /**
      * Returns the content of the current string buffer and switches back to the previos one.
      */
-    public synchronized String popString() {
-        StringBuffer buf = popBuffer();
+    public String popString() {
+        StringBuilder buf = popBuilder();
         String str = buf.toString();
-        // store stringbuffer for later reuse
-        buf.setLength(0);
-        this.cachedBuffer = buf;
+        // store buffer for later reuse
+        if (this.bufferPool != null) {
+            this.bufferPool.release(buf);
+        }
         return str;
     }
 
-    public synchronized StringBuffer popBuffer() {
+    /**
+     * Switches back to the previous buffer and returns the current one.
+     * The caller owns the returned builder.
+     */
+    public StringBuilder popBuilder() {
+        syncBuffer();
         if (this.buffer == null) {
             throw new RuntimeException(Messages.getString("ResponseTrans.0")); //$NON-NLS-1$
-        } else if (this.buffers == null) {
+        } else if (this.buffers == null || this.bufferDepth == 0) {
             throw new RuntimeException(Messages.getString("ResponseTrans.1")); //$NON-NLS-1$
         }
         // get local reference
-        StringBuffer buf = this.buffer;
+        StringBuilder buf = this.buffer;
+        this.bufferDepth--;
+        StringBuffer target = (StringBuffer) this.bufferTargets.remove(this.bufferTargets.size() - 1);
         // restore the previous buffer, which may be null
-        this.buffer = this.buffers.empty() ? null : (StringBuffer) this.buffers.pop();
+        this.buffer = this.buffers.isEmpty() ?
+                null : (StringBuilder) this.buffers.remove(this.buffers.size() - 1);
+        if (target != null) {
+            // the buffer was pushed using the StringBuffer API
+            target.append(buf);
+        }
         return buf;
     }
 
+    /**
+     * Switches back to the previous buffer and returns the current one as
+     * StringBuffer. This is kept for compatibility with code using StringBuffers.
+     */
+    public StringBuffer popBuffer() {
+        StringBuffer target = this.bufferTargets == null || this.bufferTargets.isEmpty() ?
+                null : (StringBuffer) this.bufferTargets.get(this.bufferTargets.size() - 1);
+        StringBuilder buf = popBuilder();
+        if (target == null) {
+            target = new StringBuffer(buf);
+        }
+        if (this.bufferPool != null) {
+            this.bufferPool.release(buf);
+        }
+        return target;
+    }
+
     /**
      *  Get the response buffer, creating it if it doesn't exist
      */
-    public synchronized StringBuffer getBuffer() {
+    public StringBuilder getBuilder() {
+        syncBuffer();
         if (this.buffer == null) {
-            this.buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
+            this.buffer = new StringBuilder(INITIAL_BUFFER_SIZE);
         }
 
         return this.buffer;
     }
 
+    /**
+     * Get the response buffer as StringBuffer. This is kept for compatibility
+     * with code using StringBuffers. The returned buffer holds a copy of the
+     * current buffer, changes to it are taken over by the response the next
+     * time the response is written to or its buffer is accessed. It must not
+     * be used after that.
+     * @deprecated use {@link #getBuilder()}
+     */
+    @Deprecated
+    public StringBuffer getBuffer() {
+        StringBuilder builder = getBuilder();
+        this.exposedBuffer = new StringBuffer(builder);
+        this.exposedBuilder = builder;
+        return this.exposedBuffer;
+    }
+
+    /**
+     * Take over changes made to a buffer returned by getBuffer().
+     */
+    private void syncBuffer() {
+        if (this.exposedBuffer != null) {
+            StringBuffer exposed = this.exposedBuffer;
+            this.exposedBuffer = null;
+            this.exposedBuilder.setLength(0);
+            this.exposedBuilder.append(exposed);
+            this.exposedBuilder = null;
+        }
+    }
+
     /**
      * Append a string to the response unchanged.
      */
     @Override
-    public synchronized void write(String str) {
+    public void write(String str) {
+        syncBuffer();
         if (str != null) {
             if (this.buffer == null) {
-                this.buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
+                this.buffer = new StringBuilder(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
             }
             this.buffer.append(str);
+            checkStream();
         }
     }
 
@@ -308,11 +436,13 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @param length
      */
     @Override
-    public synchronized void write(char[] chars, int offset, int length) {
+    public void write(char[] chars, int offset, int length) {
+        syncBuffer();
         if (this.buffer == null) {
-            this.buffer = new StringBuffer(Math.max(length + 100, INITIAL_BUFFER_SIZE));
+            this.buffer = new StringBuilder(Math.max(length + 100, INITIAL_BUFFER_SIZE));
         }
         this.buffer.append(chars, offset, length);
+        checkStream();
     }
 
     /**
@@ -331,11 +461,13 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @param c
      */
     @Override
-    public synchronized void write(int c) {
+    public void write(int c) {
+        syncBuffer();
         if (this.buffer == null) {
-            this.buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
+            this.buffer = new StringBuilder(INITIAL_BUFFER_SIZE);
         }
         this.buffer.append((char) c);
+        checkStream();
     }
 
     /**
@@ -354,25 +486,29 @@ public final class ResponseTrans extends Writer implements Serializable {
     /**
      * Write object to response buffer and append a platform dependent newline sequence.
      */
-    public synchronized void writeln(Object what) {
+    public void writeln(Object what) {
+        syncBuffer();
         if (what != null) {
             write(what.toString());
         } else if (this.buffer == null) {
             // if what is null, buffer may still be uninitialized
-            this.buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
+            this.buffer = new StringBuilder(INITIAL_BUFFER_SIZE);
         }
         this.buffer.append(newLine);
+        checkStream();
     }
 
     /**
      * Writes a platform dependent newline sequence to response buffer.
      */
-    public synchronized void writeln() {
+    public void writeln() {
+        syncBuffer();
         // buffer may still be uninitialized
         if (this.buffer == null) {
-            this.buffer = new StringBuffer(INITIAL_BUFFER_SIZE);
+            this.buffer = new StringBuilder(INITIAL_BUFFER_SIZE);
         }
         this.buffer.append(newLine);
+        checkStream();
     }
 
     /**
@@ -396,30 +532,34 @@ public final class ResponseTrans extends Writer implements Serializable {
      * Replace special characters with entities, including <, > and ", thus allowing
      * no HTML tags.
      */
-    public synchronized void encode(Object what) {
+    public void encode(Object what) {
+        syncBuffer();
         if (what != null) {
             String str = what.toString();
 
             if (this.buffer == null) {
-                this.buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
+                this.buffer = new StringBuilder(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
             }
 
             HtmlEncoder.encodeAll(str, this.buffer);
+            checkStream();
         }
     }
 
     /**
      * Replace special characters with entities but pass through HTML tags
      */
-    public synchronized void format(Object what) {
+    public void format(Object what) {
+        syncBuffer();
         if (what != null) {
             String str = what.toString();
 
             if (this.buffer == null) {
-                this.buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
+                this.buffer = new StringBuilder(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
             }
 
             HtmlEncoder.encode(str, this.buffer);
+            checkStream();
         }
     }
 
@@ -427,30 +567,34 @@ public final class ResponseTrans extends Writer implements Serializable {
      * Replace special characters with entities, including <, > and ", thus allowing
      * no HTML tags.
      */
-    public synchronized void encodeXml(Object what) {
+    public void encodeXml(Object what) {
+        syncBuffer();
         if (what != null) {
             String str = what.toString();
 
             if (this.buffer == null) {
-                this.buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
+                this.buffer = new StringBuilder(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
             }
 
             HtmlEncoder.encodeXml(str, this.buffer);
+            checkStream();
         }
     }
 
     /**
      * Encode HTML entities, but leave newlines alone. This is for the content of textarea forms.
      */
-    public synchronized void encodeForm(Object what) {
+    public void encodeForm(Object what) {
+        syncBuffer();
         if (what != null) {
             String str = what.toString();
 
             if (this.buffer == null) {
-                this.buffer = new StringBuffer(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
+                this.buffer = new StringBuilder(Math.max(str.length() + 100, INITIAL_BUFFER_SIZE));
             }
 
             HtmlEncoder.encodeAll(str, this.buffer, false);
+            checkStream();
         }
     }
 
@@ -637,9 +781,165 @@ public final class ResponseTrans extends Writer implements Serializable {
         writeBinary(xresproc.encodeException(x, this.charset));
     }
 
+    /**
+     * If the response is streamed, send the buffered output to the client.
+     * Does nothing for buffered responses.
+     */
     @Override
     public void flush() {
-        // does nothing!
+        if (this.stream) {
+            streamBuffer();
+        }
+    }
+
+    /**
+     * Returns true if the response is streamed to the client while it is rendered.
+     *
+     * @return true if the response is streamed
+     */
+    public boolean isStream() {
+        return this.stream;
+    }
+
+    /**
+     * Returns true if the status and headers of this response have already
+     * been sent to the client, because the response is streamed or because
+     * the application wrote to the servlet response directly.
+     *
+     * @return true if the response is committed
+     */
+    public boolean isCommitted() {
+        if (this.streamWriter != null) {
+            return true;
+        }
+        HttpServletResponse res = getServletResponse();
+        return res != null && res.isCommitted();
+    }
+
+    /**
+     * Abort a committed response, e.g. because its request timed out while
+     * it was streamed. Output written to the response afterwards, e.g. by
+     * the stopped request, is discarded, and closing the response doesn't
+     * send anything more to the client.
+     */
+    public void abort() {
+        this.aborted = true;
+        this.streamFailed = true;
+    }
+
+    /**
+     * Enable or disable streaming for this response. A streamed response is sent
+     * to the client in chunks while it is rendered, as soon as enough output has
+     * been buffered. Once the first chunk has been sent, the status, headers and
+     * cookies of the response can no longer be changed. Responses that are
+     * completely rendered before the first chunk is sent are handled like
+     * buffered responses, including ETag handling. Streaming is only available
+     * for HTTP requests.
+     *
+     * @param stream true to stream the response
+     */
+    public synchronized void setStream(boolean stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Called before an operation that depends on the current content of the
+     * response buffer, such as rendering a macro, to prevent the buffer from
+     * being sent to the client until {@link #unlockBuffer()} is called.
+     */
+    public void lockBuffer() {
+        this.bufferLocks++;
+    }
+
+    /**
+     * Called after an operation started with {@link #lockBuffer()} has finished.
+     */
+    public void unlockBuffer() {
+        if (this.bufferLocks > 0) {
+            this.bufferLocks--;
+        }
+    }
+
+    /**
+     * Send the response buffer to the client if the response is streamed
+     * and the buffer has grown beyond the stream buffer size.
+     */
+    private void checkStream() {
+        if (this.stream && this.buffer.length() >= STREAM_BUFFER_SIZE) {
+            streamBuffer();
+        }
+    }
+
+    /**
+     * Send the response buffer to the client, writing the response headers
+     * first if this hasn't happened yet. Only the top-level response buffer
+     * is sent, and only if no operation depends on its content.
+     */
+    private void streamBuffer() {
+        syncBuffer();
+        if (this.buffer == null || this.bufferDepth > 0 || this.bufferLocks > 0) {
+            return;
+        }
+        if (this.streamFailed) {
+            // nobody is listening, discard output
+            this.buffer.setLength(0);
+            return;
+        }
+
+        try {
+            if (this.streamWriter == null) {
+                HttpServletResponse res = getServletResponse();
+                HeaderWriterInterface headerWriter = this.reqtrans.getHeaderWriter();
+                if (res == null || headerWriter == null || res.isCommitted()) {
+                    // streaming is not available, keep buffering
+                    this.stream = false;
+                    return;
+                }
+                if (this.charset == null) {
+                    this.charset = this.app.getCharset();
+                }
+                Writer writer;
+                try {
+                    writer = new OutputStreamWriter(res.getOutputStream(), this.charset);
+                } catch (UnsupportedEncodingException uee) {
+                    // keep buffering and let close() report the encoding error
+                    this.stream = false;
+                    return;
+                }
+                headerWriter.writeHeaders(this);
+                this.streamWriter = writer;
+            }
+
+            char[] chars = new char[Math.min(this.buffer.length(), STREAM_BUFFER_SIZE)];
+            int length = this.buffer.length();
+            for (int offset = 0; offset < length; offset += chars.length) {
+                int count = Math.min(chars.length, length - offset);
+                this.buffer.getChars(offset, offset + count, chars, 0);
+                this.streamWriter.write(chars, 0, count);
+            }
+            this.streamWriter.flush();
+        } catch (IOException iox) {
+            this.streamFailed = true;
+            this.app.logEvent(Messages.getString("ResponseTrans.10") + iox); //$NON-NLS-1$
+        }
+        this.buffer.setLength(0);
+    }
+
+    /**
+     * Append the debug buffer to the response buffer if this is a HTML response.
+     */
+    private void appendDebugBuffer() {
+        syncBuffer();
+        if (this.contentType != null &&
+                this.contentType.startsWith("text/html") && //$NON-NLS-1$
+                this.debugBuffer != null) {
+            this.debugBuffer.append("</div>"); //$NON-NLS-1$
+            if (this.buffer == null) {
+                this.buffer = new StringBuilder(this.debugBuffer);
+            } else {
+                this.buffer.append(this.debugBuffer);
+            }
+        }
     }
 
     /**
@@ -658,6 +958,25 @@ public final class ResponseTrans extends Writer implements Serializable {
      * @throws UnsupportedEncodingException if the charset is not a valid encoding name
      */
     public synchronized void close(String defaultCharset) throws UnsupportedEncodingException {
+        // the buffer of an aborted response may still be written to by the stopped request
+        if (this.aborted) {
+            this.response = null;
+            notifyAll();
+            return;
+        }
+
+        syncBuffer();
+        // if the response is being streamed, send the rest of the output
+        if (this.streamWriter != null) {
+            appendDebugBuffer();
+            this.bufferDepth = this.bufferLocks = 0;
+            streamBuffer();
+            // attached requests can't reuse this response
+            this.response = null;
+            notifyAll();
+            return;
+        }
+
         // if the response was already written and committed by the application
         // there's no point in closing the response buffer
         HttpServletResponse res = this.reqtrans.getServletResponse();
@@ -685,16 +1004,7 @@ public final class ResponseTrans extends Writer implements Serializable {
             }
 
             // if debug buffer exists, append it to main buffer
-            if (this.contentType != null &&
-                    this.contentType.startsWith("text/html") && //$NON-NLS-1$
-                    this.debugBuffer != null) {
-                this.debugBuffer.append("</div>"); //$NON-NLS-1$
-                if (this.buffer == null) {
-                    this.buffer = this.debugBuffer;
-                } else {
-                    this.buffer.append(this.debugBuffer);
-                }
-            }
+            appendDebugBuffer();
 
             // get the buffer's bytes in the specified encoding
             if (this.buffer != null) {
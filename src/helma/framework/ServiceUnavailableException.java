@@ -0,0 +1,29 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.framework;
+
+
+/**
+ * ServiceUnavailableException is thrown by the application when no request
+ * evaluator became available within the configured wait time, or when the
+ * queue of requests waiting for an evaluator is full.
+ */
+public class ServiceUnavailableException extends RuntimeException {
+    private static final long serialVersionUID = -2467351020583740175L;
+
+    /**
+     * Creates a new ServiceUnavailableException object.
+     */
+    public ServiceUnavailableException() {
+        super(Messages.getString("ServiceUnavailableException.0")); //$NON-NLS-1$
+    }
+}
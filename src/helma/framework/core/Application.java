@@ -22,15 +22,26 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.EmptyStackException;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Stack;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,10 +52,12 @@ import helma.framework.ApplicationStoppedException;
 import helma.framework.PathElementInterface;
 import helma.framework.RequestTrans;
 import helma.framework.ResponseTrans;
+import helma.framework.ServiceUnavailableException;
 import helma.framework.UploadStatus;
 import helma.framework.repository.FileRepository;
 import helma.framework.repository.FileResource;
 import helma.framework.repository.RepositoryInterface;
+import helma.framework.repository.RepositoryWatcher;
 import helma.framework.repository.ResourceComparator;
 import helma.framework.repository.ResourceInterface;
 import helma.main.Server;
@@ -54,12 +67,14 @@ import helma.objectmodel.TransientNode;
 import helma.objectmodel.db.DbMapping;
 import helma.objectmodel.db.DbSource;
 import helma.objectmodel.db.Node;
+import helma.objectmodel.db.NodeHandle;
 import helma.objectmodel.db.NodeManager;
 import helma.objectmodel.db.WrappedNodeManager;
 import helma.scripting.ScriptingEngineInterface;
 import helma.scripting.ScriptingException;
 import helma.util.CronJob;
 import helma.util.CryptResource;
+import helma.util.Histogram;
 import helma.util.Logger;
 import helma.util.Logging;
 import helma.util.ResourceProperties;
@@ -129,6 +144,18 @@ public final class Application implements Runnable {
      */
     protected Stack freeThreads;
     protected Vector allThreads;
+
+    // threads waiting for an evaluator, served in FIFO order
+    LinkedList evaluatorWaiters = new LinkedList();
+    // max time in millis to wait for an evaluator, defaults to 12 seconds
+    long maxEvaluatorWait = 12000;
+    // max number of threads waiting for an evaluator, -1 for unlimited
+    int maxEvaluatorQueueLength = -1;
+    // number of requests rejected because no evaluator was available
+    volatile long rejectedEvaluatorRequests = 0;
+    // evaluator queue statistics
+    Histogram evaluatorWaitTimes = new Histogram(new long[] {0, 1, 10, 100, 1000, 10000});
+    Histogram evaluatorQueueLengths = new Histogram(new long[] {1, 2, 5, 10, 20, 50, 100, 500});
     boolean running = false;
     boolean debug;
     long starttime;
@@ -141,6 +168,33 @@ public final class Application implements Runnable {
     Thread worker;
     // request timeout defaults to 60 seconds
     long requestTimeout = 60000;
+
+    // execution modes for requests, see executionMode property
+    static final int EXECUTE_EVALUATOR_THREAD = 0;
+    static final int EXECUTE_CALLING_THREAD = 1;
+    static final int EXECUTE_VIRTUAL_THREAD = 2;
+    volatile int executionMode = EXECUTE_EVALUATOR_THREAD;
+
+    // if true, code is only checked for updates on startup and on reloadCode()
+    volatile boolean codeFrozen = false;
+    // incremented by reloadCode() and the repository watcher to make
+    // script engines check for updates
+    private final AtomicLong codeGeneration = new AtomicLong();
+
+    // watches file repositories for changes if watchRepositories is set
+    private volatile RepositoryWatcher repositoryWatcher;
+    // true if all repositories were watched at the last code check
+    private volatile boolean repositoriesWatched = false;
+
+    // enforces request timeouts for requests running on the calling thread
+    private ScheduledThreadPoolExecutor requestWatchdog;
+
+    // loads segments of large collections in the background
+    private ThreadPoolExecutor prefetchExecutor;
+
+    // Thread.ofVirtual() and Thread.Builder.unstarted(), if available (Java 21+)
+    private static Method ofVirtual;
+    private static Method unstarted;
     ThreadGroup threadgroup;
 
     // threadlocal variable for the current RequestEvaluator
@@ -171,6 +225,13 @@ public final class Application implements Runnable {
     private String baseURI;
     // the name of the root prototype as far as href() is concerned
     private String hrefRootPrototype;
+    // incremented when properties affecting cached node paths change
+    private volatile long hrefGeneration = 0;
+    // number of node paths served from cache and computed
+    private final AtomicLong hrefCacheHits = new AtomicLong();
+    private final AtomicLong hrefCacheMisses = new AtomicLong();
+    // microseconds spent generating hrefs per request
+    Histogram hrefTimes = new Histogram(new long[] {0, 100, 1000, 10000, 100000, 1000000});
 
     // the id of the object to use as root object
     String rootId = "0"; //$NON-NLS-1$
@@ -553,6 +614,18 @@ public final class Application implements Runnable {
         // mark app as stopped
         this.running = false;
 
+        // wake up threads waiting for an evaluator, they won't get one
+        synchronized (this.freeThreads) {
+            for (Iterator it = this.evaluatorWaiters.iterator(); it.hasNext();) {
+                EvaluatorWaiter waiter = (EvaluatorWaiter) it.next();
+                synchronized (waiter) {
+                    waiter.stopped = true;
+                    waiter.notify();
+                }
+            }
+            this.evaluatorWaiters.clear();
+        }
+
         // stop all threads, this app is going down
         if (this.worker != null) {
             this.worker.interrupt();
@@ -560,6 +633,21 @@ public final class Application implements Runnable {
 
         this.worker = null;
 
+        // stop watching repositories
+        updateRepositoryWatcher(false);
+
+        // stop the request watchdog
+        synchronized (this) {
+            if (this.requestWatchdog != null) {
+                this.requestWatchdog.shutdownNow();
+                this.requestWatchdog = null;
+            }
+            if (this.prefetchExecutor != null) {
+                this.prefetchExecutor.shutdownNow();
+                this.prefetchExecutor = null;
+            }
+        }
+
         // stop evaluators
         if (this.allThreads != null) {
             for (Enumeration e = this.allThreads.elements(); e.hasMoreElements();) {
@@ -580,6 +668,11 @@ public final class Application implements Runnable {
             System.err.println(Messages.getString("Application.12") + dbx); //$NON-NLS-1$
         }
 
+        // close JDBC connection pools
+        for (Enumeration e = this.dbSources.elements(); e.hasMoreElements();) {
+            ((DbSource) e.nextElement()).shutdown();
+        }
+
         // tell the extensions that we're stopped.
         if (Server.getServer() != null) {
             Vector extensions = Server.getServer().getExtensions();
@@ -628,17 +721,28 @@ public final class Application implements Runnable {
     }
 
     /**
-     * Returns a free evaluator to handle a request.
+     * Returns a free evaluator to handle a request. If all evaluators are busy
+     * and no new evaluator can be created, the calling thread is queued and
+     * handed the next evaluator that is released, in order of arrival.
+     *
+     * @throws ServiceUnavailableException if the wait queue is full or no
+     *         evaluator was released within the configured queue timeout
      */
     public RequestEvaluator getEvaluator() {
         if (!this.running) {
             throw new ApplicationStoppedException();
         }
 
-        // first try
-        try {
-            return (RequestEvaluator) this.freeThreads.pop();
-        } catch (EmptyStackException nothreads) {
+        EvaluatorWaiter waiter;
+
+        synchronized (this.freeThreads) {
+            // first try: use a free evaluator, unless other threads are already
+            // queued up in front of us
+            if (!this.freeThreads.isEmpty() && this.evaluatorWaiters.isEmpty()) {
+                this.evaluatorWaitTimes.record(0);
+                return (RequestEvaluator) this.freeThreads.pop();
+            }
+
             int maxThreads = 50;
 
             String maxThreadsProp = this.props.getProperty("maxThreads"); //$NON-NLS-1$
@@ -650,37 +754,69 @@ public final class Application implements Runnable {
                 }
             }
 
-            synchronized (this) {
-                // allocate a new evaluator
-                if (this.allThreads.size() < maxThreads) {
-                    logEvent(Messages.getString("Application.14") + (this.allThreads.size() + 1) + //$NON-NLS-1$
-                             Messages.getString("Application.15") + this.name); //$NON-NLS-1$
+            // allocate a new evaluator
+            if (this.allThreads.size() < maxThreads) {
+                logEvent(Messages.getString("Application.14") + (this.allThreads.size() + 1) + //$NON-NLS-1$
+                         Messages.getString("Application.15") + this.name); //$NON-NLS-1$
 
-                    RequestEvaluator ev = new RequestEvaluator(this);
+                RequestEvaluator ev = new RequestEvaluator(this);
 
-                    this.allThreads.addElement(ev);
+                this.allThreads.addElement(ev);
+                this.evaluatorWaitTimes.record(0);
 
-                    return (ev);
-                }
+                return (ev);
             }
+
+            // we can't create a new evaluator, so we queue up and wait for one
+            // to be handed to us by releaseEvaluator(), unless the queue is full
+            int queueLength = this.evaluatorWaiters.size();
+            if (this.maxEvaluatorQueueLength > -1 && queueLength >= this.maxEvaluatorQueueLength) {
+                this.rejectedEvaluatorRequests += 1;
+                throw new ServiceUnavailableException();
+            }
+
+            this.evaluatorQueueLengths.record(queueLength + 1);
+            waiter = new EvaluatorWaiter();
+            this.evaluatorWaiters.addLast(waiter);
         }
 
-        // we can't create a new evaluator, so we wait if one becomes available.
-        // give it 3 more tries, waiting 3 seconds each time.
-        for (int i = 0; i < 4; i++) {
-            try {
-                Thread.sleep(3000);
+        long start = System.currentTimeMillis();
+        boolean interrupted = false;
 
-                return (RequestEvaluator) this.freeThreads.pop();
-            } catch (EmptyStackException nothreads) {
-                // do nothing
-            } catch (InterruptedException inter) {
-                throw new RuntimeException(Messages.getString("Application.16")); //$NON-NLS-1$
+        synchronized (waiter) {
+            long remaining = this.maxEvaluatorWait;
+            while (waiter.evaluator == null && !waiter.stopped && remaining > 0) {
+                try {
+                    waiter.wait(remaining);
+                } catch (InterruptedException inter) {
+                    interrupted = true;
+                    break;
+                }
+                remaining = this.maxEvaluatorWait - (System.currentTimeMillis() - start);
             }
         }
 
-        // no luck, give up.
-        throw new RuntimeException(Messages.getString("Application.17")); //$NON-NLS-1$
+        synchronized (this.freeThreads) {
+            // check again, an evaluator may have been handed to us after we stopped waiting
+            if (waiter.evaluator == null) {
+                this.evaluatorWaiters.remove(waiter);
+                if (waiter.stopped) {
+                    throw new ApplicationStoppedException();
+                }
+                if (interrupted) {
+                    throw new RuntimeException(Messages.getString("Application.16")); //$NON-NLS-1$
+                }
+                // no luck, give up.
+                this.rejectedEvaluatorRequests += 1;
+                throw new ServiceUnavailableException();
+            }
+        }
+
+        this.evaluatorWaitTimes.record(System.currentTimeMillis() - start);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return waiter.evaluator;
     }
 
     /**
@@ -689,10 +825,37 @@ public final class Application implements Runnable {
     public void releaseEvaluator(RequestEvaluator ev) {
         if (ev != null) {
             ev.recycle();
-            this.freeThreads.push(ev);
+            returnEvaluator(ev);
         }
     }
 
+    /**
+     * Hand an evaluator to the thread that has been waiting longest for one,
+     * or put it back to the stack of free evaluators if no thread is waiting.
+     */
+    private void returnEvaluator(RequestEvaluator ev) {
+        synchronized (this.freeThreads) {
+            if (this.evaluatorWaiters.isEmpty()) {
+                this.freeThreads.push(ev);
+            } else {
+                EvaluatorWaiter waiter = (EvaluatorWaiter) this.evaluatorWaiters.removeFirst();
+                synchronized (waiter) {
+                    waiter.evaluator = ev;
+                    waiter.notify();
+                }
+            }
+        }
+    }
+
+    /**
+     * A thread waiting in the evaluator queue.
+     */
+    static final class EvaluatorWaiter {
+        RequestEvaluator evaluator;
+        // set if the application is stopped while waiting
+        boolean stopped;
+    }
+
     /**
      * This can be used to set the maximum number of evaluators which will be allocated.
      * If evaluators are required beyound this number, an error will be thrown.
@@ -702,34 +865,44 @@ public final class Application implements Runnable {
             return false;
         }
 
-        int current = this.allThreads.size();
+        List removed = new ArrayList();
 
-        synchronized (this.allThreads) {
-            if (n > current) {
-                int toBeCreated = n - current;
+        // lock the pool in the same order as getEvaluator()
+        synchronized (this.freeThreads) {
+            synchronized (this.allThreads) {
+                int current = this.allThreads.size();
 
-                for (int i = 0; i < toBeCreated; i++) {
-                    RequestEvaluator ev = new RequestEvaluator(this);
+                if (n > current) {
+                    int toBeCreated = n - current;
 
-                    this.freeThreads.push(ev);
-                    this.allThreads.addElement(ev);
-                }
-            } else if (n < current) {
-                int toBeDestroyed = current - n;
+                    for (int i = 0; i < toBeCreated; i++) {
+                        RequestEvaluator ev = new RequestEvaluator(this);
 
-                for (int i = 0; i < toBeDestroyed; i++) {
-                    try {
-                        RequestEvaluator re = (RequestEvaluator) this.freeThreads.pop();
-                        this.allThreads.removeElement(re);
-                        re.stopTransactor();
-                    } catch (EmptyStackException empty) {
-                        return false;
+                        this.allThreads.addElement(ev);
+                        returnEvaluator(ev);
+                    }
+                } else if (n < current) {
+                    int toBeDestroyed = current - n;
+
+                    for (int i = 0; i < toBeDestroyed; i++) {
+                        try {
+                            RequestEvaluator re = (RequestEvaluator) this.freeThreads.pop();
+                            this.allThreads.removeElement(re);
+                            removed.add(re);
+                        } catch (EmptyStackException empty) {
+                            break;
+                        }
                     }
                 }
             }
         }
 
-        return true;
+        // stop removed evaluators outside the pool lock
+        for (Iterator it = removed.iterator(); it.hasNext();) {
+            ((RequestEvaluator) it.next()).stopTransactor();
+        }
+
+        return this.allThreads.size() == n;
     }
 
     /**
@@ -745,10 +918,7 @@ public final class Application implements Runnable {
     public ResponseTrans execute(RequestTrans req) {
         this.requestCount += 1;
 
-        // get user for this request's session
-        Session session = createSession(req.getSession());
-        session.touch();
-
+        Session session = null;
         ResponseTrans res = null;
         RequestEvaluator ev = null;
 
@@ -783,16 +953,34 @@ public final class Application implements Runnable {
 
                 // get evaluator and invoke
                 ev = getEvaluator();
+
+                // get user for this request's session, deserializing it with
+                // the request's evaluator if it has to be loaded from the store
+                session = this.sessionMgr.acquireSession(req.getSession(), ev);
+
+                ev.hrefNanos = 0;
                 res = ev.invokeHttp(req, session);
+                if (ev.hrefNanos > 0) {
+                    this.hrefTimes.record(ev.hrefNanos / 1000);
+                }
             }
         } catch (ApplicationStoppedException stopped) {
             // let the servlet know that this application has gone to heaven
             throw stopped;
+        } catch (ServiceUnavailableException busy) {
+            this.errorCount += 1;
+            res = new ResponseTrans(this, req);
+            res.reportError(busy);
+            res.setStatus(503);
         } catch (Exception x) {
             this.errorCount += 1;
             res = new ResponseTrans(this, req);
             res.reportError(x);
         } finally {
+            if (session != null) {
+                this.sessionMgr.releaseSession(session);
+            }
+
             if (primaryRequest) {
                 this.activeRequests.remove(req);
                 releaseEvaluator(ev);
@@ -859,6 +1047,95 @@ public final class Application implements Runnable {
         this.nmgr.clearCache();
     }
 
+    /**
+     * Returns true if the application's code is frozen, i.e. code repositories
+     * are not checked for updates on each request but only after startup and
+     * after calling {@link #reloadCode()}. Enabled by the freezeCode property.
+     */
+    public boolean isCodeFrozen() {
+        return this.codeFrozen;
+    }
+
+    /**
+     * Returns true if changes to the application's code are reflected by the
+     * code generation, so script engines only need to check code repositories
+     * for updates if it has changed. This is the case if the code is frozen, or
+     * if all repositories are watched for changes by the repository watcher.
+     */
+    public boolean isCodeChangeTracked() {
+        return this.codeFrozen || this.repositoriesWatched;
+    }
+
+    /**
+     * Returns the current code generation, which is incremented on each call
+     * to {@link #reloadCode()} and on each change in a watched repository
+     * unless the code is frozen.
+     */
+    public long getCodeGeneration() {
+        return this.codeGeneration.get();
+    }
+
+    /**
+     * Make the script engines check the code repositories for updates on the
+     * next request. This is needed to pick up code changes if the application's
+     * code is frozen, and has no effect otherwise.
+     */
+    public void reloadCode() {
+        this.codeGeneration.incrementAndGet();
+        logEvent(Messages.getString("Application.51")); //$NON-NLS-1$
+    }
+
+    /**
+     * Start or stop watching file repositories for changes.
+     */
+    private void updateRepositoryWatcher(boolean watch) {
+        if (watch == (this.repositoryWatcher != null)) {
+            return;
+        }
+        RepositoryWatcher watcher = null;
+        if (watch) {
+            try {
+                watcher = new RepositoryWatcher(this.name + "-watcher") { //$NON-NLS-1$
+                    @Override
+                    protected void changed() {
+                        if (!Application.this.codeFrozen) {
+                            Application.this.codeGeneration.incrementAndGet();
+                        }
+                    }
+                };
+            } catch (Exception x) {
+                logError(Messages.getString("Application.52"), x); //$NON-NLS-1$
+                return;
+            }
+        } else {
+            this.repositoryWatcher.shutdown();
+        }
+        this.repositoryWatcher = watcher;
+        this.repositoriesWatched = false;
+
+        Object[] list = this.repositories.toArray();
+        for (int i = 0; i < list.length; i++) {
+            if (list[i] instanceof FileRepository) {
+                ((FileRepository) list[i]).setWatcher(watcher);
+            }
+        }
+        this.codeGeneration.incrementAndGet();
+    }
+
+    /**
+     * Called after checking the code repositories to find out whether all of
+     * them are watched, so further checks can be skipped until the repository
+     * watcher reports a change.
+     */
+    void checkRepositoriesWatched() {
+        boolean watched = this.repositoryWatcher != null;
+        Object[] list = this.repositories.toArray();
+        for (int i = 0; watched && i < list.length; i++) {
+            watched = list[i] instanceof FileRepository && ((FileRepository) list[i]).isWatched();
+        }
+        this.repositoriesWatched = watched;
+    }
+
     /**
      * Returns the number of elements in the NodeManager's cache
      */
@@ -873,6 +1150,47 @@ public final class Application implements Runnable {
         return nmgr.getCacheStatistics();
     }
 
+    /**
+     * Returns a map of skin cache statistics
+     */
+    public Map getSkinCacheStatistics() {
+        return this.skinmgr.getCacheStatistics();
+    }
+
+    /**
+     * Returns a map of collection cache statistics, containing the number of
+     * hits and misses and the hit ratio by prototype and collection name
+     */
+    public Map getCollectionStatistics() {
+        Map stats = new TreeMap();
+        for (Iterator i = getPrototypes().iterator(); i.hasNext();) {
+            Prototype proto = (Prototype) i.next();
+            DbMapping dbmap = proto.getDbMapping();
+            if (dbmap == null) {
+                continue;
+            }
+            Map relations = dbmap.getCollectionStatistics();
+            for (Iterator j = relations.entrySet().iterator(); j.hasNext();) {
+                Map.Entry entry = (Map.Entry) j.next();
+                stats.put(proto.getName() + "." + entry.getKey(), entry.getValue()); //$NON-NLS-1$
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns a map of href generation statistics, containing the number of
+     * node paths served from cache and composed, and a histogram of the time
+     * in microseconds requests spent generating hrefs
+     */
+    public Map getHrefStatistics() {
+        Map stats = new HashMap();
+        stats.put("hits", new Long(this.hrefCacheHits.get())); //$NON-NLS-1$
+        stats.put("misses", new Long(this.hrefCacheMisses.get())); //$NON-NLS-1$
+        stats.put("requestTimes", this.hrefTimes.getStatistics()); //$NON-NLS-1$
+        return stats;
+    }
+
     /**
      *  Set the application's root element to an arbitrary object. After this is called
      *  with a non-null object, the helma node manager will be bypassed. This function
@@ -1277,6 +1595,7 @@ public final class Application implements Runnable {
      */
     public String getNodeHref(Object elem, String actionName, Map queryParams)
             throws UnsupportedEncodingException {
+        long start = System.nanoTime();
         StringBuffer buffer = new StringBuffer(this.baseURI);
 
         composeHref(elem, buffer, 0);
@@ -1288,6 +1607,10 @@ public final class Application implements Runnable {
             appendQueryParams(buffer, queryParams, null, 0);
         }
 
+        RequestEvaluator reval = getCurrentRequestEvaluator();
+        if (reval != null) {
+            reval.hrefNanos += System.nanoTime() - start;
+        }
         return buffer.toString();
     }
 
@@ -1320,6 +1643,11 @@ public final class Application implements Runnable {
             return;
         }
 
+        if (elem instanceof Node) {
+            b.append(getNodePath((Node) elem, pathCount).path);
+            return;
+        }
+
         if ((this.hrefRootPrototype != null) &&
              this.hrefRootPrototype.equals(getPrototypeName(elem))) {
             return;
@@ -1332,7 +1660,7 @@ public final class Application implements Runnable {
         }
 
         // recurse to parent element
-        composeHref(getParentElement(elem), b, ++pathCount);
+        composeHref(parent, b, ++pathCount);
 
         // append ourselves
         String ename = getElementName(elem);
@@ -1342,6 +1670,54 @@ public final class Application implements Runnable {
         }
     }
 
+    /**
+     * Get the URL path of a node, from the cache if the node and all its
+     * ancestors are unchanged since it was composed.
+     */
+    private NodePath getNodePath(Node node, int pathCount)
+            throws UnsupportedEncodingException {
+        long generation = this.hrefGeneration;
+        Object cached = node.getHrefCache();
+        if (cached instanceof NodePath && ((NodePath) cached).isValid(generation, this.nmgr)) {
+            this.hrefCacheHits.incrementAndGet();
+            return (NodePath) cached;
+        }
+        this.hrefCacheMisses.incrementAndGet();
+
+        NodePath path = new NodePath(node, generation);
+        if ((this.hrefRootPrototype != null) &&
+             this.hrefRootPrototype.equals(getPrototypeName(node))) {
+            path.path = ""; //$NON-NLS-1$
+        } else {
+            Object parent = getParentElement(node);
+            if (parent == null) {
+                path.path = ""; //$NON-NLS-1$
+            } else {
+                StringBuffer b = new StringBuffer();
+                if (parent instanceof Node && pathCount < 50) {
+                    path.parent = getNodePath((Node) parent, pathCount + 1);
+                    path.cacheable = path.parent.cacheable;
+                    b.append(path.parent.path);
+                } else {
+                    // paths depending on other objects can't be validated
+                    path.cacheable = false;
+                    composeHref(parent, b, pathCount + 1);
+                }
+                String ename = getElementName(node);
+                if (ename != null) {
+                    b.append(UrlEncoded.encode(ename, this.charset));
+                    b.append("/"); //$NON-NLS-1$
+                }
+                path.path = b.toString();
+            }
+        }
+
+        if (path.cacheable) {
+            node.setHrefCache(path);
+        }
+        return path;
+    }
+
     /**
      *  Returns the baseURI for Hrefs in this application.
      */
@@ -1388,6 +1764,105 @@ public final class Application implements Runnable {
         return this.debug;
     }
 
+    /**
+     * Get the scheduler used to enforce the timeout of requests that are
+     * executed on the calling thread instead of an evaluator thread.
+     *
+     * @return the request watchdog
+     */
+    synchronized ScheduledExecutorService getRequestWatchdog() {
+        if (this.requestWatchdog == null) {
+            this.requestWatchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, Application.this.name + "-watchdog"); //$NON-NLS-1$
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.requestWatchdog.setRemoveOnCancelPolicy(true);
+        }
+        return this.requestWatchdog;
+    }
+
+    /**
+     * Get the executor used to load segments of large collections in the
+     * background before they are accessed. The number of threads is set
+     * with the prefetchThreads app property and defaults to 2. Tasks
+     * submitted while all threads are busy and the queue is full are
+     * discarded.
+     *
+     * @return the prefetch executor, or null if prefetching is disabled
+     *         or the application has been stopped
+     */
+    public synchronized ExecutorService getPrefetchExecutor() {
+        if (this.prefetchExecutor == null) {
+            if (!this.running) {
+                return null;
+            }
+            int threads = 2;
+            String prop = getProperty("prefetchThreads"); //$NON-NLS-1$
+            if (prop != null) {
+                try {
+                    threads = Integer.parseInt(prop.trim());
+                } catch (NumberFormatException x) {
+                    logError(Messages.getString("Application.53") + prop); //$NON-NLS-1$
+                }
+            }
+            if (threads < 1) {
+                return null;
+            }
+            this.prefetchExecutor = new ThreadPoolExecutor(threads, threads,
+                    0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue(100), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(Application.this.threadgroup, r,
+                            Application.this.name + "-prefetch"); //$NON-NLS-1$
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.DiscardPolicy());
+        }
+        return this.prefetchExecutor;
+    }
+
+    /**
+     * Look up the virtual thread API introduced in Java 21.
+     *
+     * @return true if virtual threads are available
+     */
+    private static synchronized boolean initVirtualThreads() {
+        if (unstarted == null) {
+            try {
+                ofVirtual = Thread.class.getMethod("ofVirtual"); //$NON-NLS-1$
+                unstarted = Class.forName("java.lang.Thread$Builder") //$NON-NLS-1$
+                        .getMethod("unstarted", new Class[] {Runnable.class}); //$NON-NLS-1$
+            } catch (Exception notavailable) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create an unstarted virtual thread for the given evaluator.
+     *
+     * @param evaluator the request evaluator to run
+     * @param threadName the name of the thread
+     * @return the new thread, or null if virtual threads are not available
+     */
+    Thread createVirtualThread(RequestEvaluator evaluator, String threadName) {
+        if (!initVirtualThreads()) {
+            return null;
+        }
+        try {
+            Thread t = (Thread) unstarted.invoke(ofVirtual.invoke(null), new Object[] {evaluator});
+            t.setName(threadName);
+            return t;
+        } catch (Exception x) {
+            logError(Messages.getString("Application.50"), x); //$NON-NLS-1$
+            return null;
+        }
+    }
+
     /**
      * Get the current RequestEvaluator, or null if the calling thread
      * is not evaluating a request.
@@ -1683,6 +2158,11 @@ public final class Application implements Runnable {
                     logError(Messages.getString("Application.24") + x, x); //$NON-NLS-1$
                 }
 
+                // close idle JDBC pool connections and report leaks
+                for (Enumeration e = this.dbSources.elements(); e.hasMoreElements();) {
+                    ((DbSource) e.nextElement()).maintainPool();
+                }
+
                 // execute cron jobs
                 try {
                     executeCronJobs();
@@ -1814,6 +2294,7 @@ public final class Application implements Runnable {
 
         try {
             dbs = new DbSource(name, this.dbProps, this.getClassLoader());
+            dbs.setLogger(getEventLog());
             this.dbSources.put(dbSrcName, dbs);
         } catch (Exception problem) {
             logEvent(Messages.getString("Application.36") + name +": "); //$NON-NLS-1$ //$NON-NLS-2$
@@ -1840,6 +2321,9 @@ public final class Application implements Runnable {
      */
     public boolean addRepository(RepositoryInterface rep, RepositoryInterface current) {
         if (rep != null && !this.repositories.contains(rep)) {
+            if (this.repositoryWatcher != null && rep instanceof FileRepository) {
+                ((FileRepository) rep).setWatcher(this.repositoryWatcher);
+            }
             // Add the new repository before its parent/current repository.
             // This establishes the order of compilation between FileRepositories
             // and embedded ZipRepositories, or repositories added
@@ -1963,6 +2447,46 @@ public final class Application implements Runnable {
                 this.requestTimeout = 60000L;
             }
 
+            // where requests are executed: on the evaluator's own thread (default),
+            // directly on the calling thread or on a virtual thread per request
+            String mode = this.props.getProperty("executionMode", "evaluator"); //$NON-NLS-1$ //$NON-NLS-2$
+            if ("direct".equalsIgnoreCase(mode)) { //$NON-NLS-1$
+                this.executionMode = EXECUTE_CALLING_THREAD;
+            } else if ("virtual".equalsIgnoreCase(mode)) { //$NON-NLS-1$
+                if (initVirtualThreads()) {
+                    this.executionMode = EXECUTE_VIRTUAL_THREAD;
+                } else {
+                    logEvent(Messages.getString("Application.49")); //$NON-NLS-1$
+                    this.executionMode = EXECUTE_EVALUATOR_THREAD;
+                }
+            } else {
+                this.executionMode = EXECUTE_EVALUATOR_THREAD;
+            }
+
+            // only check code for updates on startup and on explicit reload
+            this.codeFrozen = "true".equalsIgnoreCase(this.props.getProperty("freezeCode")); //$NON-NLS-1$ //$NON-NLS-2$
+
+            // get notified of changes in file repositories instead of checking them
+            updateRepositoryWatcher("true".equalsIgnoreCase(this.props.getProperty("watchRepositories"))); //$NON-NLS-1$ //$NON-NLS-2$
+
+            // max time to wait for a free evaluator, in seconds
+            String queueTimeout = this.props.getProperty("evaluatorQueueTimeout", "12"); //$NON-NLS-1$ //$NON-NLS-2$
+            try {
+                this.maxEvaluatorWait = Math.max(0L, (long) (Double.parseDouble(queueTimeout) * 1000L));
+            } catch (Exception ignore) {
+                // go with default value
+                this.maxEvaluatorWait = 12000L;
+            }
+
+            // max number of requests waiting for a free evaluator
+            String queueLength = this.props.getProperty("evaluatorQueueLength", "-1"); //$NON-NLS-1$ //$NON-NLS-2$
+            try {
+                this.maxEvaluatorQueueLength = Integer.parseInt(queueLength);
+            } catch (Exception ignore) {
+                // go with default value
+                this.maxEvaluatorQueueLength = -1;
+            }
+
             // set base URI
             String base = this.props.getProperty("baseuri"); //$NON-NLS-1$
 
@@ -1973,6 +2497,8 @@ public final class Application implements Runnable {
             }
 
             this.hrefRootPrototype = this.props.getProperty("hrefrootprototype"); //$NON-NLS-1$
+            // invalidate cached node paths, which depend on charset and href root
+            this.hrefGeneration++;
             this.rootObjectPropertyName = this.props.getProperty("rootobjectpropertyname"); //$NON-NLS-1$
             this.rootObjectFunctionName = this.props.getProperty("rootobjectfunctionname"); //$NON-NLS-1$
 
@@ -2136,6 +2662,36 @@ public final class Application implements Runnable {
         return -1;
     }
 
+    /**
+     * Return the number of threads currently waiting for a free evaluator
+     */
+    public int countQueuedEvaluatorRequests() {
+        synchronized (this.freeThreads) {
+            return this.evaluatorWaiters.size();
+        }
+    }
+
+    /**
+     * Return the number of requests rejected because no evaluator became available
+     */
+    public long getRejectedEvaluatorRequests() {
+        return this.rejectedEvaluatorRequests;
+    }
+
+    /**
+     * Return the histogram of times in milliseconds threads had to wait for an evaluator
+     */
+    public Histogram getEvaluatorWaitTimes() {
+        return this.evaluatorWaitTimes;
+    }
+
+    /**
+     * Return the histogram of evaluator queue lengths seen by arriving threads
+     */
+    public Histogram getEvaluatorQueueLengths() {
+        return this.evaluatorQueueLengths;
+    }
+
     /**
      *
      */
@@ -2203,6 +2759,65 @@ public final class Application implements Runnable {
         }
     }
 
+    /**
+     * The cached URL path of a node. A path is valid as long as neither the
+     * node nor any of its ancestors has been modified, moved, reloaded or
+     * assigned a different type mapping since it was composed, which is
+     * checked by walking the chain of parent paths. Nodes drop their cached
+     * path when they are modified, so a change within the same millisecond is
+     * noticed as well. This way a change to an ancestor invalidates the paths
+     * of all descendants without having to notify them.
+     *
+     * Paths refer to their nodes by handle and look them up in the node cache
+     * when validated, so a node that has been evicted or reloaded in the
+     * meantime invalidates the path, and cached paths don't keep ancestors
+     * from being evicted.
+     */
+    static class NodePath {
+        final NodeHandle handle;
+        final int state;
+        final DbMapping dbmap;
+        final long typeChange;
+        final NodeHandle parentHandle;
+        final long generation;
+        NodePath parent;
+        String path;
+        boolean cacheable = true;
+
+        NodePath(Node node, long generation) {
+            this.handle = node.getHandle();
+            this.state = node.getState();
+            this.dbmap = node.getDbMapping();
+            this.typeChange = this.dbmap == null ? 0 : this.dbmap.getLastTypeChange();
+            this.parentHandle = node.getParentHandle();
+            this.generation = generation;
+        }
+
+        boolean isValid(long currentGeneration, NodeManager nmgr) {
+            for (NodePath p = this; p != null; p = p.parent) {
+                if (p.generation != currentGeneration) {
+                    return false;
+                }
+                // transient nodes are referenced by their handle
+                Node n = p.handle.hasNode() ?
+                        p.handle.getNode(null) : nmgr.getCachedNode(p.handle.getKey());
+                if (n == null ||
+                        n.getHrefCache() != p ||
+                        n.getState() != p.state ||
+                        n.getDbMapping() != p.dbmap ||
+                        !equals(n.getParentHandle(), p.parentHandle) ||
+                        (p.dbmap != null && p.dbmap.getLastTypeChange() != p.typeChange)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean equals(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
     class CronRunner extends Thread {
         RequestEvaluator thisEvaluator;
         CronJob job;
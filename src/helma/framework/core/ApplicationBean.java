@@ -61,6 +61,21 @@ public class ApplicationBean implements Serializable {
         this.app.clearCache();
     }
 
+    /**
+     * Make the application check its code for updates on the next request.
+     * Needed to pick up code changes if the freezeCode property is set.
+     */
+    public void reloadCode() {
+        this.app.reloadCode();
+    }
+
+    /**
+     * Returns true if the application's code is frozen.
+     */
+    public boolean isCodeFrozen() {
+        return this.app.isCodeFrozen();
+    }
+
     /**
      * Get the app's event logger. This is a Log with the
      * category helma.[appname].event.
@@ -396,6 +411,29 @@ public class ApplicationBean implements Serializable {
         return this.app.getCacheUsage();
     }
 
+    /**
+     * Returns statistics of the cache of skins loaded from the skinpath,
+     * containing the number of cached skins, the cache capacity and the
+     * number of cache hits and misses.
+     *
+     * @return a map of skin cache statistics
+     */
+    public Map getSkinCacheStatistics() {
+        return this.app.getSkinCacheStatistics();
+    }
+
+    /**
+     * Returns statistics of the subnode lists of collections, containing the
+     * number of accesses served from the cached list, the number of accesses
+     * that had to fetch the list from the database and the hit ratio for each
+     * collection, keyed by prototype and collection name.
+     *
+     * @return a map of collection cache statistics
+     */
+    public Map getCollectionStatistics() {
+        return this.app.getCollectionStatistics();
+    }
+
     /**
      * Returns the app's data node used to share data between the app's evaluators
      *
@@ -549,6 +587,51 @@ public class ApplicationBean implements Serializable {
         return this.app.countEvaluators();
     }
 
+    /**
+     * Get the number of requests currently waiting for a free thread/request evaluator
+     * @return the current length of the evaluator queue
+     */
+    public int getQueuedRequests() {
+        return this.app.countQueuedEvaluatorRequests();
+    }
+
+    /**
+     * Get the number of requests that were rejected because no thread/request
+     * evaluator became available in time or the evaluator queue was full
+     * @return the number of rejected requests
+     */
+    public long getRejectedRequests() {
+        return this.app.getRejectedEvaluatorRequests();
+    }
+
+    /**
+     * Get a histogram of the times in milliseconds requests had to wait
+     * for a free thread/request evaluator
+     * @return a map containing count, mean, max and bucket counts
+     */
+    public Map getQueueWaitTimes() {
+        return this.app.getEvaluatorWaitTimes().getStatistics();
+    }
+
+    /**
+     * Get statistics about href generation: the number of node paths served
+     * from cache and composed, and a histogram of the time in microseconds
+     * each request spent generating hrefs
+     * @return a map containing hits, misses and requestTimes
+     */
+    public Map getHrefStatistics() {
+        return this.app.getHrefStatistics();
+    }
+
+    /**
+     * Get a histogram of the evaluator queue lengths encountered by requests
+     * that had to wait for a free thread/request evaluator
+     * @return a map containing count, mean, max and bucket counts
+     */
+    public Map getQueueLengths() {
+        return this.app.getEvaluatorQueueLengths().getStatistics();
+    }
+
     /**
      * Set the maximal thread number for this application
      * @param n the maximal number of threads/request evaluators
@@ -0,0 +1,354 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 2017 Helma Project. All Rights Reserved.
+ */
+
+package helma.framework.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A session store that appends serialized sessions to a log file in the
+ * application's db directory. An index of the offsets of the current version
+ * of each session is kept in memory and rebuilt by scanning the record
+ * headers when the store is opened, so startup doesn't have to deserialize
+ * any sessions. Superseded and removed records are dropped by rewriting the
+ * file once they make up more than half of it.
+ */
+public class FileSessionStore implements SessionStore {
+
+    static final byte STORE = 1;
+    static final byte REMOVE = 2;
+
+    // minimal file size before compacting
+    static final long COMPACT_THRESHOLD = 1048576;
+
+    Application app;
+    File file;
+    RandomAccessFile raf;
+    FileChannel channel;
+
+    // index of stored sessions by id
+    HashMap index = new HashMap();
+
+    // current file length and bytes used by current session records
+    long length = 0;
+    long liveBytes = 0;
+
+    /**
+     * Open the session file and build the index from its record headers.
+     */
+    public synchronized void init(Application app) throws IOException {
+        this.app = app;
+        this.file = new File(app.dbDir, "sessions.store"); //$NON-NLS-1$
+        this.index.clear();
+        this.liveBytes = 0;
+        long valid = scan();
+        open();
+        if (valid < this.channel.size()) {
+            // drop a partially written record at the end of the file
+            app.logEvent(Messages.getString("FileSessionStore.0") + this.file + //$NON-NLS-1$
+                    Messages.getString("FileSessionStore.1") + valid); //$NON-NLS-1$
+            this.channel.truncate(valid);
+        }
+        this.length = valid;
+        app.logEvent(Messages.getString("FileSessionStore.2") + this.index.size() + //$NON-NLS-1$
+                Messages.getString("FileSessionStore.3") + this.file); //$NON-NLS-1$
+    }
+
+    private void open() throws IOException {
+        open(this.file);
+    }
+
+    private void open(File f) throws IOException {
+        this.raf = new RandomAccessFile(f, "rw"); //$NON-NLS-1$
+        this.channel = this.raf.getChannel();
+    }
+
+    /**
+     * Read the record headers of the session file, skipping session data.
+     *
+     * @return the length of the valid part of the file
+     */
+    private long scan() throws IOException {
+        if (!this.file.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.file), 65536));
+        long pos = 0;
+        long start = 0;
+        try {
+            while (true) {
+                start = pos;
+                byte type = in.readByte();
+                String id = in.readUTF();
+                pos += 1 + 2 + utfLength(id);
+                if (type == STORE) {
+                    long lastTouched = in.readLong();
+                    int size = in.readInt();
+                    pos += 12;
+                    if (in.skipBytes(size) < size) {
+                        return start;
+                    }
+                    pos += size;
+                    put(id, new Entry(pos - size, size, lastTouched, pos - start));
+                } else if (type == REMOVE) {
+                    discard(id);
+                } else {
+                    return start;
+                }
+            }
+        } catch (EOFException eof) {
+            // end of file, possibly in the middle of a record
+            return start;
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (this.raf != null) {
+            try {
+                this.channel.force(false);
+                this.raf.close();
+            } catch (IOException iox) {
+                this.app.logError(Messages.getString("FileSessionStore.4"), iox); //$NON-NLS-1$
+            }
+            this.raf = null;
+            this.channel = null;
+        }
+        this.index.clear();
+    }
+
+    public synchronized void store(String sessionId, long lastTouched, byte[] data)
+            throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(data.length + 64);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeByte(STORE);
+        out.writeUTF(sessionId);
+        out.writeLong(lastTouched);
+        out.writeInt(data.length);
+        out.write(data);
+        out.close();
+        long start = this.length;
+        write(bout.toByteArray());
+        put(sessionId, new Entry(this.length - data.length, data.length,
+                lastTouched, this.length - start));
+    }
+
+    public synchronized byte[] load(String sessionId) throws IOException {
+        Entry entry = (Entry) this.index.get(sessionId);
+        if (entry == null) {
+            return null;
+        }
+        byte[] data = new byte[entry.size];
+        read(ByteBuffer.wrap(data), entry.offset);
+        return data;
+    }
+
+    public synchronized boolean contains(String sessionId) {
+        return this.index.containsKey(sessionId);
+    }
+
+    public synchronized void remove(String sessionId) throws IOException {
+        if (this.index.containsKey(sessionId)) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bout);
+            out.writeByte(REMOVE);
+            out.writeUTF(sessionId);
+            out.close();
+            write(bout.toByteArray());
+            discard(sessionId);
+        }
+    }
+
+    public synchronized long getLastTouched(String sessionId) {
+        Entry entry = (Entry) this.index.get(sessionId);
+        return entry == null ? -1 : entry.lastTouched;
+    }
+
+    public synchronized Map getSessionTimes() {
+        HashMap times = new HashMap(this.index.size() * 2);
+        for (Iterator it = this.index.entrySet().iterator(); it.hasNext();) {
+            Map.Entry e = (Map.Entry) it.next();
+            times.put(e.getKey(), new Long(((Entry) e.getValue()).lastTouched));
+        }
+        return times;
+    }
+
+    public synchronized int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Force written sessions to disk and compact the file if most of it is
+     * taken by stale records.
+     */
+    public synchronized void flush() throws IOException {
+        if (this.channel == null) {
+            return;
+        }
+        if (this.length > COMPACT_THRESHOLD && this.liveBytes * 2 < this.length) {
+            compact();
+        }
+        this.channel.force(false);
+    }
+
+    /**
+     * Rewrite the session file with current session records only. The
+     * original file is kept until the rewritten one has taken its place,
+     * and stays in use with the current index if that fails.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(this.file.getPath() + ".tmp"); //$NON-NLS-1$
+        RandomAccessFile target = new RandomAccessFile(tmp, "rw"); //$NON-NLS-1$
+        HashMap compacted = new HashMap(this.index.size() * 2);
+        long pos = 0;
+        boolean complete = false;
+        try {
+            target.setLength(0);
+            FileChannel out = target.getChannel();
+            for (Iterator it = this.index.entrySet().iterator(); it.hasNext();) {
+                Map.Entry e = (Map.Entry) it.next();
+                Entry entry = (Entry) e.getValue();
+                // records are copied as a whole, starting before the data
+                long start = entry.offset + entry.size - entry.recordSize;
+                long copied = 0;
+                while (copied < entry.recordSize) {
+                    copied += this.channel.transferTo(start + copied,
+                            entry.recordSize - copied, out);
+                }
+                compacted.put(e.getKey(), new Entry(pos + entry.recordSize - entry.size,
+                        entry.size, entry.lastTouched, entry.recordSize));
+                pos += entry.recordSize;
+            }
+            out.force(false);
+            complete = true;
+        } finally {
+            target.close();
+            if (!complete) {
+                tmp.delete();
+            }
+        }
+
+        this.raf.close();
+        boolean replaced = tmp.renameTo(this.file);
+        if (!replaced) {
+            // some platforms don't rename over existing files, so move the
+            // original out of the way first, keeping it until we're done
+            File backup = new File(this.file.getPath() + ".bak"); //$NON-NLS-1$
+            backup.delete();
+            if (this.file.renameTo(backup)) {
+                replaced = tmp.renameTo(this.file);
+                if (replaced) {
+                    backup.delete();
+                } else if (!backup.renameTo(this.file)) {
+                    // keep using the original under its backup name
+                    open(backup);
+                    tmp.delete();
+                    throw new IOException(Messages.getString("FileSessionStore.6") + //$NON-NLS-1$
+                            this.file + Messages.getString("FileSessionStore.7") + backup); //$NON-NLS-1$
+                }
+            }
+        }
+
+        // the index stays valid for the original file if it couldn't be replaced
+        open();
+        if (!replaced) {
+            tmp.delete();
+            throw new IOException(Messages.getString("FileSessionStore.5") + tmp); //$NON-NLS-1$
+        }
+        this.index = compacted;
+        this.length = pos;
+        this.liveBytes = pos;
+    }
+
+    private void write(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        long pos = this.length;
+        while (buffer.hasRemaining()) {
+            pos += this.channel.write(buffer, pos);
+        }
+        this.length = pos;
+    }
+
+    private void read(ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, pos);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            pos += read;
+        }
+    }
+
+    private void put(String sessionId, Entry entry) {
+        discard(sessionId);
+        this.index.put(sessionId, entry);
+        this.liveBytes += entry.recordSize;
+    }
+
+    private void discard(String sessionId) {
+        Entry previous = (Entry) this.index.remove(sessionId);
+        if (previous != null) {
+            this.liveBytes -= previous.recordSize;
+        }
+    }
+
+    // length of a string in the modified UTF-8 encoding used by writeUTF()
+    static int utfLength(String str) {
+        int l = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                l += 1;
+            } else if (c > 0x07FF) {
+                l += 3;
+            } else {
+                l += 2;
+            }
+        }
+        return l;
+    }
+
+    @Override
+    public String toString() {
+        return "FileSessionStore[" + this.file + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    static class Entry {
+        // offset and size of the session data
+        final long offset;
+        final int size;
+        final long lastTouched;
+        // size of the whole record
+        final long recordSize;
+
+        Entry(long offset, int size, long lastTouched, long recordSize) {
+            this.offset = offset;
+            this.size = size;
+            this.lastTouched = lastTouched;
+            this.recordSize = recordSize;
+        }
+    }
+}
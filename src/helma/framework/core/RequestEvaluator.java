@@ -16,6 +16,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.xmlrpc.XmlRpcRequestProcessor;
@@ -36,6 +38,7 @@ import helma.objectmodel.db.NodeHandle;
 import helma.objectmodel.db.Transactor;
 import helma.scripting.ScriptingEngineInterface;
 import helma.scripting.ScriptingException;
+import helma.util.BufferPool;
 
 /**
  * This class does the work for incoming requests. It holds a transactor thread
@@ -60,6 +63,9 @@ public final class RequestEvaluator implements Runnable {
     // skin depth counter, used to avoid recursive skin rendering
     protected int skinDepth;
 
+    // time spent generating hrefs during the current request
+    long hrefNanos;
+
     private volatile RequestTrans req;
     private volatile ResponseTrans res;
 
@@ -90,9 +96,21 @@ public final class RequestEvaluator implements Runnable {
     // the exception thrown by the evaluator, if any.
     private volatile Exception exception;
 
+    // true if the current transactor thread only serves a single request
+    private volatile boolean threadPerRequest;
+
+    // set by the request watchdog if a request running on the calling thread timed out
+    private volatile boolean timedOut;
+
+    // true while a request runs on a calling thread we don't own
+    private boolean direct;
+
     // For numbering threads.
     private int threadId;
 
+    // idle buffers for rendering skins and macros to strings, reused across requests
+    private volatile BufferPool bufferPool = new BufferPool();
+
 
     /**
      *  Create a new RequestEvaluator for this application.
@@ -158,503 +176,518 @@ public final class RequestEvaluator implements Runnable {
             // while this thread is serving requests
             while (localThread == this.thread) {
 
-                // object reference to ressolve request path
-                Object currentElement;
-
-                // Get req and res into local variables to avoid memory caching problems
-                // in unsynchronized method.
-                RequestTrans req = getRequest();
-                ResponseTrans res = getResponse();
-
-                // request path object
-                RequestPath requestPath = new RequestPath(this.app);
-
-                String txname = req.getMethod() + ":" + req.getPath(); //$NON-NLS-1$
-                Log eventLog = this.app.getEventLog();
-                if (eventLog.isDebugEnabled()) {
-                    eventLog.debug(txname + Messages.getString("RequestEvaluator.5")); //$NON-NLS-1$
+                if (!executeRequest(localThread)) {
+                    return;
                 }
 
-                int tries = 0;
-                boolean done = false;
-                Throwable error = null;
-                String functionName = this.function instanceof String ?
-                        (String) this.function : null;
-
-                while (!done && localThread == this.thread) {
-                    // catch errors in path resolution and script execution
-                    try {
-
-                        // initialize scripting engine
-                        initScriptingEngine();
-                        this.app.setCurrentRequestEvaluator(this);
-                        // update scripting prototypes
-                        this.scriptingEngine.enterContext();
-
-
-                        // avoid going into transaction if called function doesn't exist.
-                        // this only works for the (common) case that method is a plain
-                        // method name, not an obj.method path
-                        if (this.reqtype == INTERNAL) {
-                            // if object is an instance of NodeHandle, get the node object itself.
-                            if (this.thisObject instanceof NodeHandle) {
-                                this.thisObject = ((NodeHandle) this.thisObject).getNode(this.app.nmgr.safe);
-                                // If no valid node object return immediately
-                                if (this.thisObject == null) {
-                                    done = true;
-                                    this.reqtype = NONE;
-                                    break;
-                                }
-                            }
-                            // If function doesn't exist, return immediately
-                            if (functionName != null && !this.scriptingEngine.hasFunction(this.thisObject, functionName, true)) {
-                                this.app.logEvent(missingFunctionMessage(this.thisObject, functionName));
-                                done = true;
-                                this.reqtype = NONE;
-                                break;
-                            }
-                        } else if (this.function != null && functionName == null) {
-                            // only internal requests may pass a function instead of a function name
-                            throw new IllegalStateException(Messages.getString("RequestEvaluator.6")); //$NON-NLS-1$
-                        }
-
-                        // Update transaction name in case we're processing an error
-                        if (error != null) {
-                            txname = "error:" + txname; //$NON-NLS-1$
-                        }
+                notifyAndWait();
+            }
+        } finally {
+            Transactor tx = Transactor.getInstance();
+            if (tx != null) tx.closeConnections();
+        }
+    }
 
-                        // begin transaction
-                        this.transactor = Transactor.getInstance(this.app.nmgr);
-                        this.transactor.begin(txname);
+    /**
+     * Process the current request on the calling thread. This is called either
+     * from the evaluator's own transactor thread or, in direct execution mode,
+     * from the thread that invoked the request.
+     *
+     * @param localThread the thread executing the request
+     * @return false if the request has been stopped and the thread should quit
+     */
+    private boolean executeRequest(Thread localThread) {
+        // object reference to ressolve request path
+        Object currentElement;
+
+        // Get req and res into local variables to avoid memory caching problems
+        // in unsynchronized method.
+        RequestTrans req = getRequest();
+        ResponseTrans res = getResponse();
+
+        // request path object
+        RequestPath requestPath = new RequestPath(this.app);
+
+        String txname = req.getMethod() + ":" + req.getPath(); //$NON-NLS-1$
+        Log eventLog = this.app.getEventLog();
+        if (eventLog.isDebugEnabled()) {
+            eventLog.debug(txname + Messages.getString("RequestEvaluator.5")); //$NON-NLS-1$
+        }
 
-                        Object root = this.app.getDataRoot(this.scriptingEngine);
-                        initGlobals(root, requestPath);
+        int tries = 0;
+        boolean done = false;
+        Throwable error = null;
+        String functionName = this.function instanceof String ?
+                (String) this.function : null;
 
-                        String action = null;
+        while (!done && localThread == this.thread) {
+            // catch errors in path resolution and script execution
+            try {
 
-                        if (error != null) {
-                            res.setError(error);
+                // initialize scripting engine
+                initScriptingEngine();
+                this.app.setCurrentRequestEvaluator(this);
+                // update scripting prototypes
+                this.scriptingEngine.enterContext();
+
+
+                // avoid going into transaction if called function doesn't exist.
+                // this only works for the (common) case that method is a plain
+                // method name, not an obj.method path
+                if (this.reqtype == INTERNAL) {
+                    // if object is an instance of NodeHandle, get the node object itself.
+                    if (this.thisObject instanceof NodeHandle) {
+                        this.thisObject = ((NodeHandle) this.thisObject).getNode(this.app.nmgr.safe);
+                        // If no valid node object return immediately
+                        if (this.thisObject == null) {
+                            done = true;
+                            this.reqtype = NONE;
+                            break;
                         }
+                    }
+                    // If function doesn't exist, return immediately
+                    if (functionName != null && !this.scriptingEngine.hasFunction(this.thisObject, functionName, true)) {
+                        this.app.logEvent(missingFunctionMessage(this.thisObject, functionName));
+                        done = true;
+                        this.reqtype = NONE;
+                        break;
+                    }
+                } else if (this.function != null && functionName == null) {
+                    // only internal requests may pass a function instead of a function name
+                    throw new IllegalStateException(Messages.getString("RequestEvaluator.6")); //$NON-NLS-1$
+                }
 
-                        switch (this.reqtype) {
-                            case HTTP:
-
-                                // bring over the message from a redirect
-                                this.session.recoverResponseMessages(res);
-
-                                // catch redirect in path resolution or script execution
-                                try {
-                                    // catch object not found in path resolution
-                                    try {
-                                        if (error != null) {
-                                            // there was an error in the previous loop, call error handler
-                                            currentElement = root;
-                                            res.setStatus(500);
+                // Update transaction name in case we're processing an error
+                if (error != null) {
+                    txname = "error:" + txname; //$NON-NLS-1$
+                }
 
-                                            // do not reset the requestPath so error handler can use the original one
-                                            // get error handler action
-                                            String errorAction = this.app.props.getProperty("error", //$NON-NLS-1$
-                                                    "error"); //$NON-NLS-1$
+                // begin transaction
+                this.transactor = Transactor.getInstance(this.app.nmgr);
+                this.transactor.begin(txname);
 
-                                            action = getAction(currentElement, errorAction, req);
+                Object root = this.app.getDataRoot(this.scriptingEngine);
+                initGlobals(root, requestPath);
 
-                                            if (action == null) {
-                                                throw new RuntimeException(error);
-                                            }
-                                        } else if ((req.getPath() == null) ||
-                                                "".equals(req.getPath().trim())) { //$NON-NLS-1$
-                                            currentElement = root;
-                                            requestPath.add(null, currentElement);
+                String action = null;
 
-                                            action = getAction(currentElement, null, req);
+                if (error != null) {
+                    res.setError(error);
+                }
 
-                                            if (action == null) {
-                                                throw new NotFoundException(Messages.getString("RequestEvaluator.7")); //$NON-NLS-1$
-                                            }
-                                        } else {
-                                            // march down request path...
-                                            StringTokenizer st = new StringTokenizer(req.getPath(),
-                                                    "/"); //$NON-NLS-1$
-                                            int ntokens = st.countTokens();
-
-                                            // limit path to < 50 tokens
-                                            if (ntokens > 50) {
-                                                throw new RuntimeException(Messages.getString("RequestEvaluator.8")); //$NON-NLS-1$
-                                            }
+                switch (this.reqtype) {
+                    case HTTP:
 
-                                            String[] pathItems = new String[ntokens];
+                        // bring over the message from a redirect
+                        this.session.recoverResponseMessages(res);
 
-                                            for (int i = 0; i < ntokens; i++)
-                                                pathItems[i] = st.nextToken();
+                        // catch redirect in path resolution or script execution
+                        try {
+                            // catch object not found in path resolution
+                            try {
+                                if (error != null) {
+                                    // there was an error in the previous loop, call error handler
+                                    currentElement = root;
+                                    res.setStatus(500);
 
-                                            currentElement = root;
-                                            requestPath.add(null, currentElement);
+                                    // do not reset the requestPath so error handler can use the original one
+                                    // get error handler action
+                                    String errorAction = this.app.props.getProperty("error", //$NON-NLS-1$
+                                            "error"); //$NON-NLS-1$
 
-                                            for (int i = 0; i < ntokens; i++) {
-                                                if (currentElement == null) {
-                                                    throw new NotFoundException(Messages.getString("RequestEvaluator.9")); //$NON-NLS-1$
-                                                }
+                                    action = getAction(currentElement, errorAction, req);
 
-                                                if (pathItems[i].length() == 0) {
-                                                    continue;
-                                                }
+                                    if (action == null) {
+                                        throw new RuntimeException(error);
+                                    }
+                                } else if ((req.getPath() == null) ||
+                                        "".equals(req.getPath().trim())) { //$NON-NLS-1$
+                                    currentElement = root;
+                                    requestPath.add(null, currentElement);
 
-                                                // if we're at the last element of the path,
-                                                // try to interpret it as action name.
-                                                if (i == (ntokens - 1) && !req.getPath().endsWith("/")) { //$NON-NLS-1$
-                                                    action = getAction(currentElement, pathItems[i], req);
-                                                }
+                                    action = getAction(currentElement, null, req);
 
-                                                if (action == null) {
-                                                    currentElement = getChildElement(currentElement,
-                                                            pathItems[i]);
+                                    if (action == null) {
+                                        throw new NotFoundException(Messages.getString("RequestEvaluator.7")); //$NON-NLS-1$
+                                    }
+                                } else {
+                                    // march down request path...
+                                    StringTokenizer st = new StringTokenizer(req.getPath(),
+                                            "/"); //$NON-NLS-1$
+                                    int ntokens = st.countTokens();
+
+                                    // limit path to < 50 tokens
+                                    if (ntokens > 50) {
+                                        throw new RuntimeException(Messages.getString("RequestEvaluator.8")); //$NON-NLS-1$
+                                    }
 
-                                                    // add object to request path if suitable
-                                                    if (currentElement != null) {
-                                                        // add to requestPath array
-                                                        requestPath.add(pathItems[i], currentElement);
-                                                    }
-                                                }
-                                            }
+                                    String[] pathItems = new String[ntokens];
 
-                                            if (currentElement == null) {
-                                                throw new NotFoundException(Messages.getString("RequestEvaluator.10")); //$NON-NLS-1$
-                                            }
+                                    for (int i = 0; i < ntokens; i++)
+                                        pathItems[i] = st.nextToken();
 
-                                            if (action == null) {
-                                                action = getAction(currentElement, null, req);
-                                            }
+                                    currentElement = root;
+                                    requestPath.add(null, currentElement);
 
-                                            if (action == null) {
-                                                throw new NotFoundException(Messages.getString("RequestEvaluator.11")); //$NON-NLS-1$
-                                            }
+                                    for (int i = 0; i < ntokens; i++) {
+                                        if (currentElement == null) {
+                                            throw new NotFoundException(Messages.getString("RequestEvaluator.9")); //$NON-NLS-1$
                                         }
-                                    } catch (NotFoundException notfound) {
-                                        if (error != null) {
 
-                                            // we already have an error and the error template wasn't found,
-                                            // display it instead of notfound message
-                                            throw new RuntimeException();
+                                        if (pathItems[i].length() == 0) {
+                                            continue;
                                         }
 
-                                        // The path could not be resolved. Check if there is a "not found" action
-                                        // specified in the property file.
-                                        res.setStatus(404);
-
-                                        String notFoundAction = this.app.props.getProperty("notfound", //$NON-NLS-1$
-                                                "notfound"); //$NON-NLS-1$
-
-                                        currentElement = root;
-                                        action = getAction(currentElement, notFoundAction, req);
-
-                                        if (action == null) {
-                                            throw new NotFoundException(notfound.getMessage());
+                                        // if we're at the last element of the path,
+                                        // try to interpret it as action name.
+                                        if (i == (ntokens - 1) && !req.getPath().endsWith("/")) { //$NON-NLS-1$
+                                            action = getAction(currentElement, pathItems[i], req);
                                         }
-                                    }
-
-                                    // register path objects with their prototype names in
-                                    // res.handlers
-                                    Map macroHandlers = res.getMacroHandlers();
-                                    int l = requestPath.size();
-                                    Prototype[] protos = new Prototype[l];
-
-                                    for (int i = 0; i < l; i++) {
-
-                                        Object obj = requestPath.get(i);
 
-                                        protos[i] = this.app.getPrototype(obj);
+                                        if (action == null) {
+                                            currentElement = getChildElement(currentElement,
+                                                    pathItems[i]);
 
-                                        // immediately register objects with their direct prototype name
-                                        if (protos[i] != null) {
-                                            macroHandlers.put(protos[i].getName(), obj);
-                                            macroHandlers.put(protos[i].getLowerCaseName(), obj);
+                                            // add object to request path if suitable
+                                            if (currentElement != null) {
+                                                // add to requestPath array
+                                                requestPath.add(pathItems[i], currentElement);
+                                            }
                                         }
                                     }
 
-                                    // in a second pass, we register path objects with their indirect
-                                    // (i.e. parent prototype) names, starting at the end and only
-                                    // if the name isn't occupied yet.
-                                    for (int i = l - 1; i >= 0; i--) {
-                                        if (protos[i] != null) {
-                                            protos[i].registerParents(macroHandlers, requestPath.get(i));
-                                        }
+                                    if (currentElement == null) {
+                                        throw new NotFoundException(Messages.getString("RequestEvaluator.10")); //$NON-NLS-1$
                                     }
 
-                                    /////////////////////////////////////////////////////////////////////////////
-                                    // end of path resolution section
-                                    /////////////////////////////////////////////////////////////////////////////
-                                    // beginning of execution section
-
-                                    // set the req.action property, cutting off the _action suffix
-                                    req.setAction(action);
-
-                                    // reset skin recursion detection counter
-                                    this.skinDepth = 0;
-
-                                    // try calling onRequest() function on object before
-                                    // calling the actual action
-                                    this.scriptingEngine.invoke(currentElement,
-                                            "onRequest", //$NON-NLS-1$
-                                            EMPTY_ARGS,
-                                            ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
-                                            false);
-
-                                    // reset skin recursion detection counter
-                                    this.skinDepth = 0;
-
-                                    Object actionProcessor = req.getActionHandler() != null ?
-                                        req.getActionHandler() : action;
-
-                                    // do the actual action invocation
-                                    if (req.isXmlRpc()) {
-                                        XmlRpcRequestProcessor xreqproc = new XmlRpcRequestProcessor();
-                                        XmlRpcServerRequest xreq = xreqproc.decodeRequest(req.getServletRequest()
-                                                .getInputStream());
-                                        Vector args = xreq.getParameters();
-                                        args.add(0, xreq.getMethodName());
-                                        this.result = this.scriptingEngine.invoke(currentElement,
-                                                actionProcessor,
-                                                args.toArray(),
-                                                ScriptingEngineInterface.ARGS_WRAP_XMLRPC,
-                                                false);
-                                        res.writeXmlRpcResponse(this.result);
-                                        this.app.xmlrpcCount += 1;
-                                    } else {
-                                        this.scriptingEngine.invoke(currentElement,
-                                                actionProcessor,
-                                                EMPTY_ARGS,
-                                                ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
-                                                false);
+                                    if (action == null) {
+                                        action = getAction(currentElement, null, req);
                                     }
 
-                                    // try calling onResponse() function on object before
-                                    // calling the actual action
-                                    this.scriptingEngine.invoke(currentElement,
-                                            "onResponse", //$NON-NLS-1$
-                                            EMPTY_ARGS,
-                                            ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
-                                            false);
-
-                                } catch (RedirectException redirect) {
-                                    // if there is a message set, save it on the user object for the next request
-                                    if (res.getRedirect() != null)
-                                        this.session.storeResponseMessages(res);
+                                    if (action == null) {
+                                        throw new NotFoundException(Messages.getString("RequestEvaluator.11")); //$NON-NLS-1$
+                                    }
                                 }
+                            } catch (NotFoundException notfound) {
+                                if (error != null) {
 
-                                // check if request is still valid, or if the requesting thread has stopped waiting already
-                                if (localThread != this.thread) {
-                                    return;
+                                    // we already have an error and the error template wasn't found,
+                                    // display it instead of notfound message
+                                    throw new RuntimeException();
                                 }
-                                commitTransaction();
-                                done = true;
 
-                                break;
+                                // The path could not be resolved. Check if there is a "not found" action
+                                // specified in the property file.
+                                res.setStatus(404);
 
-                            case XMLRPC:
-                            case EXTERNAL:
+                                String notFoundAction = this.app.props.getProperty("notfound", //$NON-NLS-1$
+                                        "notfound"); //$NON-NLS-1$
 
-                                try {
-                                    currentElement = root;
-
-                                    if (functionName.indexOf('.') > -1) {
-                                        StringTokenizer st = new StringTokenizer(functionName, "."); //$NON-NLS-1$
-                                        int cnt = st.countTokens();
+                                currentElement = root;
+                                action = getAction(currentElement, notFoundAction, req);
 
-                                        for (int i = 1; i < cnt; i++) {
-                                            String next = st.nextToken();
-                                            currentElement = getChildElement(currentElement, next);
-                                        }
+                                if (action == null) {
+                                    throw new NotFoundException(notfound.getMessage());
+                                }
+                            }
 
-                                        if (currentElement == null) {
-                                            throw new NotFoundException(Messages.getString("RequestEvaluator.12") + //$NON-NLS-1$
-                                                    this.function + Messages.getString("RequestEvaluator.13")); //$NON-NLS-1$
-                                        }
+                            // register path objects with their prototype names in
+                            // res.handlers
+                            Map macroHandlers = res.getMacroHandlers();
+                            int l = requestPath.size();
+                            Prototype[] protos = new Prototype[l];
 
-                                        functionName = st.nextToken();
-                                    }
+                            for (int i = 0; i < l; i++) {
 
-                                    if (this.reqtype == XMLRPC) {
-                                        // check XML-RPC access permissions
-                                        String proto = this.app.getPrototypeName(currentElement);
-                                        this.app.checkXmlRpcAccess(proto, functionName);
-                                    }
+                                Object obj = requestPath.get(i);
 
-                                    // reset skin recursion detection counter
-                                    this.skinDepth = 0;
-                                    if (!this.scriptingEngine.hasFunction(currentElement, functionName, false)) {
-                                        throw new NotFoundException(missingFunctionMessage(currentElement, functionName));
-                                    }
-                                    this.result = this.scriptingEngine.invoke(currentElement,
-                                            functionName, this.args,
-                                            ScriptingEngineInterface.ARGS_WRAP_XMLRPC,
-                                            false);
-                                    // check if request is still valid, or if the requesting thread has stopped waiting already
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
-                                    commitTransaction();
-                                } catch (Exception x) {
-                                    // check if request is still valid, or if the requesting thread has stopped waiting already
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
-                                    abortTransaction();
-                                    this.app.logError(txname + " " + error, x); //$NON-NLS-1$
+                                protos[i] = this.app.getPrototype(obj);
 
-                                    // If the transactor thread has been killed by the invoker thread we don't have to
-                                    // bother for the error message, just quit.
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
+                                // immediately register objects with their direct prototype name
+                                if (protos[i] != null) {
+                                    macroHandlers.put(protos[i].getName(), obj);
+                                    macroHandlers.put(protos[i].getLowerCaseName(), obj);
+                                }
+                            }
 
-                                    this.exception = x;
+                            // in a second pass, we register path objects with their indirect
+                            // (i.e. parent prototype) names, starting at the end and only
+                            // if the name isn't occupied yet.
+                            for (int i = l - 1; i >= 0; i--) {
+                                if (protos[i] != null) {
+                                    protos[i].registerParents(macroHandlers, requestPath.get(i));
                                 }
+                            }
 
-                                done = true;
-                                break;
+                            /////////////////////////////////////////////////////////////////////////////
+                            // end of path resolution section
+                            /////////////////////////////////////////////////////////////////////////////
+                            // beginning of execution section
 
-                            case INTERNAL:
+                            // set the req.action property, cutting off the _action suffix
+                            req.setAction(action);
 
-                                try {
-                                    // reset skin recursion detection counter
-                                    this.skinDepth = 0;
+                            // reset skin recursion detection counter
+                            this.skinDepth = 0;
 
-                                    this.result = this.scriptingEngine.invoke(this.thisObject,
-                                            this.function,
-                                            this.args,
-                                            ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
-                                            true);
-                                    // check if request is still valid, or if the requesting thread has stopped waiting already
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
-                                    commitTransaction();
-                                } catch (Exception x) {
-                                    // check if request is still valid, or if the requesting thread has stopped waiting already
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
-                                    abortTransaction();
-                                    this.app.logError(txname + " " + error, x); //$NON-NLS-1$
+                            // try calling onRequest() function on object before
+                            // calling the actual action
+                            this.scriptingEngine.invoke(currentElement,
+                                    "onRequest", //$NON-NLS-1$
+                                    EMPTY_ARGS,
+                                    ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
+                                    false);
 
-                                    // If the transactor thread has been killed by the invoker thread we don't have to
-                                    // bother for the error message, just quit.
-                                    if (localThread != this.thread) {
-                                        return;
-                                    }
+                            // reset skin recursion detection counter
+                            this.skinDepth = 0;
 
-                                    this.exception = x;
-                                }
+                            Object actionProcessor = req.getActionHandler() != null ?
+                                req.getActionHandler() : action;
 
-                                done = true;
-                                break;
+                            // do the actual action invocation
+                            if (req.isXmlRpc()) {
+                                XmlRpcRequestProcessor xreqproc = new XmlRpcRequestProcessor();
+                                XmlRpcServerRequest xreq = xreqproc.decodeRequest(req.getServletRequest()
+                                        .getInputStream());
+                                Vector args = xreq.getParameters();
+                                args.add(0, xreq.getMethodName());
+                                this.result = this.scriptingEngine.invoke(currentElement,
+                                        actionProcessor,
+                                        args.toArray(),
+                                        ScriptingEngineInterface.ARGS_WRAP_XMLRPC,
+                                        false);
+                                res.writeXmlRpcResponse(this.result);
+                                this.app.xmlrpcCount += 1;
+                            } else {
+                                this.scriptingEngine.invoke(currentElement,
+                                        actionProcessor,
+                                        EMPTY_ARGS,
+                                        ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
+                                        false);
+                            }
+
+                            // try calling onResponse() function on object before
+                            // calling the actual action
+                            this.scriptingEngine.invoke(currentElement,
+                                    "onResponse", //$NON-NLS-1$
+                                    EMPTY_ARGS,
+                                    ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
+                                    false);
+
+                        } catch (RedirectException redirect) {
+                            // if there is a message set, save it on the user object for the next request
+                            if (res.getRedirect() != null)
+                                this.session.storeResponseMessages(res);
+                        }
 
-                        } // switch (reqtype)
-                    } catch (AbortException x) {
-                        // res.abort() just aborts the transaction and
-                        // leaves the response untouched
                         // check if request is still valid, or if the requesting thread has stopped waiting already
                         if (localThread != this.thread) {
-                            return;
+                            return false;
                         }
-                        abortTransaction();
+                        commitTransaction();
                         done = true;
-                    } catch (ConcurrencyException x) {
-                        res.reset();
 
-                        if (++tries < 8) {
-                            // try again after waiting some period
-                            // check if request is still valid, or if the requesting thread has stopped waiting already
-                            if (localThread != this.thread) {
-                                return;
+                        break;
+
+                    case XMLRPC:
+                    case EXTERNAL:
+
+                        try {
+                            currentElement = root;
+
+                            if (functionName.indexOf('.') > -1) {
+                                StringTokenizer st = new StringTokenizer(functionName, "."); //$NON-NLS-1$
+                                int cnt = st.countTokens();
+
+                                for (int i = 1; i < cnt; i++) {
+                                    String next = st.nextToken();
+                                    currentElement = getChildElement(currentElement, next);
+                                }
+
+                                if (currentElement == null) {
+                                    throw new NotFoundException(Messages.getString("RequestEvaluator.12") + //$NON-NLS-1$
+                                            this.function + Messages.getString("RequestEvaluator.13")); //$NON-NLS-1$
+                                }
+
+                                functionName = st.nextToken();
                             }
-                            abortTransaction();
 
-                            try {
-                                // wait a bit longer with each try
-                                int base = 800 * tries;
-                                Thread.sleep((long) (base + (Math.random() * base * 2)));
-                            } catch (InterruptedException interrupt) {
-                                // we got interrrupted, create minimal error message
-                                res.reportError(interrupt);
-                                done = true;
-                                // and release resources and thread
-                                this.thread = null;
-                                this.transactor = null;
+                            if (this.reqtype == XMLRPC) {
+                                // check XML-RPC access permissions
+                                String proto = this.app.getPrototypeName(currentElement);
+                                this.app.checkXmlRpcAccess(proto, functionName);
+                            }
+
+                            // reset skin recursion detection counter
+                            this.skinDepth = 0;
+                            if (!this.scriptingEngine.hasFunction(currentElement, functionName, false)) {
+                                throw new NotFoundException(missingFunctionMessage(currentElement, functionName));
                             }
-                        } else {
+                            this.result = this.scriptingEngine.invoke(currentElement,
+                                    functionName, this.args,
+                                    ScriptingEngineInterface.ARGS_WRAP_XMLRPC,
+                                    false);
                             // check if request is still valid, or if the requesting thread has stopped waiting already
                             if (localThread != this.thread) {
-                                return;
+                                return false;
+                            }
+                            commitTransaction();
+                        } catch (Exception x) {
+                            // check if request is still valid, or if the requesting thread has stopped waiting already
+                            if (localThread != this.thread) {
+                                return false;
                             }
                             abortTransaction();
+                            this.app.logError(txname + " " + error, x); //$NON-NLS-1$
 
-                            // error in error action. use traditional minimal error message
-                            res.reportError(Messages.getString("RequestEvaluator.14")); //$NON-NLS-1$
-                            done = true;
-                        }
-                    } catch (Throwable x) {
-                        // check if request is still valid, or if the requesting thread has stopped waiting already
-                        if (localThread != this.thread) {
-                            return;
-                        }
-                        abortTransaction();
+                            // If the transactor thread has been killed by the invoker thread we don't have to
+                            // bother for the error message, just quit.
+                            if (localThread != this.thread) {
+                                return false;
+                            }
 
-                        // If the transactor thread has been killed by the invoker thread we don't have to
-                        // bother for the error message, just quit.
-                        if (localThread != this.thread) {
-                            return;
+                            this.exception = x;
                         }
 
-                        res.reset();
+                        done = true;
+                        break;
 
-                        // check if we tried to process the error already,
-                        // or if this is an XML-RPC request
-                        if (error == null) {
-                            if (!(x instanceof NotFoundException)) {
-                                this.app.errorCount += 1;
-                            }
+                    case INTERNAL:
 
-                            // set done to false so that the error will be processed
-                            done = false;
-                            error = x;
+                        try {
+                            // reset skin recursion detection counter
+                            this.skinDepth = 0;
 
+                            this.result = this.scriptingEngine.invoke(this.thisObject,
+                                    this.function,
+                                    this.args,
+                                    ScriptingEngineInterface.ARGS_WRAP_DEFAULT,
+                                    true);
+                            // check if request is still valid, or if the requesting thread has stopped waiting already
+                            if (localThread != this.thread) {
+                                return false;
+                            }
+                            commitTransaction();
+                        } catch (Exception x) {
+                            // check if request is still valid, or if the requesting thread has stopped waiting already
+                            if (localThread != this.thread) {
+                                return false;
+                            }
+                            abortTransaction();
                             this.app.logError(txname + " " + error, x); //$NON-NLS-1$
 
-                            if (req.isXmlRpc()) {
-                                // if it's an XML-RPC exception immediately generate error response
-                                if (!(x instanceof Exception)) {
-                                    // we need an exception to pass to XML-RPC responder
-                                    x = new Exception(x.toString(), x);
-                                }
-                                res.writeXmlRpcError((Exception) x);
-                                done = true;
-                            }
-                        } else {
-                            // error in error action. use traditional minimal error message
-                            res.reportError(error);
-                            done = true;
-                        }
-                    } finally {
-                        this.app.setCurrentRequestEvaluator(null);
-                        // exit execution context
-                        if (this.scriptingEngine != null) {
-                            try {
-                                this.scriptingEngine.exitContext();
-                            } catch (Throwable t) {
-                                // broken rhino, just get out of here
+                            // If the transactor thread has been killed by the invoker thread we don't have to
+                            // bother for the error message, just quit.
+                            if (localThread != this.thread) {
+                                return false;
                             }
+
+                            this.exception = x;
                         }
+
+                        done = true;
+                        break;
+
+                } // switch (reqtype)
+            } catch (AbortException x) {
+                // res.abort() just aborts the transaction and
+                // leaves the response untouched
+                // check if request is still valid, or if the requesting thread has stopped waiting already
+                if (localThread != this.thread) {
+                    return false;
+                }
+                abortTransaction();
+                done = true;
+            } catch (ConcurrencyException x) {
+                res.reset();
+
+                if (++tries < 8) {
+                    // try again after waiting some period
+                    // check if request is still valid, or if the requesting thread has stopped waiting already
+                    if (localThread != this.thread) {
+                        return false;
                     }
+                    abortTransaction();
+
+                    try {
+                        // wait a bit longer with each try
+                        int base = 800 * tries;
+                        Thread.sleep((long) (base + (Math.random() * base * 2)));
+                    } catch (InterruptedException interrupt) {
+                        // we got interrrupted, create minimal error message
+                        res.reportError(interrupt);
+                        done = true;
+                        // and release resources and thread
+                        this.thread = null;
+                        this.transactor = null;
+                    }
+                } else {
+                    // check if request is still valid, or if the requesting thread has stopped waiting already
+                    if (localThread != this.thread) {
+                        return false;
+                    }
+                    abortTransaction();
+
+                    // error in error action. use traditional minimal error message
+                    res.reportError(Messages.getString("RequestEvaluator.14")); //$NON-NLS-1$
+                    done = true;
+                }
+            } catch (Throwable x) {
+                // check if request is still valid, or if the requesting thread has stopped waiting already
+                if (localThread != this.thread) {
+                    return false;
                 }
+                abortTransaction();
 
-                notifyAndWait();
+                // If the transactor thread has been killed by the invoker thread we don't have to
+                // bother for the error message, just quit.
+                if (localThread != this.thread) {
+                    return false;
+                }
 
+                res.reset();
+
+                // check if we tried to process the error already,
+                // or if this is an XML-RPC request
+                if (error == null) {
+                    if (!(x instanceof NotFoundException)) {
+                        this.app.errorCount += 1;
+                    }
+
+                    // set done to false so that the error will be processed
+                    done = false;
+                    error = x;
+
+                    this.app.logError(txname + " " + error, x); //$NON-NLS-1$
+
+                    if (req.isXmlRpc()) {
+                        // if it's an XML-RPC exception immediately generate error response
+                        if (!(x instanceof Exception)) {
+                            // we need an exception to pass to XML-RPC responder
+                            x = new Exception(x.toString(), x);
+                        }
+                        res.writeXmlRpcError((Exception) x);
+                        done = true;
+                    }
+                } else {
+                    // error in error action. use traditional minimal error message
+                    res.reportError(error);
+                    done = true;
+                }
+            } finally {
+                this.app.setCurrentRequestEvaluator(null);
+                // exit execution context
+                if (this.scriptingEngine != null) {
+                    try {
+                        this.scriptingEngine.exitContext();
+                    } catch (Throwable t) {
+                        // broken rhino, just get out of here
+                    }
+                }
             }
-        } finally {
-            Transactor tx = Transactor.getInstance();
-            if (tx != null) tx.closeConnections();
         }
+
+        return true;
     }
 
     /**
@@ -691,8 +724,17 @@ public final class RequestEvaluator implements Runnable {
 
         if ((this.thread == null) || !this.thread.isAlive()) {
             // app.logEvent ("Starting Thread");
-            this.thread = new Thread(this.app.threadgroup, this, this.app.getName() + "-" + (++this.threadId)); //$NON-NLS-1$
-            this.thread.setContextClassLoader(this.app.getClassLoader());
+            String threadName = this.app.getName() + "-" + (++this.threadId); //$NON-NLS-1$
+            Thread t = null;
+            if (this.app.executionMode == Application.EXECUTE_VIRTUAL_THREAD) {
+                t = this.app.createVirtualThread(this, threadName);
+            }
+            this.threadPerRequest = t != null;
+            if (t == null) {
+                t = new Thread(this.app.threadgroup, this, threadName);
+            }
+            t.setContextClassLoader(this.app.getClassLoader());
+            this.thread = t;
             this.thread.start();
         } else {
             notifyAll();
@@ -720,6 +762,14 @@ public final class RequestEvaluator implements Runnable {
         this.reqtype = NONE;
         notifyAll();
 
+        if (this.threadPerRequest) {
+            // virtual threads are cheap, start a new one for the next request
+            // instead of keeping this one parked
+            this.thread = null;
+            this.transactor = null;
+            return;
+        }
+
         try {
             // wait for request, max 10 min
             wait(1000 * 60 * 10);
@@ -746,6 +796,10 @@ public final class RequestEvaluator implements Runnable {
      * thread. If currently active kill the request, otherwise just notify.
      */
     synchronized boolean stopTransactor() {
+        if (this.direct) {
+            // never kill a calling thread, just abort its request
+            return stopDirectRequest();
+        }
         Transactor t = this.transactor;
         this.thread = null;
         this.transactor = null;
@@ -764,37 +818,194 @@ public final class RequestEvaluator implements Runnable {
             t.kill();
             t.abort();
             t.closeConnections();
+            // the stopped thread may still be using the buffer pool
+            this.bufferPool = new BufferPool();
             stopped = true;
         }
         notifyAll();
         return stopped;
     }
 
+    /**
+     * Start the request set up by initObjects(). Depending on the application's
+     * execution mode the request is dispatched to the transactor thread and
+     * waited for, or reserved to be run on the calling thread by finishRequest().
+     * This must be called in the same block synchronized on this evaluator as
+     * initObjects(), so the request is handed off as a whole.
+     *
+     * @param timeout the time in milliseconds to wait for the request to finish,
+     * or -1 to wait indefinitely
+     * @param allowDirect whether the request may be run on the calling thread
+     * @return true if the request has to be run on the calling thread
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    private synchronized boolean startRequest(long timeout, boolean allowDirect)
+            throws InterruptedException {
+        this.timedOut = false;
+
+        if (allowDirect && this.app.executionMode == Application.EXECUTE_CALLING_THREAD &&
+                this.app.getCurrentRequestEvaluator() == null) {
+            Transactor tx = Transactor.getInstance();
+            if (tx == null || !tx.isActive()) {
+                if (!this.app.isRunning()) {
+                    throw new ApplicationStoppedException();
+                }
+                this.thread = Thread.currentThread();
+                this.direct = true;
+                return true;
+            }
+        }
+
+        startTransactor();
+        if (timeout < 0)
+            wait();
+        else
+            wait(timeout);
+
+        this.timedOut = this.reqtype != NONE && stopTransactor();
+        return false;
+    }
+
+    /**
+     * Finish the request started by startRequest(), running it on the calling
+     * thread if it wasn't dispatched. This must be called without holding the
+     * lock on this evaluator, so the request can be stopped while it runs.
+     *
+     * @param timeout the timeout in milliseconds, or -1 for none
+     * @param direct the value returned by startRequest()
+     * @return true if the request was stopped because it timed out
+     */
+    private boolean finishRequest(long timeout, boolean direct) {
+        if (direct) {
+            runDirect(timeout);
+        }
+        return this.timedOut;
+    }
+
+    /**
+     * Run the current request on the calling thread. This saves the handoff to
+     * and from the transactor thread. The request timeout is enforced by the
+     * application's request watchdog, which stops the request just like a
+     * waiting thread does in the dispatched case.
+     *
+     * @param timeout the timeout in milliseconds, or -1 for none
+     */
+    private void runDirect(long timeout) {
+        final Thread localThread = Thread.currentThread();
+        ClassLoader loader = localThread.getContextClassLoader();
+        ScheduledFuture watchdog = null;
+
+        try {
+            localThread.setContextClassLoader(this.app.getClassLoader());
+            if (timeout > -1) {
+                watchdog = this.app.getRequestWatchdog().schedule(new Runnable() {
+                    public void run() {
+                        stopTimedOutRequest(localThread);
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+            }
+            executeRequest(localThread);
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+            localThread.setContextClassLoader(loader);
+
+            synchronized (this) {
+                if (this.thread == localThread) {
+                    this.thread = null;
+                    this.transactor = null;
+                }
+                this.direct = false;
+                this.reqtype = NONE;
+                // wake up threads attached to this request
+                notifyAll();
+            }
+
+            // clear the interrupted flag possibly set by stopDirectRequest(),
+            // the calling thread is not ours to keep interrupted
+            Thread.interrupted();
+
+            // a killed transactor can't be used for further requests on this thread
+            Transactor tx = Transactor.getInstance();
+            if (tx != null && tx.isKilled()) {
+                Transactor.removeInstance();
+            }
+        }
+    }
+
+    /**
+     * Called by the request watchdog when a request running on the calling
+     * thread has exceeded its timeout.
+     *
+     * @param thread the thread the request was started on
+     */
+    synchronized void stopTimedOutRequest(Thread thread) {
+        if (this.thread == thread && this.direct && this.reqtype != NONE) {
+            this.timedOut = stopDirectRequest();
+        }
+    }
+
+    /**
+     * Abort the request running on a calling thread. The thread belongs to
+     * the servlet container, so unlike stopTransactor() this neither kills
+     * the transactor nor waits for the thread. The script is aborted by the
+     * scripting engine and the thread is interrupted to break out of blocking
+     * calls. The interrupt is cleared by runDirect() before the thread is
+     * handed back, which can't happen while we hold the lock.
+     *
+     * @return true if a request was aborted
+     */
+    private synchronized boolean stopDirectRequest() {
+        Thread t = this.thread;
+        if (t == null || this.reqtype == NONE) {
+            return false;
+        }
+        this.app.logEvent(Messages.getString("RequestEvaluator.15") + this.transactor); //$NON-NLS-1$
+        if (this.scriptingEngine != null) {
+            this.scriptingEngine.cancel();
+        }
+        t.interrupt();
+        return true;
+    }
+
     /**
      * Invoke an action function for a HTTP request. The function is dispatched
-     * in a new thread and waits for it to finish.
+     * in a new thread and waits for it to finish, or run on the calling thread
+     * if the application's execution mode is set to direct.
      *
      * @param req the incoming HTTP request
      * @param session the client's session
      * @return the result returned by the invocation
      * @throws Exception any exception thrown by the invocation
      */
-    public synchronized ResponseTrans invokeHttp(RequestTrans req, Session session)
+    public ResponseTrans invokeHttp(RequestTrans req, Session session)
                                       throws Exception {
-        initObjects(req, session);
+        ResponseTrans res;
+        boolean direct;
+        synchronized (this) {
+            initObjects(req, session);
 
-        this.app.activeRequests.put(req, this);
+            this.app.activeRequests.put(req, this);
 
-        startTransactor();
-        wait(this.app.requestTimeout);
+            res = this.res;
+            direct = startRequest(this.app.requestTimeout, true);
+        }
 
-        if (this.reqtype != NONE && stopTransactor()) {
-            this.res.reset();
-            this.res.reportError(Messages.getString("RequestEvaluator.16")); //$NON-NLS-1$
+        if (finishRequest(this.app.requestTimeout, direct)) {
+            if (res.isCommitted()) {
+                // the client already got the headers and part of the response
+                res.abort();
+            } else {
+                // the timed out thread may still be writing to the response,
+                // so report the timeout in a response of its own
+                res = new ResponseTrans(this.app, req);
+                res.reportError(Messages.getString("RequestEvaluator.16")); //$NON-NLS-1$
+            }
         }
 
         session.commit(this.app.sessionMgr);
-        return this.res;
+        return res;
     }
 
     /**
@@ -825,23 +1036,25 @@ public final class RequestEvaluator implements Runnable {
 
     /**
      * Invoke a function for an XML-RPC request. The function is dispatched in a new thread
-     * and waits for it to finish.
+     * and waits for it to finish, or run on the calling thread if the application's
+     * execution mode is set to direct.
      *
      * @param functionName the name of the function to invoke
      * @param args the arguments
      * @return the result returned by the invocation
      * @throws Exception any exception thrown by the invocation
      */
-    public synchronized Object invokeXmlRpc(String functionName, Object[] args)
+    public Object invokeXmlRpc(String functionName, Object[] args)
                                      throws Exception {
-        initObjects(functionName, XMLRPC, RequestTrans.XMLRPC);
-        this.function = functionName;
-        this.args = args;
-
-        startTransactor();
-        wait(this.app.requestTimeout);
+        boolean direct;
+        synchronized (this) {
+            initObjects(functionName, XMLRPC, RequestTrans.XMLRPC);
+            this.function = functionName;
+            this.args = args;
+            direct = startRequest(this.app.requestTimeout, true);
+        }
 
-        if (this.reqtype != NONE && stopTransactor()) {
+        if (finishRequest(this.app.requestTimeout, direct)) {
             this.exception = new RuntimeException(Messages.getString("RequestEvaluator.17")); //$NON-NLS-1$
         }
 
@@ -859,23 +1072,25 @@ public final class RequestEvaluator implements Runnable {
 
     /**
      * Invoke a function for an external request. The function is dispatched
-     * in a new thread and waits for it to finish.
+     * in a new thread and waits for it to finish, or run on the calling thread
+     * if the application's execution mode is set to direct.
      *
      * @param functionName the name of the function to invoke
      * @param args the arguments
      * @return the result returned by the invocation
      * @throws Exception any exception thrown by the invocation
      */
-    public synchronized Object invokeExternal(String functionName, Object[] args)
+    public Object invokeExternal(String functionName, Object[] args)
                                      throws Exception {
-        initObjects(functionName, EXTERNAL, RequestTrans.EXTERNAL);
-        this.function = functionName;
-        this.args = args;
-
-        startTransactor();
-        wait();
+        boolean direct;
+        synchronized (this) {
+            initObjects(functionName, EXTERNAL, RequestTrans.EXTERNAL);
+            this.function = functionName;
+            this.args = args;
+            direct = startRequest(-1, true);
+        }
 
-        if (this.reqtype != NONE && stopTransactor()) {
+        if (finishRequest(-1, direct)) {
             this.exception = new RuntimeException(Messages.getString("RequestEvaluator.18")); //$NON-NLS-1$
         }
 
@@ -914,7 +1129,7 @@ public final class RequestEvaluator implements Runnable {
      * @return the result returned by the invocation
      * @throws Exception any exception thrown by the invocation
      */
-    public synchronized Object invokeInternal(Object object, Object function,
+    public Object invokeInternal(Object object, Object function,
                                               Object[] args)
                                        throws Exception {
         // give internal call more time (15 minutes) to complete
@@ -933,21 +1148,20 @@ public final class RequestEvaluator implements Runnable {
      * @return the result returned by the invocation
      * @throws Exception any exception thrown by the invocation
      */
-    public synchronized Object invokeInternal(Object object, Object function,
+    public Object invokeInternal(Object object, Object function,
                                               Object[] args, long timeout)
                                        throws Exception {
-        initObjects(function, INTERNAL, RequestTrans.INTERNAL);
-        this.thisObject = object;
-        this.function = function;
-        this.args = args;
-
-        startTransactor();
-        if (timeout < 0)
-            wait();
-        else
-            wait(timeout);
+        // internal invocations may be nested in a request running on the
+        // calling thread, so they are always dispatched to the transactor thread
+        synchronized (this) {
+            initObjects(function, INTERNAL, RequestTrans.INTERNAL);
+            this.thisObject = object;
+            this.function = function;
+            this.args = args;
+            startRequest(timeout, false);
+        }
 
-        if (this.reqtype != NONE && stopTransactor()) {
+        if (this.timedOut) {
             this.exception = new RuntimeException(Messages.getString("RequestEvaluator.19")); //$NON-NLS-1$
         }
 
@@ -972,7 +1186,7 @@ public final class RequestEvaluator implements Runnable {
         this.req = req;
         this.reqtype = HTTP;
         this.session = session;
-        this.res = new ResponseTrans(this.app, req);
+        this.res = new ResponseTrans(this.app, req, this.bufferPool);
         this.result = null;
         this.exception = null;
     }
@@ -991,7 +1205,7 @@ public final class RequestEvaluator implements Runnable {
                 (String) function : "<function>"; //$NON-NLS-1$
         this.req = new RequestTrans(reqtypeName, functionName);
         this.session = new Session(functionName, this.app);
-        this.res = new ResponseTrans(this.app, this.req);
+        this.res = new ResponseTrans(this.app, this.req, this.bufferPool);
         this.result = null;
         this.exception = null;
     }
@@ -59,6 +59,10 @@ public class Session implements Serializable {
 
     protected transient boolean modifiedInRequest = false;
     protected transient boolean registered = false;
+    // the lastTouched value of the version written to the session store
+    protected transient long storedTouched = 0;
+    // the number of requests using this session, guarded by the session table
+    protected transient int activeRequests = 0;
 
     /**
      * Creates a new Session object.
@@ -238,6 +242,7 @@ public class Session implements Serializable {
                 smgr.registerSession(this);
                 this.registered = true;
             }
+            smgr.sessionModified(this);
             this.modifiedInRequest = false;
             this.cacheLastModified = this.cacheNode.lastModified();
         }
@@ -387,6 +392,7 @@ public class Session implements Serializable {
         }
         UploadStatus status = new UploadStatus();
         this.uploads.put(uploadId, status);
+        this.app.sessionMgr.registerUpload(this);
         return status;
     }
 
@@ -397,6 +403,10 @@ public class Session implements Serializable {
         return (UploadStatus) this.uploads.get(uploadId);
     }
 
+    protected boolean hasUploads() {
+        return this.uploads != null && !this.uploads.isEmpty();
+    }
+
     protected void pruneUploads() {
         if (this.uploads == null || this.uploads.isEmpty())
             return;
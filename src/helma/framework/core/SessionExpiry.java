@@ -0,0 +1,137 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 2017 Helma Project. All Rights Reserved.
+ */
+
+package helma.framework.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hashed timing wheel keeping track of when sessions are due to expire.
+ * Each session id is kept in the slot of the tick its deadline falls into,
+ * so finding the expired sessions only takes looking at the slots of the
+ * ticks passed since the last call. Deadlines more than one revolution
+ * ahead stay in their slot until their round comes.
+ *
+ * Deadlines are not updated when a session is touched. The session manager
+ * checks the actual last touch time of due sessions and reschedules the
+ * ones still in use, which keeps the request path free of any bookkeeping.
+ */
+class SessionExpiry {
+
+    // slots of session ids mapped to Long deadlines
+    private final HashMap[] slots;
+    private final int mask;
+    private final long tick;
+
+    // slot indexes by session id
+    private final HashMap index = new HashMap();
+
+    // the first tick not yet processed
+    private long current;
+
+    /**
+     * Create a timing wheel.
+     *
+     * @param size the minimal number of slots, rounded up to a power of two
+     * @param tick the duration of a tick in milliseconds
+     */
+    SessionExpiry(int size, long tick) {
+        int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.slots = new HashMap[capacity];
+        for (int i = 0; i < capacity; i++) {
+            this.slots[i] = new HashMap();
+        }
+        this.mask = capacity - 1;
+        this.tick = tick;
+        this.current = System.currentTimeMillis() / tick;
+    }
+
+    /**
+     * Schedule a session to be checked at the given time, replacing a
+     * previous deadline.
+     *
+     * @param sessionId the session id
+     * @param deadline the time the session expires
+     */
+    synchronized void schedule(String sessionId, long deadline) {
+        cancel(sessionId);
+        // deadlines in ticks already processed go to the current slot
+        int slot = (int) Math.max(deadline / this.tick, this.current) & this.mask;
+        this.index.put(sessionId, new Integer(slot));
+        this.slots[slot].put(sessionId, new Long(deadline));
+    }
+
+    /**
+     * Stop tracking a session.
+     *
+     * @param sessionId the session id
+     */
+    synchronized void cancel(String sessionId) {
+        Integer slot = (Integer) this.index.remove(sessionId);
+        if (slot != null) {
+            this.slots[slot.intValue()].remove(sessionId);
+        }
+    }
+
+    /**
+     * Remove and return the sessions whose deadline lies in a tick that has
+     * passed completely.
+     *
+     * @param now the current time
+     * @return a list of session ids
+     */
+    synchronized List expire(long now) {
+        List expired = new ArrayList();
+        long end = now / this.tick;
+        // after a full revolution, every slot has been looked at
+        long start = Math.max(this.current, end - this.slots.length);
+        long limit = end * this.tick;
+        for (long t = start; t < end; t++) {
+            HashMap slot = this.slots[(int) t & this.mask];
+            if (slot.isEmpty()) {
+                continue;
+            }
+            for (Iterator it = slot.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry = (Map.Entry) it.next();
+                if (((Long) entry.getValue()).longValue() < limit) {
+                    it.remove();
+                    this.index.remove(entry.getKey());
+                    expired.add(entry.getKey());
+                }
+            }
+        }
+        this.current = Math.max(this.current, end);
+        return expired;
+    }
+
+    /**
+     * Remove all sessions.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < this.slots.length; i++) {
+            this.slots[i].clear();
+        }
+        this.index.clear();
+    }
+
+    /**
+     * Get the number of sessions tracked.
+     *
+     * @return the number of sessions
+     */
+    synchronized int size() {
+        return this.index.size();
+    }
+}
@@ -13,6 +13,8 @@ package helma.framework.core;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -23,10 +25,14 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import helma.objectmodel.NodeInterface;
 import helma.objectmodel.db.NodeHandle;
@@ -39,20 +45,95 @@ public class SessionManager {
 
     protected Application app;
 
+    // the persistent session store, or null if sessions are only stored on shutdown
+    protected SessionStore store;
+
+    // ids of sessions modified since they were last written to the store
+    protected Set dirty = Collections.synchronizedSet(new HashSet());
+
+    // the thread writing modified sessions to the store
+    private SessionWriter writer;
+
+    // lock for loading sessions from the store
+    private final Object loadLock = new Object();
+
+    // the times sessions are due to be checked for expiry, in one minute ticks
+    protected SessionExpiry expiry = new SessionExpiry(256, 60000);
+
+    // the session timeout in minutes the expiry times were computed with
+    protected int scheduledTimeout = -1;
+
+    // the number of sessions in memory that haven't been written to the
+    // store yet, guarded by the sessions table
+    protected int unstored = 0;
+
+    // sessions holding upload status objects
+    protected Set uploadSessions = Collections.synchronizedSet(new HashSet());
+
     public SessionManager() {
         this.sessions = new Hashtable();
     }
 
     public void init(Application app) {
         this.app = app;
+
+        // open the session store if persistent sessions use one
+        String storeImpl = app.getProperty("sessionStoreImpl"); //$NON-NLS-1$
+        if (storeImpl != null && "true".equalsIgnoreCase(app.getProperty("persistentSessions"))) { //$NON-NLS-1$ //$NON-NLS-2$
+            try {
+                SessionStore sessionStore = (SessionStore) Class.forName(storeImpl).newInstance();
+                sessionStore.init(app);
+                this.store = sessionStore;
+                this.writer = new SessionWriter();
+                this.writer.start();
+                app.logEvent(Messages.getString("SessionManager.11") + storeImpl); //$NON-NLS-1$
+            } catch (Exception x) {
+                app.logError(Messages.getString("SessionManager.12") + storeImpl, x); //$NON-NLS-1$
+            }
+        }
+        scheduleSessions(getSessionTimeout(false));
     }
 
     public void shutdown() {
-        this.sessions.clear();
+        stopWriter();
+        if (this.store != null) {
+            this.store.shutdown();
+        }
+        synchronized (this.sessions) {
+            this.sessions.clear();
+            this.unstored = 0;
+        }
+        this.dirty.clear();
+        this.expiry.clear();
+        this.uploadSessions.clear();
     }
 
     public Session createSession(String sessionId) {
-        Session session = getSession(sessionId);
+        return createSession(sessionId, null);
+    }
+
+    /**
+     * Get a session, creating it if it is neither in memory nor stored.
+     *
+     * @param sessionId the session id
+     * @param ev the evaluator to deserialize a stored session with, or null
+     * @return the session
+     * @throws RuntimeException if the stored session couldn't be loaded, so
+     *         it isn't replaced by an empty one
+     */
+    protected Session createSession(String sessionId, RequestEvaluator ev) {
+        Session session = null;
+        if (sessionId != null && this.store != null) {
+            try {
+                session = restoreSession(sessionId, ev);
+            } catch (RuntimeException x) {
+                throw x;
+            } catch (Exception x) {
+                throw new RuntimeException(Messages.getString("SessionManager.13") + sessionId, x); //$NON-NLS-1$
+            }
+        } else if (sessionId != null) {
+            session = (Session) this.sessions.get(sessionId);
+        }
         if (session == null) {
             session = new Session(sessionId, this.app);
         }
@@ -63,17 +144,85 @@ public class SessionManager {
         if (sessionId == null) {
             return null;
         }
-        return (Session) this.sessions.get(sessionId);
+        Session session = (Session) this.sessions.get(sessionId);
+        if (session == null && this.store != null) {
+            session = loadSession(sessionId);
+        }
+        return session;
+    }
+
+    /**
+     * Get the session for a request, creating it if necessary, and touch it.
+     * The session is kept in memory until it is released with
+     * releaseSession(), so it isn't evicted to the session store while the
+     * request is using it.
+     *
+     * @param sessionId the session id
+     * @param ev the evaluator of the request, used to deserialize the session
+     *        if it has to be loaded from the session store
+     * @return the session
+     */
+    public Session acquireSession(String sessionId, RequestEvaluator ev) {
+        while (true) {
+            Session session = createSession(sessionId, ev);
+            synchronized (this.sessions) {
+                // a registered session no longer in the table has just been
+                // evicted or discarded and must be looked up again
+                if (!session.registered || this.sessions.get(sessionId) == session) {
+                    session.activeRequests++;
+                    session.touch();
+                    return session;
+                }
+            }
+        }
+    }
+
+    /**
+     * Release a session acquired with acquireSession() after the request
+     * using it has ended.
+     *
+     * @param session the session
+     */
+    public void releaseSession(Session session) {
+        synchronized (this.sessions) {
+            session.activeRequests--;
+        }
     }
 
     public void registerSession(Session session) {
-        this.sessions.put(session.getSessionId(), session);        
+        synchronized (this.sessions) {
+            if (this.sessions.put(session.getSessionId(), session) != session
+                    && session.storedTouched == 0) {
+                this.unstored++;
+            }
+        }
+        this.expiry.schedule(session.getSessionId(),
+                session.lastTouched() + getSessionTimeout(false) * 60000L);
+    }
+
+    /**
+     * Called when an upload status object has been added to a session, so it
+     * will be pruned when it's no longer needed.
+     */
+    public void registerUpload(Session session) {
+        this.uploadSessions.add(session);
+    }
+
+    /**
+     * Called when a session has been modified during a request, so it will
+     * be written to the session store.
+     */
+    public void sessionModified(Session session) {
+        if (this.store != null) {
+            this.dirty.add(session.getSessionId());
+        }
     }
 
     /**
      *  Return the whole session map. We return a clone of the table to prevent
      * actual changes from the table itself, which is managed by the application.
      * It is safe and allowed to manipulate the session objects contained in the table, though.
+     * With a session store, only sessions currently held in memory are returned.
      */
     public Map getSessions() {
         return (Map) this.sessions.clone();
@@ -83,7 +232,12 @@ public class SessionManager {
      * Returns the number of currenty active sessions.
      */
     public int countSessions() {
-        return this.sessions.size();
+        if (this.store == null) {
+            return this.sessions.size();
+        }
+        synchronized (this.sessions) {
+            return this.store.size() + this.unstored;
+        }
     }
 
     /**
@@ -91,7 +245,195 @@ public class SessionManager {
      */
     public void discardSession(Session session) {
         session.logout();
-        this.sessions.remove(session.getSessionId());
+        synchronized (this.sessions) {
+            if (this.sessions.remove(session.getSessionId()) == session
+                    && session.storedTouched == 0) {
+                this.unstored--;
+            }
+        }
+        this.expiry.cancel(session.getSessionId());
+        this.uploadSessions.remove(session);
+        if (this.store != null) {
+            this.dirty.remove(session.getSessionId());
+            try {
+                this.store.remove(session.getSessionId());
+            } catch (Exception x) {
+                this.app.logError(Messages.getString("SessionManager.3"), x); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Load a session from the session store into memory.
+     *
+     * @param sessionId the session id
+     * @return the session, or null if it isn't stored or can't be loaded
+     */
+    protected Session loadSession(String sessionId) {
+        try {
+            return restoreSession(sessionId, null);
+        } catch (Exception x) {
+            this.app.logError(Messages.getString("SessionManager.13") + sessionId, x); //$NON-NLS-1$
+            return null;
+        }
+    }
+
+    /**
+     * Get a session from memory, or load it from the session store.
+     *
+     * @param sessionId the session id
+     * @param ev the evaluator to deserialize the session with, or null to use
+     *        the current thread's evaluator or a free one
+     * @return the session, or null if it isn't stored
+     * @throws Exception if the stored session couldn't be loaded
+     */
+    protected Session restoreSession(String sessionId, RequestEvaluator ev) throws Exception {
+        Session session = (Session) this.sessions.get(sessionId);
+        if (session != null || !this.store.contains(sessionId)) {
+            return session;
+        }
+        RequestEvaluator current = this.app.getCurrentRequestEvaluator();
+        RequestEvaluator borrowed = null;
+        try {
+            if (ev == null) {
+                ev = current;
+            }
+            if (ev == null) {
+                // don't wait for a free evaluator while holding the lock
+                ev = borrowed = this.app.getEvaluator();
+            }
+            ev.initScriptingEngine();
+            // initializing the engine makes its evaluator the current one
+            this.app.setCurrentRequestEvaluator(current);
+            ScriptingEngineInterface engine = ev.scriptingEngine;
+
+            synchronized (this.loadLock) {
+                // check again, the session may have been loaded by another thread
+                session = (Session) this.sessions.get(sessionId);
+                if (session != null) {
+                    return session;
+                }
+                byte[] data = this.store.load(sessionId);
+                if (data == null) {
+                    return null;
+                }
+                session = (Session) engine.deserialize(new ByteArrayInputStream(data));
+                session.setApp(this.app);
+                session.registered = true;
+                session.storedTouched = session.lastTouched();
+                this.sessions.put(sessionId, session);
+                if (session.hasUploads()) {
+                    registerUpload(session);
+                }
+                return session;
+            }
+        } finally {
+            if (borrowed != null) {
+                this.app.releaseEvaluator(borrowed);
+            }
+        }
+    }
+
+    /**
+     * Write modified sessions to the session store, and move sessions that
+     * haven't been used for sessionEvictTimeout minutes and aren't used by
+     * a request from memory to the store.
+     *
+     * Sessions are serialized while requests may be modifying them, so a
+     * session may be written in a state in between two changes. Since a
+     * session is marked as modified again when the request changing it
+     * ends, the complete state is written on the next run.
+     *
+     * @param engine the scripting engine to serialize sessions with, or null
+     *        to use the one of a free request evaluator
+     * @param all true to write all sessions, e.g. on shutdown, without evicting any
+     * @return the number of sessions written
+     */
+    protected int writeSessions(ScriptingEngineInterface engine, boolean all) {
+        long now = System.currentTimeMillis();
+        long evictTimeout = 10;
+        try {
+            evictTimeout = Long.parseLong(this.app.getProperty("sessionEvictTimeout", "10")); //$NON-NLS-1$ //$NON-NLS-2$
+        } catch (NumberFormatException nfe) {
+            this.app.logEvent(Messages.getString("SessionManager.14") + //$NON-NLS-1$
+                    this.app.getProperty("sessionEvictTimeout")); //$NON-NLS-1$
+        }
+
+        int written = 0;
+        RequestEvaluator ev = null;
+        try {
+            if (engine == null) {
+                ev = this.app.getEvaluator();
+                ev.initScriptingEngine();
+                engine = ev.scriptingEngine;
+            }
+
+            Session[] sessionArray = (Session[]) this.sessions.values().toArray(new Session[0]);
+            for (int i = 0; i < sessionArray.length; i++) {
+                Session session = sessionArray[i];
+                String id = session.getSessionId();
+                boolean modified = this.dirty.remove(id);
+                long touched = session.lastTouched();
+                boolean cold = !all && evictTimeout > 0 && (now - touched) > (evictTimeout * 60000);
+
+                if (all || modified || (cold && session.storedTouched != touched)) {
+                    try {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        engine.serialize(session, out);
+                        this.store.store(id, touched, out.toByteArray());
+                        synchronized (this.sessions) {
+                            if (session.storedTouched == 0 && this.sessions.get(id) == session) {
+                                this.unstored--;
+                            }
+                            session.storedTouched = touched;
+                        }
+                        written++;
+                    } catch (Exception x) {
+                        // try again next time, the session may have been changed while serializing
+                        if (modified) {
+                            this.dirty.add(id);
+                        }
+                        this.app.logError(Messages.getString("SessionManager.0"), x); //$NON-NLS-1$
+                        continue;
+                    }
+                }
+
+                if (cold) {
+                    synchronized (this.sessions) {
+                        if (this.sessions.get(id) == session && session.activeRequests == 0
+                                && session.lastTouched() == touched && !this.dirty.contains(id)) {
+                            this.sessions.remove(id);
+                            // registered again when the session is loaded
+                            this.uploadSessions.remove(session);
+                        }
+                    }
+                }
+            }
+            this.store.flush();
+        } catch (Exception x) {
+            this.app.logError(Messages.getString("SessionManager.3"), x); //$NON-NLS-1$
+        } finally {
+            if (ev != null) {
+                this.app.releaseEvaluator(ev);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Stop the thread writing sessions to the store.
+     */
+    protected void stopWriter() {
+        SessionWriter w = this.writer;
+        this.writer = null;
+        if (w != null) {
+            w.interrupt();
+            try {
+                w.join(10000);
+            } catch (InterruptedException ix) {
+                // ignore
+            }
+        }
     }
 
 
@@ -151,6 +493,14 @@ public class SessionManager {
      * @param f the file to write session into, or null to use the default sesssion store.
      */
     public void storeSessionData(File f, ScriptingEngineInterface engine) {
+        if (f == null && this.store != null) {
+            // sessions are written behind, so only write what's still in memory
+            stopWriter();
+            int written = writeSessions(engine, true);
+            this.app.logEvent(Messages.getString("SessionManager.1") + written + //$NON-NLS-1$
+                    Messages.getString("SessionManager.15") + this.store); //$NON-NLS-1$
+            return;
+        }
         if (f == null) {
             f = new File(this.app.dbDir, "sessions"); //$NON-NLS-1$
         }
@@ -185,6 +535,10 @@ public class SessionManager {
      * loads the serialized session table from a given file or from dbdir/sessions
      */
     public void loadSessionData(File f, ScriptingEngineInterface engine) {
+        if (f == null && this.store != null) {
+            // sessions are loaded from the store on first access
+            return;
+        }
         if (f == null) {
             f = new File(this.app.dbDir, "sessions"); //$NON-NLS-1$
         }
@@ -218,6 +572,9 @@ public class SessionManager {
                 if ((now - session.lastTouched()) < (sessionTimeout * 60000)) {
                     session.setApp(this.app);
                     newSessions.put(session.getSessionId(), session);
+                    if (session.hasUploads()) {
+                        registerUpload(session);
+                    }
                 }
 
                 ct++;
@@ -225,7 +582,12 @@ public class SessionManager {
 
             p.close();
             istream.close();
-            this.sessions = newSessions;
+            synchronized (this.sessions) {
+                this.sessions.clear();
+                this.sessions.putAll(newSessions);
+                this.unstored = newSessions.size();
+            }
+            scheduleSessions(sessionTimeout);
             this.app.logEvent(Messages.getString("SessionManager.4") + newSessions.size() + Messages.getString("SessionManager.5")); //$NON-NLS-1$ //$NON-NLS-2$
             tx.commit();
         } catch (FileNotFoundException fnf) {
@@ -240,9 +602,53 @@ public class SessionManager {
 
     }
 
+    /**
+     * Get the session timeout from the sessionTimeout app property.
+     *
+     * @param log true to log an invalid setting
+     * @return the session timeout in minutes
+     */
+    protected int getSessionTimeout(boolean log) {
+        try {
+            return Math.max(0, Integer.parseInt(this.app.getProperty("sessionTimeout", "30"))); //$NON-NLS-1$ //$NON-NLS-2$
+        } catch (NumberFormatException nfe) {
+            if (log) {
+                this.app.logEvent(Messages.getString("SessionManager.7") + this.app.getProperty(Messages.getString("SessionManager.8"))); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            return 30;
+        }
+    }
+
+    /**
+     * Compute the expiry times of all sessions, in memory and in the session
+     * store, for the given session timeout.
+     *
+     * @param sessionTimeout the session timeout in minutes
+     */
+    protected void scheduleSessions(int sessionTimeout) {
+        long timeout = sessionTimeout * 60000L;
+        this.expiry.clear();
+        if (this.store != null) {
+            Map times = this.store.getSessionTimes();
+            for (Iterator it = times.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry = (Map.Entry) it.next();
+                this.expiry.schedule((String) entry.getKey(),
+                        ((Long) entry.getValue()).longValue() + timeout);
+            }
+        }
+        Session[] sessionArray = (Session[]) this.sessions.values().toArray(new Session[0]);
+        for (int i = 0; i < sessionArray.length; i++) {
+            this.expiry.schedule(sessionArray[i].getSessionId(),
+                    sessionArray[i].lastTouched() + timeout);
+        }
+        this.scheduledTimeout = sessionTimeout;
+    }
+
     /**
      * Purge sessions that have not been used for a certain amount of time.
-     * This is called by run().
+     * This is called by run(). Only sessions due according to the expiry
+     * times are looked at. Sessions touched since their expiry time was
+     * computed are rescheduled, the others are logged out and discarded.
      *
      * @param lastSessionCleanup the last time sessions were purged
      * @return the updated lastSessionCleanup value
@@ -256,32 +662,76 @@ public class SessionManager {
         if ((now - lastSessionCleanup) > sessionCleanupInterval) {
 
             // get session timeout
-            int sessionTimeout = 30;
-
-            try {
-                sessionTimeout = Math.max(0,
-                        Integer.parseInt(this.app.getProperty("sessionTimeout", "30"))); //$NON-NLS-1$ //$NON-NLS-2$
-            } catch (NumberFormatException nfe) {
-                this.app.logEvent(Messages.getString("SessionManager.7") + this.app.getProperty(Messages.getString("SessionManager.8"))); //$NON-NLS-1$ //$NON-NLS-2$
+            int sessionTimeout = getSessionTimeout(true);
+            if (sessionTimeout != this.scheduledTimeout) {
+                // expiry times were computed with a different timeout
+                scheduleSessions(sessionTimeout);
+            }
+            long timeout = sessionTimeout * 60000L;
+
+            // only sessions with uploads need pruning
+            Session[] uploading = (Session[]) this.uploadSessions.toArray(new Session[0]);
+            for (int i = 0; i < uploading.length; i++) {
+                uploading[i].pruneUploads();
+                if (!uploading[i].hasUploads()) {
+                    this.uploadSessions.remove(uploading[i]);
+                }
             }
 
+            // borrowed only if a stored session has to be loaded or an onLogout
+            // handler has to be invoked
             RequestEvaluator thisEvaluator = null;
 
+            List due = this.expiry.expire(now);
+            Iterator it = due.iterator();
+
             try {
+                while (it.hasNext()) {
+                    String sessionId = (String) it.next();
+                    try {
+                        Session session = (Session) this.sessions.get(sessionId);
+                        long lastTouched;
+                        if (session != null) {
+                            lastTouched = session.lastTouched();
+                        } else if (this.store != null) {
+                            lastTouched = this.store.getLastTouched(sessionId);
+                        } else {
+                            lastTouched = -1;
+                        }
 
-                thisEvaluator = this.app.getEvaluator();
+                        if (lastTouched < 0) {
+                            // session has already been discarded
+                            continue;
+                        }
 
-                Session[] sessionArray = (Session[]) this.sessions.values().toArray(new Session[0]);
+                        if ((now - lastTouched) <= timeout) {
+                            // session has been used since it was scheduled
+                            this.expiry.schedule(sessionId, lastTouched + timeout);
+                            continue;
+                        }
 
-                for (int i = 0; i < sessionArray.length; i++) {
-                    Session session = sessionArray[i];
+                        if (session == null) {
+                            // load the stored session so the user can be logged out,
+                            // if loading fails it is tried again on the next run
+                            if (thisEvaluator == null) {
+                                thisEvaluator = this.app.getEvaluator();
+                            }
+                            session = restoreSession(sessionId, thisEvaluator);
+                            if (session == null) {
+                                // nothing stored for the session
+                                this.store.remove(sessionId);
+                                continue;
+                            }
+                        }
 
-                    session.pruneUploads();
-                    if ((now - session.lastTouched()) > (sessionTimeout * 60000)) {
                         NodeHandle userhandle = session.userHandle;
 
                         if (userhandle != null) {
                             try {
+                                if (thisEvaluator == null) {
+                                    thisEvaluator = this.app.getEvaluator();
+                                }
+
                                 Object[] param = {session.getSessionId()};
 
                                 thisEvaluator.invokeInternal(userhandle, "onLogout", param); //$NON-NLS-1$
@@ -292,11 +742,17 @@ public class SessionManager {
                         }
 
                         discardSession(session);
+                    } catch (Exception cx) {
+                        // try again on the next run
+                        this.expiry.schedule(sessionId, now);
+                        this.app.logError(Messages.getString("SessionManager.10"), cx); //$NON-NLS-1$
                     }
                 }
-            } catch (Exception cx) {
-                this.app.logError(Messages.getString("SessionManager.10"), cx); //$NON-NLS-1$
             } finally {
+                // don't lose track of the sessions not looked at
+                while (it.hasNext()) {
+                    this.expiry.schedule((String) it.next(), now);
+                }
                 if (thisEvaluator != null) {
                     this.app.releaseEvaluator(thisEvaluator);
                 }
@@ -306,5 +762,37 @@ public class SessionManager {
         return lastSessionCleanup;
     }
 
+    /**
+     * The thread writing modified sessions to the session store every
+     * sessionWriteInterval seconds.
+     */
+    class SessionWriter extends Thread {
 
+        SessionWriter() {
+            super(SessionManager.this.app.getName() + "-sessions"); //$NON-NLS-1$
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (SessionManager.this.writer == this) {
+                long interval = 10;
+                try {
+                    interval = Math.max(1, Long.parseLong(SessionManager.this.app.getProperty(
+                            "sessionWriteInterval", "10"))); //$NON-NLS-1$ //$NON-NLS-2$
+                } catch (NumberFormatException nfe) {
+                    SessionManager.this.app.logEvent(Messages.getString("SessionManager.16") + //$NON-NLS-1$
+                            SessionManager.this.app.getProperty("sessionWriteInterval")); //$NON-NLS-1$
+                }
+                try {
+                    Thread.sleep(interval * 1000);
+                } catch (InterruptedException ix) {
+                    break;
+                }
+                if (SessionManager.this.app.isRunning()) {
+                    writeSessions(null, false);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,105 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 2017 Helma Project. All Rights Reserved.
+ */
+
+package helma.framework.core;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Interface for persistent session stores used by the {@link SessionManager}.
+ * A store keeps serialized sessions by session id, together with the time
+ * they were last touched so that expired sessions can be found without
+ * deserializing them. Sessions are serialized by the session manager using
+ * the application's scripting engine, so stores only deal with bytes.
+ *
+ * The implementation is selected with the sessionStoreImpl app property and
+ * only used if persistentSessions is enabled.
+ */
+public interface SessionStore {
+
+    /**
+     * Init the session store for the given application.
+     *
+     * @param app the application
+     * @throws IOException if the store can't be opened
+     */
+    public void init(Application app) throws IOException;
+
+    /**
+     * Shut down the session store, releasing all resources.
+     */
+    public void shutdown();
+
+    /**
+     * Store a serialized session, replacing a previously stored version.
+     *
+     * @param sessionId the session id
+     * @param lastTouched the time the session was last touched
+     * @param data the serialized session
+     * @throws IOException if the session can't be stored
+     */
+    public void store(String sessionId, long lastTouched, byte[] data) throws IOException;
+
+    /**
+     * Load a serialized session.
+     *
+     * @param sessionId the session id
+     * @return the serialized session, or null if it isn't stored
+     * @throws IOException if the session can't be read
+     */
+    public byte[] load(String sessionId) throws IOException;
+
+    /**
+     * Check whether a session is stored.
+     *
+     * @param sessionId the session id
+     * @return true if the session is stored
+     */
+    public boolean contains(String sessionId);
+
+    /**
+     * Remove a session from the store.
+     *
+     * @param sessionId the session id
+     * @throws IOException if the session can't be removed
+     */
+    public void remove(String sessionId) throws IOException;
+
+    /**
+     * Get the time a stored session was last touched.
+     *
+     * @param sessionId the session id
+     * @return the time the session was last touched, or -1 if it isn't stored
+     */
+    public long getLastTouched(String sessionId);
+
+    /**
+     * Get the ids of all stored sessions along with the time they were last touched.
+     *
+     * @return a map of session ids to Long timestamps
+     */
+    public Map getSessionTimes();
+
+    /**
+     * Get the number of stored sessions.
+     *
+     * @return the number of stored sessions
+     */
+    public int size();
+
+    /**
+     * Make sure all sessions stored so far are written to persistent storage.
+     *
+     * @throws IOException if writing fails
+     */
+    public void flush() throws IOException;
+}
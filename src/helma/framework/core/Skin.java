@@ -269,7 +269,7 @@ public final class Skin {
                 throws RedirectException {
         String result = ""; //$NON-NLS-1$
         ResponseTrans res = reval.getResponse();
-        res.pushBuffer(null);
+        res.pushBuilder();
         try {
             render(reval, thisObject, paramObject);
         } finally {
@@ -448,7 +448,7 @@ public final class Skin {
             boolean escape = false;
             char quotechar = '\u0000';
             String lastParamName = null;
-            StringBuffer b = new StringBuffer();
+            StringBuilder b = new StringBuilder();
             int i;
 
             loop:
@@ -706,7 +706,7 @@ public final class Skin {
                 String funcName = resolveFunctionName(handler, propName + "_macro", engine); //$NON-NLS-1$
 
                 // remember length of response buffer before calling macro
-                StringBuffer buffer = cx.reval.getResponse().getBuffer();
+                StringBuilder buffer = cx.reval.getResponse().getBuilder();
                 int bufLength = buffer.length();
 
                 if (funcName != null) {
@@ -773,7 +773,7 @@ public final class Skin {
             Object value = invokeAsMacro(cx, stdParams, true);
             if (stdParams.prefix != null || stdParams.suffix != null) {
                 ResponseTrans res = cx.reval.getResponse();
-                res.pushBuffer(null);
+                res.pushBuilder();
                 writeResponse(value, cx.reval, stdParams, true);
                 return res.popString();
             } else if (stdParams.defaultValue != null &&
@@ -789,7 +789,10 @@ public final class Skin {
          */
         void render(RenderContext cx)
                 throws RedirectException {
-            StringBuffer buffer = cx.reval.getResponse().getBuffer();
+            ResponseTrans res = cx.reval.getResponse();
+            // make sure a streamed response isn't sent while we depend on the buffer
+            res.lockBuffer();
+            StringBuilder buffer = res.getBuilder();
             // remember length of response buffer before calling macro
             int bufLength = buffer.length();
             try {
@@ -841,10 +844,12 @@ public final class Skin {
                 if ((msg == null) || (msg.length() < 10)) {
                     msg = x.toString();
                 }
-                msg = new StringBuffer(Messages.getString("Skin.8")).append(this.name) //$NON-NLS-1$
+                msg = new StringBuilder(Messages.getString("Skin.8")).append(this.name) //$NON-NLS-1$
                         .append(": ").append(msg).toString(); //$NON-NLS-1$
                 cx.reval.getResponse().write(" [" + msg + "] ");  //$NON-NLS-1$//$NON-NLS-2$
                 Skin.this.app.logError(msg, x);
+            } finally {
+                res.unlockBuffer();
             }
         }
 
@@ -968,7 +973,7 @@ public final class Skin {
                            StandardParams stdParams, boolean useDefault)
                 throws Exception {
             String text;
-            StringBuffer buffer = reval.getResponse().getBuffer();
+            StringBuilder buffer = reval.getResponse().getBuilder();
 
             if (value == null || "".equals(value)) { //$NON-NLS-1$
                 if (useDefault) {
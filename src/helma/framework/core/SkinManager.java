@@ -14,9 +14,13 @@ package helma.framework.core;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import helma.framework.repository.FileResource;
 import helma.objectmodel.NodeInterface;
+import helma.util.CacheMap;
+import helma.util.SystemMap;
 
 /**
  * Manages skins for a Helma application
@@ -28,6 +32,12 @@ public final class SkinManager implements FilenameFilter {
     // the file name extension for skin files
     final String skinExtension;
 
+    // cache of parsed skinpath skins keyed by skinset, prototype and skin name
+    final CacheMap skinCache;
+    final int skinCacheSize;
+    final AtomicLong cacheHits = new AtomicLong();
+    final AtomicLong cacheMisses = new AtomicLong();
+
     /**
      * Creates a new SkinManager object.
      *
@@ -37,6 +47,15 @@ public final class SkinManager implements FilenameFilter {
         this.app = app;
         this.skinProperty = app.getProperty("skinProperty", "skin"); //$NON-NLS-1$ //$NON-NLS-2$
         this.skinExtension = ".skin"; //$NON-NLS-1$
+
+        int size = 500;
+        try {
+            size = Integer.parseInt(app.getProperty("skinCacheSize", "500")); //$NON-NLS-1$ //$NON-NLS-2$
+        } catch (NumberFormatException ignore) {
+            // go with default value
+        }
+        this.skinCacheSize = size;
+        this.skinCache = size > 0 ? new CacheMap(size) : null;
     }
 
     public Skin getSkin(Prototype prototype, String skinname, Object[] skinpath)
@@ -104,7 +123,8 @@ public final class SkinManager implements FilenameFilter {
         // check if the skinset object is a HopObject (db based skin)
         // or a String (file based skin)
         if (skinset instanceof NodeInterface) {
-            NodeInterface n = (NodeInterface) ((NodeInterface) skinset).getChildElement(prototype);
+            NodeInterface set = (NodeInterface) skinset;
+            NodeInterface n = (NodeInterface) set.getChildElement(prototype);
 
             if (n != null) {
                 n = (NodeInterface) n.getChildElement(skinname);
@@ -113,7 +133,19 @@ public final class SkinManager implements FilenameFilter {
                     String skin = n.getString(this.skinProperty);
 
                     if (skin != null) {
-                        return new Skin(skin, this.app);
+                        // the skin source is compared to the cached one, so
+                        // modifications of the skin node are always picked up
+                        String key = set.getPrototype() + "#" + set.getID() + //$NON-NLS-1$
+                                File.separatorChar + prototype + File.separatorChar + skinname;
+                        CachedSkin cached = getCachedSkin(key);
+                        if (cached != null && skin.equals(cached.source)) {
+                            this.cacheHits.incrementAndGet();
+                            return cached.skin;
+                        }
+                        this.cacheMisses.incrementAndGet();
+                        Skin s = new Skin(skin, this.app);
+                        cacheSkin(key, new CachedSkin(s, skin, 0));
+                        return s;
                     }
                 }
             }
@@ -126,11 +158,25 @@ public final class SkinManager implements FilenameFilter {
 
             // TODO: check for lower case prototype name for backwards compat
 
-            File f = new File(b.toString());
+            String path = b.toString();
+            File f = new File(path);
 
+            // the file's timestamp is 0 if it doesn't exist, so missing
+            // skins are cached as well until the file is created
+            long lastModified = f.lastModified();
+            CachedSkin cached = getCachedSkin(path);
+            if (cached != null && cached.lastModified == lastModified) {
+                this.cacheHits.incrementAndGet();
+                return cached.skin;
+            }
+            this.cacheMisses.incrementAndGet();
+
+            Skin skin = null;
             if (f.exists() && f.canRead()) {
-                return Skin.getSkin(new FileResource(f), this.app);
+                skin = Skin.getSkin(new FileResource(f), this.app);
             }
+            cacheSkin(path, new CachedSkin(skin, null, lastModified));
+            return skin;
         }
 
         // Inheritance is taken care of in the above getSkin method.
@@ -138,10 +184,58 @@ public final class SkinManager implements FilenameFilter {
         return null;
     }
 
+    private CachedSkin getCachedSkin(String key) {
+        return this.skinCache == null ? null : (CachedSkin) this.skinCache.get(key);
+    }
+
+    private void cacheSkin(String key, CachedSkin skin) {
+        if (this.skinCache != null) {
+            this.skinCache.put(key, skin);
+        }
+    }
+
+    /**
+     * Remove all skins from the skin cache.
+     */
+    public void clearCache() {
+        if (this.skinCache != null) {
+            this.skinCache.clear();
+        }
+    }
+
+    /**
+     * Returns a map containing the size, capacity, hits and misses
+     * of the skinpath skin cache.
+     */
+    public Map getCacheStatistics() {
+        SystemMap stats = new SystemMap();
+        stats.put("size", Integer.valueOf(this.skinCache == null ? 0 : this.skinCache.size())); //$NON-NLS-1$
+        stats.put("capacity", Integer.valueOf(Math.max(0, this.skinCacheSize))); //$NON-NLS-1$
+        stats.put("hits", Long.valueOf(this.cacheHits.get())); //$NON-NLS-1$
+        stats.put("misses", Long.valueOf(this.cacheMisses.get())); //$NON-NLS-1$
+        return stats;
+    }
+
     /**
      * Implements java.io.FilenameFilter.accept()
      */
     public boolean accept(File d, String n) {
         return n.endsWith(this.skinExtension);
     }
+
+    /**
+     * A cached skin along with the source or file timestamp it was parsed from.
+     * The skin is null for skin files that don't exist.
+     */
+    static final class CachedSkin {
+        final Skin skin;
+        final String source;
+        final long lastModified;
+
+        CachedSkin(Skin skin, String source, long lastModified) {
+            this.skin = skin;
+            this.source = source;
+            this.lastModified = lastModified;
+        }
+    }
 }
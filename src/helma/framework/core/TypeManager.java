@@ -49,6 +49,8 @@ public final class TypeManager {
     private HashSet ignoreDirs;
 
     private long lastCheck = 0;
+    // code generation checked by the last check, see Application.isCodeChangeTracked()
+    private volatile long checkedCodeGeneration = -1;
     private long lastCodeUpdate;
     private HashMap lastRepoScan;
 
@@ -116,15 +118,31 @@ public final class TypeManager {
      * Run through application's prototype directories and check if anything
      * has been updated.
      * If so, update prototypes and scripts.
+     * If the application's code is frozen or its repositories are watched,
+     * this only happens if the application's code generation has changed.
      */
-    public synchronized void checkPrototypes() throws IOException {
-        if ((System.currentTimeMillis() - this.lastCheck) < 1000L) {
+    public void checkPrototypes() throws IOException {
+        if (this.app.isCodeChangeTracked() && this.checkedCodeGeneration == this.app.getCodeGeneration()) {
+            return;
+        }
+        doCheckPrototypes();
+    }
+
+    private synchronized void doCheckPrototypes() throws IOException {
+        long generation = this.app.getCodeGeneration();
+        if (this.app.isCodeChangeTracked()) {
+            if (this.checkedCodeGeneration == generation) {
+                return;
+            }
+        } else if ((System.currentTimeMillis() - this.lastCheck) < 1000L) {
             return;
         }
 
         checkRepositories();
+        this.app.checkRepositoriesWatched();
 
         this.lastCheck = System.currentTimeMillis();
+        this.checkedCodeGeneration = generation;
     }
 
     protected synchronized void checkRepository(RepositoryInterface repository, boolean update) throws IOException {
@@ -83,6 +83,11 @@ public class EmptyFileRepository extends FileRepository {
 
     @Override
     public synchronized void update() {
+        // nothing to do if the watcher hasn't seen any changes
+        if (isUnchanged()) {
+            return;
+        }
+
         // check if the directory doesn't exist yet
         if (!this.directory.exists()) {
             // the directory was not modified yet, as such the repository was not modified yet
@@ -15,6 +15,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * RepositoryInterface implementation for directories providing file resources
@@ -28,6 +29,19 @@ public class FileRepository extends AbstractRepository {
     protected long lastChecksum = 0;
     protected long lastChecksumTime = 0;
 
+    // watcher notifying us of changes, or null if we check for changes ourselves
+    protected volatile RepositoryWatcher watcher;
+    // true if our directory is currently registered with the watcher
+    private volatile boolean registered = false;
+    // incremented by the watcher on each change in our directory
+    private final AtomicLong changeCount = new AtomicLong();
+    // change count seen by the last update
+    private long updateCount = -1;
+    // watcher change count seen by the last checksum calculation
+    private volatile long checksumCount = -1;
+    // true if this and all sub-repositories were watched at the last checksum calculation
+    private volatile boolean checksumWatched = false;
+
     /**
      * Defines how long the checksum of the repository will be cached
      */
@@ -105,19 +119,43 @@ public class FileRepository extends AbstractRepository {
         return this.directory.lastModified();
     }
 
-    public synchronized long getChecksum() throws IOException {
-        // delay checksum check if already checked recently
-        if (System.currentTimeMillis() > this.lastChecksumTime + this.cacheTime) {
+    public long getChecksum() throws IOException {
+        // if we and our sub-repositories are watched, the checksum can
+        // only have changed if the watcher has seen any changes
+        RepositoryWatcher watcher = this.watcher;
+        if (watcher != null && this.checksumWatched && this.checksumCount == watcher.getChangeCount()) {
+            return this.lastChecksum;
+        }
+        return updateChecksum();
+    }
+
+    private synchronized long updateChecksum() throws IOException {
+        RepositoryWatcher watcher = this.watcher;
+        long count = watcher == null ? -1 : watcher.getChangeCount();
+        boolean recalculate;
+        if (watcher != null && this.checksumWatched) {
+            recalculate = count != this.checksumCount;
+        } else {
+            // delay checksum check if already checked recently
+            recalculate = System.currentTimeMillis() > this.lastChecksumTime + this.cacheTime;
+        }
+
+        if (recalculate) {
 
             update();
             long checksum = this.lastModified;
+            boolean watched = this.watcher != null;
 
             for (int i = 0; i < this.repositories.length; i++) {
                 checksum += this.repositories[i].getChecksum();
+                watched &= this.repositories[i] instanceof FileRepository &&
+                        ((FileRepository) this.repositories[i]).checksumWatched;
             }
 
             this.lastChecksum = checksum;
             this.lastChecksumTime = System.currentTimeMillis();
+            this.checksumWatched = watched;
+            this.checksumCount = count;
         }
 
         return this.lastChecksum;
@@ -130,6 +168,10 @@ public class FileRepository extends AbstractRepository {
      */
     @Override
     public synchronized void update() {
+        if (isUnchanged()) {
+            return;
+        }
+
         if (!this.directory.exists()) {
             this.repositories = emptyRepositories;
             if (this.resources == null) {
@@ -141,7 +183,9 @@ public class FileRepository extends AbstractRepository {
             return;
         }
 
-        if (this.directory.lastModified() != this.lastModified) {
+        // if watched, rescan on each change, as a file created within the
+        // resolution of the directory's timestamp wouldn't be noticed otherwise
+        if (this.directory.lastModified() != this.lastModified || this.watcher != null) {
             this.lastModified = this.directory.lastModified();
 
             File[] list = this.directory.listFiles();
@@ -152,7 +196,7 @@ public class FileRepository extends AbstractRepository {
             for (int i = 0; i < list.length; i++) {
                 if (list[i].isDirectory()) {
                     // a nested directory aka child file repository
-                    newRepositories.add(new FileRepository(list[i], this));
+                    newRepositories.add(getChildRepository(list[i]));
                 } else if (list[i].getName().endsWith(".zip")) { //$NON-NLS-1$
                     // a nested zip repository
                     newRepositories.add(new ZipRepository(list[i], this));
@@ -169,6 +213,123 @@ public class FileRepository extends AbstractRepository {
         }
     }
 
+    /**
+     * Returns the child file repository for the given directory. Existing child
+     * repositories are reused, so repositories already handed out to prototypes
+     * keep receiving change notifications from the watcher.
+     *
+     * @param dir the child directory
+     * @return the child repository
+     */
+    protected FileRepository getChildRepository(File dir) {
+        if (this.repositories != null) {
+            for (int i = 0; i < this.repositories.length; i++) {
+                if (this.repositories[i].getClass() == FileRepository.class &&
+                        dir.equals(((FileRepository) this.repositories[i]).directory)) {
+                    return (FileRepository) this.repositories[i];
+                }
+            }
+        }
+        FileRepository child = new FileRepository(dir, this);
+        child.setWatcher(this.watcher);
+        return child;
+    }
+
+    /**
+     * Called at the beginning of update(). Returns true if this repository
+     * is watched and has not changed since the last update, so there is
+     * nothing to do. Otherwise registers the directory with the watcher
+     * if necessary and returns false.
+     *
+     * @return true if the repository is known to be unchanged
+     */
+    protected boolean isUnchanged() {
+        RepositoryWatcher watcher = this.watcher;
+        if (watcher == null) {
+            return false;
+        }
+        long count = this.changeCount.get();
+        if (this.registered && count == this.updateCount && this.resources != null) {
+            return true;
+        }
+        if (!this.registered && this.directory.isDirectory()) {
+            if (watcher.register(this)) {
+                this.registered = true;
+            } else {
+                // can't watch this directory, fall back to checking it ourselves
+                this.watcher = null;
+            }
+        }
+        this.updateCount = count;
+        return false;
+    }
+
+    /**
+     * Set the watcher notifying this repository and its sub-repositories of
+     * changes, or null to make them check for changes themselves.
+     *
+     * @param watcher the repository watcher, or null
+     */
+    public synchronized void setWatcher(RepositoryWatcher watcher) {
+        if (watcher == this.watcher) {
+            return;
+        }
+        this.watcher = watcher;
+        this.registered = false;
+        this.checksumWatched = false;
+        this.changeCount.incrementAndGet();
+
+        if (this.repositories != null) {
+            for (int i = 0; i < this.repositories.length; i++) {
+                if (this.repositories[i] instanceof FileRepository) {
+                    ((FileRepository) this.repositories[i]).setWatcher(watcher);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if this repository and all its sub-repositories are
+     * watched, i.e. changes are reported by the watcher's change count.
+     */
+    public synchronized boolean isWatched() {
+        if (this.watcher == null) {
+            return false;
+        }
+        if (this.repositories == null) {
+            // not scanned yet, will be registered on first update
+            return true;
+        }
+        for (int i = 0; i < this.repositories.length; i++) {
+            if (!(this.repositories[i] instanceof FileRepository) ||
+                    !((FileRepository) this.repositories[i]).isWatched()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called by the watcher when something has changed in our directory.
+     *
+     * @param unregistered true if the directory is no longer being watched
+     */
+    void changed(boolean unregistered) {
+        if (unregistered) {
+            this.registered = false;
+        }
+        this.changeCount.incrementAndGet();
+    }
+
+    /**
+     * Returns a counter that is incremented whenever the watcher reports a
+     * change in this repository's directory, or -1 if the repository isn't
+     * watched. Resources use this to cache their timestamps.
+     */
+    long getChangeCount() {
+        return this.watcher != null && this.registered ? this.changeCount.get() : -1;
+    }
+
     /**
      * Called to create a child resource for this repository
      */
@@ -26,6 +26,10 @@ public class FileResource extends AbstractResource {
     String shortName;
     String baseName;
 
+    // cached timestamp, valid as long as the repository's change count is unchanged
+    private long lastModified;
+    private volatile long lastModifiedCount = -1;
+
     public FileResource(File file) {
         this(file, null);
     }
@@ -66,9 +70,27 @@ public class FileResource extends AbstractResource {
     }
 
     public long lastModified() {
+        // if the repository is watched, the timestamp can only have changed
+        // if the watcher has reported a change in the repository's directory
+        if (this.repository instanceof FileRepository) {
+            long count = ((FileRepository) this.repository).getChangeCount();
+            if (count > -1) {
+                if (count == this.lastModifiedCount) {
+                    return this.lastModified;
+                }
+                return updateLastModified((FileRepository) this.repository);
+            }
+        }
         return this.file.lastModified();
     }
 
+    private synchronized long updateLastModified(FileRepository repository) {
+        long count = repository.getChangeCount();
+        this.lastModified = this.file.lastModified();
+        this.lastModifiedCount = count;
+        return this.lastModified;
+    }
+
     public String getContent(String encoding) throws IOException {
         InputStream in = getInputStream();
         int size = (int) this.file.length();
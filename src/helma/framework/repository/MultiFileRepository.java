@@ -48,6 +48,10 @@ public class MultiFileRepository extends FileRepository {
      */
     @Override
     public synchronized void update() {
+        if (isUnchanged()) {
+            return;
+        }
+
         if (!this.directory.exists()) {
             this.repositories = emptyRepositories;
             if (this.resources != null)
@@ -56,7 +60,7 @@ public class MultiFileRepository extends FileRepository {
             return;
         }
 
-        if (this.directory.lastModified() != this.lastModified) {
+        if (this.directory.lastModified() != this.lastModified || this.watcher != null) {
             this.lastModified = this.directory.lastModified();
 
             File[] list = this.directory.listFiles();
@@ -69,7 +73,7 @@ public class MultiFileRepository extends FileRepository {
                 // while resources (files) are ignored.
                 if (list[i].isDirectory()) {
                     // a nested directory aka child file repository
-                    newRepositories.add(new FileRepository(list[i], this));
+                    newRepositories.add(getChildRepository(list[i]));
                 } else if (list[i].getName().endsWith(".zip")) { //$NON-NLS-1$
                     // a nested zip repository
                     newRepositories.add(new ZipRepository(list[i], this));
@@ -0,0 +1,175 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.framework.repository;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches the directories of FileRepositories for changes using the file
+ * system's native change notification and tells the repositories about them,
+ * so they don't have to check their directories and files on each access.
+ * Other repository types, such as ZipRepository and SingleFileRepository,
+ * are not watched and keep checking for changes themselves.
+ */
+public class RepositoryWatcher implements Runnable {
+
+    private final WatchService service;
+
+    // map of watch keys to lists of repositories watching that directory
+    private final HashMap keys = new HashMap();
+
+    // incremented on each change in any of the watched directories
+    private final AtomicLong changeCount = new AtomicLong();
+
+    private final Thread thread;
+
+    /**
+     * Creates and starts a new repository watcher.
+     *
+     * @param name the name of the watcher thread
+     * @throws IOException if the file system doesn't support watching
+     */
+    public RepositoryWatcher(String name) throws IOException {
+        this.service = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns the number of changes seen so far in any of the watched
+     * directories. If this hasn't changed, no watched repository has changed.
+     *
+     * @return the number of changes seen so far
+     */
+    public long getChangeCount() {
+        return this.changeCount.get();
+    }
+
+    /**
+     * Start watching the directory of the given repository.
+     *
+     * @param repository the repository
+     * @return true if the directory is being watched
+     */
+    boolean register(FileRepository repository) {
+        WatchKey key;
+        try {
+            key = repository.getDirectory().toPath().register(this.service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException x) {
+            return false;
+        } catch (ClosedWatchServiceException x) {
+            return false;
+        }
+        synchronized (this.keys) {
+            List list = (List) this.keys.get(key);
+            if (list == null) {
+                list = new ArrayList(1);
+                this.keys.put(key, list);
+            }
+            if (!list.contains(repository)) {
+                list.add(repository);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop watching all directories and terminate the watcher thread.
+     */
+    public void shutdown() {
+        try {
+            this.service.close();
+        } catch (IOException ignore) {
+            // nothing to do
+        }
+        synchronized (this.keys) {
+            this.keys.clear();
+        }
+    }
+
+    /**
+     * The watcher thread's main loop.
+     */
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = this.service.take();
+            } catch (InterruptedException x) {
+                return;
+            } catch (ClosedWatchServiceException x) {
+                return;
+            }
+
+            boolean overflow = false;
+            for (Iterator i = key.pollEvents().iterator(); i.hasNext();) {
+                if (((WatchEvent) i.next()).kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                }
+            }
+
+            boolean valid = key.reset();
+            List current = null;
+            ArrayList others = new ArrayList();
+            synchronized (this.keys) {
+                if (this.keys.containsKey(key)) {
+                    current = new ArrayList((List) this.keys.get(key));
+                }
+                if (overflow) {
+                    // we may have missed events, so consider everything changed
+                    for (Iterator i = this.keys.values().iterator(); i.hasNext();) {
+                        others.addAll((List) i.next());
+                    }
+                }
+                if (!valid) {
+                    // directory is gone or no longer accessible
+                    this.keys.remove(key);
+                }
+            }
+
+            if (current != null) {
+                others.removeAll(current);
+                for (int i = 0; i < current.size(); i++) {
+                    ((FileRepository) current.get(i)).changed(!valid);
+                }
+            }
+            for (int i = 0; i < others.size(); i++) {
+                ((FileRepository) others.get(i)).changed(false);
+            }
+            this.changeCount.incrementAndGet();
+            changed();
+        }
+    }
+
+    /**
+     * Called by the watcher thread after a change has been reported to the
+     * affected repositories. Override to get notified of changes.
+     */
+    protected void changed() {
+        // nothing to do here
+    }
+}
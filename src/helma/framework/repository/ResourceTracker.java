@@ -13,7 +13,9 @@ package helma.framework.repository;
 
 /**
  * A utility class that allows ResourceInterface consumers to track changes
- * on resources.
+ * on resources. For resources in watched file repositories, checking for
+ * changes doesn't access the file system unless the repository's watcher
+ * has reported a change.
  */
 public class ResourceTracker {
 
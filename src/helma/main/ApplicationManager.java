@@ -19,6 +19,7 @@ import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.xmlrpc.XmlRpcHandler;
+import org.eclipse.jetty.http.CompressedContentFormat;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.server.handler.ResourceHandler;
@@ -281,6 +282,17 @@ public class ApplicationManager implements XmlRpcHandler {
         return file.getAbsoluteFile();
     }
 
+    /**
+     * Parse the minimal size of content to compress, defaulting to 1024 bytes.
+     */
+    static int getCompressionThreshold(String value) {
+        try {
+            return (value == null) ? 1024 : Integer.parseInt(value.trim());
+        } catch (NumberFormatException x) {
+            return 1024;
+        }
+    }
+
     private Log getLogger() {
         return this.server.getLogger();
     }
@@ -312,6 +324,8 @@ public class ApplicationManager implements XmlRpcHandler {
         String protectedStaticDir;
         String staticMountpoint;
         boolean staticIndex;
+        boolean staticGzip;
+        boolean staticGzipPrecompute;
         String[] staticHome;
         String xmlrpcHandlerName;
         String cookieDomain;
@@ -320,6 +334,10 @@ public class ApplicationManager implements XmlRpcHandler {
         String uploadLimit;
         String uploadSoftfail;
         String debug;
+        String compression;
+        String compressionThreshold;
+        String fileCacheSize;
+        String fileCacheThreshold;
         RepositoryInterface[] repositories;
         String servletClassName;
 
@@ -341,6 +359,8 @@ public class ApplicationManager implements XmlRpcHandler {
             this.staticMountpoint = getPathPattern(conf.getProperty("staticMountpoint", //$NON-NLS-1$
                                         joinMountpoint(this.mountpoint, "static"))); //$NON-NLS-1$
             this.staticIndex = "true".equalsIgnoreCase(conf.getProperty("staticIndex"));  //$NON-NLS-1$//$NON-NLS-2$
+            this.staticGzip = "true".equalsIgnoreCase(conf.getProperty("staticGzip"));  //$NON-NLS-1$//$NON-NLS-2$
+            this.staticGzipPrecompute = "true".equalsIgnoreCase(conf.getProperty("staticGzipPrecompute"));  //$NON-NLS-1$//$NON-NLS-2$
             String home = conf.getProperty("staticHome"); //$NON-NLS-1$
             if (home == null) {
                 this.staticHome = new String[] {"index.html", "index.htm"}; //$NON-NLS-1$ //$NON-NLS-2$
@@ -355,6 +375,10 @@ public class ApplicationManager implements XmlRpcHandler {
             this.uploadLimit = conf.getProperty("uploadLimit"); //$NON-NLS-1$
             this.uploadSoftfail = conf.getProperty("uploadSoftfail"); //$NON-NLS-1$
             this.debug = conf.getProperty("debug"); //$NON-NLS-1$
+            this.compression = conf.getProperty("compression"); //$NON-NLS-1$
+            this.compressionThreshold = conf.getProperty("compressionThreshold"); //$NON-NLS-1$
+            this.fileCacheSize = conf.getProperty("fileCacheSize"); //$NON-NLS-1$
+            this.fileCacheThreshold = conf.getProperty("fileCacheThreshold"); //$NON-NLS-1$
             String appDirName = conf.getProperty("appdir"); //$NON-NLS-1$
             this.appDir = (appDirName == null) ? null : getAbsoluteFile(appDirName);
             String dbDirName = conf.getProperty("dbdir"); //$NON-NLS-1$
@@ -492,6 +516,16 @@ public class ApplicationManager implements XmlRpcHandler {
                         rhandler.setWelcomeFiles(staticHome);
 
                         staticContext = ApplicationManager.this.context.addContext(staticMountpoint, ""); //$NON-NLS-1$
+                        if (this.staticGzip) {
+                            // serve precompressed .gz files
+                            rhandler.setPrecompressedFormats(new CompressedContentFormat[] {
+                                    CompressedContentFormat.GZIP});
+                            if (this.staticGzipPrecompute) {
+                                new GzipSidecarWriter(staticContent,
+                                        getCompressionThreshold(this.compressionThreshold),
+                                        getLogger()).start();
+                            }
+                        }
                         staticContext.setHandler(rhandler);
 
                         staticContext.start();
@@ -530,6 +564,22 @@ public class ApplicationManager implements XmlRpcHandler {
                         holder.setInitParameter("debug", this.debug); //$NON-NLS-1$
                     }
 
+                    if (this.compression != null) {
+                        holder.setInitParameter("compression", this.compression); //$NON-NLS-1$
+                    }
+
+                    if (this.compressionThreshold != null) {
+                        holder.setInitParameter("compressionThreshold", this.compressionThreshold); //$NON-NLS-1$
+                    }
+
+                    if (this.fileCacheSize != null) {
+                        holder.setInitParameter("fileCacheSize", this.fileCacheSize); //$NON-NLS-1$
+                    }
+
+                    if (this.fileCacheThreshold != null) {
+                        holder.setInitParameter("fileCacheThreshold", this.fileCacheThreshold); //$NON-NLS-1$
+                    }
+
                     if (this.protectedStaticDir != null) {
                         File protectedContent = getAbsoluteFile(this.protectedStaticDir);
                         this.appContext.setResourceBase(protectedContent.getPath());
@@ -0,0 +1,224 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.main;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import helma.objectmodel.db.StatementBatch;
+
+/**
+ *  Helma batch write benchmark class. This class inserts and updates rows in
+ *  a scratch table of the given database, once with one statement per row as
+ *  Transactor.commit() used to do and once with the JDBC batches it uses now,
+ *  and prints the number of written rows per second for both. It is meant to
+ *  be run against an embedded database such as H2 or SQLite, e.g.
+ *  <code>-u jdbc:h2:mem:bench -c org.h2.Driver</code>, with the driver on the
+ *  class path. Each measurement is preceded by a warm up run.
+ */
+public class BatchBenchmark {
+
+    static final String TABLE = "HELMA_BATCH_BENCHMARK"; //$NON-NLS-1$
+    static final String INSERT = "INSERT INTO " + TABLE + " (ID, NAME, COUNTER) VALUES (?, ?, ?)"; //$NON-NLS-1$ //$NON-NLS-2$
+    static final String UPDATE = "UPDATE " + TABLE + " SET COUNTER = ? WHERE ID = ?"; //$NON-NLS-1$ //$NON-NLS-2$
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        String url = null;
+        String driver = null;
+        Properties conProps = new Properties();
+        int rows = 5000;
+        int batchSize = 500;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-u") && ((i + 1) < args.length)) { //$NON-NLS-1$
+                    url = args[++i];
+                } else if (args[i].equals("-c") && ((i + 1) < args.length)) { //$NON-NLS-1$
+                    driver = args[++i];
+                } else if (args[i].equals("-U") && ((i + 1) < args.length)) { //$NON-NLS-1$
+                    conProps.setProperty("user", args[++i]); //$NON-NLS-1$
+                } else if (args[i].equals("-P") && ((i + 1) < args.length)) { //$NON-NLS-1$
+                    conProps.setProperty("password", args[++i]); //$NON-NLS-1$
+                } else if (args[i].equals("-n") && ((i + 1) < args.length)) { //$NON-NLS-1$
+                    rows = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-b") && ((i + 1) < args.length)) { //$NON-NLS-1$
+                    batchSize = Integer.parseInt(args[++i]);
+                } else {
+                    printUsageError();
+                    System.exit(1);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            System.out.println(ex.toString());
+            printUsageError();
+            System.exit(1);
+        }
+
+        if (url == null || rows < 1 || batchSize < 1) {
+            printUsageError();
+            System.exit(1);
+        }
+
+        Connection con = null;
+        try {
+            if (driver != null) {
+                Class.forName(driver);
+            }
+            con = DriverManager.getConnection(url, conProps);
+            con.setAutoCommit(false);
+            createTable(con);
+
+            for (int batched = 0; batched <= 1; batched++) {
+                run(con, batched == 1, rows, batchSize);
+                long millis = run(con, batched == 1, rows, batchSize);
+                System.out.println((batched == 1 ? Messages.getString("BatchBenchmark.1") : //$NON-NLS-1$
+                                                   Messages.getString("BatchBenchmark.0")) //$NON-NLS-1$
+                        + (2L * rows * 1000L / Math.max(1L, millis))
+                        + Messages.getString("BatchBenchmark.2")); //$NON-NLS-1$
+            }
+
+            dropTable(con);
+        } catch (Exception x) {
+            System.out.println(Messages.getString("BatchBenchmark.3") + x); //$NON-NLS-1$
+            System.exit(1);
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException ignore) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert and update the given number of rows, then delete them again,
+     * and return the number of milliseconds spent inserting and updating.
+     */
+    private static long run(Connection con, boolean batched, int rows, int batchSize)
+            throws SQLException {
+        long start = System.currentTimeMillis();
+
+        if (batched) {
+            StatementBatch batch = new StatementBatch(null, batchSize);
+            try {
+                for (int i = 0; i < rows; i++) {
+                    PreparedStatement stmt = batch.prepare(null, con, INSERT, "SQL INSERT", TABLE); //$NON-NLS-1$
+                    setInsertValues(stmt, i);
+                    batch.add(stmt);
+                }
+                for (int i = 0; i < rows; i++) {
+                    PreparedStatement stmt = batch.prepare(null, con, UPDATE, "SQL UPDATE", TABLE); //$NON-NLS-1$
+                    setUpdateValues(stmt, i);
+                    batch.add(stmt);
+                }
+                batch.execute();
+            } finally {
+                batch.close();
+            }
+        } else {
+            for (int i = 0; i < rows; i++) {
+                PreparedStatement stmt = con.prepareStatement(INSERT);
+                try {
+                    setInsertValues(stmt, i);
+                    stmt.executeUpdate();
+                } finally {
+                    stmt.close();
+                }
+            }
+            for (int i = 0; i < rows; i++) {
+                PreparedStatement stmt = con.prepareStatement(UPDATE);
+                try {
+                    setUpdateValues(stmt, i);
+                    stmt.executeUpdate();
+                } finally {
+                    stmt.close();
+                }
+            }
+        }
+        con.commit();
+
+        long millis = System.currentTimeMillis() - start;
+
+        Statement stmt = con.createStatement();
+        try {
+            stmt.executeUpdate("DELETE FROM " + TABLE); //$NON-NLS-1$
+        } finally {
+            stmt.close();
+        }
+        con.commit();
+
+        return millis;
+    }
+
+    private static void setInsertValues(PreparedStatement stmt, int i) throws SQLException {
+        stmt.setLong(1, i);
+        stmt.setString(2, "node " + i); //$NON-NLS-1$
+        stmt.setLong(3, 0);
+    }
+
+    private static void setUpdateValues(PreparedStatement stmt, int i) throws SQLException {
+        stmt.setLong(1, i * 2L);
+        stmt.setLong(2, i);
+    }
+
+    private static void createTable(Connection con) throws SQLException {
+        dropTable(con);
+        Statement stmt = con.createStatement();
+        try {
+            stmt.executeUpdate("CREATE TABLE " + TABLE + //$NON-NLS-1$
+                    " (ID BIGINT PRIMARY KEY, NAME VARCHAR(100), COUNTER BIGINT)"); //$NON-NLS-1$
+        } finally {
+            stmt.close();
+        }
+        con.commit();
+    }
+
+    private static void dropTable(Connection con) throws SQLException {
+        Statement stmt = con.createStatement();
+        try {
+            stmt.executeUpdate("DROP TABLE " + TABLE); //$NON-NLS-1$
+            con.commit();
+        } catch (SQLException x) {
+            // table doesn't exist
+            con.rollback();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+      * print the usage hints
+      */
+    public static void printUsageError() {
+        System.out.println(""); //$NON-NLS-1$
+        System.out.println(Messages.getString("BatchBenchmark.4")); //$NON-NLS-1$
+        System.out.println(""); //$NON-NLS-1$
+        System.out.println(Messages.getString("CommandlineRunner.3")); //$NON-NLS-1$
+        System.out.println(Messages.getString("BatchBenchmark.5")); //$NON-NLS-1$
+        System.out.println(Messages.getString("BatchBenchmark.6")); //$NON-NLS-1$
+        System.out.println(Messages.getString("BatchBenchmark.7")); //$NON-NLS-1$
+        System.out.println(Messages.getString("BatchBenchmark.8")); //$NON-NLS-1$
+        System.out.println(Messages.getString("BatchBenchmark.9")); //$NON-NLS-1$
+        System.out.println(""); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.main;
+
+import java.io.File;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import helma.framework.core.Application;
+
+/**
+ *  Helma benchmark runner class. This class creates and starts a single application
+ *  and invokes a function in it from an increasing number of threads, printing the
+ *  throughput reached with each number of threads. Running it once with and once
+ *  without the freezeCode app property shows how request throughput scales with
+ *  the number of cores when the per-request code update checks are skipped.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Start the application and run the benchmark.
+     *
+     * @param args command line arguments
+     *
+     * @throws Exception if the Helma home dir couldn't be found or the benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+
+        ServerConfig config = new ServerConfig();
+        String commandStr = null;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        long duration = 5000L;
+
+        // get possible environment setting for helma home
+        if (System.getProperty("helma.home")!=null) { //$NON-NLS-1$
+            config.setHomeDir(new File(System.getProperty("helma.home"))); //$NON-NLS-1$
+        }
+
+        // parse arguments
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-h") && ((i + 1) < args.length)) { //$NON-NLS-1$
+                    config.setHomeDir(new File(args[++i]));
+                } else if (args[i].equals("-f") && ((i + 1) < args.length)) { //$NON-NLS-1$
+                    config.setPropFile(new File(args[++i]));
+                } else if (args[i].equals("-t") && ((i + 1) < args.length)) { //$NON-NLS-1$
+                    maxThreads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-d") && ((i + 1) < args.length)) { //$NON-NLS-1$
+                    duration = Long.parseLong(args[++i]) * 1000L;
+                } else if (commandStr == null && !args[i].startsWith("-")) { //$NON-NLS-1$
+                    commandStr = args[i];
+                }
+            }
+        } catch (NumberFormatException ex) {
+            printUsageError(ex.toString());
+            System.exit(1);
+        }
+
+        int pos = commandStr == null ? -1 : commandStr.indexOf("."); //$NON-NLS-1$
+        if (pos < 1 || maxThreads < 1 || duration < 1) {
+            printUsageError();
+            System.exit(1);
+        }
+        String appName = commandStr.substring(0, pos);
+        final String function = commandStr.substring(pos + 1);
+
+        // get server.properties from home dir or vv
+        try {
+            Server.guessConfig(config);
+        } catch (Exception ex) {
+            printUsageError(ex.toString());
+            System.exit(1);
+        }
+
+        // init a server instance and start the application
+        Server server = new Server(config);
+        server.init();
+        server.checkAppManager();
+        server.startApplication(appName);
+        final Application app = server.getApplication(appName);
+
+        System.out.println(Messages.getString("BenchmarkRunner.0") + appName + "." + function //$NON-NLS-1$ //$NON-NLS-2$
+                + Messages.getString("BenchmarkRunner.1") + app.isCodeFrozen()); //$NON-NLS-1$
+
+        try {
+            // warm up, so all code is compiled before measuring
+            run(app, function, maxThreads, duration);
+
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                report(threads, run(app, function, threads, duration), duration);
+                if (threads < maxThreads && threads * 2 > maxThreads) {
+                    report(maxThreads, run(app, function, maxThreads, duration), duration);
+                }
+            }
+        } catch (Exception ex) {
+            System.out.println(Messages.getString("CommandlineRunner.0") + appName + ":");  //$NON-NLS-1$//$NON-NLS-2$
+            System.out.println(ex.getMessage());
+        }
+
+        // stop the application and server
+        server.stop();
+        server.shutdown();
+    }
+
+    /**
+     * Invoke the function from the given number of threads for the given
+     * number of milliseconds and return the number of completed invocations.
+     */
+    private static long run(final Application app, final String function,
+                            int threads, long duration) throws Exception {
+        final AtomicLong count = new AtomicLong();
+        final Vector errors = new Vector();
+        final long end = System.currentTimeMillis() + duration;
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    Vector noArgs = new Vector();
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            app.executeExternal(function, noArgs);
+                            count.incrementAndGet();
+                        }
+                    } catch (Exception ex) {
+                        errors.add(ex);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+        }
+
+        if (!errors.isEmpty()) {
+            throw (Exception) errors.firstElement();
+        }
+        return count.get();
+    }
+
+    private static void report(int threads, long count, long duration) {
+        System.out.println(threads + Messages.getString("BenchmarkRunner.2") //$NON-NLS-1$
+                + (count * 1000L / duration) + Messages.getString("BenchmarkRunner.3")); //$NON-NLS-1$
+    }
+
+    /**
+      * print the usage hints and prefix them with a message.
+      */
+    public static void printUsageError(String msg) {
+        System.out.println(msg);
+        printUsageError();
+    }
+
+    /**
+      * print the usage hints
+      */
+    public static void printUsageError() {
+        System.out.println(""); //$NON-NLS-1$
+        System.out.println(Messages.getString("BenchmarkRunner.4")); //$NON-NLS-1$
+        System.out.println(""); //$NON-NLS-1$
+        System.out.println(Messages.getString("CommandlineRunner.3")); //$NON-NLS-1$
+        System.out.println(Messages.getString("CommandlineRunner.4")); //$NON-NLS-1$
+        System.out.println(Messages.getString("CommandlineRunner.5")); //$NON-NLS-1$
+        System.out.println(Messages.getString("BenchmarkRunner.5")); //$NON-NLS-1$
+        System.out.println(Messages.getString("BenchmarkRunner.6")); //$NON-NLS-1$
+        System.out.println(""); //$NON-NLS-1$
+    }
+
+}
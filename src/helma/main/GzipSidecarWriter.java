@@ -0,0 +1,137 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.main;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * Creates precompressed .gz sidecar files for the compressible files of a
+ * static directory, which are then served by Jetty's ResourceHandler to
+ * clients accepting gzip encoding. The ResourceHandler ignores sidecars older
+ * than their original file, so only missing or stale sidecars are written.
+ * This runs once in a background thread when the static directory is mounted
+ * with staticGzipPrecompute=true, and never on a request thread.
+ */
+public class GzipSidecarWriter implements Runnable {
+
+    // file extensions worth compressing
+    private static final String[] EXTENSIONS = {
+        ".html", ".htm", ".css", ".js", ".json", ".xml", ".txt", ".svg", ".csv" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$
+    };
+
+    private final File base;
+    private final long minSize;
+    private final Log logger;
+
+    /**
+     * Create a new sidecar writer.
+     *
+     * @param base the static directory
+     * @param minSize the minimal size of files to compress
+     * @param logger the logger to report errors to
+     */
+    public GzipSidecarWriter(File base, long minSize, Log logger) {
+        this.base = base;
+        this.minSize = minSize;
+        this.logger = logger;
+    }
+
+    /**
+     * Start writing the sidecars in a background thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "GzipSidecarWriter"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public void run() {
+        writeSidecars(this.base);
+    }
+
+    private void writeSidecars(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            if (file.isDirectory()) {
+                writeSidecars(file);
+            } else if (isCompressible(file.getName()) && file.length() >= this.minSize) {
+                File sidecar = new File(file.getPath() + ".gz"); //$NON-NLS-1$
+                if (!sidecar.exists() || sidecar.lastModified() < file.lastModified()) {
+                    createSidecar(file, sidecar);
+                }
+            }
+        }
+    }
+
+    private boolean isCompressible(String name) {
+        name = name.toLowerCase();
+        for (int i = 0; i < EXTENSIONS.length; i++) {
+            if (name.endsWith(EXTENSIONS[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compress the file into a temporary file next to it and move that into
+     * place, so concurrent requests never see a partially written sidecar.
+     */
+    private void createSidecar(File file, File sidecar) {
+        if (!file.getParentFile().canWrite()) {
+            // read-only static directory, serve uncompressed
+            return;
+        }
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile()); //$NON-NLS-1$
+            InputStream in = new FileInputStream(file);
+            try {
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp));
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) > -1) {
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            // only use the sidecar if the file didn't change while compressing it
+            if (tmp.lastModified() < file.lastModified() ||
+                    (!tmp.renameTo(sidecar) && !(sidecar.delete() && tmp.renameTo(sidecar)))) {
+                tmp.delete();
+            }
+        } catch (IOException x) {
+            if (tmp != null) {
+                tmp.delete();
+            }
+            this.logger.error(Messages.getString("GzipSidecarWriter.0") + file, x); //$NON-NLS-1$
+        }
+    }
+}
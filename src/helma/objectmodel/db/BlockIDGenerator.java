@@ -0,0 +1,130 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.objectmodel.db;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import helma.framework.core.Application;
+
+/**
+ * An ID generator that reserves blocks of IDs per table, so that creating
+ * many objects doesn't cost one database round trip per object, and types
+ * stored in different tables don't wait for each other. It is enabled in
+ * app.properties with
+ *
+ * <pre>
+ * idGeneratorImpl = helma.objectmodel.db.BlockIDGenerator
+ * idBlockSize = 100
+ * </pre>
+ *
+ * For types using a sequence, a block of sequence values is fetched in one
+ * statement, so other applications using the same sequence stay safe. For
+ * types using the select max method, the maximum ID is selected once per
+ * block and the following IDs are handed out from memory, which like the
+ * select max method itself is only safe if no other application inserts
+ * into the table. IDs of a block not used until the application is stopped
+ * are skipped.
+ */
+public class BlockIDGenerator implements IDGeneratorInterface {
+
+    private Application app;
+    private int blockSize = 100;
+
+    // blocks by data source, table and sequence
+    private final ConcurrentHashMap blocks = new ConcurrentHashMap();
+
+    /**
+     * Init the ID generator for the given application.
+     *
+     * @param app the application
+     */
+    public void init(Application app) {
+        this.app = app;
+        String size = app.getProperty("idBlockSize"); //$NON-NLS-1$
+        if (size != null) {
+            try {
+                this.blockSize = Math.max(1, Integer.parseInt(size.trim()));
+            } catch (NumberFormatException x) {
+                app.logError(Messages.getString("BlockIDGenerator.0") + size); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Shut down the ID generator.
+     */
+    public void shutdown() {
+        this.blocks.clear();
+    }
+
+    /**
+     * Generate a new ID for a specific type.
+     *
+     * @param dbmap the type
+     * @return the new ID
+     */
+    public String generateID(DbMapping dbmap) throws Exception {
+        NodeManager nmgr = this.app.getNodeManager();
+        if (dbmap == null || !dbmap.isRelational()) {
+            return nmgr.doGenerateID(dbmap);
+        }
+        String idMethod = dbmap.getIDgen();
+        boolean max = idMethod == null || "[max]".equalsIgnoreCase(idMethod) || dbmap.isMySQL(); //$NON-NLS-1$
+        if (!max && "[hop]".equalsIgnoreCase(idMethod)) { //$NON-NLS-1$
+            return nmgr.doGenerateID(dbmap);
+        }
+
+        String key = dbmap.getDbSourceName() + ':' + dbmap.getTableName() +
+                (max ? "" : ':' + idMethod); //$NON-NLS-1$
+        Block block = (Block) this.blocks.get(key);
+        if (block == null) {
+            Block newBlock = new Block(max);
+            block = (Block) this.blocks.putIfAbsent(key, newBlock);
+            if (block == null) {
+                block = newBlock;
+            }
+        }
+        return Long.toString(block.nextID(nmgr, dbmap));
+    }
+
+    /**
+     * The IDs reserved for a table.
+     */
+    final class Block {
+        private final boolean max;
+        // reserved sequence values and the position of the next one to use
+        private long[] values;
+        private int position;
+        // next and first not reserved ID for the select max method
+        private long next, limit;
+
+        Block(boolean max) {
+            this.max = max;
+        }
+
+        synchronized long nextID(NodeManager nmgr, DbMapping dbmap) throws Exception {
+            int size = BlockIDGenerator.this.blockSize;
+            if (this.max) {
+                if (this.next >= this.limit) {
+                    this.next = Math.max(nmgr.selectMaxID(dbmap) + 1, this.next);
+                    this.limit = this.next + size;
+                }
+                return this.next++;
+            }
+            if (this.values == null || this.position >= this.values.length) {
+                this.values = nmgr.generateSequenceIDs(dbmap, size);
+                this.position = 0;
+            }
+            return this.values[this.position++];
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * A pool of JDBC connections to a relational data source. Transactors borrow
+ * a connection on the first SQL use in a transaction and return it when the
+ * transaction is committed or aborted, so the number of open connections
+ * depends on the number of concurrent transactions using the database rather
+ * than on the number of request evaluator threads.
+ *
+ * The pool is configured in db.properties with the following properties of
+ * a data source, all of them optional except pool:
+ *
+ * <pre>
+ * myDataSource.pool = true
+ * myDataSource.pool.minSize = 0               # idle connections kept open
+ * myDataSource.pool.maxSize = 20              # maximal number of connections
+ * myDataSource.pool.maxWait = 10              # seconds to wait for a connection
+ * myDataSource.pool.maxIdle = 300             # seconds before closing idle connections
+ * myDataSource.pool.validationQuery = SELECT 1
+ * myDataSource.pool.validationInterval = 30   # seconds idle before validating
+ * myDataSource.pool.leakThreshold = 300       # seconds before reporting a leak, 0 to disable
+ * myDataSource.pool.leakTrace = false         # record the stack of each borrow for leak reports
+ * </pre>
+ *
+ * Without leakTrace, a leak report shows where the borrowing thread is at
+ * the time the leak is detected rather than where it took the connection.
+ */
+class ConnectionPool {
+
+    private final DbSource source;
+    private final String name;
+    private final String url;
+    private final Properties conProps;
+    private final boolean autoCommit;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long maxWait;
+    private final long maxIdle;
+    private final String validationQuery;
+    private final long validationInterval;
+    private final long leakThreshold;
+    private final boolean leakTrace;
+
+    // idle connections, the most recently used one first
+    private final LinkedList idle = new LinkedList();
+
+    // borrowed connections mapped to their Borrowed records
+    private final IdentityHashMap borrowed = new IdentityHashMap();
+
+    // number of open connections, including the ones being opened
+    private int size = 0;
+    private boolean closed = false;
+
+    private long borrows, waits, timeouts, created, discarded, validationFailures, leaks;
+
+    private volatile Log logger;
+
+    /**
+     * Create a new connection pool.
+     *
+     * @param source the data source
+     * @param url the JDBC URL
+     * @param conProps the properties to pass to the JDBC driver
+     * @param autoCommit the auto commit mode of new connections
+     * @param poolProps the pool settings, i.e. the pool sub-properties of the data source
+     */
+    ConnectionPool(DbSource source, String url, Properties conProps, boolean autoCommit,
+                   Properties poolProps) {
+        this.source = source;
+        this.name = source.getName();
+        this.url = url;
+        this.conProps = conProps;
+        this.autoCommit = autoCommit;
+        this.maxSize = Math.max(1, getInt(poolProps, "maxSize", 20)); //$NON-NLS-1$
+        this.minSize = Math.min(this.maxSize, Math.max(0, getInt(poolProps, "minSize", 0))); //$NON-NLS-1$
+        this.maxWait = getInt(poolProps, "maxWait", 10) * 1000L; //$NON-NLS-1$
+        this.maxIdle = getInt(poolProps, "maxIdle", 300) * 1000L; //$NON-NLS-1$
+        this.validationQuery = poolProps.getProperty("validationQuery", "SELECT 1"); //$NON-NLS-1$ //$NON-NLS-2$
+        this.validationInterval = getInt(poolProps, "validationInterval", 30) * 1000L; //$NON-NLS-1$
+        this.leakThreshold = getInt(poolProps, "leakThreshold", 300) * 1000L; //$NON-NLS-1$
+        this.leakTrace = "true".equalsIgnoreCase(poolProps.getProperty("leakTrace")); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    private static int getInt(Properties props, String key, int defaultValue) {
+        String value = props.getProperty(key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException x) {
+                // use default value
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Set the logger to report leaked connections to.
+     *
+     * @param logger the logger
+     */
+    void setLogger(Log logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Borrow a connection from the pool, opening a new one if there is no idle
+     * connection and the pool is not exhausted. Otherwise wait for a connection
+     * to be returned for up to maxWait milliseconds. Connections that have been
+     * idle for longer than validationInterval are validated before they are
+     * handed out.
+     *
+     * @return a connection
+     * @throws SQLException if the pool is exhausted or a connection couldn't be opened
+     */
+    Connection borrow() throws SQLException {
+        long deadline = System.currentTimeMillis() + this.maxWait;
+        boolean waited = false;
+
+        while (true) {
+            Idle candidate = null;
+
+            synchronized (this) {
+                while (true) {
+                    if (this.closed) {
+                        throw new SQLException(Messages.getString("ConnectionPool.0") + this.name); //$NON-NLS-1$
+                    }
+                    if (!this.idle.isEmpty()) {
+                        candidate = (Idle) this.idle.removeFirst();
+                        break;
+                    }
+                    if (this.size < this.maxSize) {
+                        // reserve a slot and open the connection outside the lock
+                        this.size++;
+                        break;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        this.timeouts++;
+                        throw new SQLException(Messages.getString("ConnectionPool.1") + this.name); //$NON-NLS-1$
+                    }
+                    if (!waited) {
+                        waited = true;
+                        this.waits++;
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException(Messages.getString("ConnectionPool.1") + this.name); //$NON-NLS-1$
+                    }
+                }
+            }
+
+            Connection con;
+            if (candidate != null) {
+                con = candidate.connection;
+                if (System.currentTimeMillis() - candidate.lastUsed > this.validationInterval &&
+                        !isValid(con)) {
+                    synchronized (this) {
+                        this.validationFailures++;
+                    }
+                    discard(con);
+                    continue;
+                }
+            } else {
+                try {
+                    con = DriverManager.getConnection(this.url, this.conProps);
+                    if (!this.autoCommit) {
+                        con.setAutoCommit(false);
+                    }
+                } catch (SQLException x) {
+                    synchronized (this) {
+                        this.size--;
+                        notifyAll();
+                    }
+                    throw x;
+                }
+                synchronized (this) {
+                    this.created++;
+                }
+            }
+
+            synchronized (this) {
+                this.borrows++;
+                this.borrowed.put(con, new Borrowed(this.leakThreshold > 0 && this.leakTrace));
+            }
+            return con;
+        }
+    }
+
+    /**
+     * Return a borrowed connection to the pool.
+     *
+     * @param con the connection
+     * @param discard true to close the connection instead of keeping it for reuse
+     * @return false if the connection wasn't borrowed from this pool
+     */
+    boolean release(Connection con, boolean discard) {
+        boolean reusable = !discard;
+        if (reusable) {
+            try {
+                reusable = !con.isClosed();
+            } catch (SQLException x) {
+                reusable = false;
+            }
+        }
+
+        synchronized (this) {
+            if (this.borrowed.remove(con) == null) {
+                return false;
+            }
+            if (reusable && !this.closed) {
+                this.idle.addFirst(new Idle(con));
+                notifyAll();
+                return true;
+            }
+        }
+
+        discard(con);
+        return true;
+    }
+
+    /**
+     * Close idle connections beyond minSize that haven't been used for maxIdle
+     * milliseconds, and report connections that have been borrowed for longer
+     * than leakThreshold milliseconds. Connections borrowed by threads that
+     * have terminated are closed. This is called periodically by the
+     * application's scheduler thread.
+     */
+    void maintain() {
+        ArrayList expired = new ArrayList();
+        ArrayList leaked = new ArrayList();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            // the least recently used connections are at the end of the list
+            while (this.idle.size() > 0 && this.size - expired.size() > this.minSize) {
+                Idle last = (Idle) this.idle.getLast();
+                if (now - last.lastUsed <= this.maxIdle) {
+                    break;
+                }
+                this.idle.removeLast();
+                expired.add(last.connection);
+            }
+
+            for (Iterator i = this.borrowed.entrySet().iterator(); i.hasNext();) {
+                Map.Entry entry = (Map.Entry) i.next();
+                Borrowed record = (Borrowed) entry.getValue();
+                if (!record.thread.isAlive()) {
+                    i.remove();
+                    expired.add(entry.getKey());
+                    leaked.add(record);
+                    this.leaks++;
+                } else if (this.leakThreshold > 0 && !record.reported &&
+                        now - record.time > this.leakThreshold) {
+                    record.reported = true;
+                    leaked.add(record);
+                    this.leaks++;
+                }
+            }
+        }
+
+        for (int i = 0; i < expired.size(); i++) {
+            discard((Connection) expired.get(i));
+        }
+
+        Log log = this.logger;
+        if (log != null) {
+            for (int i = 0; i < leaked.size(); i++) {
+                Borrowed record = (Borrowed) leaked.get(i);
+                Throwable trace = record.trace;
+                if (trace == null && record.thread.isAlive()) {
+                    // show where the thread holding the connection is now
+                    trace = new Throwable();
+                    trace.setStackTrace(record.thread.getStackTrace());
+                }
+                log.warn(Messages.getString("ConnectionPool.2") + this.name + //$NON-NLS-1$
+                        Messages.getString("ConnectionPool.3") + record.thread.getName() + //$NON-NLS-1$
+                        Messages.getString("ConnectionPool.4") + (now - record.time) + //$NON-NLS-1$
+                        Messages.getString("ConnectionPool.5"), trace); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Close the pool and all idle connections. Borrowed connections are
+     * closed when they are returned.
+     */
+    void close() {
+        ArrayList connections = new ArrayList();
+        synchronized (this) {
+            this.closed = true;
+            for (Iterator i = this.idle.iterator(); i.hasNext();) {
+                connections.add(((Idle) i.next()).connection);
+            }
+            this.idle.clear();
+            notifyAll();
+        }
+        for (int i = 0; i < connections.size(); i++) {
+            discard((Connection) connections.get(i));
+        }
+    }
+
+    /**
+     * Get the pool's statistics.
+     *
+     * @return a map containing the pool's current size and counters
+     */
+    synchronized Map getStatistics() {
+        Map stats = new HashMap();
+        stats.put("size", new Integer(this.size)); //$NON-NLS-1$
+        stats.put("idle", new Integer(this.idle.size())); //$NON-NLS-1$
+        stats.put("borrowed", new Integer(this.borrowed.size())); //$NON-NLS-1$
+        stats.put("minSize", new Integer(this.minSize)); //$NON-NLS-1$
+        stats.put("maxSize", new Integer(this.maxSize)); //$NON-NLS-1$
+        stats.put("borrows", new Long(this.borrows)); //$NON-NLS-1$
+        stats.put("waits", new Long(this.waits)); //$NON-NLS-1$
+        stats.put("timeouts", new Long(this.timeouts)); //$NON-NLS-1$
+        stats.put("created", new Long(this.created)); //$NON-NLS-1$
+        stats.put("discarded", new Long(this.discarded)); //$NON-NLS-1$
+        stats.put("validationFailures", new Long(this.validationFailures)); //$NON-NLS-1$
+        stats.put("leaks", new Long(this.leaks)); //$NON-NLS-1$
+        return stats;
+    }
+
+    private boolean isValid(Connection con) {
+        try {
+            Statement stmt = con.createStatement();
+            try {
+                stmt.execute(this.validationQuery);
+            } finally {
+                stmt.close();
+            }
+            return true;
+        } catch (SQLException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Close a connection that has been taken out of the pool.
+     */
+    private void discard(Connection con) {
+        synchronized (this) {
+            this.size--;
+            this.discarded++;
+            notifyAll();
+        }
+        this.source.closeStatements(con);
+        try {
+            con.close();
+        } catch (SQLException ignore) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * An idle connection.
+     */
+    static final class Idle {
+        final Connection connection;
+        final long lastUsed = System.currentTimeMillis();
+
+        Idle(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * The record of a borrowed connection, used to detect leaks.
+     */
+    static final class Borrowed {
+        final Thread thread = Thread.currentThread();
+        final long time = System.currentTimeMillis();
+        final Throwable trace;
+        boolean reported = false;
+
+        Borrowed(boolean trace) {
+            this.trace = trace ? new Throwable() : null;
+        }
+    }
+}
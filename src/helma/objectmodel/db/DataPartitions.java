@@ -0,0 +1,249 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.objectmodel.db;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Change counters for the data of a table, partitioned by the values of the
+ * columns collections of the table are constrained by. A collection defined by
+ * a constraint such as <code>comments.collection.foreign = article_id</code>
+ * only contains rows having the value of its home node in that column, so only
+ * changes of such rows need to invalidate it. Values are hashed into a fixed
+ * number of buckets per column, so a change may also invalidate collections
+ * with other values, but never misses a collection containing the row.
+ *
+ * All counters only ever increase, so the sum returned by getLastChange()
+ * changes with every change affecting the partition.
+ */
+final class DataPartitions {
+
+    // number of buckets per column
+    static final int BUCKETS = 1024;
+
+    // counter for changes of all partitions
+    private final AtomicLong generation = new AtomicLong();
+
+    // bucket counters by upper case column name, the counter at index
+    // BUCKETS counts changes of all partitions of the column
+    private volatile HashMap columns = new HashMap();
+
+    // counter for registrations of new columns
+    private volatile long version = 0;
+
+    // counter for changes that may have removed rows from collections
+    private final AtomicLong removals = new AtomicLong();
+
+    /**
+     * Get the change counter of the partition of rows with the given value in a
+     * column. The column is registered, so that changes of rows are recorded
+     * for it from now on.
+     *
+     * @param column the column name
+     * @param value the value of the column
+     * @return a number that changes whenever a row of the partition changes
+     */
+    long getLastChange(String column, String value) {
+        AtomicLongArray counters = getCounters(column.toUpperCase());
+        return this.generation.get() + counters.get(BUCKETS) + counters.get(bucket(value));
+    }
+
+    /**
+     * Mark all partitions as changed.
+     */
+    void invalidate() {
+        this.removals.incrementAndGet();
+        this.generation.incrementAndGet();
+    }
+
+    /**
+     * Get a number that changes whenever rows may have been deleted or moved
+     * between partitions, used to check whether collections can be brought
+     * up to date by fetching new rows only.
+     *
+     * @return the removal counter
+     */
+    long getRemovals() {
+        return this.removals.get();
+    }
+
+    /**
+     * Create a collector for the changes of a transaction.
+     *
+     * @return an empty set of changes
+     */
+    Changes createChanges() {
+        return new Changes();
+    }
+
+    private AtomicLongArray getCounters(String column) {
+        AtomicLongArray counters = (AtomicLongArray) this.columns.get(column);
+        if (counters == null) {
+            synchronized (this) {
+                counters = (AtomicLongArray) this.columns.get(column);
+                if (counters == null) {
+                    HashMap map = new HashMap(this.columns);
+                    counters = new AtomicLongArray(BUCKETS + 1);
+                    map.put(column, counters);
+                    this.columns = map;
+                    this.version++;
+                }
+            }
+        }
+        return counters;
+    }
+
+    private static int bucket(String value) {
+        value = normalize(value);
+        return value == null ? 0 : (value.hashCode() & 0x7fffffff) % BUCKETS;
+    }
+
+    /**
+     * Normalize a column value so that values the database considers equal,
+     * such as numbers in different notations or strings differing in case or
+     * trailing blanks, end up in the same bucket.
+     */
+    static String normalize(String value) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim().toLowerCase();
+        if (value.length() > 0) {
+            char c = value.charAt(0);
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.') {
+                try {
+                    BigDecimal number = new BigDecimal(value);
+                    if (number.signum() == 0) {
+                        return "0"; //$NON-NLS-1$
+                    }
+                    return number.stripTrailingZeros().toPlainString();
+                } catch (NumberFormatException x) {
+                    // not a number
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * The partitions changed by a transaction, collected while its nodes are
+     * written and applied after they have been written.
+     */
+    final class Changes {
+        // the registration counter when collecting started
+        private final long version = DataPartitions.this.version;
+        // sets of changed values by column, null for all values of a column
+        private final HashMap values = new HashMap();
+        private boolean all = false;
+        private boolean removal = false;
+
+        /**
+         * Get the names of the columns to collect changed values for.
+         *
+         * @return the upper case column names
+         */
+        String[] getColumns() {
+            HashMap map = DataPartitions.this.columns;
+            return (String[]) map.keySet().toArray(new String[map.size()]);
+        }
+
+        /**
+         * Record a change of the partition with the given value in a column.
+         *
+         * @param column the upper case column name
+         * @param value the value
+         */
+        void add(String column, String value) {
+            if (this.values.containsKey(column) && this.values.get(column) == null) {
+                return;
+            }
+            HashSet set = (HashSet) this.values.get(column);
+            if (set == null) {
+                set = new HashSet();
+                this.values.put(column, set);
+            }
+            set.add(new Integer(bucket(value)));
+        }
+
+        /**
+         * Record a change of all partitions of a column, e.g. because a row
+         * was moved from an unknown value.
+         *
+         * @param column the upper case column name
+         */
+        void addColumn(String column) {
+            this.values.put(column, null);
+            this.removal = true;
+        }
+
+        /**
+         * Record that a row was deleted.
+         */
+        void addRemoval() {
+            this.removal = true;
+        }
+
+        /**
+         * Record the changes collected in another set of changes.
+         *
+         * @param other the other changes
+         */
+        void addAll(Changes other) {
+            this.all |= other.all || other.version != this.version;
+            this.removal |= other.removal;
+            for (Iterator i = other.values.entrySet().iterator(); i.hasNext();) {
+                Map.Entry entry = (Map.Entry) i.next();
+                String column = (String) entry.getKey();
+                HashSet set = (HashSet) entry.getValue();
+                if (set == null) {
+                    addColumn(column);
+                } else if (!this.values.containsKey(column)) {
+                    this.values.put(column, new HashSet(set));
+                } else if (this.values.get(column) != null) {
+                    ((HashSet) this.values.get(column)).addAll(set);
+                }
+            }
+        }
+
+        /**
+         * Increment the counters of all changed partitions.
+         */
+        void apply() {
+            if (this.removal) {
+                DataPartitions.this.removals.incrementAndGet();
+            }
+            if (this.all || this.version != DataPartitions.this.version) {
+                // a column was registered while changes were collected
+                invalidate();
+                return;
+            }
+            for (Iterator i = this.values.entrySet().iterator(); i.hasNext();) {
+                Map.Entry entry = (Map.Entry) i.next();
+                AtomicLongArray counters = getCounters((String) entry.getKey());
+                HashSet set = (HashSet) entry.getValue();
+                if (set == null) {
+                    counters.incrementAndGet(BUCKETS);
+                } else {
+                    for (Iterator j = set.iterator(); j.hasNext();) {
+                        counters.incrementAndGet(((Integer) j.next()).intValue());
+                    }
+                }
+            }
+        }
+    }
+}
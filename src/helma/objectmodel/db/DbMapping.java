@@ -28,6 +28,7 @@ import java.util.StringTokenizer;
 
 import helma.framework.core.Application;
 import helma.framework.core.Prototype;
+import helma.objectmodel.NodeInterface;
 import helma.util.ResourceProperties;
 
 /**
@@ -127,6 +128,9 @@ public final class DbMapping {
     // timestamp of last modification of an object of this type
     long lastDataChange = 0;
 
+    // change counters of the data partitioned by collection constraint columns
+    private final DataPartitions dataPartitions = new DataPartitions();
+
     // Set of mappings that depend on us and should be forwarded last data change events
     HashSet dependentMappings = new HashSet();
 
@@ -1417,11 +1421,28 @@ public final class DbMapping {
      * to mappings that depend on us through an additionalTables switch.
      */
     public void setLastDataChange() {
+        setLastDataChange(null);
+    }
+
+    /**
+     * Set the last time something changed in the data, propagating the event
+     * to mappings that depend on us through an additionalTables switch. Of the
+     * collections partitioned by a constraint column, only the ones affected
+     * by the given changes are marked as changed.
+     *
+     * @param changes the changed partitions, or null to mark all partitions as changed
+     */
+    void setLastDataChange(DataPartitions.Changes changes) {
         // forward data change timestamp to storage-compatible parent mapping
         if (inheritsStorage()) {
-            this.parentMapping.setLastDataChange();
+            this.parentMapping.setLastDataChange(changes);
         } else {
             this.lastDataChange += 1;
+            if (changes == null) {
+                this.dataPartitions.invalidate();
+            } else {
+                changes.apply();
+            }
             // propagate data change timestamp to mappings that depend on us
             if (!this.dependentMappings.isEmpty()) {
                 Iterator it = this.dependentMappings.iterator();
@@ -1433,6 +1454,75 @@ public final class DbMapping {
         }
     }
 
+    /**
+     * Get the change counters of our data partitioned by the columns
+     * collections are constrained by.
+     *
+     * @return the data partitions of the storage-compatible mapping
+     */
+    DataPartitions getDataPartitions() {
+        // refer to parent mapping if it uses the same db/table
+        if (inheritsStorage()) {
+            return this.parentMapping.getDataPartitions();
+        }
+        return this.dataPartitions;
+    }
+
+    /**
+     * Record the partitions of our data a node about to be written belongs
+     * to. If the node was modified in a partition column, the partition it was
+     * moved from is unknown, so all partitions of the column are recorded.
+     *
+     * @param node the new, modified or deleted node
+     * @param changes the changes to add to
+     */
+    void collectDataChange(Node node, DataPartitions.Changes changes) {
+        String[] columns = changes.getColumns();
+        boolean isNew = node.getState() == NodeInterface.NEW;
+
+        if (node.getState() == NodeInterface.DELETED) {
+            changes.addRemoval();
+        }
+
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i];
+            if (column.equalsIgnoreCase(getIDField())) {
+                changes.add(column, node.getID());
+                continue;
+            }
+            String propname = columnNameToProperty(column);
+            if (propname == null) {
+                changes.addColumn(column);
+                continue;
+            }
+            Property prop = node.getProperty(propname);
+            if (prop != null && prop.dirty && !isNew) {
+                changes.addColumn(column);
+            } else {
+                changes.add(column, prop == null ? null : prop.getStringValue());
+            }
+        }
+    }
+
+    /**
+     * Get the cache statistics of the collections defined in this mapping.
+     *
+     * @return a map of cache statistics maps by collection property name
+     */
+    public Map getCollectionStatistics() {
+        Map stats = new HashMap();
+        if (this.subRelation != null) {
+            stats.put(this.subRelation.propName, this.subRelation.getCacheStatistics());
+        }
+        for (Iterator i = this.prop2db.values().iterator(); i.hasNext();) {
+            Relation rel = (Relation) i.next();
+            if (rel.isCollection() && rel != this.subRelation) {
+                stats.put(rel.propName, rel.getCacheStatistics());
+            }
+        }
+        return stats;
+    }
+
     /**
      * Set the last time something changed in the data. This is already an indirect
      * data change triggered by a mapping we depend on, so we don't propagate it to
@@ -1643,8 +1733,29 @@ public final class DbMapping {
      */
     protected void appendCondition(StringBuffer q, String column, String[] values)
             throws SQLException, NoDriverException {
+        appendCondition(q, column, values, null);
+    }
+
+    /**
+     * Append a sql-condition for the given column which must have
+     * one of the values contained inside the given Set to the given
+     * StringBuffer, passing the values as statement parameters if possible.
+     * To keep the number of distinct statements low, the parameter list
+     * is padded to the next power of two by repeating the last value.
+     * @param q the StringBuffer to append to
+     * @param column the column which must match one of the values
+     * @param values the list of values
+     * @param params the parameters to add the values to, or null to render
+     *        the values as literals
+     *
+     * @throws SQLException
+     * @throws NoDriverException  if the JDBC driver could not be loaded or is unusable
+     */
+    protected void appendCondition(StringBuffer q, String column, String[] values,
+                                   QueryParameters params)
+            throws SQLException, NoDriverException {
         if (values.length == 1) {
-            appendCondition(q, column, values[0]);
+            appendCondition(q, column, values[0], false, params);
             return;
         }
         if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
@@ -1652,7 +1763,18 @@ public final class DbMapping {
         }
         q.append(column).append(" in ("); //$NON-NLS-1$
 
-        if (needsQuotes(column)) {
+        DbColumn col = params == null ? null : getParameterColumn(column);
+        if (col != null && !contains(values, null)) {
+            int size = Integer.highestOneBit(values.length);
+            if (size < values.length) {
+                size <<= 1;
+            }
+            for (int i = 0; i < size; i++) {
+                if (i > 0)
+                    q.append(", "); //$NON-NLS-1$
+                params.append(q, col, values[Math.min(i, values.length - 1)]);
+            }
+        } else if (needsQuotes(column)) {
             for (int i = 0; i < values.length; i++) {
                 if (i > 0)
                     q.append(", "); //$NON-NLS-1$
@@ -1668,6 +1790,28 @@ public final class DbMapping {
         q.append(")"); //$NON-NLS-1$
     }
 
+    private static boolean contains(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the column to compare with a statement parameter, or null if values
+     * compared with the column must be rendered as literals.
+     */
+    private DbColumn getParameterColumn(String column)
+            throws SQLException, NoDriverException {
+        if ((this.tableName == null) && (this.parentMapping != null)) {
+            return this.parentMapping.getParameterColumn(column);
+        }
+        DbColumn col = getColumn(column);
+        return col != null && QueryParameters.isSupported(col) ? col : null;
+    }
+
     /**
      * Append a sql-condition for the given column which must have
      * the value given to the given StringBuffer.
@@ -1700,11 +1844,51 @@ public final class DbMapping {
      */
     protected void appendCondition(StringBuffer q, String column, String val, boolean insertUpdate)
             throws SQLException, NoDriverException {
+        appendCondition(q, column, val, insertUpdate, null);
+    }
+
+    /**
+     * Append a sql-condition for the given column which must have
+     * the value given to the given StringBuffer, passing the value as
+     * statement parameter if possible.
+     * @param q the StringBuffer to append to
+     * @param column the column which must match one of the values
+     * @param val the value
+     * @param insertUpdate
+     *  If to append the operation for an insert/update operation, in which case the identifier column will
+     *  be qualified with the name of the table to use for insert/update operations instead of the name of
+     *  the table to use for select operations.
+     * @param params the parameters to add the value to, or null to render the value as literal
+     *
+     * @throws SQLException
+     * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+     */
+    protected void appendCondition(StringBuffer q, String column, String val, boolean insertUpdate,
+                                   QueryParameters params)
+            throws SQLException, NoDriverException {
         if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
             q.append(insertUpdate ? getInsertUpdateTableName() : getTableName()).append("."); //$NON-NLS-1$
         }
         q.append(column).append(" = "); //$NON-NLS-1$
+        appendValue(q, column, val, params);
+    }
 
+    /**
+     * Append a value to be compared with the given column to the given
+     * StringBuffer, passing it as statement parameter if possible.
+     * @param q the StringBuffer to append to
+     * @param column the column the value is compared with
+     * @param val the value
+     * @param params the parameters to add the value to, or null to render the value as literal
+     *
+     * @throws SQLException
+     * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+     */
+    void appendValue(StringBuffer q, String column, String val, QueryParameters params)
+            throws SQLException, NoDriverException {
+        if (params != null && val != null && params.append(q, getParameterColumn(column), val)) {
+            return;
+        }
         if (needsQuotes(column)) {
             q.append("'").append(escapeString(val)).append("'"); //$NON-NLS-1$ //$NON-NLS-2$
         } else {
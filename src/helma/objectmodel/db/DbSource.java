@@ -19,10 +19,16 @@ import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
+import org.apache.commons.logging.Log;
+
 import helma.util.ResourceProperties;
 
 /**
@@ -42,6 +48,16 @@ public class DbSource {
     private int hashcode;
     // thread local connection holder for non-transactor threads
     private ThreadLocal connection;
+    // the connection pool for transactor threads, if enabled
+    private volatile ConnectionPool pool;
+    // the data source properties the pool was set up with
+    private Properties poolSettings;
+    // the logger to report leaked pool connections to
+    private Log logger;
+    // prepared statement caches by connection
+    private final IdentityHashMap statementCaches = new IdentityHashMap();
+    // maximal number of cached prepared statements per connection
+    private int statementCacheSize;
 
     /**
      * The class loader to use for loading JDBC driver classes.
@@ -65,27 +81,75 @@ public class DbSource {
     }
 
     /**
-     * Get a JDBC connection to the db source.
+     * Get a JDBC connection to the db source. If connection pooling is enabled
+     * for this db source, the current transactor borrows a connection from
+     * the pool on first use and returns it when the transaction ends.
      *
      * @return a JDBC connection
      *
      * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
      * @throws SQLException if the connection couldn't be created
      */
-    public synchronized Connection getConnection()
+    public Connection getConnection()
             throws NoDriverException, SQLException {
-        Connection con;
         Transactor tx = Transactor.getInstance();
+        if (tx == null) {
+            return getUnpooledConnection(null, false);
+        }
+
+        boolean fileUpdated;
+        ConnectionPool pool;
+        synchronized (this) {
+            fileUpdated = isUpdated();
+            if (fileUpdated) {
+                init();
+            }
+            pool = this.pool;
+        }
+        if (pool == null) {
+            return getUnpooledConnection(tx, fileUpdated);
+        }
+
+        Connection con = tx.getConnection(this);
+        if (con != null && con.isClosed()) {
+            tx.releaseConnection(this, true);
+            con = null;
+        }
+        if (con == null) {
+            con = pool.borrow();
+            tx.registerConnection(this, con, pool);
+        }
+        return con;
+    }
+
+    /**
+     * Get a JDBC connection that is not pooled, creating a new one if
+     * the transactor or thread doesn't hold a usable connection yet.
+     *
+     * @param tx the current transactor, or null
+     * @param fileUpdated true if the properties have been updated since the
+     *        connection was created
+     * @return a JDBC connection
+     */
+    private synchronized Connection getUnpooledConnection(Transactor tx, boolean fileUpdated)
+            throws NoDriverException, SQLException {
+        Connection con;
         if (tx != null) {
             con = tx.getConnection(this);
         } else {
             con = getThreadLocalConnection();
         }
 
-        boolean fileUpdated = this.props.lastModified() > this.lastRead ||
-                (defaultProps != null && defaultProps.lastModified() > this.lastRead);
+        fileUpdated = fileUpdated || isUpdated();
 
         if (con == null || con.isClosed() || fileUpdated) {
+            if (con != null && !con.isClosed()) {
+                // replaced because the properties have changed
+                closeStatements(con);
+                try {
+                    con.close();
+                } catch (SQLException ignore) {/* nothing to do */}
+            }
             init();
             con = DriverManager.getConnection(this.url, this.conProps);
 
@@ -105,6 +169,145 @@ public class DbSource {
         return con;
     }
 
+    /**
+     * Check if the db properties have been modified since they were last read.
+     */
+    private boolean isUpdated() {
+        return this.props.lastModified() > this.lastRead ||
+                (defaultProps != null && defaultProps.lastModified() > this.lastRead);
+    }
+
+    /**
+     * Get the statistics of this db source's connection pool.
+     *
+     * @return a map containing the pool's size and counters, or null if
+     *         connection pooling isn't enabled for this db source
+     */
+    public Map getPoolStatistics() {
+        ConnectionPool pool = this.pool;
+        return pool == null ? null : pool.getStatistics();
+    }
+
+    /**
+     * Get the prepared statement cache of a connection to this db source.
+     * The cache must only be used by the thread currently using the connection.
+     *
+     * @param con a connection obtained from getConnection()
+     * @return the connection's statement cache
+     */
+    public StatementCache getStatementCache(Connection con) {
+        synchronized (this.statementCaches) {
+            StatementCache cache = (StatementCache) this.statementCaches.get(con);
+            if (cache == null) {
+                if (this.statementCacheSize == 0) {
+                    // caching disabled, don't keep track of the cache
+                    return new StatementCache(con, 0);
+                }
+                if (this.statementCaches.size() >= 64) {
+                    pruneStatementCaches();
+                }
+                cache = new StatementCache(con, this.statementCacheSize);
+                this.statementCaches.put(con, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Close the cached prepared statements of a connection that is about to be closed.
+     *
+     * @param con the connection
+     */
+    public void closeStatements(Connection con) {
+        StatementCache cache;
+        synchronized (this.statementCaches) {
+            cache = (StatementCache) this.statementCaches.remove(con);
+        }
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Drop the caches of connections that have been closed without calling
+     * closeStatements().
+     */
+    private void pruneStatementCaches() {
+        for (Iterator i = this.statementCaches.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry = (Map.Entry) i.next();
+            Connection con = (Connection) entry.getKey();
+            boolean closed;
+            try {
+                closed = con.isClosed();
+            } catch (SQLException x) {
+                closed = true;
+            }
+            if (closed) {
+                i.remove();
+                ((StatementCache) entry.getValue()).clear();
+            }
+        }
+    }
+
+    /**
+     * Get the statistics of the prepared statement caches of this db source.
+     *
+     * @return a map containing the number of connections with a cache, the
+     *         number of cached statements, and the cache hits and misses
+     */
+    public Map getStatementCacheStatistics() {
+        long[] totals = new long[3];
+        int connections;
+        synchronized (this.statementCaches) {
+            connections = this.statementCaches.size();
+            for (Iterator i = this.statementCaches.values().iterator(); i.hasNext();) {
+                ((StatementCache) i.next()).addStatistics(totals);
+            }
+        }
+        Map stats = new HashMap();
+        stats.put("connections", new Integer(connections)); //$NON-NLS-1$
+        stats.put("statements", new Long(totals[0])); //$NON-NLS-1$
+        stats.put("hits", new Long(totals[1])); //$NON-NLS-1$
+        stats.put("misses", new Long(totals[2])); //$NON-NLS-1$
+        stats.put("capacity", new Integer(this.statementCacheSize)); //$NON-NLS-1$
+        return stats;
+    }
+
+    /**
+     * Close idle connections of the connection pool that haven't been used for
+     * a while and report connections that seem to have leaked. This is called
+     * periodically by the application.
+     */
+    public void maintainPool() {
+        ConnectionPool pool = this.pool;
+        if (pool != null) {
+            pool.maintain();
+        }
+    }
+
+    /**
+     * Close the connection pool of this db source, if any. Connections
+     * currently in use are closed when they are returned.
+     */
+    public synchronized void shutdown() {
+        if (this.pool != null) {
+            this.pool.close();
+            this.pool = null;
+        }
+    }
+
+    /**
+     * Set the logger to report leaked pool connections to.
+     *
+     * @param logger the logger
+     */
+    public synchronized void setLogger(Log logger) {
+        this.logger = logger;
+        if (this.pool != null) {
+            this.pool.setLogger(logger);
+        }
+    }
+
     /**
      * Used for connections not managed by a Helma transactor
      * @return a thread local tested connection, or null
@@ -122,6 +325,7 @@ public class DbSource {
                 stmt.execute("SELECT 1"); //$NON-NLS-1$
                 stmt.close();
             } catch (SQLException sx) {
+                closeStatements(con);
                 try {
                     con.close();
                 } catch (SQLException ignore) {/* nothing to do */}
@@ -220,11 +424,46 @@ public class DbSource {
                 "driver".equalsIgnoreCase(key) || //$NON-NLS-1$
                 "user".equalsIgnoreCase(key) || //$NON-NLS-1$
                 "password".equalsIgnoreCase(key) || //$NON-NLS-1$
-                "autoCommit".equalsIgnoreCase(key)) { //$NON-NLS-1$
+                "autoCommit".equalsIgnoreCase(key) || //$NON-NLS-1$
+                "statementCacheSize".equalsIgnoreCase(key) || //$NON-NLS-1$
+                "pool".equalsIgnoreCase(key) || //$NON-NLS-1$
+                key.toLowerCase().startsWith("pool.")) { //$NON-NLS-1$
                 continue;
             }
             this.conProps.setProperty(key, this.subProps.getProperty(key));
         }
+
+        // read the size of prepared statement caches
+        this.statementCacheSize = 50;
+        prop = this.subProps.getProperty("statementCacheSize"); //$NON-NLS-1$
+        if (prop != null) {
+            try {
+                this.statementCacheSize = Math.max(0, Integer.parseInt(prop.trim()));
+            } catch (NumberFormatException x) {
+                // keep default size
+            }
+        }
+
+        // set up the connection pool, keeping the current one unless the
+        // settings have changed. connections borrowed from a replaced pool
+        // are closed when they are returned.
+        Properties settings = new Properties();
+        for (Enumeration e = this.subProps.keys(); e.hasMoreElements(); ) {
+            String key = (String) e.nextElement();
+            settings.setProperty(key, this.subProps.getProperty(key));
+        }
+        if (this.pool != null && !settings.equals(this.poolSettings)) {
+            this.pool.close();
+            this.pool = null;
+        }
+        if (this.pool == null && "true".equalsIgnoreCase(this.subProps.getProperty("pool"))) { //$NON-NLS-1$ //$NON-NLS-2$
+            ConnectionPool newPool = new ConnectionPool(this, this.url, this.conProps,
+                    !"false".equalsIgnoreCase(this.subProps.getProperty("autoCommit")), //$NON-NLS-1$ //$NON-NLS-2$
+                    this.subProps.getSubProperties("pool.")); //$NON-NLS-1$
+            newPool.setLogger(this.logger);
+            this.pool = newPool;
+        }
+        this.poolSettings = settings;
     }
 
     /**
@@ -0,0 +1,104 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.objectmodel.db;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * A page of a collection with keyset pagination, together with the
+ * continuation token to pass to fetch the following page. The token is an
+ * opaque, URL safe string encoding the order key and id of the last node of
+ * the page.
+ */
+public class KeysetPage {
+
+    private final List handles;
+    private final String nextToken;
+
+    /**
+     * Create a page.
+     *
+     * @param handles the node handles of the page
+     * @param nextToken the token for the following page, or null if this is the last page
+     */
+    KeysetPage(List handles, String nextToken) {
+        this.handles = handles;
+        this.nextToken = nextToken;
+    }
+
+    /**
+     * Get the handles of the nodes on this page.
+     *
+     * @return a list of NodeHandles
+     */
+    public List getHandles() {
+        return this.handles;
+    }
+
+    /**
+     * Get the continuation token to fetch the following page with.
+     *
+     * @return the token, or null if there are no more nodes
+     */
+    public String getNextToken() {
+        return this.nextToken;
+    }
+
+    /**
+     * Create a continuation token for the page following a node.
+     *
+     * @param key the order key of the node
+     * @param id the id of the node
+     * @return the token
+     */
+    static String createToken(String key, String id) {
+        String str = key.length() + ":" + key + id; //$NON-NLS-1$
+        try {
+            return Base64.encodeBase64URLSafeString(str.getBytes("UTF-8")); //$NON-NLS-1$
+        } catch (UnsupportedEncodingException x) {
+            throw new RuntimeException(x.toString());
+        }
+    }
+
+    /**
+     * Parse a continuation token created by createToken().
+     *
+     * @param token the token
+     * @return an array containing the order key and id of the node
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    static String[] parseToken(String token) {
+        String str;
+        try {
+            str = new String(Base64.decodeBase64(token), "UTF-8"); //$NON-NLS-1$
+        } catch (UnsupportedEncodingException x) {
+            throw new RuntimeException(x.toString());
+        }
+        int colon = str.indexOf(':');
+        try {
+            int length = Integer.parseInt(str.substring(0, colon));
+            String key = str.substring(colon + 1, colon + 1 + length);
+            String id = str.substring(colon + 1 + length);
+            if (id.length() > 0) {
+                return new String[] {key, id};
+            }
+        } catch (NumberFormatException x) {
+            // malformed token
+        } catch (IndexOutOfBoundsException x) {
+            // malformed token
+        }
+        throw new IllegalArgumentException(Messages.getString("KeysetPage.0") + token); //$NON-NLS-1$
+    }
+}
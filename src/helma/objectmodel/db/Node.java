@@ -62,6 +62,8 @@ public final class Node implements NodeInterface {
     long lastParentSet = 0;
     private volatile Transactor lock;
     private volatile int state;
+    // URL path of this node cached by the application
+    private transient volatile Object hrefCache;
     private static long idgen = 0;
 
     /**
@@ -572,6 +574,7 @@ public final class Node implements NodeInterface {
         } else {
             this.name = name;
         }
+        this.hrefCache = null;
     }
 
     /**
@@ -579,6 +582,7 @@ public final class Node implements NodeInterface {
      */
     public void setParent(Node parent) {
         this.parentHandle = (parent == null) ? null : parent.getHandle();
+        this.hrefCache = null;
     }
 
     /**
@@ -586,6 +590,44 @@ public final class Node implements NodeInterface {
      */
     public void setParentHandle(NodeHandle parent) {
         this.parentHandle = parent;
+        this.hrefCache = null;
+    }
+
+    /**
+     * Get the handle of this node's parent node as currently set, without
+     * checking whether the parent is still valid.
+     *
+     * @return the parent handle, or null
+     */
+    public NodeHandle getParentHandle() {
+        return this.parentHandle;
+    }
+
+    /**
+     * Record a modification of this node, discarding its cached URL path.
+     */
+    private void markModified() {
+        this.lastmodified = System.currentTimeMillis();
+        this.hrefCache = null;
+    }
+
+    /**
+     * Get the URL path of this node cached by the application. The cache is
+     * cleared when the node's name or parent is set or the node is modified.
+     *
+     * @return the cached path object, or null
+     */
+    public Object getHrefCache() {
+        return this.hrefCache;
+    }
+
+    /**
+     * Set the URL path of this node cached by the application.
+     *
+     * @param cache the path object to cache
+     */
+    public void setHrefCache(Object cache) {
+        this.hrefCache = cache;
     }
 
     /**
@@ -849,7 +891,7 @@ public final class Node implements NodeInterface {
             }
         }
 
-        this.lastmodified = System.currentTimeMillis();
+        markModified();
         // we want the element name to be recomputed on the child node
         node.lastNameCheck = 0;
         registerSubnodeChange();
@@ -1278,7 +1320,7 @@ public final class Node implements NodeInterface {
             return;
         }
 
-        this.lastmodified = System.currentTimeMillis();
+        markModified();
 
         if (this.state == CLEAN) {
             markAs(MODIFIED);
@@ -1476,6 +1518,26 @@ public final class Node implements NodeInterface {
         this.subnodes.prefetch(startIndex, length);
     }
 
+    /**
+     * Get a page of the subnodes of this node by keyset pagination. This is
+     * only supported for persistent nodes whose collection is declared with
+     * <code>pagination = keyset</code>, and pages are always read from the
+     * database, so subnodes added in the current transaction are not included.
+     *
+     * @param token the continuation token of the previous page, or null for the first page
+     * @param length the maximal number of subnodes on the page
+     * @return the page, or null if keyset pagination is not supported for this node
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public KeysetPage getChildPage(String token, int length) {
+        Relation rel = this.dbmap == null ? null : this.dbmap.getSubnodeRelation();
+        if (rel == null || !rel.isKeysetPaginated() || getSubnodeRelation() != null ||
+                this.state == TRANSIENT || this.state == NEW) {
+            return null;
+        }
+        return this.nmgr.getKeysetPage(this, rel, token, length);
+    }
+
     /**
      * Enumerate through the subnodes of this node.
      * @return an enumeration of this node's subnodes
@@ -1803,7 +1865,7 @@ public final class Node implements NodeInterface {
             this.propMap.put(p2, prop);
         }
 
-        this.lastmodified = System.currentTimeMillis();
+        markModified();
 
         if (this.state == CLEAN && isPersistable) {
             markAs(MODIFIED);
@@ -1915,7 +1977,7 @@ public final class Node implements NodeInterface {
             }
         }
 
-        this.lastmodified = System.currentTimeMillis();
+        markModified();
 
         if (this.state == CLEAN && isPersistable) {
             markAs(MODIFIED);
@@ -1953,7 +2015,7 @@ public final class Node implements NodeInterface {
 
         notifyPropertyChange(propname);
 
-        this.lastmodified = System.currentTimeMillis();
+        markModified();
 
         if (this.state == CLEAN && isPersistable) {
             markAs(MODIFIED);
@@ -1991,7 +2053,7 @@ public final class Node implements NodeInterface {
 
         notifyPropertyChange(propname);
 
-        this.lastmodified = System.currentTimeMillis();
+        markModified();
 
         if (this.state == CLEAN && isPersistable) {
             markAs(MODIFIED);
@@ -2029,7 +2091,7 @@ public final class Node implements NodeInterface {
 
         notifyPropertyChange(propname);
 
-        this.lastmodified = System.currentTimeMillis();
+        markModified();
 
         if (this.state == CLEAN && isPersistable) {
             markAs(MODIFIED);
@@ -2067,7 +2129,7 @@ public final class Node implements NodeInterface {
 
         notifyPropertyChange(propname);
 
-        this.lastmodified = System.currentTimeMillis();
+        markModified();
 
         if (this.state == CLEAN && isPersistable) {
             markAs(MODIFIED);
@@ -2105,7 +2167,7 @@ public final class Node implements NodeInterface {
 
         notifyPropertyChange(propname);
 
-        this.lastmodified = System.currentTimeMillis();
+        markModified();
 
         if (this.state == CLEAN && isPersistable) {
             markAs(MODIFIED);
@@ -2250,7 +2312,7 @@ public final class Node implements NodeInterface {
             }
         }
 
-        this.lastmodified = System.currentTimeMillis();
+        markModified();
 
         if (n.state == DELETED) {
             n.markAs(MODIFIED);
@@ -2292,7 +2354,7 @@ public final class Node implements NodeInterface {
                     notifyPropertyChange(propname);
                 }
 
-                this.lastmodified = System.currentTimeMillis();
+                markModified();
 
                 if (this.state == CLEAN && isPersistable) {
                     markAs(MODIFIED);
@@ -27,12 +27,19 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,6 +52,7 @@ import helma.objectmodel.NodeInterface;
 import helma.objectmodel.ObjectCacheInterface;
 import helma.objectmodel.TransactionInterface;
 import helma.objectmodel.dom.XmlDatabase;
+import helma.util.ConcurrentCacheMap;
 
 /**
  * The NodeManager is responsible for fetching Nodes from the internal or
@@ -57,10 +65,19 @@ public final class NodeManager {
     private ObjectCacheInterface cache;
     protected DatabaseInterface db;
     protected IDGeneratorInterface idgen;
-    private boolean logSql;
+    boolean logSql;
     private Log sqlLog = null;
     private ArrayList listeners = new ArrayList();
 
+    // maximal time in milliseconds to wait for another thread loading the same node
+    static final long LOAD_WAIT_TIMEOUT = 10000L;
+
+    // nodes currently loaded from the database, mapped from key to PendingLoad
+    private final ConcurrentHashMap pendingLoads = new ConcurrentHashMap();
+
+    // number of loads that waited for and used the result of another thread's load
+    private final AtomicLong coalescedLoads = new AtomicLong();
+
     // a wrapper that catches some Exceptions while accessing this NM
     public final WrappedNodeManager safe;
 
@@ -163,8 +180,8 @@ public final class NodeManager {
      *  Get a node by key. This is called from a node that already holds
      *  a reference to another node via a NodeHandle/KeyInterface.
      */
-    public Node getNode(KeyInterface key) throws Exception {
-        Transactor tx = Transactor.getInstanceOrFail();
+    public Node getNode(final KeyInterface key) throws Exception {
+        final Transactor tx = Transactor.getInstanceOrFail();
 
         // See if Transactor has already come across this node
         Node node = tx.getCleanNode(key);
@@ -187,11 +204,14 @@ public final class NodeManager {
                 }
                 return null;
             } else if (key instanceof DbKey) {
-                node = getNodeByKey(tx.txn, (DbKey) key);
-            }
-
-            if (node != null) {
-                node = registerNewNode(node, null);
+                // make sure only one thread fetches the node from the database
+                node = loadOnce(key, new NodeLoader() {
+                    @Override
+                    Node load() throws Exception {
+                        Node loaded = getNodeByKey(tx.txn, (DbKey) key);
+                        return loaded == null ? null : registerNewNode(loaded, null);
+                    }
+                });
             }
         }
 
@@ -207,15 +227,15 @@ public final class NodeManager {
      *  In contrast to getNode (KeyInterface key), this is usually called when we don't yet know
      *  whether such a node exists.
      */
-    public Node getNode(Node home, String kstr, Relation rel)
+    public Node getNode(final Node home, final String kstr, final Relation rel)
                  throws Exception {
         if (kstr == null) {
             return null;
         }
 
-        Transactor tx = Transactor.getInstanceOrFail();
+        final Transactor tx = Transactor.getInstanceOrFail();
 
-        KeyInterface key;
+        final KeyInterface key;
         DbMapping otherDbm = rel == null ? null : rel.otherType;
         // check what kind of object we're looking for and make an appropriate key
         if (rel.isComplexReference()) {
@@ -275,32 +295,40 @@ public final class NodeManager {
 
         if (node == null || node.getState() == NodeInterface.INVALID) {
             // The requested node isn't in the shared cache.
-            // Synchronize with key to make sure only one version is fetched
-            // from the database.
-            node = getNodeByRelation(tx.txn, home, kstr, rel, otherDbm);
-
-            if (node != null && node.getState() != NodeInterface.DELETED) {
-                Node newNode = node;
-                if (key.equals(node.getKey())) {
-                    node = registerNewNode(node, null);
-                } else {
-                    node = registerNewNode(node, key);
-                }
-                // reset create time of old node, otherwise Relation.checkConstraints
-                // will reject it under certain circumstances.
-                if (node != newNode) {
-                    node.created = node.lastmodified;
-                }
-            } else {
-                // node fetched from db is null, cache result using nullNode
-                synchronized (this.cache) {
-                    // do not use child collection timestamp as cache guard for object references
-                    long lastchange = rel.isComplexReference() ? 0 : home.getLastSubnodeChange();
-                    this.cache.put(key, new Node(lastchange));
-
-                    // we ignore the case that onother thread has created the node in the meantime
-                    return null;
+            // Make sure only one version is fetched from the database.
+            final DbMapping dbm = otherDbm;
+            node = loadOnce(key, new NodeLoader() {
+                @Override
+                Node load() throws Exception {
+                    Node loaded = getNodeByRelation(tx.txn, home, kstr, rel, dbm);
+
+                    if (loaded != null && loaded.getState() != NodeInterface.DELETED) {
+                        Node newNode = loaded;
+                        if (key.equals(loaded.getKey())) {
+                            loaded = registerNewNode(loaded, null);
+                        } else {
+                            loaded = registerNewNode(loaded, key);
+                        }
+                        // reset create time of old node, otherwise Relation.checkConstraints
+                        // will reject it under certain circumstances.
+                        if (loaded != newNode) {
+                            loaded.created = loaded.lastmodified;
+                        }
+                        return loaded;
+                    }
+                    // node fetched from db is null, cache result using nullNode
+                    synchronized (NodeManager.this.cache) {
+                        // do not use child collection timestamp as cache guard for object references
+                        long lastchange = rel.isComplexReference() ? 0 : home.getLastSubnodeChange();
+                        NodeManager.this.cache.put(key, new Node(lastchange));
+
+                        // we ignore the case that onother thread has created the node in the meantime
+                        return null;
+                    }
                 }
+            });
+            if (node == null) {
+                return null;
             }
         } else if (node.isNullNode()) {
             // the nullNode caches a null value, i.e. an object that doesn't exist
@@ -308,15 +336,11 @@ public final class NodeManager {
         } else {
             // update primary key in cache to keep it from being flushed, see above
             if (!rel.usesPrimaryKey() && node.getState() != NodeInterface.TRANSIENT) {
-                synchronized (this.cache) {
-                    Node old = (Node) this.cache.put(node.getKey(), node);
-
-                    if (old != node && old != null && !old.isNullNode() &&
-                            old.getState() != NodeInterface.INVALID) {
-                        this.cache.put(node.getKey(), old);
-                        this.cache.put(key, old);
-                        node = old;
-                    }
+                Node cached = cacheNode(node.getKey(), node);
+
+                if (cached != node) {
+                    this.cache.put(key, cached);
+                    node = cached;
                 }
             }
         }
@@ -328,6 +352,61 @@ public final class NodeManager {
         return node;
     }
 
+    /**
+     * Load a node using the given loader unless another thread is already loading
+     * the node with the same key. In that case, wait for the other thread and use
+     * the node it loaded, so concurrent cache misses only cause a single database
+     * query. If the other thread fails or takes too long, the node is loaded anyway.
+     *
+     * @param key the key of the node to load
+     * @param loader the loader fetching and registering the node
+     * @return the loaded node, or null if it doesn't exist
+     */
+    private Node loadOnce(KeyInterface key, NodeLoader loader) throws Exception {
+        PendingLoad load = new PendingLoad();
+        PendingLoad pending = (PendingLoad) this.pendingLoads.putIfAbsent(key, load);
+
+        if (pending == null) {
+            try {
+                load.node = loader.load();
+                load.loaded = true;
+                return load.node;
+            } finally {
+                this.pendingLoads.remove(key, load);
+                load.done.countDown();
+            }
+        }
+
+        // don't wait for ourselves, e.g. if onInit() accesses the node being loaded
+        if (pending.thread != Thread.currentThread() &&
+                pending.done.await(LOAD_WAIT_TIMEOUT, TimeUnit.MILLISECONDS) &&
+                pending.loaded) {
+            Node node = pending.node;
+            if (node == null || node.getState() != NodeInterface.INVALID) {
+                this.coalescedLoads.incrementAndGet();
+                return node;
+            }
+        }
+        return loader.load();
+    }
+
+    /**
+     * Loads and registers a node from the database for {@link #loadOnce}.
+     */
+    abstract static class NodeLoader {
+        abstract Node load() throws Exception;
+    }
+
+    /**
+     * A node load in progress, shared with threads waiting for its result.
+     */
+    static final class PendingLoad {
+        final Thread thread = Thread.currentThread();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean loaded;
+        volatile Node node;
+    }
+
     /**
      * Register a newly created node in the node cache unless it it is already contained.
      * If so, the previously registered node is kept and returned. Otherwise, the onInit()
@@ -348,18 +427,13 @@ public final class NodeManager {
             return node;
         }
 
-        synchronized(this.cache) {
-            Node old = (Node) this.cache.put(key, node);
+        Node cached = cacheNode(key, node);
 
-            if (old != null && !old.isNullNode() && old.getState() != NodeInterface.INVALID) {
-                this.cache.put(key, old);
-                if (secondaryKey != null) {
-                    this.cache.put(secondaryKey, old);
-                }
-                return old;
-            } else if (secondaryKey != null) {
-                this.cache.put(secondaryKey, node);
-            }
+        if (secondaryKey != null) {
+            this.cache.put(secondaryKey, cached);
+        }
+        if (cached != node) {
+            return cached;
         }
         // New node is going ot be used, invoke onInit() on it
         // Invoke onInit() if it is defined by this Node's prototype
@@ -373,6 +447,42 @@ public final class NodeManager {
         return node;
     }
 
+    /**
+     * Put a node into the node cache unless a valid node is already cached
+     * under the given key. With a ConcurrentCacheMap this doesn't lock the
+     * cache, and a cache hit doesn't write to the cache at all.
+     *
+     * @param key the key
+     * @param node the node
+     * @return the node now cached under the key
+     */
+    private Node cacheNode(KeyInterface key, Node node) {
+        if (this.cache instanceof ConcurrentCacheMap) {
+            ConcurrentCacheMap map = (ConcurrentCacheMap) this.cache;
+            while (true) {
+                Node old = (Node) map.putIfAbsent(key, node);
+                if (old == null || old == node) {
+                    return node;
+                } else if (!old.isNullNode() && old.getState() != NodeInterface.INVALID) {
+                    return old;
+                } else if (map.replace(key, old, node)) {
+                    return node;
+                }
+            }
+        }
+
+        synchronized (this.cache) {
+            Node old = (Node) this.cache.put(key, node);
+
+            if (old != null && old != node && !old.isNullNode() &&
+                    old.getState() != NodeInterface.INVALID) {
+                this.cache.put(key, old);
+                return old;
+            }
+            return node;
+        }
+    }
+
     /**
      * Register a node in the node cache.
      */
@@ -440,12 +550,29 @@ public final class NodeManager {
     public void insertNode(DatabaseInterface db, TransactionInterface txn, Node node)
                     throws IOException, SQLException, NoDriverException {
         invokeOnPersist(node);
+        insertNode(db, txn, node, null);
+    }
+
+    /**
+     *  Insert a new node in the embedded database or a relational database table,
+     *  depending on its db mapping, adding relational inserts to the given batch.
+     *  The caller must have invoked onPersist() on the node.
+     *
+     * @param batch the statement batch to add SQL statements to, or null to
+     *        execute them immediately
+     * @throws IOException
+     * @throws SQLException
+     * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+     */
+    void insertNode(DatabaseInterface db, TransactionInterface txn, Node node,
+                    StatementBatch batch)
+                    throws IOException, SQLException, NoDriverException {
         DbMapping dbm = node.getDbMapping();
 
         if ((dbm == null) || !dbm.isRelational()) {
             db.insertNode(txn, node.getID(), node);
         } else {
-            insertRelationalNode(node, dbm, dbm.getConnection());
+            insertRelationalNode(node, dbm, dbm.getConnection(), batch);
         }
     }
 
@@ -501,6 +628,21 @@ public final class NodeManager {
      */
     protected void insertRelationalNode(Node node, DbMapping dbm, Connection con)
                 throws NoDriverException, SQLException {
+        insertRelationalNode(node, dbm, con, null);
+    }
+
+    /**
+     * Insert a node into a relational database, adding the statement to
+     * the given batch.
+     *
+     * @param batch the statement batch to add the statement to, or null to
+     *        execute it immediately
+     * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+     * @throws SQLException
+     */
+    protected void insertRelationalNode(Node node, DbMapping dbm, Connection con,
+                                        StatementBatch batch)
+                throws NoDriverException, SQLException {
 
         if (con == null) {
             throw new NullPointerException(Messages.getString("NodeManager.7")); //$NON-NLS-1$
@@ -510,38 +652,20 @@ public final class NodeManager {
         if (con.isReadOnly() && !dbm.isSQLite()) con.setReadOnly(false);
 
         String insertString = dbm.getInsert();
-        PreparedStatement stmt = con.prepareStatement(insertString);
+        if (batch != null) {
+            PreparedStatement stmt = batch.prepare(dbm, con, insertString,
+                    "SQL INSERT", dbm.getTableName()); //$NON-NLS-1$
+            setInsertValues(stmt, node, dbm);
+            batch.add(stmt);
+            return;
+        }
 
-        // app.logEvent ("inserting relational node: " + node.getID ());
-        DbColumn[] columns = dbm.getColumns();
+        PreparedStatement stmt = con.prepareStatement(insertString);
 
         long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
 
         try {
-            int columnNumber = 1;
-
-            for (int i = 0; i < columns.length; i++) {
-                DbColumn col = columns[i];
-                if (!col.isMapped())
-                    continue;
-                if (col.isIdField()) {
-                    setStatementValue(stmt, columnNumber, node.getID(), col);
-                } else if (col.isPrototypeField()) {
-                    setStatementValue(stmt, columnNumber, dbm.getExtensionId(), col);
-                } else {
-                    Relation rel = col.getRelation();
-                    Property p = rel == null ? null : node.getProperty(rel.getPropName());
-
-                    if (p != null) {
-                        setStatementValue(stmt, columnNumber, p, col.getType());
-                    } else if (col.isNameField()) {
-                        stmt.setString(columnNumber, node.getName());
-                    } else {
-                        stmt.setNull(columnNumber, col.getType());
-                    }
-                }
-                columnNumber += 1;
-            }
+            setInsertValues(stmt, node, dbm);
             stmt.executeUpdate();
 
         } finally {
@@ -558,10 +682,77 @@ public final class NodeManager {
         }
     }
 
+    /**
+     * Set the column values of a node on an insert statement.
+     */
+    private void setInsertValues(PreparedStatement stmt, Node node, DbMapping dbm)
+                throws NoDriverException, SQLException {
+        // app.logEvent ("inserting relational node: " + node.getID ());
+        DbColumn[] columns = dbm.getColumns();
+
+        int columnNumber = 1;
+
+        for (int i = 0; i < columns.length; i++) {
+            DbColumn col = columns[i];
+            if (!col.isMapped())
+                continue;
+            if (col.isIdField()) {
+                setStatementValue(stmt, columnNumber, node.getID(), col);
+            } else if (col.isPrototypeField()) {
+                setStatementValue(stmt, columnNumber, dbm.getExtensionId(), col);
+            } else {
+                Relation rel = col.getRelation();
+                Property p = rel == null ? null : node.getProperty(rel.getPropName());
+
+                if (p != null) {
+                    setStatementValue(stmt, columnNumber, p, col.getType());
+                    // the value is stored now, so later updates needn't write it again
+                    p.dirty = false;
+                } else if (col.isNameField()) {
+                    stmt.setString(columnNumber, node.getName());
+                } else {
+                    stmt.setNull(columnNumber, col.getType());
+                }
+            }
+            columnNumber += 1;
+        }
+    }
+
+    /**
+     * Append a condition on the id field with a statement parameter for
+     * the id value.
+     *
+     * @param insertUpdate if the id field is to be qualified with the name of the
+     *        table used for insert/update operations instead of the select table
+     */
+    private void appendIdParameter(StringBuffer b, DbMapping dbm, boolean insertUpdate) {
+        String idField = dbm.getIDField();
+        if (insertUpdate && idField.indexOf('(') == -1 && idField.indexOf('.') == -1) {
+            b.append(dbm.getInsertUpdateTableName()).append('.');
+        }
+        b.append(idField).append(" = ?"); //$NON-NLS-1$
+    }
+
+    /**
+     * Set the id value for a condition added by appendIdParameter.
+     */
+    private void setIdParameter(PreparedStatement stmt, int stmtNumber, DbMapping dbm, String id)
+            throws SQLException, NoDriverException {
+        if (!dbm.needsQuotes(dbm.getIDField())) {
+            try {
+                stmt.setLong(stmtNumber, Long.parseLong(id));
+                return;
+            } catch (NumberFormatException x) {
+                // not an integer, let the driver convert the string
+            }
+        }
+        stmt.setString(stmtNumber, id);
+    }
+
     /**
      *  calls onPersist function for the HopObject
      */
-    private void invokeOnPersist(Node node) {
+    void invokeOnPersist(Node node) {
         try {
             // We need to reach deap into helma.framework.core to invoke onPersist(),
             // but the functionality is really worth it.
@@ -587,8 +778,28 @@ public final class NodeManager {
      */
     public boolean updateNode(DatabaseInterface db, TransactionInterface txn, Node node)
                     throws IOException, SQLException, NoDriverException {
-
         invokeOnPersist(node);
+        return updateNode(db, txn, node, null);
+    }
+
+    /**
+     *  Updates a modified node in the embedded db or an external relational database, depending
+     * on its database mapping, adding relational updates to the given batch.
+     * The caller must have invoked onPersist() on the node.
+     *
+     * @param batch the statement batch to add SQL statements to, or null to
+     *        execute them immediately
+     * @return true if the DbMapping of the updated Node is to be marked as updated via
+     *              DbMapping.setLastDataChange
+     *
+     * @throws IOException
+     * @throws SQLException
+     * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+     */
+    boolean updateNode(DatabaseInterface db, TransactionInterface txn, Node node,
+                       StatementBatch batch)
+                    throws IOException, SQLException, NoDriverException {
+
         DbMapping dbm = node.getDbMapping();
         boolean markMappingAsUpdated = false;
 
@@ -648,12 +859,15 @@ public final class NodeManager {
             }
 
             b.append(" WHERE "); //$NON-NLS-1$
-            dbm.appendCondition(b, dbm.getIDField(), node.getID(), true);
+            appendIdParameter(b, dbm, true);
 
             Connection con = dbm.getConnection();
             // set connection to write mode
             if (con.isReadOnly() && !dbm.isSQLite()) con.setReadOnly(false);
-            PreparedStatement stmt = con.prepareStatement(b.toString());
+            String updateString = b.toString();
+            PreparedStatement stmt = batch == null ?
+                    con.prepareStatement(updateString) :
+                    batch.prepare(dbm, con, updateString, "SQL UPDATE", dbm.getTableName()); //$NON-NLS-1$
 
             int stmtNumber = 0;
             long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
@@ -678,18 +892,26 @@ public final class NodeManager {
                     }
                 }
 
-                stmt.executeUpdate();
+                setIdParameter(stmt, stmtNumber + 1, dbm, node.getID());
 
-            } finally {
-                if (this.logSql) {
-                    long logTimeStop = System.currentTimeMillis();
-                    logSqlStatement("SQL UPDATE", dbm.getTableName(), //$NON-NLS-1$
-                                    logTimeStart, logTimeStop, b.toString());
+                if (batch != null) {
+                    batch.add(stmt);
+                } else {
+                    stmt.executeUpdate();
                 }
-                if (stmt != null) {
-                    try {
-                        stmt.close();
-                    } catch (Exception ignore) {
+
+            } finally {
+                if (batch == null) {
+                    if (this.logSql) {
+                        long logTimeStop = System.currentTimeMillis();
+                        logSqlStatement("SQL UPDATE", dbm.getTableName(), //$NON-NLS-1$
+                                        logTimeStart, logTimeStop, updateString);
+                    }
+                    if (stmt != null) {
+                        try {
+                            stmt.close();
+                        } catch (Exception ignore) {
+                        }
                     }
                 }
             }
@@ -714,36 +936,54 @@ public final class NodeManager {
      */
     public void deleteNode(DatabaseInterface db, TransactionInterface txn, Node node)
                     throws Exception {
+        deleteNode(db, txn, node, null);
+    }
+
+    /**
+     *  Performs the actual deletion of a node from either the embedded or an external
+     *  SQL database, adding relational deletes to the given batch.
+     *
+     * @param batch the statement batch to add SQL statements to, or null to
+     *        execute them immediately
+     */
+    public void deleteNode(DatabaseInterface db, TransactionInterface txn, Node node,
+                           StatementBatch batch)
+                    throws Exception {
         DbMapping dbm = node.getDbMapping();
 
         if ((dbm == null) || !dbm.isRelational()) {
             db.deleteNode(txn, node.getID());
         } else {
-            Statement st = null;
+            PreparedStatement st = null;
             long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
-            String str = new StringBuffer("DELETE FROM ").append(dbm.getTableName()) //$NON-NLS-1$
-                                                         .append(" WHERE ") //$NON-NLS-1$
-                                                         .append(dbm.getIDField())
-                                                         .append(" = ") //$NON-NLS-1$
-                                                         .append(node.getID())
-                                                         .toString();
+            StringBuffer b = new StringBuffer("DELETE FROM ").append(dbm.getTableName()) //$NON-NLS-1$
+                                                            .append(" WHERE "); //$NON-NLS-1$
+            appendIdParameter(b, dbm, false);
+            String str = b.toString();
 
             try {
                 Connection con = dbm.getConnection();
                 // set connection to write mode
                 if (con.isReadOnly() && !dbm.isSQLite()) con.setReadOnly(false);
 
-                st = con.createStatement();
-
-                st.executeUpdate(str);
+                if (batch != null) {
+                    PreparedStatement stmt = batch.prepare(dbm, con, str,
+                            "SQL DELETE", dbm.getTableName()); //$NON-NLS-1$
+                    setIdParameter(stmt, 1, dbm, node.getID());
+                    batch.add(stmt);
+                } else {
+                    st = con.prepareStatement(str);
+                    setIdParameter(st, 1, dbm, node.getID());
+                    st.executeUpdate();
+                }
 
             } finally {
-                if (this.logSql) {
-                    long logTimeStop = System.currentTimeMillis();
-                    logSqlStatement("SQL DELETE", dbm.getTableName(), //$NON-NLS-1$
-                                    logTimeStart, logTimeStop, str);
-                }
                 if (st != null) {
+                    if (this.logSql) {
+                        long logTimeStop = System.currentTimeMillis();
+                        logSqlStatement("SQL DELETE", dbm.getTableName(), //$NON-NLS-1$
+                                        logTimeStart, logTimeStop, str);
+                    }
                     try {
                         st.close();
                     } catch (Exception ignore) {
@@ -801,7 +1041,17 @@ public final class NodeManager {
      */
     synchronized String generateMaxID(DbMapping map)
                                       throws Exception {
-        String retval = null;
+        return Long.toString(map.getNewID(selectMaxID(map)));
+    }
+
+    /**
+     * Get the maximum ID currently stored in the table of a type.
+     *
+     * @param map the type
+     * @return the maximum ID, or 0 if the table is empty
+     */
+    long selectMaxID(DbMapping map) throws Exception {
+        long retval = 0;
         Statement stmt = null;
         long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
         String q = new StringBuffer("SELECT MAX(").append(map.getIDField()) //$NON-NLS-1$
@@ -819,15 +1069,8 @@ public final class NodeManager {
             ResultSet rs = stmt.executeQuery(q);
 
             // check for empty table
-            if (!rs.next()) {
-                long currMax = map.getNewID(0);
-
-                retval = Long.toString(currMax);
-            } else {
-                long currMax = rs.getLong(1);
-
-                currMax = map.getNewID(currMax);
-                retval = Long.toString(currMax);
+            if (rs.next()) {
+                retval = rs.getLong(1);
             }
         } finally {
             if (this.logSql) {
@@ -892,6 +1135,69 @@ public final class NodeManager {
         return retval;
     }
 
+    /**
+     * Reserve a block of values of the sequence of a type in one statement.
+     *
+     * @param map the type
+     * @param count the number of values to reserve
+     * @return the reserved values in ascending order
+     */
+    long[] generateSequenceIDs(DbMapping map, int count) throws Exception {
+        Statement stmt = null;
+        long[] retval = new long[count];
+        int size = 0;
+        long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
+        String q;
+        if (map.isOracle()) {
+            q = new StringBuffer("SELECT ").append(map.getIDgen()) //$NON-NLS-1$
+                    .append(".nextval FROM dual CONNECT BY LEVEL <= ").append(count).toString(); //$NON-NLS-1$
+        } else if (map.isPostgreSQL()) {
+            q = new StringBuffer("SELECT nextval('").append(map.getIDgen()) //$NON-NLS-1$
+                    .append("') FROM generate_series(1, ").append(count).append(")").toString(); //$NON-NLS-1$ //$NON-NLS-2$
+        } else if (map.isH2()) {
+            q = new StringBuffer("SELECT nextval('").append(map.getIDgen()) //$NON-NLS-1$
+                    .append("') FROM system_range(1, ").append(count).append(")").toString(); //$NON-NLS-1$ //$NON-NLS-2$
+        } else {
+            throw new RuntimeException(Messages.getString("NodeManager.9")); //$NON-NLS-1$
+        }
+
+        try {
+            Connection con = map.getConnection();
+            if (con.isReadOnly() && !map.isSQLite()) con.setReadOnly(false);
+
+            stmt = con.createStatement();
+
+            ResultSet rs = stmt.executeQuery(q);
+
+            while (size < count && rs.next()) {
+                retval[size++] = rs.getLong(1);
+            }
+            if (size == 0) {
+                throw new SQLException(Messages.getString("NodeManager.10")); //$NON-NLS-1$
+            }
+        } finally {
+            if (this.logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_NEXTVAL_BLOCK", map.getTableName(), //$NON-NLS-1$
+                                logTimeStart, logTimeStop, q);
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+
+        if (size < count) {
+            long[] values = new long[size];
+            System.arraycopy(retval, 0, values, 0, size);
+            retval = values;
+        }
+        Arrays.sort(retval);
+        return retval;
+    }
+
     /**
      *  Loades subnodes via subnode relation. Only the ID index is loaded, the nodes are
      *  loaded later on demand.
@@ -910,9 +1216,12 @@ public final class NodeManager {
         // set connection to read-only mode
         if (!con.isReadOnly() && !type.isSQLite()) con.setReadOnly(true);
 
+        StatementCache cache = type.getDbSource().getStatementCache(con);
         Statement stmt = null;
+        boolean reuse = false;
         long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
         String query = null;
+        QueryParameters params = rel.createParameters(home);
 
         try {
             StringBuffer b = rel.getIdSelect();
@@ -922,17 +1231,13 @@ public final class NodeManager {
                 query = b.append(" ").append(home.getSubnodeRelation()).toString(); //$NON-NLS-1$
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, true, false);
+                rel.buildQuery(b, home, true, false, params);
                 query = b.toString();
             }
 
-            stmt = con.createStatement();
-
-            if (rel.maxSize > 0) {
-                stmt.setMaxRows(rel.maxSize);
-            }
+            stmt = prepareQuery(cache, query, params, rel.maxSize);
 
-            ResultSet result = stmt.executeQuery(query);
+            ResultSet result = executeQuery(stmt, query, params);
 
             // problem: how do we derive a SyntheticKey from a not-yet-persistent Node?
             KeyInterface k = (rel.groupby != null) ? home.getKey() : null;
@@ -961,19 +1266,245 @@ public final class NodeManager {
                     }
                 }
             }
+            result.close();
+            reuse = true;
         } finally {
             if (this.logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_IDS", type.getTableName(), //$NON-NLS-1$
-                        logTimeStart, logTimeStop, query);
+                        logTimeStart, logTimeStop, describeQuery(query, params));
             }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
+            cache.release(query, stmt, reuse);
+        }
+
+        return retval;
+    }
+
+    /**
+     *  Get the greatest value of the refresh column in a collection with
+     *  incremental refresh mode, to be used as high water mark after the
+     *  collection was fetched.
+     *
+     * @return the greatest value, or null if the collection is empty
+     */
+    public Object getHighWaterMark(Node home, Relation rel) throws Exception {
+        Object[] result = getHighWaterMark(home, rel, rel.otherType);
+        return result[1];
+    }
+
+    /**
+     *  Get a page of the IDs of the nodes in a collection with keyset
+     *  pagination, starting after the node the given continuation token was
+     *  created for. One more node than requested is fetched to find out
+     *  whether there is a following page.
+     *
+     * @param home the node containing the collection
+     * @param rel the collection relation
+     * @param token the continuation token returned with the previous page,
+     *        or null for the first page
+     * @param length the maximal number of nodes on the page
+     * @return the page
+     */
+    public KeysetPage getKeysetPage(Node home, Relation rel, String token, int length)
+            throws Exception {
+        DbMapping type = rel == null ? null : rel.otherType;
+        if (type == null || !type.isRelational() || !rel.isKeysetPaginated() ||
+                home.getSubnodeRelation() != null) {
+            throw new RuntimeException(Messages.getString("NodeManager.23") + home); //$NON-NLS-1$
+        }
+        String[] after = token == null ? null : KeysetPage.parseToken(token);
+        boolean byId = rel.isKeysetById();
+        List retval = new ArrayList();
+        String next = null;
+
+        Connection con = type.getConnection();
+        // set connection to read-only mode
+        if (!con.isReadOnly() && !type.isSQLite()) con.setReadOnly(true);
+
+        StatementCache cache = type.getDbSource().getStatementCache(con);
+        Statement stmt = null;
+        boolean reuse = false;
+        long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
+        String query = null;
+        QueryParameters params = rel.createParameters(home);
+
+        try {
+            StringBuffer b = rel.getKeysetSelect();
+            rel.buildKeysetQuery(b, home, after, length + 1, params);
+            query = b.toString();
+
+            stmt = prepareQuery(cache, query, params, length + 1);
+
+            ResultSet result = executeQuery(stmt, query, params);
+            String lastKey = null;
+            String lastId = null;
+
+            while (result.next()) {
+                String kstr = result.getString(1);
+                if (kstr == null) {
+                    continue;
                 }
+                if (retval.size() == length) {
+                    next = KeysetPage.createToken(lastKey, lastId);
+                    break;
+                }
+                retval.add(new NodeHandle(new DbKey(type, kstr)));
+                lastId = kstr;
+                lastKey = byId ? kstr : result.getString(2);
+            }
+            result.close();
+            reuse = true;
+        } finally {
+            if (this.logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_IDS_KEYSET", type.getTableName(), //$NON-NLS-1$
+                        logTimeStart, logTimeStop, describeQuery(query, params));
+            }
+            cache.release(query, stmt, reuse);
+        }
+
+        return new KeysetPage(retval, next);
+    }
+
+    /**
+     *  Bring the subnode list of a collection with incremental refresh mode up
+     *  to date by fetching only the IDs of nodes added after the list's high
+     *  water mark and merging them into the list. Nodes in the list that are
+     *  also fetched are moved to the position given by the collection order.
+     *  If the number of nodes in the database doesn't match the number of
+     *  nodes in the merged list, nodes were removed or added with lower values
+     *  in the refresh column and the list is left unchanged.
+     *
+     * @return false if the list must be fetched completely
+     */
+    public boolean updateSubnodeList(Node home, Relation rel, SubnodeList list)
+            throws Exception {
+        DbMapping type = rel.otherType;
+        Object mark = list.highWaterMark;
+        if (mark == null) {
+            return false;
+        }
+
+        Object[] current = getHighWaterMark(home, rel, type);
+        int count = ((Number) current[0]).intValue();
+        if (count == list.list.size() && mark.equals(current[1])) {
+            // only nodes already in the list have changed
+            return true;
+        }
+
+        List added = new ArrayList();
+        Connection con = type.getConnection();
+        // set connection to read-only mode
+        if (!con.isReadOnly() && !type.isSQLite()) con.setReadOnly(true);
+
+        StatementCache cache = type.getDbSource().getStatementCache(con);
+        Statement stmt = null;
+        boolean reuse = false;
+        long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
+        String query = null;
+        QueryParameters params = rel.createParameters(home);
+
+        try {
+            StringBuffer b = rel.getIncrementalSelect();
+            rel.buildIncrementalQuery(b, home, mark, params);
+            query = b.toString();
+
+            stmt = prepareQuery(cache, query, params, 0);
+
+            ResultSet result = executeQuery(stmt, query, params);
+
+            while (result.next()) {
+                String kstr = result.getString(1);
+                if (kstr != null) {
+                    added.add(new NodeHandle(new DbKey(type, kstr)));
+                }
+                mark = result.getObject(2);
+            }
+            result.close();
+            reuse = true;
+        } finally {
+            if (this.logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_IDS_INCREMENTAL", type.getTableName(), //$NON-NLS-1$
+                        logTimeStart, logTimeStop, describeQuery(query, params));
+            }
+            cache.release(query, stmt, reuse);
+        }
+
+        // remove fetched nodes that are already in the list, e.g. because they
+        // were added to the collection by this application
+        HashSet addedKeys = new HashSet();
+        for (int i = 0; i < added.size(); i++) {
+            addedKeys.add(((NodeHandle) added.get(i)).getKey());
+        }
+        List merged = new ArrayList(list.list.size() + added.size());
+        if (rel.incrementalDescending) {
+            for (int i = added.size() - 1; i >= 0; i--) {
+                merged.add(added.get(i));
+            }
+        }
+        for (Iterator i = list.list.iterator(); i.hasNext();) {
+            NodeHandle handle = (NodeHandle) i.next();
+            KeyInterface key = handle.getKey();
+            if (key == null || !addedKeys.contains(key)) {
+                merged.add(handle);
             }
         }
+        if (!rel.incrementalDescending) {
+            merged.addAll(added);
+        }
+
+        if (merged.size() != count) {
+            return false;
+        }
+
+        list.list = merged;
+        list.highWaterMark = mark;
+        return true;
+    }
+
+    /**
+     * Get the number of nodes in a collection with incremental refresh mode
+     * and their greatest value in the refresh column.
+     */
+    private Object[] getHighWaterMark(Node home, Relation rel, DbMapping type)
+            throws Exception {
+        Connection con = type.getConnection();
+        // set connection to read-only mode
+        if (!con.isReadOnly() && !type.isSQLite()) con.setReadOnly(true);
+
+        StatementCache cache = type.getDbSource().getStatementCache(con);
+        Statement stmt = null;
+        boolean reuse = false;
+        long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
+        String query = null;
+        QueryParameters params = rel.createParameters(home);
+        Object[] retval = new Object[2];
+
+        try {
+            StringBuffer b = rel.getHighWaterMarkSelect();
+            rel.buildQuery(b, home, false, true, params);
+            query = b.toString();
+
+            stmt = prepareQuery(cache, query, params, 0);
+            ResultSet rs = executeQuery(stmt, query, params);
+
+            if (rs.next()) {
+                retval[0] = new Integer(rs.getInt(1));
+                retval[1] = rs.getObject(2);
+            } else {
+                retval[0] = new Integer(0);
+            }
+            rs.close();
+            reuse = true;
+        } finally {
+            if (this.logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_HIGHWATERMARK", type.getTableName(), //$NON-NLS-1$
+                        logTimeStart, logTimeStop, describeQuery(query, params));
+            }
+            cache.release(query, stmt, reuse);
+        }
 
         return retval;
     }
@@ -1000,10 +1531,13 @@ public final class NodeManager {
         // set connection to read-only mode
         if (!con.isReadOnly() && !dbm.isSQLite()) con.setReadOnly(true);
 
-        Statement stmt = con.createStatement();
+        StatementCache cache = dbm.getDbSource().getStatementCache(con);
+        Statement stmt = null;
+        boolean reuse = false;
         DbColumn[] columns = dbm.getColumns();
         Relation[] joins = dbm.getJoins();
         String query = null;
+        QueryParameters params = rel.createParameters(home);
         long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
 
         try {
@@ -1013,16 +1547,14 @@ public final class NodeManager {
                 b.append(home.getSubnodeRelation());
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, true, false);
+                rel.buildQuery(b, home, true, false, params);
             }
 
             query = b.toString();
 
-            if (rel.maxSize > 0) {
-                stmt.setMaxRows(rel.maxSize);
-            }
+            stmt = prepareQuery(cache, query, params, rel.maxSize);
 
-            ResultSet rs = stmt.executeQuery(query);
+            ResultSet rs = executeQuery(stmt, query, params);
 
             while (rs.next()) {
                 // re-get and re-cache the columns from the resultset
@@ -1041,19 +1573,16 @@ public final class NodeManager {
 
                 fetchJoinedNodes(rs, joins, columns.length);
             }
+            rs.close();
+            reuse = true;
 
         } finally {
             if (this.logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_ALL", dbm.getTableName(), //$NON-NLS-1$
-                        logTimeStart, logTimeStop, query);
-            }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                        logTimeStart, logTimeStop, describeQuery(query, params));
             }
+            cache.release(query, stmt, reuse);
         }
 
         return retval;
@@ -1090,10 +1619,13 @@ public final class NodeManager {
                 // set connection to read-only mode
                 if (!con.isReadOnly() && !dbm.isSQLite()) con.setReadOnly(true);
 
-                Statement stmt = con.createStatement();
+                StatementCache cache = dbm.getDbSource().getStatementCache(con);
+                Statement stmt = null;
+                boolean reuse = false;
                 DbColumn[] columns = dbm.getColumns();
                 Relation[] joins = dbm.getJoins();
                 String query = null;
+                QueryParameters params = rel.createParameters(home);
                 long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
 
                 try {
@@ -1101,11 +1633,11 @@ public final class NodeManager {
                     String idfield = (rel.groupby != null) ? rel.groupby : dbm.getIDField();
                     String[] ids = (String[]) missing.toArray(new String[missing.size()]);
 
-                    dbm.appendCondition(b, idfield, ids);
+                    dbm.appendCondition(b, idfield, ids, params);
                     dbm.addJoinConstraints(b, " AND "); //$NON-NLS-1$
 
                     if (rel.groupby != null) {
-                        rel.renderConstraints(b, home, " AND "); //$NON-NLS-1$
+                        rel.renderConstraints(b, home, " AND ", params); //$NON-NLS-1$
 
                         if (rel.order != null) {
                             b.append(" ORDER BY "); //$NON-NLS-1$
@@ -1115,7 +1647,9 @@ public final class NodeManager {
 
                     query = b.toString();
 
-                    ResultSet rs = stmt.executeQuery(query);
+                    stmt = prepareQuery(cache, query, params, 0);
+
+                    ResultSet rs = executeQuery(stmt, query, params);
 
                     String groupbyProp = null;
                     HashMap groupbySubnodes = null;
@@ -1186,6 +1720,8 @@ public final class NodeManager {
                         registerNewNode(node, secondaryKey);
                         fetchJoinedNodes(rs, joins, columns.length);
                     }
+                    rs.close();
+                    reuse = true;
 
                 } catch (Exception x) {
                     this.app.logError(Messages.getString("NodeManager.13"), x); //$NON-NLS-1$
@@ -1193,14 +1729,9 @@ public final class NodeManager {
                     if (this.logSql) {
                         long logTimeStop = System.currentTimeMillis();
                         logSqlStatement("SQL SELECT_PREFETCH", dbm.getTableName(), //$NON-NLS-1$
-                                        logTimeStart, logTimeStop, query);
-                    }
-                    if (stmt != null) {
-                        try {
-                            stmt.close();
-                        } catch (Exception ignore) {
-                        }
+                                        logTimeStart, logTimeStop, describeQuery(query, params));
                     }
+                    cache.release(query, stmt, reuse);
                 }
             }
         }
@@ -1221,9 +1752,12 @@ public final class NodeManager {
         // set connection to read-only mode
         if (!con.isReadOnly() && !type.isSQLite()) con.setReadOnly(true);
 
+        StatementCache cache = type.getDbSource().getStatementCache(con);
         Statement stmt = null;
+        boolean reuse = false;
         long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
         String query = null;
+        QueryParameters params = rel.createParameters(home);
 
         try {
             StringBuffer b = rel.getCountSelect();
@@ -1233,30 +1767,27 @@ public final class NodeManager {
                 query = b.append(" ").append(home.getSubnodeRelation()).toString(); //$NON-NLS-1$
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, false, true);
+                rel.buildQuery(b, home, false, true, params);
                 query = b.toString();
             }
 
-            stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery(query);
+            stmt = prepareQuery(cache, query, params, 0);
+            ResultSet rs = executeQuery(stmt, query, params);
 
             if (!rs.next()) {
                 retval = 0;
             } else {
                 retval = rs.getInt(1);
             }
+            rs.close();
+            reuse = true;
         } finally {
             if (this.logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_COUNT", type.getTableName(), //$NON-NLS-1$
-                        logTimeStart, logTimeStop, query);
-            }
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
+                        logTimeStart, logTimeStop, describeQuery(query, params));
             }
+            cache.release(query, stmt, reuse);
         }
 
         return (rel.maxSize > 0) ? Math.min(rel.maxSize, retval) : retval;
@@ -1278,9 +1809,12 @@ public final class NodeManager {
         // set connection to read-only mode
         if (!con.isReadOnly() && !type.isSQLite()) con.setReadOnly(true);
 
+        StatementCache cache = type.getDbSource().getStatementCache(con);
         Statement stmt = null;
+        boolean reuse = false;
         long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
         String query = null;
+        QueryParameters params = rel.createParameters(home);
 
         try {
             // NOTE: we explicitly convert tables StringBuffer to a String
@@ -1291,14 +1825,14 @@ public final class NodeManager {
                 b.append(" ").append(home.getSubnodeRelation()); //$NON-NLS-1$
             } else {
                 // let relation object build the query
-                rel.buildQuery(b, home, true, false);
+                rel.buildQuery(b, home, true, false, params);
             }
 
-            stmt = con.createStatement();
-
             query = b.toString();
 
-            ResultSet rs = stmt.executeQuery(query);
+            stmt = prepareQuery(cache, query, params, 0);
+
+            ResultSet rs = executeQuery(stmt, query, params);
 
             while (rs.next()) {
                 String n = rs.getString(1);
@@ -1307,19 +1841,16 @@ public final class NodeManager {
                     retval.add(n);
                 }
             }
+            rs.close();
+            reuse = true;
         } finally {
             if (this.logSql) {
                 long logTimeStop = System.currentTimeMillis();
                 logSqlStatement("SQL SELECT_ACCESSNAMES", type.getTableName(), //$NON-NLS-1$
-                        logTimeStart, logTimeStop, query);
+                        logTimeStart, logTimeStop, describeQuery(query, params));
             }
 
-            if (stmt != null) {
-                try {
-                    stmt.close();
-                } catch (Exception ignore) {
-                }
-            }
+            cache.release(query, stmt, reuse);
         }
 
         return retval;
@@ -1343,8 +1874,11 @@ public final class NodeManager {
         } else {
             String idfield = dbm.getIDField();
 
+            StatementCache cache = null;
             Statement stmt = null;
+            boolean reuse = false;
             String query = null;
+            QueryParameters params = new QueryParameters();
             long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
 
             try {
@@ -1352,19 +1886,23 @@ public final class NodeManager {
                 // set connection to read-only mode
                 if (!con.isReadOnly() && !dbm.isSQLite()) con.setReadOnly(true);
 
-                stmt = con.createStatement();
+                cache = dbm.getDbSource().getStatementCache(con);
 
                 DbColumn[] columns = dbm.getColumns();
                 Relation[] joins = dbm.getJoins();
 
                 StringBuffer b = dbm.getSelect(null).append("WHERE "); //$NON-NLS-1$
-                dbm.appendCondition(b, idfield, kstr);
+                dbm.appendCondition(b, idfield, kstr, false, params);
                 dbm.addJoinConstraints(b, " AND "); //$NON-NLS-1$
                 query = b.toString();
 
-                ResultSet rs = stmt.executeQuery(query);
+                stmt = prepareQuery(cache, query, params, 0);
+
+                ResultSet rs = executeQuery(stmt, query, params);
 
                 if (!rs.next()) {
+                    rs.close();
+                    reuse = true;
                     return null;
                 }
 
@@ -1376,20 +1914,18 @@ public final class NodeManager {
                 fetchJoinedNodes(rs, joins, columns.length);
 
                 if (rs.next()) {
-                    this.app.logError(Messages.getString("NodeManager.16") + query); //$NON-NLS-1$
+                    this.app.logError(Messages.getString("NodeManager.16") + describeQuery(query, params)); //$NON-NLS-1$
                 }
+                rs.close();
+                reuse = true;
             } finally {
                 if (this.logSql) {
                     long logTimeStop = System.currentTimeMillis();
                     logSqlStatement("SQL SELECT_BYKEY", dbm.getTableName(), //$NON-NLS-1$
-                                    logTimeStart, logTimeStop, query);
+                                    logTimeStart, logTimeStop, describeQuery(query, params));
                 }
-                if (stmt != null) {
-                    try {
-                        stmt.close();
-                    } catch (Exception ignore) {
-                        // ignore
-                    }
+                if (cache != null) {
+                    cache.release(query, stmt, reuse);
                 }
             }
         }
@@ -1423,21 +1959,25 @@ public final class NodeManager {
             node.setDbMapping(dbm);
             return node;
         } else {
+            StatementCache cache = null;
             Statement stmt = null;
+            boolean reuse = false;
             String query = null;
+            QueryParameters params = rel.createParameters(home);
             long logTimeStart = this.logSql ? System.currentTimeMillis() : 0;
 
             try {
                 Connection con = dbm.getConnection();
                 // set connection to read-only mode
                 if (!con.isReadOnly() && !dbm.isSQLite()) con.setReadOnly(true);
+                cache = dbm.getDbSource().getStatementCache(con);
                 Relation[] joins = dbm.getJoins();
                 StringBuffer b = dbm.getSelect(rel);
 
                 if (home.getSubnodeRelation() != null && !rel.isComplexReference()) {
                     // combine our key with the constraints in the manually set subnode relation
                     b.append(" WHERE "); //$NON-NLS-1$
-                    dbm.appendCondition(b, rel.accessName, kstr);
+                    dbm.appendCondition(b, rel.accessName, kstr, false, params);
                     // add join contraints in case this is an old oracle style join
                     dbm.addJoinConstraints(b, " AND "); //$NON-NLS-1$
                     // add potential constraints from manually set subnodeRelation
@@ -1448,16 +1988,18 @@ public final class NodeManager {
                         b.append(")"); //$NON-NLS-1$
                     }
                 } else {
-                    rel.buildQuery(b, home, dbm, kstr, false, false);
+                    rel.buildQuery(b, home, dbm, kstr, false, false, params);
                 }
 
-                stmt = con.createStatement();
-
                 query = b.toString();
 
-                ResultSet rs = stmt.executeQuery(query);
+                stmt = prepareQuery(cache, query, params, 0);
+
+                ResultSet rs = executeQuery(stmt, query, params);
 
                 if (!rs.next()) {
+                    rs.close();
+                    reuse = true;
                     return null;
                 }
 
@@ -1469,21 +2011,19 @@ public final class NodeManager {
                 fetchJoinedNodes(rs, joins, columns.length);
 
                 if (rs.next()) {
-                    this.app.logError(Messages.getString("NodeManager.17") + query); //$NON-NLS-1$
+                    this.app.logError(Messages.getString("NodeManager.17") + describeQuery(query, params)); //$NON-NLS-1$
                 }
+                rs.close();
+                reuse = true;
 
             } finally {
                 if (this.logSql) {
                     long logTimeStop = System.currentTimeMillis();
                     logSqlStatement("SQL SELECT_BYRELATION", dbm.getTableName(), //$NON-NLS-1$
-                                    logTimeStart, logTimeStop, query);
+                                    logTimeStart, logTimeStop, describeQuery(query, params));
                 }
-                if (stmt != null) {
-                    try {
-                        stmt.close();
-                    } catch (Exception ignore) {
-                        // ignore
-                    }
+                if (cache != null) {
+                    cache.release(query, stmt, reuse);
                 }
             }
         }
@@ -1491,6 +2031,58 @@ public final class NodeManager {
         return node;
     }
 
+    /**
+     * Get a prepared statement for a query from the statement cache of its
+     * connection and set its parameters, or create a plain statement if the
+     * query has no parameters because its values were rendered as literals.
+     *
+     * @param params the parameters, or null if the query has no parameters
+     * @param maxRows the maximal number of rows to return, or 0 for no limit
+     */
+    private Statement prepareQuery(StatementCache cache, String query,
+                                   QueryParameters params, int maxRows)
+            throws SQLException {
+        Statement stmt;
+        if (params == null) {
+            stmt = cache.createStatement();
+        } else {
+            stmt = cache.prepare(query);
+        }
+        try {
+            if (params != null) {
+                params.bind((PreparedStatement) stmt);
+            }
+            stmt.setMaxRows(Math.max(0, maxRows));
+        } catch (SQLException x) {
+            cache.release(query, stmt, false);
+            throw x;
+        }
+        return stmt;
+    }
+
+    /**
+     * Execute a query obtained from prepareQuery().
+     *
+     * @param params the parameters, or null if the query has no parameters
+     */
+    private static ResultSet executeQuery(Statement stmt, String query, QueryParameters params)
+            throws SQLException {
+        if (params == null) {
+            return stmt.executeQuery(query);
+        }
+        return ((PreparedStatement) stmt).executeQuery();
+    }
+
+    /**
+     * Describe a query and its parameter values for logging.
+     */
+    private static String describeQuery(String query, QueryParameters params) {
+        if (query == null || params == null || params.size() == 0) {
+            return query;
+        }
+        return query + " " + params; //$NON-NLS-1$
+    }
+
     /**
      *  Create a new Node from a ResultSet.
      *
@@ -1749,6 +2341,20 @@ public final class NodeManager {
         return this.app.getDbMapping(protoname);
     }
 
+    /**
+     * Get a node from the object cache without fetching it from the database.
+     *
+     * @param key the node's key
+     * @return the cached node, or null if it isn't cached
+     */
+    public Node getCachedNode(KeyInterface key) {
+        Node node = (Node) this.cache.get(key);
+        if (node == null || node.getState() == NodeInterface.INVALID) {
+            return null;
+        }
+        return node;
+    }
+
     /**
      *  Get an array of the the keys currently held in the object cache
      */
@@ -1776,7 +2382,9 @@ public final class NodeManager {
      * Returns a map with statistics about the cache
      */
     public Map getCacheStatistics() {
-        return cache.getStatistics();
+        Map stats = new HashMap(cache.getStatistics());
+        stats.put("coalescedLoads", new Long(this.coalescedLoads.get())); //$NON-NLS-1$
+        return stats;
     }
 
     /**
@@ -1924,7 +2532,7 @@ public final class NodeManager {
         }
     }
 
-    private void logSqlStatement(String type, String table,
+    void logSqlStatement(String type, String table,
                                  long logTimeStart, long logTimeStop, String statement) {
         // init sql-log if necessary
         if (this.sqlLog == null) {
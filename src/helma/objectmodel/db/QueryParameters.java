@@ -0,0 +1,169 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.objectmodel.db;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+
+/**
+ * The bind values of a parameterized SQL query, collected while the query is
+ * rendered. Only values of variable length character and numeric columns are
+ * passed as parameters, other values are still rendered into the query as
+ * literals, so the database doesn't have to convert between types. Values of
+ * fixed length CHAR columns stay literals too, since some databases compare
+ * them with string parameters without blank-padding.
+ */
+public class QueryParameters {
+
+    private final ArrayList values = new ArrayList();
+
+    /**
+     * Append a placeholder for the given value to the query and remember the
+     * value, if values of the column can be passed as parameter.
+     *
+     * @param q the query
+     * @param col the column compared to the value, or null if not known
+     * @param value the value
+     * @return false if the value must be rendered as literal
+     */
+    boolean append(StringBuffer q, DbColumn col, String value) {
+        if (col == null || value == null || !isSupported(col)) {
+            return false;
+        }
+        if (isNumeric(col.getType())) {
+            String number = DbMapping.checkNumber(value);
+            try {
+                this.values.add(Long.valueOf(number));
+            } catch (NumberFormatException x) {
+                // decimal or too large for a long
+                this.values.add(new BigDecimal(number));
+            }
+        } else {
+            this.values.add(value);
+        }
+        q.append('?');
+        return true;
+    }
+
+    /**
+     * Append a placeholder for a value obtained from a result set to the
+     * query and remember the value, so that it is passed to the database
+     * with the type it was read with.
+     *
+     * @param q the query
+     * @param value the value
+     */
+    void append(StringBuffer q, Object value) {
+        this.values.add(value);
+        q.append('?');
+    }
+
+    /**
+     * Render a value obtained from a result set into a query as literal, for
+     * queries that can't be prepared. Dates and times are rendered as JDBC
+     * escapes, which the driver translates into the syntax of the database.
+     *
+     * @param q the query
+     * @param value the value
+     */
+    static void appendLiteral(StringBuffer q, Object value) {
+        if (value == null) {
+            q.append("NULL"); //$NON-NLS-1$
+        } else if (value instanceof Number) {
+            q.append(new BigDecimal(value.toString()).toPlainString());
+        } else if (value instanceof Timestamp) {
+            q.append("{ts '").append(value).append("'}"); //$NON-NLS-1$ //$NON-NLS-2$
+        } else if (value instanceof Date) {
+            q.append("{d '").append(value).append("'}"); //$NON-NLS-1$ //$NON-NLS-2$
+        } else if (value instanceof Time) {
+            q.append("{t '").append(value).append("'}"); //$NON-NLS-1$ //$NON-NLS-2$
+        } else {
+            q.append("'").append(DbMapping.escapeString(value)).append("'"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * Check if values compared with a column can be passed as parameters.
+     *
+     * @param col the column
+     * @return true for variable length character and numeric columns
+     */
+    static boolean isSupported(DbColumn col) {
+        switch (col.getType()) {
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+                return true;
+            default:
+                return isNumeric(col.getType());
+        }
+    }
+
+    private static boolean isNumeric(int type) {
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Set the parameter values on a prepared statement.
+     *
+     * @param stmt the statement
+     * @throws SQLException if a value couldn't be set
+     */
+    public void bind(PreparedStatement stmt) throws SQLException {
+        for (int i = 0; i < this.values.size(); i++) {
+            Object value = this.values.get(i);
+            if (value instanceof Long) {
+                stmt.setLong(i + 1, ((Long) value).longValue());
+            } else if (value instanceof BigDecimal) {
+                stmt.setBigDecimal(i + 1, (BigDecimal) value);
+            } else if (value instanceof String) {
+                stmt.setString(i + 1, (String) value);
+            } else {
+                stmt.setObject(i + 1, value);
+            }
+        }
+    }
+
+    /**
+     * Get the number of parameters.
+     *
+     * @return the number of parameters
+     */
+    public int size() {
+        return this.values.size();
+    }
+
+    /**
+     * Returns the parameter values, e.g. for logging queries.
+     */
+    @Override
+    public String toString() {
+        return this.values.toString();
+    }
+}
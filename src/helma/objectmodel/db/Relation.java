@@ -17,6 +17,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 import helma.framework.core.Application;
 import helma.objectmodel.NodeInterface;
@@ -78,6 +79,8 @@ public final class Relation {
     boolean virtual;
     boolean readonly;
     boolean lazyLoading;
+    // number of nodes loaded at once by lazily loaded collections, 0 for the default
+    int segmentSize = 0;
     boolean aggressiveLoading;
     boolean aggressiveCaching;
     boolean isPrivate = false;
@@ -98,6 +101,17 @@ public final class Relation {
     Vector filterPropertyRefs;
     int maxSize = 0;
     int offset = 0;
+    // column used to refresh collections incrementally, or null
+    String incrementalColumn;
+    boolean incrementalDescending;
+    // column used for keyset pagination, or null
+    String keysetColumn;
+    boolean keysetDescending;
+
+    // number of collection accesses served from the cached subnode list and
+    // number of accesses that had to fetch it, shared with derived relations
+    AtomicLong cacheHits = new AtomicLong();
+    AtomicLong cacheMisses = new AtomicLong();
 
     /**
      * This constructor makes a copy of an existing relation. Not all fields are copied, just those
@@ -125,10 +139,17 @@ public final class Relation {
         this.accessName =               rel.accessName;
         this.logicalOperator =          rel.logicalOperator;
         this.lazyLoading =              rel.lazyLoading;
+        this.segmentSize =              rel.segmentSize;
         this.aggressiveLoading =        rel.aggressiveLoading;
         this.aggressiveCaching =        rel.aggressiveCaching;
         this.updateCriteria =           rel.updateCriteria;
         this.autoSorted =               rel.autoSorted;
+        this.incrementalColumn =        rel.incrementalColumn;
+        this.incrementalDescending =    rel.incrementalDescending;
+        this.keysetColumn =             rel.keysetColumn;
+        this.keysetDescending =         rel.keysetDescending;
+        this.cacheHits =                rel.cacheHits;
+        this.cacheMisses =              rel.cacheMisses;
     }
 
     /**
@@ -309,6 +330,9 @@ public final class Relation {
             this.aggressiveLoading = this.lazyLoading = false;
         }
 
+        // get segment size of lazily loaded collections
+        this.segmentSize = Math.max(0, getIntegerProperty("segmentSize", props, 0)); //$NON-NLS-1$
+
         String caching = props.getProperty("cachemode"); //$NON-NLS-1$
 
         this.aggressiveCaching = (caching != null) &&
@@ -453,6 +477,127 @@ public final class Relation {
             this.logicalOperator = AND;
         }
 
+        parseRefreshMode(props);
+        parsePagination(props);
+    }
+
+    /**
+     * Parse the refreshmode property. Collections with refreshmode = incremental
+     * are refreshed by fetching only the nodes whose value in the column given
+     * by refreshmode.column (the id column by default) is greater than the
+     * greatest value already fetched. This requires the column's values to
+     * increase with each new node and not to change afterwards, and the
+     * collection to be ordered by that column, if at all.
+     */
+    private void parseRefreshMode(Properties props) {
+        this.incrementalColumn = null;
+        this.incrementalDescending = false;
+
+        String refresh = props.getProperty("refreshmode"); //$NON-NLS-1$
+        if (refresh == null || "full".equalsIgnoreCase(refresh.trim())) { //$NON-NLS-1$
+            return;
+        }
+        if (!"incremental".equalsIgnoreCase(refresh.trim())) { //$NON-NLS-1$
+            System.err.println(Messages.getString("Relation.20") + this.ownType + Messages.getString("Relation.5") + refresh); //$NON-NLS-1$ //$NON-NLS-2$
+            return;
+        }
+
+        String column = props.getProperty("refreshmode.column"); //$NON-NLS-1$
+        if (column == null || column.trim().length() == 0) {
+            column = this.otherType.getIDField();
+        }
+        column = column.trim();
+
+        boolean descending = false;
+        if (this.order != null) {
+            String[] parts = StringUtils.split(this.order.trim(), " \t"); //$NON-NLS-1$
+            String orderColumn = parts.length > 0 ? parts[0] : ""; //$NON-NLS-1$
+            orderColumn = orderColumn.substring(orderColumn.lastIndexOf('.') + 1);
+            descending = parts.length == 2 && "desc".equalsIgnoreCase(parts[1]); //$NON-NLS-1$
+            if (!orderColumn.equalsIgnoreCase(column.substring(column.lastIndexOf('.') + 1)) ||
+                    parts.length > 2 || (parts.length == 2 && !descending &&
+                    !"asc".equalsIgnoreCase(parts[1]))) { //$NON-NLS-1$
+                System.err.println(Messages.getString("Relation.21") + this.ownType + //$NON-NLS-1$
+                        Messages.getString("Relation.5") + this.propName); //$NON-NLS-1$
+                return;
+            }
+        }
+
+        if (this.groupby != null || this.maxSize > 0 || this.offset > 0) {
+            System.err.println(Messages.getString("Relation.22") + this.ownType + //$NON-NLS-1$
+                    Messages.getString("Relation.5") + this.propName); //$NON-NLS-1$
+            return;
+        }
+
+        this.incrementalColumn = column;
+        this.incrementalDescending = descending;
+    }
+
+    /**
+     * Parse the pagination property. Pages of collections with
+     * pagination = keyset are fetched by HopObject.listPage() starting after
+     * the order key of the last node of the previous page, rather than by
+     * skipping an offset, so that fetching a deep page is as cheap as fetching
+     * the first one. This requires the collection to be ordered by a single
+     * column, if at all. If the order column is not the id column, the id is
+     * used to order nodes with equal keys, and nodes with a null order key
+     * are left out of the pages, since databases disagree on where nulls sort.
+     */
+    private void parsePagination(Properties props) {
+        this.keysetColumn = null;
+        this.keysetDescending = false;
+
+        String pagination = props.getProperty("pagination"); //$NON-NLS-1$
+        if (pagination == null || "offset".equalsIgnoreCase(pagination.trim())) { //$NON-NLS-1$
+            return;
+        }
+        if (!"keyset".equalsIgnoreCase(pagination.trim())) { //$NON-NLS-1$
+            System.err.println(Messages.getString("Relation.23") + this.ownType + Messages.getString("Relation.5") + pagination); //$NON-NLS-1$ //$NON-NLS-2$
+            return;
+        }
+
+        String column = this.otherType.getIDField();
+        boolean descending = false;
+        if (this.order != null) {
+            String[] parts = StringUtils.split(this.order.trim(), " \t"); //$NON-NLS-1$
+            descending = parts.length == 2 && "desc".equalsIgnoreCase(parts[1]); //$NON-NLS-1$
+            if (parts.length == 0 || parts.length > 2 || parts[0].indexOf(',') > -1 ||
+                    parts[0].indexOf('(') > -1 || (parts.length == 2 && !descending &&
+                    !"asc".equalsIgnoreCase(parts[1]))) { //$NON-NLS-1$
+                System.err.println(Messages.getString("Relation.24") + this.ownType + //$NON-NLS-1$
+                        Messages.getString("Relation.5") + this.propName); //$NON-NLS-1$
+                return;
+            }
+            column = parts[0].substring(parts[0].lastIndexOf('.') + 1);
+        }
+
+        if (this.groupby != null || this.maxSize > 0 || this.offset > 0) {
+            System.err.println(Messages.getString("Relation.25") + this.ownType + //$NON-NLS-1$
+                    Messages.getString("Relation.5") + this.propName); //$NON-NLS-1$
+            return;
+        }
+
+        this.keysetColumn = column;
+        this.keysetDescending = descending;
+    }
+
+    /**
+     * Check if pages of collections defined by this relation are fetched by
+     * keyset pagination.
+     *
+     * @return true if pagination is set to keyset
+     */
+    public boolean isKeysetPaginated() {
+        return this.keysetColumn != null;
+    }
+
+    /**
+     * Check if collections defined by this relation are refreshed incrementally.
+     *
+     * @return true if refreshmode is set to incremental
+     */
+    public boolean isIncremental() {
+        return this.incrementalColumn != null;
     }
 
     private int getIntegerProperty(String name, Properties props, int defaultValue) {
@@ -507,6 +652,78 @@ public final class Relation {
         return this.reftype == PRIMITIVE;
     }
 
+    /**
+     * Get a number that changes whenever the collection of the given home node
+     * defined by this relation may have changed. If the relation has a column
+     * all child rows must have the home node's value in, only changes of rows
+     * with that value are taken into account, otherwise changes of any row of
+     * the other type are.
+     *
+     * @param home the home node of the collection
+     * @return a change counter
+     */
+    long getLastDataChange(Node home) {
+        Constraint constraint = getPartitionConstraint();
+        if (constraint != null && home.getSubnodeRelation() == null) {
+            try {
+                String value = constraint.getLocalValue(home, home.getNonVirtualParent());
+                return this.otherType.getDataPartitions().getLastChange(
+                        constraint.getForeignColumn(this.otherType), value);
+            } catch (SQLException x) {
+                // fall back to changes of the whole type
+            }
+        }
+        return this.otherType.getLastDataChange();
+    }
+
+    /**
+     * Get the constraint whose foreign column partitions the rows of the other
+     * type's table, or null if the rows of a collection can't be attributed to
+     * a single column value, e.g. because the constraints are combined with OR
+     * or additional tables are joined.
+     */
+    private Constraint getPartitionConstraint() {
+        if (this.constraints == null || this.additionalTables != null ||
+                this.otherType == null || !this.otherType.isRelational() ||
+                (this.constraints.length > 1 && this.logicalOperator != AND)) {
+            return null;
+        }
+        for (int i = 0; i < this.constraints.length; i++) {
+            if (!this.constraints[i].foreignKeyIsPrototype()) {
+                return this.constraints[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record a collection access for the cache statistics.
+     *
+     * @param hit true if the cached subnode list could be used
+     */
+    void countCacheAccess(boolean hit) {
+        if (hit) {
+            this.cacheHits.incrementAndGet();
+        } else {
+            this.cacheMisses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the cache statistics of the collections defined by this relation.
+     *
+     * @return a map containing the number of hits and misses and the hit ratio
+     */
+    public Map getCacheStatistics() {
+        long hits = this.cacheHits.get();
+        long misses = this.cacheMisses.get();
+        Map stats = new HashMap();
+        stats.put("hits", new Long(hits)); //$NON-NLS-1$
+        stats.put("misses", new Long(misses)); //$NON-NLS-1$
+        stats.put("ratio", new Double(hits + misses == 0 ? 0d : (double) hits / (hits + misses))); //$NON-NLS-1$
+        return stats;
+    }
+
     /**
      *  Returns true if this Relation describes an object reference property
      */
@@ -914,6 +1131,156 @@ public final class Relation {
         return buf;
     }
 
+    /**
+     * Get the select clause of the query for the number of nodes in a
+     * collection with incremental refresh mode and their greatest value
+     * in the refresh column.
+     */
+    StringBuffer getHighWaterMarkSelect() {
+        StringBuffer buf = new StringBuffer("SELECT count(*), MAX("); //$NON-NLS-1$
+        buf.append(getIncrementalColumn()).append(") FROM "); //$NON-NLS-1$
+        buf.append(this.otherType.getTableName());
+        appendAdditionalTables(buf);
+        return buf;
+    }
+
+    /**
+     * Get the select clause of the query for the ids and refresh column
+     * values of nodes added to a collection with incremental refresh mode.
+     */
+    StringBuffer getIncrementalSelect() {
+        StringBuffer buf = getIdSelect();
+        int from = buf.lastIndexOf(" FROM "); //$NON-NLS-1$
+        buf.insert(from, ", " + getIncrementalColumn()); //$NON-NLS-1$
+        return buf;
+    }
+
+    /**
+     * Build the conditions of the query for the nodes added to a collection
+     * with incremental refresh mode after the given high water mark, ordered
+     * by their value in the refresh column.
+     *
+     * @param q the query string
+     * @param home our home node
+     * @param mark the greatest value of the refresh column fetched so far
+     * @param params the parameters to add values to, or null to render values as literals
+     *
+     * @throws SQLException sql related exception
+     * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+     */
+    void buildIncrementalQuery(StringBuffer q, Node home, Object mark, QueryParameters params)
+            throws SQLException, NoDriverException {
+        String column = getIncrementalColumn();
+        q.append(" WHERE ").append(column).append(" > "); //$NON-NLS-1$ //$NON-NLS-2$
+        if (params != null) {
+            params.append(q, mark);
+        } else {
+            QueryParameters.appendLiteral(q, mark);
+        }
+        renderConstraints(q, home, home.getNonVirtualParent(), this.otherType, " AND ", params); //$NON-NLS-1$
+        q.append(" ORDER BY ").append(column); //$NON-NLS-1$
+    }
+
+    /**
+     * Get the select clause of the query for a page of a collection with
+     * keyset pagination, selecting the ids and, if different from the ids,
+     * the order column values of the nodes.
+     */
+    StringBuffer getKeysetSelect() {
+        StringBuffer buf = getIdSelect();
+        if (!isKeysetById()) {
+            int from = buf.lastIndexOf(" FROM "); //$NON-NLS-1$
+            buf.insert(from, ", " + qualify(this.keysetColumn)); //$NON-NLS-1$
+        }
+        return buf;
+    }
+
+    /**
+     * Build the conditions, order and limit of the query for a page of a
+     * collection with keyset pagination.
+     *
+     * @param q the query string
+     * @param home our home node
+     * @param after the order key and id of the last node of the previous
+     *        page, or null for the first page
+     * @param limit the maximal number of nodes to fetch
+     * @param params the parameters to add values to, or null to render values as literals
+     *
+     * @throws SQLException sql related exception
+     * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+     */
+    void buildKeysetQuery(StringBuffer q, Node home, String[] after, int limit,
+                          QueryParameters params)
+            throws SQLException, NoDriverException {
+        String prefix = " WHERE "; //$NON-NLS-1$
+        String comparison = this.keysetDescending ? " < " : " > "; //$NON-NLS-1$ //$NON-NLS-2$
+        String key = qualify(this.keysetColumn);
+        String id = qualify(this.otherType.getIDField());
+
+        if (!isKeysetById()) {
+            q.append(prefix).append(key).append(" IS NOT NULL"); //$NON-NLS-1$
+            prefix = " AND "; //$NON-NLS-1$
+        }
+
+        if (after != null) {
+            q.append(prefix);
+            if (isKeysetById()) {
+                q.append(id).append(comparison);
+                this.otherType.appendValue(q, this.otherType.getIDField(), after[1], params);
+            } else {
+                // nodes with a greater key, or with the same key and a greater id
+                q.append("(").append(key).append(comparison); //$NON-NLS-1$
+                this.otherType.appendValue(q, this.keysetColumn, after[0], params);
+                q.append(" OR (").append(key).append(" = "); //$NON-NLS-1$ //$NON-NLS-2$
+                this.otherType.appendValue(q, this.keysetColumn, after[0], params);
+                q.append(" AND ").append(id).append(comparison); //$NON-NLS-1$
+                this.otherType.appendValue(q, this.otherType.getIDField(), after[1], params);
+                q.append("))"); //$NON-NLS-1$
+            }
+            prefix = " AND "; //$NON-NLS-1$
+        }
+
+        renderConstraints(q, home, home.getNonVirtualParent(), this.otherType, prefix, params);
+        this.ownType.addJoinConstraints(q, prefix);
+
+        String direction = this.keysetDescending ? " DESC" : ""; //$NON-NLS-1$ //$NON-NLS-2$
+        q.append(" ORDER BY ").append(key).append(direction); //$NON-NLS-1$
+        if (!isKeysetById()) {
+            q.append(", ").append(id).append(direction); //$NON-NLS-1$
+        }
+
+        if (this.otherType.isOracle()) {
+            q.insert(0, "SELECT /*+ FIRST_ROWS(n) */ * FROM ("); //$NON-NLS-1$
+            q.append(") WHERE ROWNUM <= ").append(limit); //$NON-NLS-1$
+        } else {
+            q.append(" LIMIT ").append(limit); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Check if the keyset pagination column is the id column.
+     */
+    boolean isKeysetById() {
+        return this.keysetColumn.equalsIgnoreCase(this.otherType.getIDField());
+    }
+
+    /**
+     * Get a column qualified with the table name, if necessary.
+     */
+    private String qualify(String column) {
+        if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
+            return this.otherType.getTableName() + "." + column; //$NON-NLS-1$
+        }
+        return column;
+    }
+
+    /**
+     * Get the refresh column qualified with the table name, if necessary.
+     */
+    private String getIncrementalColumn() {
+        return qualify(this.incrementalColumn);
+    }
+
     public StringBuffer getCountSelect() {
         StringBuffer buf = new StringBuffer("SELECT "); //$NON-NLS-1$
         if (this.otherType.isOracle() && this.maxSize > 0) {
@@ -953,7 +1320,59 @@ public final class Relation {
      */
     public void buildQuery(StringBuffer q, Node home, boolean useOrder, boolean isCount)
             throws SQLException, NoDriverException {
-        buildQuery(q, home, this.otherType, null, useOrder, isCount);
+        buildQuery(q, home, this.otherType, null, useOrder, isCount, null);
+    }
+
+    /**
+     * Create the parameters for a query of this relation. Returns null if the
+     * values must be rendered as literals because SQL of the application, i.e.
+     * the subnode relation, filter, order or additional tables, contains
+     * question marks of its own, which a prepared statement would take for
+     * parameters.
+     *
+     * @param home our home node
+     * @return the parameters, or null to render values as literals
+     */
+    QueryParameters createParameters(Node home) {
+        if (containsQuestionMark(home.getSubnodeRelation()) ||
+                containsQuestionMark(this.order) ||
+                containsQuestionMark(this.groupbyOrder) ||
+                containsQuestionMark(this.additionalTables)) {
+            return null;
+        }
+        if (this.filter != null) {
+            if (this.filterFragments == null) {
+                if (containsQuestionMark(this.filter)) {
+                    return null;
+                }
+            } else if (home.getNonVirtualParent() != null) {
+                // property values are rendered into the filter
+                StringBuffer b = new StringBuffer();
+                appendFilter(b, home.getNonVirtualParent(), ""); //$NON-NLS-1$
+                if (b.indexOf("?") > -1) { //$NON-NLS-1$
+                    return null;
+                }
+            }
+        }
+        return new QueryParameters();
+    }
+
+    private static boolean containsQuestionMark(String sql) {
+        return sql != null && sql.indexOf('?') > -1;
+    }
+
+    /**
+     *  Build the second half of an SQL select statement according to this relation
+     *  and a local object, passing values as statement parameters where possible.
+     *
+     * @param params the parameters to add values to, or null to render values as literals
+     * @throws SQLException
+     * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+     */
+    public void buildQuery(StringBuffer q, Node home, boolean useOrder, boolean isCount,
+                           QueryParameters params)
+            throws SQLException, NoDriverException {
+        buildQuery(q, home, this.otherType, null, useOrder, isCount, params);
     }
 
     /**
@@ -966,6 +1385,20 @@ public final class Relation {
     public void buildQuery(StringBuffer q, Node home, DbMapping otherDbm, String kstr,
                            boolean useOrder, boolean isCount)
             throws SQLException, NoDriverException {
+        buildQuery(q, home, otherDbm, kstr, useOrder, isCount, null);
+    }
+
+    /**
+     *  Build the second half of an SQL select statement according to this relation
+     *  and a local object, passing values as statement parameters where possible.
+     *
+     * @param params the parameters to add values to, or null to render values as literals
+     * @throws SQLException
+     * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+     */
+    public void buildQuery(StringBuffer q, Node home, DbMapping otherDbm, String kstr,
+                           boolean useOrder, boolean isCount, QueryParameters params)
+            throws SQLException, NoDriverException {
         String prefix = " WHERE "; //$NON-NLS-1$
         Node nonvirtual = home.getNonVirtualParent();
 
@@ -974,13 +1407,13 @@ public final class Relation {
 
             String accessColumn = (this.accessName == null) ?
                     otherDbm.getIDField() : this.accessName;
-            otherDbm.appendCondition(q, accessColumn, kstr);
+            otherDbm.appendCondition(q, accessColumn, kstr, false, params);
 
             prefix = " AND "; //$NON-NLS-1$
         }
 
         // render the constraints and filter
-        renderConstraints(q, home, nonvirtual, otherDbm, prefix);
+        renderConstraints(q, home, nonvirtual, otherDbm, prefix, params);
 
         // add joined fetch constraints
         this.ownType.addJoinConstraints(q, prefix);
@@ -1085,7 +1518,24 @@ public final class Relation {
      */
     public void renderConstraints(StringBuffer q, Node home, String prefix)
                              throws SQLException, NoDriverException {
-        renderConstraints(q, home, home.getNonVirtualParent(), this.otherType, prefix);
+        renderConstraints(q, home, home.getNonVirtualParent(), this.otherType, prefix, null);
+    }
+
+    /**
+     * Render contraints and filter conditions to an SQL query string buffer,
+     * passing values as statement parameters where possible.
+     *
+     * @param q the query string
+     * @param home our home node
+     * @param prefix the prefix to use to append to the existing query (e.g. " AND ")
+     * @param params the parameters to add values to, or null to render values as literals
+     *
+     * @throws SQLException sql related exception
+     * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+     */
+    public void renderConstraints(StringBuffer q, Node home, String prefix, QueryParameters params)
+                             throws SQLException, NoDriverException {
+        renderConstraints(q, home, home.getNonVirtualParent(), this.otherType, prefix, params);
     }
 
     /**
@@ -1103,6 +1553,27 @@ public final class Relation {
     public void renderConstraints(StringBuffer q, Node home, Node nonvirtual,
                                   DbMapping otherDbm, String prefix)
                              throws SQLException, NoDriverException {
+        renderConstraints(q, home, nonvirtual, otherDbm, prefix, null);
+    }
+
+    /**
+     * Render contraints and filter conditions to an SQL query string buffer,
+     * passing values as statement parameters where possible. Values in the
+     * filter are always rendered as literals.
+     *
+     * @param q the query string
+     * @param home our home node
+     * @param nonvirtual our non-virtual home nod
+     * @param otherDbm the DbMapping of the remote Node
+     * @param prefix the prefix to use to append to the existing query (e.g. " AND ")
+     * @param params the parameters to add values to, or null to render values as literals
+     *
+     * @throws SQLException sql related exception
+     * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+     */
+    public void renderConstraints(StringBuffer q, Node home, Node nonvirtual,
+                                  DbMapping otherDbm, String prefix, QueryParameters params)
+                             throws SQLException, NoDriverException {
 
         if (this.constraints.length > 1 && this.logicalOperator != AND) {
             q.append(prefix);
@@ -1117,7 +1588,7 @@ public final class Relation {
                 continue;
             }
             q.append(prefix);
-            this.constraints[i].addToQuery(q, home, nonvirtual, otherDbm);
+            this.constraints[i].addToQuery(q, home, nonvirtual, otherDbm, params);
             prefix = this.logicalOperator;
         }
 
@@ -1138,7 +1609,7 @@ public final class Relation {
             // extended prototypes. nevertheless we check it here
             if (extensions != null && protoField != null) {
                 q.append(prefix);
-                otherDbm.appendCondition(q, protoField, extensions);
+                otherDbm.appendCondition(q, protoField, extensions, params);
                 prefix = " AND "; //$NON-NLS-1$
             }
         }
@@ -1492,29 +1963,48 @@ public final class Relation {
          */
         public void addToQuery(StringBuffer q, NodeInterface home, NodeInterface nonvirtual, DbMapping otherDbm)
                         throws SQLException, NoDriverException {
-            String local;
+            addToQuery(q, home, nonvirtual, otherDbm, null);
+        }
+
+        /**
+         * @param params the parameters to add the value to, or null to render it as literal
+         * @throws SQLException
+         * @throws NoDriverException if the JDBC driver could not be loaded or is unusable
+         */
+        public void addToQuery(StringBuffer q, NodeInterface home, NodeInterface nonvirtual, DbMapping otherDbm,
+                               QueryParameters params)
+                        throws SQLException, NoDriverException {
+            String local = getLocalValue(home, nonvirtual);
+            otherDbm.appendCondition(q, getForeignColumn(otherDbm), local, false, params);
+        }
+
+        /**
+         * Get the value of the local key in the given home node.
+         *
+         * @throws SQLException if the local key isn't mapped to a property
+         */
+        String getLocalValue(NodeInterface home, NodeInterface nonvirtual)
+                        throws SQLException {
             NodeInterface ref = this.isGroupby ? home : nonvirtual;
 
             if (localKeyIsPrimary(ref.getDbMapping())) {
-                local = ref.getID();
+                return ref.getID();
             } else if (localKeyIsPrototype()) {
-                local = ref.getDbMapping().getStorageTypeName();
-            } else {
-                String homeprop = Relation.this.ownType.columnNameToProperty(this.localKey);
-                if (homeprop == null) {
-                    throw new SQLException(Messages.getString("Relation.18") + this.localKey + //$NON-NLS-1$
-                            Messages.getString("Relation.19") + Relation.this.ownType); //$NON-NLS-1$
-                }
-                local = ref.getString(homeprop);
+                return ref.getDbMapping().getStorageTypeName();
             }
-
-            String columnName;
-            if (foreignKeyIsPrimary()) {
-                columnName = otherDbm.getIDField();
-            } else {
-                columnName = this.foreignKey;
+            String homeprop = Relation.this.ownType.columnNameToProperty(this.localKey);
+            if (homeprop == null) {
+                throw new SQLException(Messages.getString("Relation.18") + this.localKey + //$NON-NLS-1$
+                        Messages.getString("Relation.19") + Relation.this.ownType); //$NON-NLS-1$
             }
-            otherDbm.appendCondition(q, columnName, local);
+            return ref.getString(homeprop);
+        }
+
+        /**
+         * Get the name of the foreign key column in the given db mapping.
+         */
+        String getForeignColumn(DbMapping otherDbm) {
+            return foreignKeyIsPrimary() ? otherDbm.getIDField() : this.foreignKey;
         }
 
         public boolean foreignKeyIsPrimary() {
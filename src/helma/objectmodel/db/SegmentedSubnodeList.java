@@ -12,9 +12,21 @@
 package helma.objectmodel.db;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * A subnode list for collections with <code>loadmode = lazy</code>. Large
+ * collections are split into segments of <code>segmentSize</code> nodes
+ * (default 1000), and only the segments actually accessed are loaded and
+ * kept in memory. When a request accesses the last quarter of a segment,
+ * the next segment is loaded in the background by the application's
+ * prefetch executor, so that iterating over the collection doesn't have to
+ * wait for each segment to be fetched.
+ */
 public class SegmentedSubnodeList extends SubnodeList {
 
     private static final long serialVersionUID = -4947752577517584610L;
@@ -46,9 +58,11 @@ public class SegmentedSubnodeList extends SubnodeList {
         if (this.subnodeCount == -1) {
             update();
         }
+        int s = this.segments.length - 1;
+        loadSegment(s).add(handle);
+        this.segments[s].length += 1;
         this.subnodeCount++;
-        this.segments[this.segments.length - 1].length += 1;
-        return this.list.add(handle);
+        return true;
     }
     /**
      * Adds the specified object to the list at the given position
@@ -64,26 +78,37 @@ public class SegmentedSubnodeList extends SubnodeList {
         if (this.subnodeCount == -1) {
             update();
         }
-        this.subnodeCount++;
-        this.list.add(index, handle);
-        // shift segment indices by one
+        if (index == this.subnodeCount) {
+            add(handle);
+            return;
+        }
         int s = getSegment(index);
+        loadSegment(s).add(index - this.segments[s].startIndex, handle);
+        // shift segment indices by one
         this.segments[s].length += 1;
         for (int i = s + 1; i < this.segments.length; i++) {
             this.segments[i].startIndex += 1;
         }
+        this.subnodeCount++;
     }
 
     @Override
-    public NodeHandle get(int index) {
+    public synchronized NodeHandle get(int index) {
         if (!hasRelationalNodes() || this.segments == null) {
             return super.get(index);
         }
         if (index < 0 || index >= this.subnodeCount) {
             return null;
         }
-        loadSegment(getSegment(index), false);
-        return (NodeHandle) this.list.get(index);
+        int s = getSegment(index);
+        Segment segment = this.segments[s];
+        List handles = loadSegment(s);
+        int offset = index - segment.startIndex;
+        // start loading the next segment when approaching the end of this one
+        if (offset >= segment.length - segment.length / 4) {
+            prefetchSegment(s + 1);
+        }
+        return (NodeHandle) handles.get(offset);
     }
 
     @Override
@@ -91,15 +116,7 @@ public class SegmentedSubnodeList extends SubnodeList {
         if (!hasRelationalNodes() || this.segments == null) {
             return super.contains(object);
         }
-        if (this.list.contains(object)) {
-            return true;
-        }
-        for (int i = 0; i < this.segments.length; i++) {
-            if (loadSegment(i, false).contains(object)) {
-                return true;
-            }
-        }
-        return false;
+        return indexOf(object) > -1;
     }
 
     @Override
@@ -108,11 +125,16 @@ public class SegmentedSubnodeList extends SubnodeList {
             return super.indexOf(object);
         }
         int index;
-        if ((index = this.list.indexOf(object)) > -1) {
-            return index;
+        // look in the segments already loaded first
+        for (int i = 0; i < this.segments.length; i++) {
+            List handles = this.segments[i].handles;
+            if (handles != null && (index = handles.indexOf(object)) > -1) {
+                return this.segments[i].startIndex + index;
+            }
         }
         for (int i = 0; i < this.segments.length; i++) {
-            if ((index = loadSegment(i, false).indexOf(object)) > -1) {
+            if (this.segments[i].handles == null &&
+                    (index = loadSegment(i).indexOf(object)) > -1) {
                 return this.segments[i].startIndex + index;
             }
         }
@@ -131,8 +153,11 @@ public class SegmentedSubnodeList extends SubnodeList {
         if (this.subnodeCount == -1) {
             update();
         }
-        Object removed = this.list.remove(index);
+        if (index < 0 || index >= this.subnodeCount) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
         int s = getSegment(index);
+        Object removed = loadSegment(s).remove(index - this.segments[s].startIndex);
         this.segments[s].length -= 1;
         for (int i = s + 1; i < this.segments.length; i++) {
             this.segments[i].startIndex -= 1;
@@ -155,13 +180,7 @@ public class SegmentedSubnodeList extends SubnodeList {
         }
         int index = indexOf(object);
         if (index > -1) {
-            this.list.remove(object);
-            int s = getSegment(index);
-            this.segments[s].length -= 1;
-            for (int i = s + 1; i < this.segments.length; i++) {
-                this.segments[i].startIndex -= 1;
-            }
-            this.subnodeCount--;
+            remove(index);
             return true;
         }
         return false;
@@ -173,47 +192,100 @@ public class SegmentedSubnodeList extends SubnodeList {
             return super.toArray();
         }
         this.node.nmgr.logEvent(Messages.getString("SegmentedSubnodeList.0") + this.node); //$NON-NLS-1$
+        ArrayList all = new ArrayList(this.subnodeCount);
         for (int i = 0; i < this.segments.length; i++) {
-            loadSegment(i, false);
+            all.addAll(loadSegment(i));
         }
-        return this.list.toArray();
+        return all.toArray();
     }
 
     private int getSegment(int index) {
-        for (int i = 1; i < this.segments.length; i++) {
-            if (index < this.segments[i].startIndex) {
-                return i - 1;
+        int low = 0;
+        int high = this.segments.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (index < this.segments[mid].startIndex) {
+                high = mid - 1;
+            } else {
+                low = mid;
             }
         }
-        return this.segments.length - 1;
+        return low;
     }
 
-    private List loadSegment(int seg, boolean deep) {
+    /**
+     * Get the handles of a segment, loading them if necessary. If the segment
+     * has been prefetched in the background, the prefetched handles are used
+     * if they are available and the segment hasn't been shifted since the
+     * prefetch was started. We never wait for a prefetch in progress, since
+     * the prefetching thread may need locks held by the current thread.
+     */
+    private List loadSegment(int seg) {
         Segment segment = this.segments[seg];
-        if (segment != null && !segment.loaded) {
-            Relation rel = getSubnodeRelation().getClone();
-            rel.offset = segment.startIndex;
-            int expectedSize = rel.maxSize = segment.length;
-            List seglist =  deep ?
-                    this.node.nmgr.getNodes(this.node, rel) :
-                    this.node.nmgr.getNodeIDs(this.node, rel);
+        if (segment.handles == null) {
+            List seglist = segment.takePrefetched();
+            if (seglist == null) {
+                seglist = this.node.nmgr.getNodeIDs(this.node,
+                        getSegmentRelation(segment.startIndex, segment.length));
+            }
             int actualSize = seglist.size();
-            if (actualSize != expectedSize) {
+            if (actualSize != segment.length) {
                 this.node.nmgr.logEvent(Messages.getString("SegmentedSubnodeList.1") + this.node + Messages.getString("SegmentedSubnodeList.2") + segment); //$NON-NLS-1$ //$NON-NLS-2$
             }
-            int listSize = this.list.size();
-            for (int i = 0; i < actualSize; i++) {
-                if (segment.startIndex + i < listSize) {
-                    this.list.set(segment.startIndex + i, seglist.get(i));
-                } else {
-                    this.list.add(seglist.get(i));
-                }
-                // FIXME how to handle inconsistencies?
+            // FIXME how to handle inconsistencies? For now we pad missing
+            // handles with null and drop surplus ones.
+            ArrayList handles = new ArrayList(segment.length + 5);
+            for (int i = 0; i < segment.length; i++) {
+                handles.add(i < actualSize ? seglist.get(i) : null);
             }
-            segment.loaded = true;
-            return seglist;
+            segment.handles = handles;
         }
-        return Collections.EMPTY_LIST;
+        return segment.handles;
+    }
+
+    /**
+     * Start loading a segment in the background, unless it is already loaded
+     * or being loaded, or the application has prefetching disabled.
+     */
+    private void prefetchSegment(int seg) {
+        if (seg >= this.segments.length) {
+            return;
+        }
+        Segment segment = this.segments[seg];
+        if (segment.handles != null || segment.prefetch != null) {
+            return;
+        }
+        ExecutorService executor = this.node.nmgr.nmgr.app.getPrefetchExecutor();
+        if (executor == null) {
+            return;
+        }
+        final Node home = this.node;
+        final Relation rel = getSegmentRelation(segment.startIndex, segment.length);
+        try {
+            segment.prefetch = executor.submit(new Callable() {
+                public Object call() {
+                    // run with a transactor of our own, so that pooled connections
+                    // are returned and unpooled ones closed after each task
+                    Transactor.getInstance(home.nmgr.nmgr);
+                    try {
+                        return home.nmgr.getNodeIDs(home, rel);
+                    } finally {
+                        Transactor.removeInstance();
+                    }
+                }
+            });
+            segment.prefetchStart = segment.startIndex;
+            segment.prefetchLength = segment.length;
+        } catch (RejectedExecutionException x) {
+            // executor has been shut down
+        }
+    }
+
+    private Relation getSegmentRelation(int offset, int length) {
+        Relation rel = getSubnodeRelation().getClone();
+        rel.offset = offset;
+        rel.maxSize = length;
+        return rel;
     }
 
     @Override
@@ -225,26 +297,37 @@ public class SegmentedSubnodeList extends SubnodeList {
         }
         // also reload if the type mapping has changed.
         long lastChange = getLastSubnodeChange();
-        if (lastChange != this.lastSubnodeFetch) {
+        boolean changed = lastChange != this.lastSubnodeFetch;
+        countAccess(!changed);
+        if (changed) {
+            if (this.segments != null) {
+                // results of pending prefetches are obsolete now
+                for (int s = 0; s < this.segments.length; s++) {
+                    this.segments[s].takePrefetched();
+                }
+            }
             // count nodes in db without fetching anything
             this.subnodeCount = this.node.nmgr.countNodes(this.node, getSubnodeRelation());
-            if (this.subnodeCount > SEGLENGTH) {
-                float size = this.subnodeCount;
-                int nsegments = (int) Math.ceil(size / SEGLENGTH);
-                int remainder = (int) size % SEGLENGTH;
+            int seglength = getSubnodeRelation().segmentSize;
+            if (seglength <= 0) {
+                seglength = SEGLENGTH;
+            }
+            if (this.subnodeCount > seglength) {
+                int nsegments = (this.subnodeCount + seglength - 1) / seglength;
+                int remainder = this.subnodeCount % seglength;
                 this.segments = new Segment[nsegments];
                 for (int s = 0; s < nsegments; s++) {
                     int length = (s == nsegments - 1 && remainder > 0) ?
-                        remainder : SEGLENGTH;
-                    this.segments[s] = new Segment(s * SEGLENGTH, length);
-                }
-                this.list = new ArrayList((int) size + 5);
-                for (int i = 0; i < size; i++) {
-                    this.list.add(null);
+                        remainder : seglength;
+                    this.segments[s] = new Segment(s * seglength, length);
                 }
+                // segmented lists are always fetched completely
+                this.highWaterMark = null;
+                // segments hold their own handles, only loaded on demand
+                this.list = new ArrayList();
             } else {
                 this.segments = null;
-                super.update();
+                fetch();
             }
             this.lastSubnodeFetch = lastChange;
         }
@@ -261,18 +344,46 @@ public class SegmentedSubnodeList extends SubnodeList {
     class Segment {
 
         int startIndex, length;
-        boolean loaded;
+        // the handles of the segment, or null if not loaded yet
+        List handles;
+        // the background load of the segment, and the position it was started for
+        Future prefetch;
+        int prefetchStart, prefetchLength;
 
         Segment(int startIndex, int length) {
             this.startIndex = startIndex;
             this.length = length;
-            this.loaded = false;
         }
 
         int endIndex() {
             return this.startIndex + this.length;
         }
 
+        /**
+         * Get the result of the background load of this segment if it has
+         * completed and is still valid, and cancel it otherwise.
+         *
+         * @return the node IDs of the segment, or null
+         */
+        List takePrefetched() {
+            Future future = this.prefetch;
+            this.prefetch = null;
+            if (future == null) {
+                return null;
+            }
+            if (future.isDone() && this.prefetchStart == this.startIndex &&
+                    this.prefetchLength == this.length) {
+                try {
+                    return (List) future.get();
+                } catch (Exception x) {
+                    // load the segment synchronously
+                    return null;
+                }
+            }
+            future.cancel(false);
+            return null;
+        }
+
         @Override
         public String toString() {
             return "Segment{startIndex: " + this.startIndex + ", length: " + this.length + "}";  //$NON-NLS-1$//$NON-NLS-2$ //$NON-NLS-3$
@@ -280,4 +391,3 @@ public class SegmentedSubnodeList extends SubnodeList {
     }
 
 }
-
@@ -0,0 +1,348 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Collects the SQL statements written when a transaction is committed into
+ * JDBC batches, so that the rows of many new, modified or deleted nodes are
+ * sent to the database in a few round trips. Statements with the same SQL on
+ * the same connection share a PreparedStatement and are executed as a batch.
+ *
+ * Batches are executed in the order they were started. Adding a statement to
+ * an open batch moves it ahead of statements added to batches started later,
+ * which is only done if none of those batches writes to the same table or to
+ * a table referenced by or referencing the statement's table. Otherwise all
+ * open batches are executed first, preserving the order of dependent writes.
+ * For drivers without batch support, statements are executed immediately.
+ */
+public class StatementBatch {
+
+    // the node manager to log SQL statements to, or null
+    private final NodeManager nmgr;
+
+    // maximal number of statements in a batch before it is executed
+    private final int maxSize;
+
+    // the open batches in the order they were started
+    private final ArrayList batches = new ArrayList();
+
+    // the open batches by connection and SQL
+    private final HashMap batchMap = new HashMap();
+
+    // cached results of batch support checks by connection
+    private final IdentityHashMap batchSupport = new IdentityHashMap();
+
+    // cached results of table relation checks
+    private final HashMap relations = new HashMap();
+
+    // the batch of the last statement returned by prepare()
+    private Batch current;
+
+    private int executedBatches = 0;
+    private int executedStatements = 0;
+
+    /**
+     * Create a new statement batch.
+     *
+     * @param nmgr the node manager to log SQL statements to, or null
+     * @param maxSize maximal number of statements in a batch before it is executed
+     */
+    public StatementBatch(NodeManager nmgr, int maxSize) {
+        this.nmgr = nmgr;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * Get a prepared statement to set the parameters of a statement on. The
+     * statement must be passed to add() afterwards.
+     *
+     * @param dbm the db mapping of the written table, or null if unknown
+     * @param con the connection
+     * @param sql the SQL statement
+     * @param type the type of statement for the SQL log
+     * @param table the name of the written table
+     * @return a prepared statement
+     * @throws SQLException if the statement couldn't be prepared
+     */
+    public PreparedStatement prepare(DbMapping dbm, Connection con, String sql,
+                                     String type, String table) throws SQLException {
+        if (!supportsBatches(con)) {
+            this.current = new Batch(dbm, con, sql, type, table, false);
+            return this.current.stmt;
+        }
+
+        BatchKey key = new BatchKey(con, sql);
+        Batch batch = (Batch) this.batchMap.get(key);
+
+        if (batch != null && !canJoin(batch)) {
+            execute();
+            batch = null;
+        }
+
+        if (batch == null) {
+            batch = new Batch(dbm, con, sql, type, table, true);
+            this.batches.add(batch);
+            this.batchMap.put(key, batch);
+        }
+
+        this.current = batch;
+        return batch.stmt;
+    }
+
+    /**
+     * Add the statement returned by the last call to prepare() with all its
+     * parameters set to the batch, or execute it if the driver doesn't
+     * support batches.
+     *
+     * @param stmt the prepared statement
+     * @throws SQLException if executing the statement failed
+     */
+    public void add(PreparedStatement stmt) throws SQLException {
+        Batch batch = this.current;
+        this.current = null;
+        if (batch == null || batch.stmt != stmt) {
+            throw new IllegalStateException();
+        }
+
+        if (!batch.batched) {
+            try {
+                batch.run();
+            } finally {
+                batch.close();
+            }
+            return;
+        }
+
+        stmt.addBatch();
+        batch.size++;
+        if (batch.size >= this.maxSize) {
+            // execute this and all earlier batches to keep the order
+            int index = this.batches.indexOf(batch);
+            for (int i = 0; i <= index; i++) {
+                executeBatch((Batch) this.batches.get(i));
+            }
+        }
+    }
+
+    /**
+     * Execute all open batches in the order they were started.
+     *
+     * @throws SQLException if executing a batch failed
+     */
+    public void execute() throws SQLException {
+        try {
+            for (int i = 0; i < this.batches.size(); i++) {
+                executeBatch((Batch) this.batches.get(i));
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Close all open batches without executing them.
+     */
+    public void close() {
+        for (int i = 0; i < this.batches.size(); i++) {
+            ((Batch) this.batches.get(i)).close();
+        }
+        this.batches.clear();
+        this.batchMap.clear();
+        if (this.current != null && !this.current.batched) {
+            this.current.close();
+        }
+        this.current = null;
+    }
+
+    /**
+     * Get the number of JDBC batches executed so far.
+     *
+     * @return the number of executed batches
+     */
+    public int getExecutedBatches() {
+        return this.executedBatches;
+    }
+
+    /**
+     * Get the number of statements executed so far, either in batches
+     * or one by one.
+     *
+     * @return the number of executed statements
+     */
+    public int getExecutedStatements() {
+        return this.executedStatements;
+    }
+
+    private void executeBatch(Batch batch) throws SQLException {
+        if (batch.size > 0) {
+            batch.run();
+        }
+    }
+
+    /**
+     * Check if a statement may be added to an open batch, moving it ahead of
+     * the batches started after it.
+     */
+    private boolean canJoin(Batch batch) {
+        for (int i = this.batches.size() - 1; i >= 0; i--) {
+            Batch later = (Batch) this.batches.get(i);
+            if (later == batch) {
+                return true;
+            }
+            if (later.size > 0 && isRelated(batch.dbm, later.dbm)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if writes to the tables of the two db mappings may depend on
+     * each other.
+     */
+    private boolean isRelated(DbMapping dbm1, DbMapping dbm2) {
+        if (dbm1 == null || dbm2 == null) {
+            return true;
+        }
+        if (dbm1.isStorageCompatible(dbm2)) {
+            return true;
+        }
+        BatchKey key = new BatchKey(dbm1, dbm2);
+        Boolean related = (Boolean) this.relations.get(key);
+        if (related == null) {
+            related = Boolean.valueOf(references(dbm1, dbm2) || references(dbm2, dbm1));
+            this.relations.put(key, related);
+        }
+        return related.booleanValue();
+    }
+
+    /**
+     * Check if the table of the first db mapping has a column referencing
+     * objects stored in the table of the second one.
+     */
+    private static boolean references(DbMapping from, DbMapping to) {
+        DbColumn[] columns;
+        try {
+            columns = from.getColumns();
+        } catch (Exception x) {
+            return true;
+        }
+        for (int i = 0; i < columns.length; i++) {
+            Relation rel = columns[i].getRelation();
+            if (rel != null && rel.isReference() &&
+                    (rel.otherType == null || rel.otherType.isStorageCompatible(to))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean supportsBatches(Connection con) throws SQLException {
+        Boolean supported = (Boolean) this.batchSupport.get(con);
+        if (supported == null) {
+            supported = Boolean.valueOf(con.getMetaData().supportsBatchUpdates());
+            this.batchSupport.put(con, supported);
+        }
+        return supported.booleanValue();
+    }
+
+    /**
+     * A prepared statement and the number of statements added to it.
+     */
+    final class Batch {
+        final DbMapping dbm;
+        final PreparedStatement stmt;
+        final String sql;
+        final String type;
+        final String table;
+        final boolean batched;
+        int size = 0;
+
+        Batch(DbMapping dbm, Connection con, String sql, String type,
+              String table, boolean batched) throws SQLException {
+            this.dbm = dbm;
+            this.stmt = con.prepareStatement(sql);
+            this.sql = sql;
+            this.type = type;
+            this.table = table;
+            this.batched = batched;
+        }
+
+        /**
+         * Execute the statement or batch and log it.
+         */
+        void run() throws SQLException {
+            NodeManager nmgr = StatementBatch.this.nmgr;
+            boolean logSql = nmgr != null && nmgr.logSql;
+            long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+            int count = this.batched ? this.size : 1;
+            try {
+                if (this.batched) {
+                    this.size = 0;
+                    this.stmt.executeBatch();
+                    StatementBatch.this.executedBatches++;
+                } else {
+                    this.stmt.executeUpdate();
+                }
+                StatementBatch.this.executedStatements += count;
+            } finally {
+                if (logSql) {
+                    long logTimeStop = System.currentTimeMillis();
+                    nmgr.logSqlStatement(this.batched ? this.type + " BATCH " + count : this.type, //$NON-NLS-1$
+                            this.table, logTimeStart, logTimeStop, this.sql);
+                }
+            }
+        }
+
+        void close() {
+            try {
+                this.stmt.close();
+            } catch (Exception ignore) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * A key made of two objects compared by identity and equality respectively.
+     */
+    static final class BatchKey {
+        final Object first;
+        final Object second;
+
+        BatchKey(Object first, Object second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey other = (BatchKey) obj;
+            return this.first == other.first && this.second.equals(other.second);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.first) * 31 + this.second.hashCode();
+        }
+    }
+}
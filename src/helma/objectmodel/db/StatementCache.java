@@ -0,0 +1,150 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of the prepared statements of a JDBC connection, keyed by their SQL
+ * and evicted in least recently used order. A statement is taken out of the
+ * cache while it is in use, so a query nested in the processing of the result
+ * set of the same query gets a statement of its own. Like the connection, a
+ * cache is only used by one thread at a time, but its statistics may be read
+ * by others, so access is synchronized. The lock is uncontended in practice.
+ */
+public class StatementCache {
+
+    private final Connection connection;
+    private final int capacity;
+    private final LinkedHashMap statements;
+
+    private long hits, misses;
+
+    /**
+     * Create a statement cache for a connection.
+     *
+     * @param connection the connection
+     * @param capacity the maximal number of cached statements, 0 to disable caching
+     */
+    StatementCache(Connection connection, int capacity) {
+        this.connection = connection;
+        this.capacity = capacity;
+        this.statements = new LinkedHashMap(16, 0.75f, true);
+    }
+
+    /**
+     * Get a prepared statement for the given SQL, either from the cache or
+     * newly prepared. The statement must be passed to release() after use.
+     *
+     * @param sql the SQL statement
+     * @return a prepared statement
+     * @throws SQLException if the statement couldn't be prepared
+     */
+    public synchronized PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = (PreparedStatement) this.statements.remove(sql);
+        if (stmt != null) {
+            this.hits++;
+            return stmt;
+        }
+        this.misses++;
+        return this.connection.prepareStatement(sql);
+    }
+
+    /**
+     * Create a plain statement for SQL that must not be prepared, e.g.
+     * because it contains question marks that aren't parameters. The
+     * statement must be passed to release() after use and is never cached.
+     *
+     * @return a new statement
+     * @throws SQLException if the statement couldn't be created
+     */
+    public Statement createStatement() throws SQLException {
+        return this.connection.createStatement();
+    }
+
+    /**
+     * Return a statement obtained from prepare() to the cache, or close it if
+     * the statement failed, caching is disabled or it was obtained from
+     * createStatement().
+     *
+     * @param sql the SQL statement
+     * @param stmt the statement
+     * @param reuse false if the statement must not be used again
+     */
+    public synchronized void release(String sql, Statement stmt, boolean reuse) {
+        if (stmt == null) {
+            return;
+        }
+        if (reuse && this.capacity > 0 && stmt instanceof PreparedStatement &&
+                !this.statements.containsKey(sql)) {
+            try {
+                ((PreparedStatement) stmt).clearParameters();
+                this.statements.put(sql, stmt);
+            } catch (SQLException x) {
+                close(stmt);
+                return;
+            }
+            if (this.statements.size() > this.capacity) {
+                Iterator i = this.statements.values().iterator();
+                close((PreparedStatement) i.next());
+                i.remove();
+            }
+        } else {
+            close(stmt);
+        }
+    }
+
+    /**
+     * Close all cached statements.
+     */
+    public void clear() {
+        ArrayList list;
+        synchronized (this) {
+            list = new ArrayList(this.statements.values());
+            this.statements.clear();
+        }
+        for (int i = 0; i < list.size(); i++) {
+            close((PreparedStatement) list.get(i));
+        }
+    }
+
+    /**
+     * Add the statistics of this cache to the given totals.
+     */
+    synchronized void addStatistics(long[] totals) {
+        totals[0] += this.statements.size();
+        totals[1] += this.hits;
+        totals[2] += this.misses;
+    }
+
+    private static void close(Statement stmt) {
+        try {
+            stmt.close();
+        } catch (Exception ignore) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Returns the cached SQL statements.
+     */
+    @Override
+    public synchronized String toString() {
+        return this.statements.keySet().toString();
+    }
+}
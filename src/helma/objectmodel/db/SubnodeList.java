@@ -30,6 +30,12 @@ public class SubnodeList implements Serializable {
     transient protected long lastSubnodeFetch = 0;
     transient protected long lastSubnodeChange = 0;
 
+    // greatest value of the refresh column in the list for collections with
+    // incremental refresh mode, and the removal counter of the child type
+    // when the list was last fetched completely
+    transient protected Object highWaterMark;
+    transient protected long lastRemoval;
+
 
     /**
      * Hide/disable zero argument constructor for subclasses
@@ -127,17 +133,70 @@ public class SubnodeList implements Serializable {
     protected void update() {
         // also reload if the type mapping has changed.
         long lastChange = getLastSubnodeChange();
-        if (lastChange != this.lastSubnodeFetch) {
-            Relation rel = getSubnodeRelation();
-            if (rel != null && rel.aggressiveLoading && rel.groupby == null) {
-                this.list = this.node.nmgr.getNodes(this.node, rel);
-            } else {
-                this.list = this.node.nmgr.getNodeIDs(this.node, rel);
+        boolean changed = lastChange != this.lastSubnodeFetch;
+        countAccess(!changed);
+        if (changed) {
+            if (!refresh()) {
+                fetch();
             }
             this.lastSubnodeFetch = lastChange;
         }
     }
 
+    /**
+     * Fetch the subnodes from the database.
+     */
+    protected void fetch() {
+        Relation rel = getSubnodeRelation();
+        boolean incremental = isIncremental(rel);
+        long removals = incremental ? rel.otherType.getDataPartitions().getRemovals() : 0;
+
+        if (rel != null && rel.aggressiveLoading && rel.groupby == null) {
+            this.list = this.node.nmgr.getNodes(this.node, rel);
+        } else {
+            this.list = this.node.nmgr.getNodeIDs(this.node, rel);
+        }
+
+        // the high water mark is fetched afterwards, so nodes added in the
+        // meantime are missing in the list and cause a complete fetch next time
+        this.highWaterMark = incremental ?
+                this.node.nmgr.getHighWaterMark(this.node, rel) : null;
+        this.lastRemoval = removals;
+    }
+
+    /**
+     * Try to bring the list up to date by fetching only the subnodes added
+     * since it was last fetched. This is only done for collections with
+     * incremental refresh mode if no nodes of the child type have been
+     * removed by this application in the meantime.
+     *
+     * @return false if the list must be fetched completely
+     */
+    protected boolean refresh() {
+        Relation rel = getSubnodeRelation();
+        if (this.highWaterMark == null || !isIncremental(rel) ||
+                this.lastRemoval != rel.otherType.getDataPartitions().getRemovals()) {
+            return false;
+        }
+        return this.node.nmgr.updateSubnodeList(this.node, rel, this);
+    }
+
+    private boolean isIncremental(Relation rel) {
+        return rel != null && rel.isIncremental() && this.node.getSubnodeRelation() == null;
+    }
+
+    /**
+     * Record an access to the collection in the statistics of its relation.
+     *
+     * @param hit true if the list could be used without fetching it again
+     */
+    protected void countAccess(boolean hit) {
+        Relation rel = getSubnodeRelation();
+        if (rel != null) {
+            rel.countCacheAccess(hit);
+        }
+    }
+
     protected void prefetch(int start, int length) {
         if (start < 0 || start >= size()) {
             return;
@@ -164,8 +223,9 @@ public class SubnodeList implements Serializable {
         // include dbmap.getLastTypeChange to also reload if the type mapping has changed.
         long checkSum = this.lastSubnodeChange + this.node.dbmap.getLastTypeChange();
         Relation rel = getSubnodeRelation();
+        // only include changes of the other type that may affect this collection
         return rel == null || rel.aggressiveCaching ?
-                checkSum : checkSum + rel.otherType.getLastDataChange();
+                checkSum : checkSum + rel.getLastDataChange(this.node);
     }
 
     protected synchronized void markAsChanged() {
@@ -60,6 +60,9 @@ public class Transactor {
     // Set of SQL connections that already have been verified
     private Map<DbSource, Long> testedConnections;
 
+    // Pools of SQL connections borrowed for the current transaction
+    private Map<DbSource, ConnectionPool> connectionPools;
+
     // when did the current transaction start?
     private long tstart;
 
@@ -88,6 +91,7 @@ public class Transactor {
 
         this.sqlConnections = new HashMap();
         this.testedConnections = new HashMap();
+        this.connectionPools = new HashMap();
         this.active = false;
         this.killed = false;
     }
@@ -113,6 +117,20 @@ public class Transactor {
         return tx;
     }
 
+    /**
+     * Remove the transactor associated with the current thread, closing its
+     * JDBC connections. This is used when requests are run on threads that
+     * are not owned by Helma and the transactor has been killed, and after
+     * background tasks such as collection prefetches.
+     */
+    public static void removeInstance() {
+        Transactor tx = (Transactor) txtor.get();
+        if (tx != null) {
+            tx.closeConnections();
+            txtor.remove();
+        }
+    }
+
     /**
      * Get the transactor for the current thread, creating a new one if none exists.
      * @param nmgr the NodeManager used to create the transactor
@@ -237,6 +255,14 @@ public class Transactor {
         return this.active;
     }
 
+    /**
+     * Returns true if this transactor has been killed.
+     * @return true if kill() has been called on this transactor
+     */
+    public boolean isKilled() {
+        return this.killed;
+    }
+
     /**
      * Check whether the thread associated with this transactor is alive.
      * This is a proxy to Thread.isAlive().
@@ -246,6 +272,60 @@ public class Transactor {
         return this.thread != null && this.thread.isAlive();
     }
 
+    /**
+     * Record the partitions of the data of a node's DbMapping affected by
+     * writing the node.
+     *
+     * @param dirtyDbMappings the changes by DbMapping to add to
+     * @param node the node to be written
+     */
+    private static void collectDataChange(HashMap dirtyDbMappings, Node node) {
+        DbMapping dbm = node.getDbMapping();
+        if (dbm == null) {
+            return;
+        }
+        DataPartitions.Changes changes = (DataPartitions.Changes) dirtyDbMappings.get(dbm);
+        if (changes == null) {
+            changes = dbm.getDataPartitions().createChanges();
+            dirtyDbMappings.put(dbm, changes);
+        }
+        dbm.collectDataChange(node, changes);
+    }
+
+    /**
+     * Add the changes by DbMapping collected for a single node to the
+     * changes of the transaction.
+     */
+    private static void mergeDataChanges(HashMap dirtyDbMappings, HashMap changes) {
+        for (Iterator i = changes.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) i.next();
+            DataPartitions.Changes existing = (DataPartitions.Changes) dirtyDbMappings.get(entry.getKey());
+            if (existing == null) {
+                dirtyDbMappings.put(entry.getKey(), entry.getValue());
+            } else {
+                existing.addAll((DataPartitions.Changes) entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Create a statement batch to collect the relational writes of a commit in,
+     * or return null if batching is disabled by setting the sqlBatchSize app
+     * property to 1 or less.
+     */
+    private StatementBatch createStatementBatch() {
+        int batchSize = 500;
+        String prop = this.nmgr.app.getProperty("sqlBatchSize"); //$NON-NLS-1$
+        if (prop != null) {
+            try {
+                batchSize = Integer.parseInt(prop.trim());
+            } catch (NumberFormatException x) {
+                this.nmgr.app.logError(Messages.getString("Transactor.24") + prop); //$NON-NLS-1$
+            }
+        }
+        return batchSize > 1 ? new StatementBatch(this.nmgr, batchSize) : null;
+    }
+
     /**
      * Register a db connection with this transactor thread.
      * @param src the db source
@@ -257,6 +337,65 @@ public class Transactor {
         this.testedConnections.put(src, new Long(System.currentTimeMillis()));
     }
 
+    /**
+     * Register a db connection borrowed from a connection pool with this transactor
+     * thread. The connection is returned to the pool when the transaction ends.
+     * @param src the db source
+     * @param con the connection
+     * @param pool the pool the connection was borrowed from
+     */
+    void registerConnection(DbSource src, Connection con, ConnectionPool pool) {
+        registerConnection(src, con);
+        this.connectionPools.put(src, pool);
+    }
+
+    /**
+     * Return a db connection borrowed from a connection pool to its pool.
+     * @param src the db source
+     * @param discard true to close the connection instead of reusing it
+     */
+    void releaseConnection(DbSource src, boolean discard) {
+        Connection con = (Connection) this.sqlConnections.remove(src);
+        this.testedConnections.remove(src);
+        ConnectionPool pool = (ConnectionPool) this.connectionPools.remove(src);
+        if (pool != null && con != null) {
+            pool.release(con, discard);
+        }
+    }
+
+    /**
+     * Return all db connections borrowed from connection pools to their pools,
+     * committing or rolling back pending changes first. If this transactor has
+     * been killed, the connections may still be in use and are closed instead.
+     * @param commit true to commit, false to roll back pending changes
+     */
+    private void releasePooledConnections(boolean commit) {
+        if (this.connectionPools.isEmpty()) {
+            return;
+        }
+        Object[] sources = this.connectionPools.keySet().toArray();
+        for (int i = 0; i < sources.length; i++) {
+            DbSource src = (DbSource) sources[i];
+            Connection con = (Connection) this.sqlConnections.get(src);
+            boolean discard = this.killed;
+            if (con != null && !discard) {
+                try {
+                    if (!con.getAutoCommit()) {
+                        if (commit) {
+                            con.commit();
+                        } else {
+                            con.rollback();
+                        }
+                    }
+                } catch (SQLException x) {
+                    this.nmgr.app.logError(Messages.getString("Transactor.23"), x); //$NON-NLS-1$
+                    discard = true;
+                }
+            }
+            releaseConnection(src, discard);
+        }
+    }
+
     /**
      * Get a db connection that was previously registered with this transactor thread.
      * @param src the db source
@@ -274,6 +413,11 @@ public class Transactor {
                 stmt.close();
                 this.testedConnections.put(src, new Long(now));
             } catch (SQLException sx) {
+                if (this.connectionPools.containsKey(src)) {
+                    releaseConnection(src, true);
+                    return null;
+                }
+                src.closeStatements(con);
                 try {
                     con.close();
                 } catch (SQLException ignore) {/* nothing to do */}
@@ -367,66 +511,108 @@ public class Transactor {
         if (!this.dirtyNodes.isEmpty()) {
             Object[] dirty = this.dirtyNodes.values().toArray();
 
-            // the set to collect DbMappings to be marked as changed
-            HashSet dirtyDbMappings = new HashSet();
+            // the map to collect DbMappings to be marked as changed, along
+            // with the partitions of their data affected by the changes
+            HashMap dirtyDbMappings = new HashMap();
 
-            for (int i = 0; i < dirty.length; i++) {
-                Node node = (Node) dirty[i];
+            // collect relational writes into JDBC batches
+            StatementBatch batch = createStatementBatch();
 
-                // update nodes in db
-                int nstate = node.getState();
+            // inserted and updated nodes are only marked as clean and
+            // registered with the cache once their writes have been executed
+            ArrayList written = new ArrayList();
+            boolean executed = false;
 
-                if (nstate == NodeInterface.NEW) {
-                    this.nmgr.insertNode(this.nmgr.db, this.txn, node);
-                    dirtyDbMappings.add(node.getDbMapping());
-                    node.setState(NodeInterface.CLEAN);
-
-                    // register node with nodemanager cache
-                    nmgr.registerNode(node);
-
-                    if (collectNodes) {
-                        insertedNodes.add(node);
+            try {
+                for (int i = 0; i < dirty.length; i++) {
+                    Node node = (Node) dirty[i];
+
+                    // update nodes in db
+                    int nstate = node.getState();
+
+                    if (nstate == NodeInterface.NEW) {
+                        // onPersist() may still set properties the partitions depend on
+                        this.nmgr.invokeOnPersist(node);
+                        collectDataChange(dirtyDbMappings, node);
+                        this.nmgr.insertNode(this.nmgr.db, this.txn, node, batch);
+                        written.add(node);
+
+                        if (collectNodes) {
+                            insertedNodes.add(node);
+                        }
+
+                        transaction.addInsertedNode(node);
+                    } else if (nstate == NodeInterface.MODIFIED) {
+                        // only mark DbMapping as dirty if updateNode returns true.
+                        // partitions must be collected after onPersist() has run,
+                        // but before the update clears the dirty flags of the
+                        // node's properties
+                        this.nmgr.invokeOnPersist(node);
+                        HashMap changes = new HashMap();
+                        collectDataChange(changes, node);
+                        if (this.nmgr.updateNode(this.nmgr.db, this.txn, node, batch)) {
+                            mergeDataChanges(dirtyDbMappings, changes);
+                        }
+                        written.add(node);
+
+                        if (collectNodes) {
+                            updatedNodes.add(node);
+                        }
+
+                        transaction.addModifiedNode(node);
+                    } else if (nstate == NodeInterface.DELETED) {
+                        collectDataChange(dirtyDbMappings, node);
+                        this.nmgr.deleteNode(this.nmgr.db, this.txn, node, batch);
+
+                        // remove node from nodemanager cache
+                        nmgr.evictNode(node);
+
+                        if (collectNodes) {
+                            deletedNodes.add(node);
+                        }
+
+                        transaction.addDeletedNode(node);
                     }
 
-                    transaction.addInsertedNode(node);
-                } else if (nstate == NodeInterface.MODIFIED) {
-                    // only mark DbMapping as dirty if updateNode returns true
-                    if (this.nmgr.updateNode(this.nmgr.db, this.txn, node)) {
-                        dirtyDbMappings.add(node.getDbMapping());
+                    // written nodes stay locked until they are clean
+                    if (nstate != NodeInterface.NEW && nstate != NodeInterface.MODIFIED) {
+                        node.clearWriteLock();
                     }
-                    node.setState(NodeInterface.CLEAN);
-
-                    // update node with nodemanager cache
-                    nmgr.registerNode(node);
-
-                    if (collectNodes) {
-                        updatedNodes.add(node);
-                    }
-
-                    transaction.addModifiedNode(node);
-                } else if (nstate == NodeInterface.DELETED) {
-                    this.nmgr.deleteNode(this.nmgr.db, this.txn, node);
-                    dirtyDbMappings.add(node.getDbMapping());
-
-                    // remove node from nodemanager cache
-                    nmgr.evictNode(node);
+                }
 
-                    if (collectNodes) {
-                        deletedNodes.add(node);
+                if (batch != null) {
+                    batch.execute();
+                }
+                executed = true;
+            } finally {
+                if (batch != null) {
+                    batch.close();
+                }
+                if (!executed) {
+                    // the writes may not have reached the database, so keep the
+                    // nodes in their previous state and out of the cache
+                    for (int i = 0; i < written.size(); i++) {
+                        Node node = (Node) written.get(i);
+                        this.nmgr.evictKey(node.getKey());
+                        node.clearWriteLock();
                     }
-
-                    transaction.addDeletedNode(node);
                 }
+            }
 
+            for (int i = 0; i < written.size(); i++) {
+                Node node = (Node) written.get(i);
+                node.setState(NodeInterface.CLEAN);
+
+                // register node with nodemanager cache
+                nmgr.registerNode(node);
                 node.clearWriteLock();
             }
 
             // set last data change times in db-mappings
-            for (Iterator i = dirtyDbMappings.iterator(); i.hasNext(); ) {
-                DbMapping dbm = (DbMapping) i.next();
-                if (dbm != null) {
-                    dbm.setLastDataChange();
-                }
+            for (Iterator i = dirtyDbMappings.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) i.next();
+                DbMapping dbm = (DbMapping) entry.getKey();
+                dbm.setLastDataChange((DataPartitions.Changes) entry.getValue());
             }
         }
 
@@ -486,6 +672,9 @@ public class Transactor {
         }
         nmgr.app.logAccess(msg.toString());
 
+        // return pooled JDBC connections
+        releasePooledConnections(true);
+
         // unset transaction name
         tname = null;
     }
@@ -588,14 +777,19 @@ public class Transactor {
     }
 
     /**
-     * Closes all open JDBC connections
+     * Closes all open JDBC connections, returning pooled connections to their pools
      */
     public void closeConnections() {
         if (this.sqlConnections != null) {
-            for (Iterator i = this.sqlConnections.values().iterator(); i.hasNext();) {
+            // return pooled connections to their pools
+            releasePooledConnections(false);
+
+            for (Iterator i = this.sqlConnections.entrySet().iterator(); i.hasNext();) {
                 try {
-                    Connection con = (Connection) i.next();
+                    Map.Entry entry = (Map.Entry) i.next();
+                    Connection con = (Connection) entry.getValue();
 
+                    ((DbSource) entry.getKey()).closeStatements(con);
                     con.close();
                     this.nmgr.app.logEvent(Messages.getString("Transactor.16") + con); //$NON-NLS-1$
                 } catch (Exception ignore) {
@@ -130,15 +130,39 @@ public final class WrappedNodeManager {
     }
 
     /**
-     * @see helma.objectmodel.db.NodeManager#updateSubnodeList(Node, Relation)
+     * @see helma.objectmodel.db.NodeManager#getKeysetPage(Node, Relation, String, int)
      */
-    /* public int updateSubnodeList (Node home, Relation rel) {
+    public KeysetPage getKeysetPage(Node home, Relation rel, String token, int length) {
         try {
-            return nmgr.updateSubnodeList(home, rel);
+            return this.nmgr.getKeysetPage(home, rel, token, length);
+        } catch (IllegalArgumentException x) {
+            throw x;
         } catch (Exception x) {
-            throw new RuntimeException("Error retrieving NodeIDs", x);
+            throw new RuntimeException(Messages.getString("WrappedNodeManager.6"), x); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * @see helma.objectmodel.db.NodeManager#updateSubnodeList(Node, Relation, SubnodeList)
+     */
+    public boolean updateSubnodeList(Node home, Relation rel, SubnodeList list) {
+        try {
+            return this.nmgr.updateSubnodeList(home, rel, list);
+        } catch (Exception x) {
+            throw new RuntimeException(Messages.getString("WrappedNodeManager.6"), x); //$NON-NLS-1$
         }
-    } */
+    }
+
+    /**
+     * @see helma.objectmodel.db.NodeManager#getHighWaterMark(Node, Relation)
+     */
+    public Object getHighWaterMark(Node home, Relation rel) {
+        try {
+            return this.nmgr.getHighWaterMark(home, rel);
+        } catch (Exception x) {
+            throw new RuntimeException(Messages.getString("WrappedNodeManager.6"), x); //$NON-NLS-1$
+        }
+    }
 
     /**
      * Count the nodes contained in the given Node's collection
@@ -111,6 +111,13 @@ public interface ScriptingEngineInterface {
      */
     public void abort();
 
+    /**
+     *  Let the evaluator know that the current evaluation should be aborted,
+     *  without interrupting or waiting for the thread running it. This is used
+     *  for evaluations running on threads the evaluator doesn't own.
+     */
+    public void cancel();
+
     /**
      * Get a global property
      * @param propertyName the property name
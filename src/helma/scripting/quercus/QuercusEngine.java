@@ -157,6 +157,16 @@ public class QuercusEngine implements ScriptingEngineInterface {
         this._environment.die();
     }
 
+    /*
+     * (non-Javadoc)
+     * @see helma.scripting.ScriptingEngineInterface#cancel()
+     */
+    @Override
+    public void cancel() {
+        // dying doesn't wait for the thread
+        this._environment.die();
+    }
+
     /*
      * (non-Javadoc)
      * @see org.warp.scripting.ScriptingEngine#deserialize(java.io.InputStream)
@@ -521,8 +521,8 @@ public class GlobalObject extends ImporterTopLevel implements PropertyRecorderIn
             return ""; //$NON-NLS-1$
         }
 
-        // try to make stringbuffer large enough from the start
-        StringBuffer buffer = new StringBuffer(Math.round(l * 1.4f));
+        // try to make string builder large enough from the start
+        StringBuilder buffer = new StringBuilder(Math.round(l * 1.4f));
 
         HtmlEncoder.encode(str, buffer, true, null);
 
@@ -18,6 +18,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -41,6 +42,7 @@ import helma.objectmodel.NodeInterface;
 import helma.objectmodel.PropertyInterface;
 import helma.objectmodel.TransientNode;
 import helma.objectmodel.db.DbMapping;
+import helma.objectmodel.db.KeysetPage;
 import helma.objectmodel.db.Node;
 import helma.objectmodel.db.NodeHandle;
 import helma.objectmodel.db.SubnodeList;
@@ -543,6 +545,52 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
         return Context.getCurrentContext().newArray(this.core.global, array);
     }
 
+    /**
+     *  Return a page of child objects of a collection declared with
+     *  <code>pagination = keyset</code> in type.properties. The first page is
+     *  fetched by passing no token, following pages by passing the token
+     *  returned with the previous page. Unlike list(start, length), this
+     *  doesn't get slower with the depth of the page. Child objects with a
+     *  null value in the order column are not included.
+     *
+     * @return A JavaScript Object with an items property containing the
+     *         child objects of the page, and a next property containing the
+     *         token for the following page, or null if this is the last page
+     */
+    public Scriptable jsFunction_listPage(Object lengthArg, Object tokenArg) {
+        int length = (int) ScriptRuntime.toNumber(lengthArg);
+        if (length < 1) {
+            throw new EvaluatorException(Messages.getString("HopObject.13")); //$NON-NLS-1$
+        }
+        String token = tokenArg == null || tokenArg == Undefined.instance ?
+                null : ScriptRuntime.toString(tokenArg);
+
+        NodeInterface node = getNode();
+        KeysetPage page = null;
+        try {
+            if (node instanceof Node) {
+                page = ((Node) node).getChildPage(token, length);
+            }
+        } catch (IllegalArgumentException x) {
+            throw new EvaluatorException(x.getMessage());
+        }
+        if (page == null) {
+            throw new EvaluatorException(Messages.getString("HopObject.14")); //$NON-NLS-1$
+        }
+
+        List handles = page.getHandles();
+        Object[] array = new Object[handles.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = this.core.getNodeWrapper((NodeHandle) handles.get(i));
+        }
+
+        Context cx = Context.getCurrentContext();
+        Scriptable result = cx.newObject(this.core.global);
+        result.put("items", result, cx.newArray(this.core.global, array)); //$NON-NLS-1$
+        result.put("next", result, page.getNextToken()); //$NON-NLS-1$
+        return result;
+    }
+
     /**
      *
      *
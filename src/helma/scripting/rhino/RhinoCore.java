@@ -90,6 +90,9 @@ public final class RhinoCore implements ScopeProvider {
     // as the app remains unchanged
     long updateSnooze = 500;
 
+    // code generation checked by the last update, see Application.isCodeChangeTracked()
+    volatile long checkedCodeGeneration = -1;
+
     /**
      *  Create a Rhino evaluator for the given application and request evaluator.
      */
@@ -368,9 +371,25 @@ public final class RhinoCore implements ScopeProvider {
      *  engine know it should update its prototype information. The update policy
      *  here is to check for update those prototypes which already have been compiled
      *  before. Others will be updated/compiled on demand.
+     *
+     *  If the application's code is frozen or its repositories are watched,
+     *  prototypes are only checked if the application's code generation has
+     *  changed, without taking any locks in between.
      */
-    public synchronized void updatePrototypes() throws IOException {
-        if ((System.currentTimeMillis() - this.lastUpdate) < 1000L + this.updateSnooze + Long.parseLong(this.app.getProperty("updateDelay", "0"))) { //$NON-NLS-1$ //$NON-NLS-2$
+    public void updatePrototypes() throws IOException {
+        if (this.app.isCodeChangeTracked() && this.checkedCodeGeneration == this.app.getCodeGeneration()) {
+            return;
+        }
+        doUpdatePrototypes();
+    }
+
+    private synchronized void doUpdatePrototypes() throws IOException {
+        long generation = this.app.getCodeGeneration();
+        if (this.app.isCodeChangeTracked()) {
+            if (this.checkedCodeGeneration == generation) {
+                return;
+            }
+        } else if ((System.currentTimeMillis() - this.lastUpdate) < 1000L + this.updateSnooze + Long.parseLong(this.app.getProperty("updateDelay", "0"))) { //$NON-NLS-1$ //$NON-NLS-2$
             return;
         }
 
@@ -415,6 +434,7 @@ public final class RhinoCore implements ScopeProvider {
         // max updateSnooze is 4 seconds, reached after 66.6 idle minutes
         long newSnooze = (this.lastUpdate - this.app.typemgr.getLastCodeUpdate()) / 1000;
         this.updateSnooze = Math.min(4000, Math.max(0, newSnooze));
+        this.checkedCodeGeneration = generation;
     }
 
     /**
@@ -378,6 +378,15 @@ public class RhinoEngine implements ScriptingEngineInterface {
         }
     }
 
+    /**
+     *  Let the evaluator know that the current evaluation should be
+     *  aborted. The running script will notice on its next instruction
+     *  count check.
+     */
+    public void cancel() {
+        this.thread = null;
+    }
+
     /**
      *  Let the evaluator know that the current evaluation has been
      *  aborted.
@@ -14,12 +14,13 @@
 
 package helma.servlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.HashMap;
@@ -28,6 +29,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.StringTokenizer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -48,10 +51,12 @@ import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletRequestContext;
 
 import helma.framework.CookieTrans;
+import helma.framework.HeaderWriterInterface;
 import helma.framework.RequestTrans;
 import helma.framework.ResponseTrans;
 import helma.framework.UploadStatus;
 import helma.framework.core.Application;
+import helma.util.CacheMap;
 import helma.util.MimePart;
 import helma.util.UrlEncoded;
 
@@ -85,6 +90,21 @@ public abstract class AbstractServletClient extends HttpServlet {
     // enable debug output
     boolean debug;
 
+    // compress responses for clients accepting gzip or deflate encoding
+    boolean compression;
+
+    // minimal content length in bytes for compressing responses
+    int compressionThreshold = 1024;
+
+    // cache of compressed bodies of cacheable responses, keyed by encoding and body digest
+    CacheMap compressedCache = new CacheMap(200);
+
+    // maximal size of compressed bodies kept in the cache
+    static final int COMPRESSED_CACHE_LIMIT = 262144;
+
+    // sends forwarded files, keeping small ones in memory
+    FileSender fileSender;
+
     // soft fail on file upload errors by setting flag "helma_upload_error" in RequestTrans
     // if fals, an error response is written to the client immediately without entering helma
     boolean uploadSoftfail = false;
@@ -145,6 +165,21 @@ public abstract class AbstractServletClient extends HttpServlet {
         // generally disable response caching for clients?
         this.caching = !("false".equalsIgnoreCase(init.getInitParameter("caching")));  //$NON-NLS-1$//$NON-NLS-2$
 
+        // compression of responses, disabled unless explicitly enabled
+        this.compression = "true".equalsIgnoreCase(init.getInitParameter("compression"));  //$NON-NLS-1$//$NON-NLS-2$
+        upstr = init.getInitParameter("compressionThreshold"); //$NON-NLS-1$
+        try {
+            this.compressionThreshold = (upstr == null) ? 1024 : Integer.parseInt(upstr.trim());
+        } catch (NumberFormatException x) {
+            log(Messages.getString("AbstractServletClient.20") + upstr); //$NON-NLS-1$
+            this.compressionThreshold = 1024;
+        }
+
+        // cache for forwarded files
+        long fileCacheSize = getLongParameter(init, "fileCacheSize", 16777216L); //$NON-NLS-1$
+        long fileCacheThreshold = getLongParameter(init, "fileCacheThreshold", 262144L); //$NON-NLS-1$
+        this.fileSender = new FileSender(fileCacheSize, fileCacheThreshold);
+
         // Get random number generator for session ids
         try {
             this.random = SecureRandom.getInstance("SHA1PRNG"); //$NON-NLS-1$
@@ -160,6 +195,19 @@ public abstract class AbstractServletClient extends HttpServlet {
 
     }
 
+    /**
+     * Get a numeric init parameter, logging invalid values.
+     */
+    private long getLongParameter(ServletConfig init, String name, long defaultValue) {
+        String value = init.getInitParameter(name);
+        try {
+            return (value == null) ? defaultValue : Long.parseLong(value.trim());
+        } catch (NumberFormatException x) {
+            log(Messages.getString("AbstractServletClient.21") + name + ": " + value); //$NON-NLS-1$ //$NON-NLS-2$
+            return defaultValue;
+        }
+    }
+
     /**
      * Abstract method to get the {@link helma.framework.core.Application Applicaton}
      * instance the servlet is talking to.
@@ -182,6 +230,9 @@ public abstract class AbstractServletClient extends HttpServlet {
                 throws IOException {
 
         RequestTrans reqtrans = new RequestTrans(request, response, getPathInfo(request));
+        if (this.compression) {
+            reqtrans.addUncompressedETags();
+        }
 
         try {
             // get the character encoding
@@ -235,6 +286,20 @@ public abstract class AbstractServletClient extends HttpServlet {
             // check if session cookie is present and valid, creating it if not.
             checkSessionCookie(request, response, reqtrans, resCookieDomain);
 
+            // let streamed responses write their headers before they are complete
+            final HttpServletRequest streamRequest = request;
+            final HttpServletResponse streamResponse = response;
+            final String streamCookieDomain = resCookieDomain;
+            reqtrans.setHeaderWriter(new HeaderWriterInterface() {
+                public void writeHeaders(ResponseTrans res) throws IOException {
+                    writeCookies(streamResponse, res, streamCookieDomain);
+                    if (res.getETag() != null) {
+                        streamResponse.setHeader("ETag", res.getETag()); //$NON-NLS-1$
+                    }
+                    AbstractServletClient.this.writeHeaders(streamRequest, streamResponse, res);
+                }
+            });
+
             // read and set http parameters
             parseParameters(request, reqtrans, encoding);
 
@@ -291,18 +356,7 @@ public abstract class AbstractServletClient extends HttpServlet {
             }
 
             // set cookies
-            if (restrans.countCookies() > 0) {
-                CookieTrans[] resCookies = restrans.getCookies();
-
-                for (int i = 0; i < resCookies.length; i++)
-                    try {
-                        Cookie c = resCookies[i].getCookie("/", resCookieDomain); //$NON-NLS-1$
-
-                        response.addCookie(c);
-                    } catch (Exception x) {
-                        getApplication().logEvent(Messages.getString("AbstractServletClient.7") + x); //$NON-NLS-1$
-                    }
-            }
+            writeCookies(response, restrans, resCookieDomain);
 
             // write response
             writeResponse(request, response, restrans);
@@ -331,47 +385,51 @@ public abstract class AbstractServletClient extends HttpServlet {
             return;
         }
 
-        if (hopres.getETag() != null) {
-            res.setHeader("ETag", hopres.getETag()); //$NON-NLS-1$
-        }
+        String etag = hopres.getETag();
 
         if (hopres.getRedirect() != null) {
+            if (etag != null) {
+                res.setHeader("ETag", etag); //$NON-NLS-1$
+            }
             sendRedirect(req, res, hopres.getRedirect(), hopres.getStatus());
         } else if (hopres.getNotModified()) {
+            if (etag != null) {
+                // answer with the ETag of the variant the client has cached
+                String encoding = this.compression ? getAcceptedEncoding(req) : null;
+                String inm = req.getHeader("If-None-Match"); //$NON-NLS-1$
+                if (encoding != null && inm != null
+                        && inm.indexOf(getVariantETag(etag, encoding)) > -1) {
+                    etag = getVariantETag(etag, encoding);
+                }
+                if (this.compression) {
+                    res.addHeader("Vary", "Accept-Encoding"); //$NON-NLS-1$ //$NON-NLS-2$
+                }
+                res.setHeader("ETag", etag); //$NON-NLS-1$
+            }
             res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
         } else {
-            if (!hopres.isCacheable() || !this.caching) {
-                // Disable caching of response.
-                if (isOneDotOne(req.getProtocol())) {
-                    // for HTTP 1.1
-                    res.setHeader("Cache-Control", //$NON-NLS-1$
-                                  "no-cache, no-store, must-revalidate, max-age=0"); //$NON-NLS-1$
-                } else {
-                    // for HTTP 1.0
-                    res.setDateHeader("Expires", System.currentTimeMillis() - 10000); //$NON-NLS-1$
-                    res.setHeader("Pragma", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+            writeHeaders(req, res, hopres);
+            byte[] content = hopres.getContent();
+
+            if (isCompressible(res, hopres)) {
+                // let caches know the body depends on the accepted encodings
+                res.addHeader("Vary", "Accept-Encoding"); //$NON-NLS-1$ //$NON-NLS-2$
+                String encoding = getAcceptedEncoding(req);
+                if (encoding != null) {
+                    content = compress(content, encoding, hopres);
+                    res.setHeader("Content-Encoding", encoding); //$NON-NLS-1$
+                    // the compressed variant needs an ETag of its own
+                    if (etag != null) {
+                        etag = getVariantETag(etag, encoding);
+                    }
                 }
             }
-
-            if (hopres.getRealm() != null) {
-                res.setHeader("WWW-Authenticate", "Basic realm=\"" + hopres.getRealm() + "\""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-            }
-
-            if (hopres.getStatus() > 0) {
-                res.setStatus(hopres.getStatus());
-            }
-
-            // set last-modified header to now
-            long modified = hopres.getLastModified();
-            if (modified > -1) {
-                res.setDateHeader("Last-Modified", modified); //$NON-NLS-1$
+            if (etag != null) {
+                res.setHeader("ETag", etag); //$NON-NLS-1$
             }
-
-            res.setContentLength(hopres.getContentLength());
-            res.setContentType(hopres.getContentType());
+            res.setContentLength(content == null ? 0 : content.length);
 
             if (!"HEAD".equalsIgnoreCase(req.getMethod())) { //$NON-NLS-1$
-                byte[] content = hopres.getContent();
                 if (content != null) {
                     try {
                         OutputStream out = res.getOutputStream();
@@ -385,6 +443,160 @@ public abstract class AbstractServletClient extends HttpServlet {
         }
     }
 
+    /**
+     * Check whether the body of a response is worth compressing, i.e. compression
+     * is enabled, the body is large enough, of a textual content type and not
+     * already encoded by the application.
+     */
+    boolean isCompressible(HttpServletResponse res, ResponseTrans hopres) {
+        if (!this.compression || hopres.getContentLength() < this.compressionThreshold ||
+                hopres.getStatus() == HttpServletResponse.SC_PARTIAL_CONTENT ||
+                res.containsHeader("Content-Encoding")) { //$NON-NLS-1$
+            return false;
+        }
+        String type = hopres.getContentType();
+        if (type == null) {
+            return false;
+        }
+        type = type.toLowerCase();
+        return type.startsWith("text/") || type.indexOf("xml") > -1 || //$NON-NLS-1$ //$NON-NLS-2$
+               type.indexOf("json") > -1 || type.indexOf("javascript") > -1; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Get the content encoding to use for a request from its Accept-Encoding
+     * header, preferring gzip over deflate.
+     *
+     * @return "gzip", "deflate" or null if the client accepts neither
+     */
+    String getAcceptedEncoding(HttpServletRequest req) {
+        String header = req.getHeader("Accept-Encoding"); //$NON-NLS-1$
+        if (header == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        StringTokenizer st = new StringTokenizer(header.toLowerCase(), ","); //$NON-NLS-1$
+        while (st.hasMoreTokens()) {
+            String token = st.nextToken().trim();
+            int semi = token.indexOf(';');
+            String coding = semi < 0 ? token : token.substring(0, semi).trim();
+            // an explicit q=0 means the coding is not acceptable
+            if (semi > -1 && token.substring(semi + 1).replace(" ", "").matches("q=0(\\.0*)?")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                continue;
+            }
+            if ("gzip".equals(coding) || "x-gzip".equals(coding) || "*".equals(coding)) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                gzip = true;
+            } else if ("deflate".equals(coding)) { //$NON-NLS-1$
+                deflate = true;
+            }
+        }
+        return gzip ? "gzip" : (deflate ? "deflate" : null); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Get the ETag of the compressed variant of a response, made from the ETag
+     * of the uncompressed body and the content encoding.
+     */
+    static String getVariantETag(String etag, String encoding) {
+        if (etag.length() > 1 && etag.endsWith("\"")) { //$NON-NLS-1$
+            // keep quoted ETags quoted
+            return etag.substring(0, etag.length() - 1) + "-" + encoding + "\""; //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return etag + "-" + encoding; //$NON-NLS-1$
+    }
+
+    /**
+     * Compress the body of a response. Compressed bodies of cacheable responses
+     * are cached by a digest of the uncompressed body, so unchanged responses
+     * aren't compressed again. ETags can't be used as keys since they are
+     * set by the application and needn't identify the body.
+     */
+    byte[] compress(byte[] content, String encoding, ResponseTrans hopres)
+            throws IOException {
+        String key = null;
+        if (hopres.isCacheable()) {
+            try {
+                byte[] digest = MessageDigest.getInstance("MD5").digest(content); //$NON-NLS-1$
+                key = encoding + ":" + new String(Base64.encodeBase64(digest)); //$NON-NLS-1$
+            } catch (NoSuchAlgorithmException nsa) {
+                // don't cache
+            }
+        }
+        if (key != null) {
+            byte[] cached = (byte[]) this.compressedCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 3 + 64);
+        OutputStream out = "gzip".equals(encoding) ? //$NON-NLS-1$
+                new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes);
+        out.write(content);
+        out.close();
+        byte[] compressed = bytes.toByteArray();
+
+        if (key != null && compressed.length <= COMPRESSED_CACHE_LIMIT) {
+            this.compressedCache.put(key, compressed);
+        }
+        return compressed;
+    }
+
+    /**
+     * Set the cookies of a response on the servlet response.
+     */
+    void writeCookies(HttpServletResponse response, ResponseTrans restrans, String cookieDomain) {
+        if (restrans.countCookies() > 0) {
+            CookieTrans[] resCookies = restrans.getCookies();
+
+            for (int i = 0; i < resCookies.length; i++)
+                try {
+                    Cookie c = resCookies[i].getCookie("/", cookieDomain); //$NON-NLS-1$
+
+                    response.addCookie(c);
+                } catch (Exception x) {
+                    getApplication().logEvent(Messages.getString("AbstractServletClient.7") + x); //$NON-NLS-1$
+                }
+        }
+    }
+
+    /**
+     * Set the status and headers of a response on the servlet response, except
+     * for the ETag and content length. This is also used to write the headers
+     * of streamed responses, which don't have a content length.
+     */
+    void writeHeaders(HttpServletRequest req, HttpServletResponse res, ResponseTrans hopres) {
+        if (!hopres.isCacheable() || !this.caching) {
+            // Disable caching of response.
+            if (isOneDotOne(req.getProtocol())) {
+                // for HTTP 1.1
+                res.setHeader("Cache-Control", //$NON-NLS-1$
+                              "no-cache, no-store, must-revalidate, max-age=0"); //$NON-NLS-1$
+            } else {
+                // for HTTP 1.0
+                res.setDateHeader("Expires", System.currentTimeMillis() - 10000); //$NON-NLS-1$
+                res.setHeader("Pragma", "no-cache"); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+
+        if (hopres.getRealm() != null) {
+            res.setHeader("WWW-Authenticate", "Basic realm=\"" + hopres.getRealm() + "\""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+
+        if (hopres.getStatus() > 0) {
+            res.setStatus(hopres.getStatus());
+        }
+
+        // set last-modified header to now
+        long modified = hopres.getLastModified();
+        if (modified > -1) {
+            res.setDateHeader("Last-Modified", modified); //$NON-NLS-1$
+        }
+
+        res.setContentType(hopres.getContentType());
+    }
+
     void sendError(HttpServletResponse response, int code, String message)
             throws IOException {
         if (response.isCommitted()) {
@@ -481,52 +693,23 @@ public abstract class AbstractServletClient extends HttpServlet {
         }
 
         File file = new File(path);
+        if (!file.isFile() || !file.canRead()) {
+            throw new IOException(Messages.getString("AbstractServletClient.17") + path); //$NON-NLS-1$
+        }
         // check if the client has an up-to-date copy so we can
         // send a not-modified response
-        if (checkNotModified(file, req, res)) {
+        String etag = getETag(file);
+        if (checkNotModified(file, etag, req, res)) {
             res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
             return;
         }
-        int length = (int) file.length();
-        res.setContentLength(length);
         // Erase charset so content-type is not messed with.
         hopres.setCharset(null);
-        res.setContentType(hopres.getContentType());
-        // Define full Content-Range, as required by HTML5 video and audio
-        res.setHeader("Content-Range", "bytes 0-" + length + "/" + length);  //$NON-NLS-1$ //$NON-NLS-2$//$NON-NLS-3$
-
-        InputStream in = cx.getResourceAsStream(forward);
-        if (in == null) {
-            throw new IOException(Messages.getString("AbstractServletClient.17") + path); //$NON-NLS-1$
-        }
-        try {
-            OutputStream out = res.getOutputStream();
-
-            int bufferSize = 4096;
-            byte buffer[] = new byte[bufferSize];
-            int l;
-
-            while (length > 0) {
-                if (length < bufferSize) {
-                    l = in.read(buffer, 0, length);
-                } else {
-                    l = in.read(buffer, 0, bufferSize);
-                }
-                if (l == -1) {
-                    break;
-                }
-
-                length -= l;
-                out.write(buffer, 0, l);
-            }
-        } finally {
-            in.close();
-        }
+        // send the file or the requested ranges of it, as required by HTML5 video and audio
+        this.fileSender.send(req, res, file, hopres.getContentType(), etag);
     }
 
-    private boolean checkNotModified(File file, HttpServletRequest req, HttpServletResponse res) {
-        // we do two rounds of conditional requests:
-        // first ETag based, then based on last modified date.
+    private String getETag(File file) {
         // calculate ETag checksum on last modified date and content length.
         byte[] checksum = new byte[16];
         long n = file.lastModified();
@@ -539,7 +722,12 @@ public abstract class AbstractServletClient extends HttpServlet {
             checksum[i] = (byte) (n);
             n >>>= 8;
         }
-        String etag = "\"" + new String(Base64.encodeBase64(checksum)) + "\"";  //$NON-NLS-1$//$NON-NLS-2$
+        return "\"" + new String(Base64.encodeBase64(checksum)) + "\"";  //$NON-NLS-1$//$NON-NLS-2$
+    }
+
+    private boolean checkNotModified(File file, String etag, HttpServletRequest req, HttpServletResponse res) {
+        // we do two rounds of conditional requests:
+        // first ETag based, then based on last modified date.
         res.setHeader("ETag", etag); //$NON-NLS-1$
         String etagHeader = req.getHeader("If-None-Match"); //$NON-NLS-1$
         if (etagHeader != null) {
@@ -0,0 +1,468 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 2017 Helma Project. All Rights Reserved.
+ */
+
+package helma.servlet;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+/**
+ * Sends files to the client, supporting single and multiple byte ranges as
+ * requested by the Range and If-Range headers. Small files are kept in a
+ * cache of direct buffers bounded by the total size of the files it holds,
+ * which the embedded Jetty server passes on to the socket without copying
+ * them to the heap. Larger files are read with positional channel reads
+ * rather than mapped, since they may be truncated while being sent.
+ */
+class FileSender {
+
+    // the maximal number of ranges served as multipart response
+    static final int MAX_RANGES = 16;
+
+    // the size of the buffer used to read files not in the cache
+    static final int READ_CHUNK = 65536;
+
+    static final Charset ASCII = Charset.forName("US-ASCII"); //$NON-NLS-1$
+
+    // whether we can pass buffers to Jetty's output directly
+    static final boolean JETTY_OUTPUT = isJettyOutputAvailable();
+
+    // cache of file contents by absolute path, in access order
+    private final LinkedHashMap cache = new LinkedHashMap(16, 0.75f, true);
+
+    // total size of the files in the cache
+    private long cacheSize = 0;
+
+    // maximal total size of the files in the cache
+    private final long maxCacheSize;
+
+    // maximal size of a single file in the cache
+    private final long maxFileSize;
+
+    /**
+     * Create a file sender.
+     * @param maxCacheSize maximal total size in bytes of the files kept in memory
+     * @param maxFileSize maximal size in bytes of a file to keep in memory
+     */
+    FileSender(long maxCacheSize, long maxFileSize) {
+        this.maxCacheSize = maxCacheSize;
+        // buffers are limited to Integer.MAX_VALUE bytes
+        this.maxFileSize = Math.min(Math.min(maxFileSize, maxCacheSize), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Send a file or the ranges of it requested by the client. The caller
+     * is expected to have set the ETag and Last-Modified headers.
+     *
+     * @param req the servlet request
+     * @param res the servlet response
+     * @param file the file to send
+     * @param contentType the content type of the file
+     * @param etag the entity tag of the file, used to evaluate If-Range
+     * @throws IOException if the file can't be read or the response written
+     */
+    void send(HttpServletRequest req, HttpServletResponse res, File file,
+              String contentType, String etag) throws IOException {
+        // take the length from the content we are going to send, so that
+        // ranges computed from it stay within the content
+        ByteBuffer cached = getCached(file);
+        RandomAccessFile raf = null;
+        try {
+            long length;
+            if (cached != null) {
+                length = cached.capacity();
+            } else {
+                raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+                length = raf.getChannel().size();
+            }
+            Content content = new Content(file, cached, raf == null ? null : raf.getChannel());
+            send(req, res, content, length, contentType, etag);
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+    }
+
+    private void send(HttpServletRequest req, HttpServletResponse res, Content content,
+                      long length, String contentType, String etag) throws IOException {
+        File file = content.file;
+        boolean head = "HEAD".equalsIgnoreCase(req.getMethod()); //$NON-NLS-1$
+        res.setHeader("Accept-Ranges", "bytes"); //$NON-NLS-1$ //$NON-NLS-2$
+
+        List ranges = null;
+        String rangeHeader = req.getHeader("Range"); //$NON-NLS-1$
+        if (rangeHeader != null && isRangeValid(req, file, etag)) {
+            ranges = parseRanges(rangeHeader, length);
+            if (ranges != null && ranges.isEmpty()) {
+                res.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                res.setHeader("Content-Range", "bytes */" + length); //$NON-NLS-1$ //$NON-NLS-2$
+                return;
+            }
+        }
+
+        if (ranges == null) {
+            // send the whole file
+            setContentLength(res, length);
+            res.setContentType(contentType);
+            if (!head) {
+                content.write(res.getOutputStream(), 0, length);
+            }
+        } else if (ranges.size() == 1) {
+            long[] range = (long[]) ranges.get(0);
+            res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            res.setHeader("Content-Range", getContentRange(range, length)); //$NON-NLS-1$
+            setContentLength(res, range[1] - range[0] + 1);
+            res.setContentType(contentType);
+            if (!head) {
+                content.write(res.getOutputStream(), range[0], range[1] - range[0] + 1);
+            }
+        } else {
+            String boundary = Long.toHexString(System.nanoTime()) +
+                              Long.toHexString(Double.doubleToLongBits(Math.random()));
+            byte[][] partHeaders = new byte[ranges.size()][];
+            long total = 0;
+            for (int i = 0; i < partHeaders.length; i++) {
+                long[] range = (long[]) ranges.get(i);
+                StringBuffer b = new StringBuffer("\r\n--").append(boundary); //$NON-NLS-1$
+                if (contentType != null) {
+                    b.append("\r\nContent-Type: ").append(contentType); //$NON-NLS-1$
+                }
+                b.append("\r\nContent-Range: ").append(getContentRange(range, length)) //$NON-NLS-1$
+                 .append("\r\n\r\n"); //$NON-NLS-1$
+                partHeaders[i] = b.toString().getBytes(ASCII);
+                total += partHeaders[i].length + range[1] - range[0] + 1;
+            }
+            byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(ASCII); //$NON-NLS-1$ //$NON-NLS-2$
+            total += end.length;
+
+            res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            res.setContentType("multipart/byteranges; boundary=" + boundary); //$NON-NLS-1$
+            setContentLength(res, total);
+            if (!head) {
+                OutputStream out = res.getOutputStream();
+                for (int i = 0; i < partHeaders.length; i++) {
+                    long[] range = (long[]) ranges.get(i);
+                    out.write(partHeaders[i]);
+                    content.write(out, range[0], range[1] - range[0] + 1);
+                }
+                out.write(end);
+            }
+        }
+    }
+
+    /**
+     * Check whether the Range header applies, i.e. there is no If-Range
+     * header or it matches the current entity tag or modification date.
+     */
+    boolean isRangeValid(HttpServletRequest req, File file, String etag) {
+        String ifRange = req.getHeader("If-Range"); //$NON-NLS-1$
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) { //$NON-NLS-1$ //$NON-NLS-2$
+            // weak entity tags never match for ranges
+            return ifRange.equals(etag);
+        }
+        try {
+            long date = req.getDateHeader("If-Range"); //$NON-NLS-1$
+            return date == (file.lastModified() / 1000) * 1000;
+        } catch (IllegalArgumentException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Parse a Range header into a list of satisfiable ranges, sorted and
+     * with overlapping or adjacent ranges merged.
+     *
+     * @param header the Range header
+     * @param length the length of the file
+     * @return a list of long[] {first, last} byte positions, an empty list if
+     * no range is satisfiable, or null if the header is invalid or requests
+     * too many ranges and should be ignored
+     */
+    static List parseRanges(String header, long length) {
+        header = header.trim();
+        if (!header.startsWith("bytes=")) { //$NON-NLS-1$
+            return null;
+        }
+        List ranges = new ArrayList();
+        StringTokenizer st = new StringTokenizer(header.substring(6), ","); //$NON-NLS-1$
+        try {
+            while (st.hasMoreTokens()) {
+                String spec = st.nextToken().trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start, end;
+                if (first.length() == 0) {
+                    // suffix range: the last n bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.length() == 0 ? length - 1 :
+                            Math.min(Long.parseLong(last), length - 1);
+                    if (end < start && last.length() > 0 && Long.parseLong(last) < start) {
+                        return null;
+                    }
+                }
+                if (start < length && start <= end) {
+                    ranges.add(new long[] {start, end});
+                }
+            }
+        } catch (NumberFormatException x) {
+            return null;
+        }
+
+        if (ranges.size() > 1) {
+            Collections.sort(ranges, new Comparator() {
+                public int compare(Object o1, Object o2) {
+                    long d = ((long[]) o1)[0] - ((long[]) o2)[0];
+                    return d < 0 ? -1 : (d > 0 ? 1 : 0);
+                }
+            });
+            List merged = new ArrayList();
+            long[] current = (long[]) ranges.get(0);
+            for (int i = 1; i < ranges.size(); i++) {
+                long[] next = (long[]) ranges.get(i);
+                if (next[0] <= current[1] + 1) {
+                    current[1] = Math.max(current[1], next[1]);
+                } else {
+                    merged.add(current);
+                    current = next;
+                }
+            }
+            merged.add(current);
+            ranges = merged;
+        }
+        if (ranges.size() > MAX_RANGES) {
+            // don't let clients make us send lots of tiny parts
+            return null;
+        }
+        return ranges;
+    }
+
+    static String getContentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    static void setContentLength(HttpServletResponse res, long length) {
+        if (length <= Integer.MAX_VALUE) {
+            res.setContentLength((int) length);
+        } else {
+            res.setHeader("Content-Length", Long.toString(length)); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Write a buffer to an output stream, passing it directly to Jetty if possible.
+     */
+    static void write(OutputStream out, ByteBuffer buffer) throws IOException {
+        if (JETTY_OUTPUT && JettyOutput.write(out, buffer)) {
+            return;
+        }
+        byte[] bytes = new byte[Math.min(8192, buffer.remaining())];
+        while (buffer.hasRemaining()) {
+            int l = Math.min(bytes.length, buffer.remaining());
+            buffer.get(bytes, 0, l);
+            out.write(bytes, 0, l);
+        }
+    }
+
+    /**
+     * Get the content of a file from the cache, reading and adding it if it
+     * is small enough.
+     *
+     * @return the file content, or null if the file is too large or changed
+     *         while being read
+     */
+    ByteBuffer getCached(File file) throws IOException {
+        long length = file.length();
+        if (length > this.maxFileSize || length == 0) {
+            return null;
+        }
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        synchronized (this.cache) {
+            CachedFile cached = (CachedFile) this.cache.get(key);
+            if (cached != null) {
+                if (cached.lastModified == lastModified && cached.buffer.capacity() == length) {
+                    return cached.buffer;
+                }
+                this.cache.remove(key);
+                this.cacheSize -= cached.buffer.capacity();
+            }
+        }
+
+        // read rather than map the file, as truncating a mapped file
+        // makes accessing the mapping fail
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) length);
+        RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        try {
+            FileChannel channel = raf.getChannel();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) < 0) {
+                    return null;
+                }
+            }
+            if (channel.size() != length) {
+                return null;
+            }
+        } finally {
+            raf.close();
+        }
+        buffer.clear();
+
+        synchronized (this.cache) {
+            CachedFile previous = (CachedFile) this.cache.put(key, new CachedFile(buffer, lastModified));
+            if (previous != null) {
+                this.cacheSize -= previous.buffer.capacity();
+            }
+            this.cacheSize += length;
+            // evict least recently used files
+            Iterator it = this.cache.entrySet().iterator();
+            while (this.cacheSize > this.maxCacheSize && it.hasNext()) {
+                CachedFile eldest = (CachedFile) ((Map.Entry) it.next()).getValue();
+                it.remove();
+                this.cacheSize -= eldest.buffer.capacity();
+            }
+        }
+        return buffer;
+    }
+
+    static boolean isJettyOutputAvailable() {
+        try {
+            Class.forName("org.eclipse.jetty.server.HttpOutput"); //$NON-NLS-1$
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * The content of a file being sent, either a cached buffer or an open
+     * file channel.
+     */
+    static class Content {
+        final File file;
+        final ByteBuffer cached;
+        final FileChannel channel;
+
+        Content(File file, ByteBuffer cached, FileChannel channel) {
+            this.file = file;
+            this.cached = cached;
+            this.channel = channel;
+        }
+
+        /**
+         * Write a region of the content to an output stream.
+         */
+        void write(OutputStream out, long offset, long count) throws IOException {
+            if (count <= 0) {
+                return;
+            }
+            if (this.cached != null) {
+                ByteBuffer buffer = this.cached.duplicate();
+                buffer.limit((int) (offset + count));
+                buffer.position((int) offset);
+                FileSender.write(out, buffer);
+                return;
+            }
+
+            if (JETTY_OUTPUT && JettyOutput.accepts(out)) {
+                // read the file in chunks and let Jetty write them to the socket
+                ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(count, READ_CHUNK));
+                while (count > 0) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(count, buffer.capacity()));
+                    int read = this.channel.read(buffer, offset);
+                    if (read < 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    FileSender.write(out, buffer);
+                    offset += read;
+                    count -= read;
+                }
+            } else {
+                long written;
+                while (count > 0 &&
+                        (written = this.channel.transferTo(offset, count, Channels.newChannel(out))) > 0) {
+                    offset += written;
+                    count -= written;
+                }
+            }
+            if (count > 0) {
+                // the file has been truncated, abort the response
+                throw new EOFException(Messages.getString("FileSender.0") + this.file); //$NON-NLS-1$
+            }
+        }
+    }
+
+    static class CachedFile {
+        final ByteBuffer buffer;
+        final long lastModified;
+
+        CachedFile(ByteBuffer buffer, long lastModified) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Access to Jetty's output, kept in a separate class so it is only
+     * loaded when Jetty is available.
+     */
+    static class JettyOutput {
+
+        static boolean accepts(OutputStream out) {
+            return out instanceof HttpOutput;
+        }
+
+        static boolean write(OutputStream out, ByteBuffer buffer) throws IOException {
+            if (out instanceof HttpOutput) {
+                ((HttpOutput) out).write(buffer);
+                return true;
+            }
+            return false;
+        }
+    }
+}
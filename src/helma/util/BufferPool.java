@@ -0,0 +1,57 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.util;
+
+import java.util.ArrayList;
+
+/**
+ * A small pool of idle StringBuilders, used to avoid allocating new buffers
+ * each time a skin or macro is rendered to a string. A pool is owned by a
+ * single request evaluator and is not thread safe.
+ */
+public final class BufferPool {
+
+    // maximal number of idle buffers kept in the pool
+    static final int MAX_BUFFERS = 16;
+
+    // buffers with a larger capacity are left to the garbage collector
+    static final int MAX_CAPACITY = 65536;
+
+    private final ArrayList idle = new ArrayList(MAX_BUFFERS);
+
+    /**
+     * Get an empty buffer from the pool, or create a new one if the pool is empty.
+     *
+     * @return an empty buffer
+     */
+    public StringBuilder get() {
+        int size = this.idle.size();
+        if (size > 0) {
+            return (StringBuilder) this.idle.remove(size - 1);
+        }
+        return new StringBuilder(64);
+    }
+
+    /**
+     * Return a buffer that is no longer used to the pool. The caller
+     * must not use the buffer afterwards.
+     *
+     * @param buffer the buffer
+     */
+    public void release(StringBuilder buffer) {
+        if (buffer != null && this.idle.size() < MAX_BUFFERS &&
+                buffer.capacity() <= MAX_CAPACITY) {
+            buffer.setLength(0);
+            this.idle.add(buffer);
+        }
+    }
+}
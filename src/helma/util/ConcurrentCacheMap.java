@@ -0,0 +1,397 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import helma.framework.core.Application;
+import helma.objectmodel.ObjectCacheInterface;
+
+/**
+ * An object cache for many concurrent threads. Lookups don't take any locks,
+ * and entries are evicted in approximate least-recently-used order using the
+ * CLOCK algorithm: each lookup marks an entry as referenced, and the eviction
+ * hand moving over the entries in insertion order gives referenced entries a
+ * second chance instead of evicting them. Use it as node cache by setting the
+ * cacheimpl app property to helma.util.ConcurrentCacheMap. Like CacheMap, it
+ * holds up to cachesize entries.
+ */
+public class ConcurrentCacheMap implements ObjectCacheInterface {
+
+    // the cache entries by key
+    private final ConcurrentHashMap map;
+
+    // all entries in insertion order, the head of the queue is the eviction hand.
+    // entries removed from the map are skipped and dropped when reaching the head.
+    private final ConcurrentLinkedQueue queue = new ConcurrentLinkedQueue();
+
+    // number of entries in the queue, including removed ones
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // held while moving the eviction hand
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // maximal number of entries
+    private volatile int capacity;
+
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+    private final Counter evictions = new Counter();
+
+    // the application to output messages to
+    private Application app = null;
+
+    /**
+     * Zero argument constructor. Creates a cache with a capacity of 1000.
+     */
+    public ConcurrentCacheMap() {
+        this(1000);
+    }
+
+    /**
+     * Creates a cache with the given capacity.
+     *
+     * @param capacity the maximal number of entries
+     */
+    public ConcurrentCacheMap(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.capacity = capacity;
+        this.map = new ConcurrentHashMap(capacity + capacity / 3 + 16, 0.75f,
+                Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+    }
+
+    /**
+     * Set the application to use for debug and profiling output
+     */
+    public void init(Application app) {
+        this.app = app;
+        if (app != null) {
+            updateProperties(app.getProperties());
+        }
+    }
+
+    /**
+     * Called when the application using this cache is stopped. We
+     * simply clear out our cache contents.
+     */
+    public void shutdown() {
+        clear();
+    }
+
+    /**
+     * The app properties have been modified, reload settings
+     */
+    public void updateProperties(Properties props) {
+        try {
+            int cacheSize = Integer.parseInt(props.getProperty("cachesize", "1000"));  //$NON-NLS-1$//$NON-NLS-2$
+            setCapacity(cacheSize);
+        } catch (Exception x) {
+            String message = Messages.getString("ConcurrentCacheMap.1") + props.getProperty("cachesize");  //$NON-NLS-1$//$NON-NLS-2$
+            if (this.app != null) {
+                this.app.logError(message);
+            } else {
+                System.err.println(message);
+            }
+        }
+    }
+
+    /**
+     * Set the maximal number of entries, evicting entries if necessary.
+     *
+     * @param capacity the new capacity
+     */
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        if (capacity != this.capacity) {
+            if (this.app != null) {
+                this.app.logEvent(Messages.getString("ConcurrentCacheMap.0") + capacity); //$NON-NLS-1$
+            }
+            this.capacity = capacity;
+            evict();
+        }
+    }
+
+    public int size() {
+        return this.map.size();
+    }
+
+    public boolean containsKey(Object key) {
+        Entry entry = (Entry) this.map.get(key);
+        if (entry != null) {
+            entry.touch();
+            return true;
+        }
+        return false;
+    }
+
+    public int containsKeys(Object[] keys) {
+        int notfound = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (containsKey(keys[i])) {
+                keys[i] = null;
+            } else {
+                notfound++;
+            }
+        }
+        return notfound;
+    }
+
+    public Object get(Object key) {
+        Entry entry = (Entry) this.map.get(key);
+        if (entry != null) {
+            entry.touch();
+            this.hits.increment();
+            return entry.value;
+        }
+        this.misses.increment();
+        return null;
+    }
+
+    public Object put(Object key, Object value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            Entry entry = (Entry) this.map.get(key);
+            if (entry == null) {
+                if (insert(key, value)) {
+                    return null;
+                }
+            } else {
+                // replace the value unless the entry was removed concurrently
+                synchronized (entry) {
+                    if (!entry.removed) {
+                        Object oldValue = entry.value;
+                        entry.value = value;
+                        entry.referenced = true;
+                        return oldValue;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Put a value into the cache unless the key is already mapped. An
+     * existing entry is marked as referenced, just like by get().
+     *
+     * @param key the key
+     * @param value the value
+     * @return the value mapped to the key, or null if the value was added
+     */
+    public Object putIfAbsent(Object key, Object value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            Entry entry = (Entry) this.map.get(key);
+            if (entry == null) {
+                if (insert(key, value)) {
+                    return null;
+                }
+            } else if (!entry.removed) {
+                entry.touch();
+                return entry.value;
+            }
+            // entry was removed concurrently, retry
+        }
+    }
+
+    /**
+     * Replace the value mapped to a key only if it is the given value.
+     *
+     * @param key the key
+     * @param oldValue the value expected to be mapped to the key
+     * @param newValue the new value
+     * @return true if the value was replaced
+     */
+    public boolean replace(Object key, Object oldValue, Object newValue) {
+        if (newValue == null) {
+            throw new NullPointerException();
+        }
+        Entry entry = (Entry) this.map.get(key);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            if (entry.removed || entry.value != oldValue) {
+                return false;
+            }
+            entry.value = newValue;
+            entry.referenced = true;
+            return true;
+        }
+    }
+
+    /**
+     * Add a new entry unless the key has been mapped concurrently.
+     *
+     * @return true if the entry was added
+     */
+    private boolean insert(Object key, Object value) {
+        Entry entry = new Entry(key, value);
+        if (this.map.putIfAbsent(key, entry) != null) {
+            return false;
+        }
+        this.queue.add(entry);
+        this.queued.incrementAndGet();
+        if (this.map.size() > this.capacity ||
+                this.queued.get() > 2 * this.capacity + 64) {
+            evict();
+        }
+        return true;
+    }
+
+    public Object remove(Object key) {
+        Entry entry = (Entry) this.map.remove(key);
+        return entry == null ? null : entry.remove();
+    }
+
+    public boolean clear() {
+        for (Iterator i = this.map.values().iterator(); i.hasNext();) {
+            Entry entry = (Entry) i.next();
+            if (this.map.remove(entry.key, entry)) {
+                entry.remove();
+            }
+        }
+        evict();
+        return true;
+    }
+
+    public Object[] getCachedObjects() {
+        return this.map.keySet().toArray();
+    }
+
+    public Map<String,Object> getStatistics() {
+        Map<String,Object> stats = new HashMap<String,Object>();
+        stats.put("size", new Integer(size())); //$NON-NLS-1$
+        stats.put("capacity", new Integer(this.capacity)); //$NON-NLS-1$
+        stats.put("hits", new Long(this.hits.get())); //$NON-NLS-1$
+        stats.put("misses", new Long(this.misses.get())); //$NON-NLS-1$
+        stats.put("evictions", new Long(this.evictions.get())); //$NON-NLS-1$
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return this.map.toString() + hashCode();
+    }
+
+    /**
+     * Move the eviction hand until the cache is within its capacity, and drop
+     * removed entries from the queue if they make up most of it. If another
+     * thread is already evicting, this returns immediately.
+     */
+    private void evict() {
+        if (!this.evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            // each referenced entry gets a second chance, but stop after two rounds
+            // in case other threads keep marking entries as referenced
+            int steps = 2 * this.queued.get();
+            while (this.map.size() > this.capacity && steps-- > 0) {
+                Entry entry = (Entry) this.queue.poll();
+                if (entry == null) {
+                    break;
+                }
+                if (entry.removed) {
+                    this.queued.decrementAndGet();
+                } else if (entry.referenced) {
+                    entry.referenced = false;
+                    this.queue.add(entry);
+                } else {
+                    this.queued.decrementAndGet();
+                    if (this.map.remove(entry.key, entry)) {
+                        entry.remove();
+                        this.evictions.increment();
+                    }
+                }
+            }
+
+            if (this.queued.get() > 2 * this.map.size() + 64) {
+                for (Iterator i = this.queue.iterator(); i.hasNext();) {
+                    if (((Entry) i.next()).removed) {
+                        i.remove();
+                        this.queued.decrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * A cache entry.
+     */
+    static final class Entry {
+        final Object key;
+        volatile Object value;
+        volatile boolean referenced;
+        volatile boolean removed;
+
+        Entry(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        void touch() {
+            // avoid writing to shared memory if the flag is already set
+            if (!this.referenced) {
+                this.referenced = true;
+            }
+        }
+
+        synchronized Object remove() {
+            this.removed = true;
+            return this.value;
+        }
+    }
+
+    /**
+     * A counter striped over several cache lines, so threads on different
+     * cores incrementing it don't contend for the same memory.
+     */
+    static final class Counter {
+        // one slot every 8 longs, i.e. one per 64 byte cache line
+        private static final int STRIPES = 32;
+        private static final int SPACING = 8;
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * SPACING);
+
+        void increment() {
+            int stripe = (int) (Thread.currentThread().getId() % STRIPES);
+            this.cells.incrementAndGet(stripe * SPACING);
+        }
+
+        long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += this.cells.get(i * SPACING);
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ */
+
+package helma.util;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A simple thread safe histogram with fixed bucket boundaries. Values are
+ * counted in the first bucket whose upper bound is greater or equal to the
+ * value, values beyond the last bound are counted in an overflow bucket.
+ * Recording a value does not take any locks.
+ */
+public class Histogram {
+
+    // upper bounds of the buckets, in ascending order
+    private final long[] bounds;
+
+    // one counter per bucket plus one for the overflow bucket
+    private final AtomicLongArray counts;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Create a new histogram with the given bucket upper bounds.
+     *
+     * @param bounds the upper bounds of the buckets in ascending order
+     */
+    public Histogram(long[] bounds) {
+        if (bounds.length == 0) {
+            throw new IllegalArgumentException();
+        }
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value the value to record
+     */
+    public void record(long value) {
+        int i = 0;
+        while (i < this.bounds.length && value > this.bounds[i]) {
+            i++;
+        }
+        this.counts.incrementAndGet(i);
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+        long m = this.max.get();
+        while (value > m && !this.max.compareAndSet(m, value)) {
+            m = this.max.get();
+        }
+    }
+
+    /**
+     * Get the number of recorded values.
+     *
+     * @return the number of values recorded so far
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * Reset all counters of this histogram.
+     */
+    public void reset() {
+        for (int i = 0; i < this.counts.length(); i++) {
+            this.counts.set(i, 0);
+        }
+        this.count.set(0);
+        this.sum.set(0);
+        this.max.set(0);
+    }
+
+    /**
+     * Return a map containing the bucket counts keyed by their upper bound
+     * (&quot;&lt;=bound&quot; and &quot;&gt;bound&quot; for the overflow
+     * bucket) as well as the total count, mean and maximum value.
+     *
+     * @return a map of histogram statistics
+     */
+    public Map getStatistics() {
+        SystemMap buckets = new SystemMap();
+        for (int i = 0; i < this.bounds.length; i++) {
+            buckets.put("<=" + this.bounds[i], Long.valueOf(this.counts.get(i))); //$NON-NLS-1$
+        }
+        buckets.put(">" + this.bounds[this.bounds.length - 1], //$NON-NLS-1$
+                Long.valueOf(this.counts.get(this.bounds.length)));
+
+        SystemMap stats = new SystemMap();
+        long n = this.count.get();
+        stats.put("count", Long.valueOf(n)); //$NON-NLS-1$
+        stats.put("mean", Double.valueOf(n == 0 ? 0 : (double) this.sum.get() / n)); //$NON-NLS-1$
+        stats.put("max", Long.valueOf(this.max.get())); //$NON-NLS-1$
+        stats.put("buckets", buckets); //$NON-NLS-1$
+        return stats;
+    }
+}
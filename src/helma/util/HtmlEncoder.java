@@ -367,8 +367,8 @@ public final class HtmlEncoder {
             return ""; //$NON-NLS-1$
         }
 
-        // try to make stringbuffer large enough from the start
-        StringBuffer ret = new StringBuffer(Math.round(l * 1.4f));
+        // try to make string builder large enough from the start
+        StringBuilder ret = new StringBuilder(Math.round(l * 1.4f));
 
         encode(str, ret, false, null);
 
@@ -380,7 +380,7 @@ public final class HtmlEncoder {
      *  Helma macros and HTML comments are passed through unescaped, while
      *  other occurrences of '<', '>' and '&' are encoded to HTML entities.
      */
-    public final static void encode(String str, StringBuffer ret) {
+    public final static void encode(String str, StringBuilder ret) {
         encode(str, ret, false, null);
     }
 
@@ -395,7 +395,7 @@ public final class HtmlEncoder {
      *  @param allowedTags a set containing the names of allowed tags as strings. All other
      *                     tags will be escaped
      */
-    public final static void encode(String str, StringBuffer ret,
+    public final static void encode(String str, StringBuilder ret,
                                     boolean paragraphs, Set allowedTags) {
         if (str == null) {
             return;
@@ -824,7 +824,7 @@ public final class HtmlEncoder {
             return ""; //$NON-NLS-1$
         }
 
-        StringBuffer ret = new StringBuffer(Math.round(l * 1.2f));
+        StringBuilder ret = new StringBuilder(Math.round(l * 1.2f));
 
         encodeAll(str, ret, false);
 
@@ -834,7 +834,7 @@ public final class HtmlEncoder {
     /**
      *
      */
-    public final static void encodeFormValue(String str, StringBuffer ret) {
+    public final static void encodeFormValue(String str, StringBuilder ret) {
         encodeAll(str, ret, false);
     }
 
@@ -852,7 +852,7 @@ public final class HtmlEncoder {
             return ""; //$NON-NLS-1$
         }
 
-        StringBuffer ret = new StringBuffer(Math.round(l * 1.2f));
+        StringBuilder ret = new StringBuilder(Math.round(l * 1.2f));
 
         encodeAll(str, ret, true);
 
@@ -862,14 +862,14 @@ public final class HtmlEncoder {
     /**
      *
      */
-    public final static void encodeAll(String str, StringBuffer ret) {
+    public final static void encodeAll(String str, StringBuilder ret) {
         encodeAll(str, ret, true);
     }
 
     /**
      *
      */
-    public final static void encodeAll(String str, StringBuffer ret, boolean encodeNewline) {
+    public final static void encodeAll(String str, StringBuilder ret, boolean encodeNewline) {
         if (str == null) {
             return;
         }
@@ -934,7 +934,7 @@ public final class HtmlEncoder {
             return ""; //$NON-NLS-1$
         }
 
-        StringBuffer ret = new StringBuffer(Math.round(l * 1.2f));
+        StringBuilder ret = new StringBuilder(Math.round(l * 1.2f));
         encodeXml(str, ret);
         return ret.toString();
     }
@@ -945,7 +945,7 @@ public final class HtmlEncoder {
      * @param str ...
      * @param ret ...
      */
-    public final static void encodeXml(String str, StringBuffer ret) {
+    public final static void encodeXml(String str, StringBuilder ret) {
         if (str == null) {
             return;
         }
@@ -991,6 +991,67 @@ public final class HtmlEncoder {
         }
     }
 
+    /**
+     *  Compatibility version of {@link #encode(String, StringBuilder)}
+     *  for code using StringBuffers.
+     */
+    public final static void encode(String str, StringBuffer ret) {
+        encode(str, ret, false, null);
+    }
+
+    /**
+     *  Compatibility version of {@link #encode(String, StringBuilder, boolean, Set)}
+     *  for code using StringBuffers.
+     */
+    public final static void encode(String str, StringBuffer ret,
+                                    boolean paragraphs, Set allowedTags) {
+        if (str != null) {
+            StringBuilder builder = new StringBuilder(Math.round(str.length() * 1.4f));
+            encode(str, builder, paragraphs, allowedTags);
+            ret.append(builder);
+        }
+    }
+
+    /**
+     *  Compatibility version of {@link #encodeFormValue(String, StringBuilder)}
+     *  for code using StringBuffers.
+     */
+    public final static void encodeFormValue(String str, StringBuffer ret) {
+        encodeAll(str, ret, false);
+    }
+
+    /**
+     *  Compatibility version of {@link #encodeAll(String, StringBuilder)}
+     *  for code using StringBuffers.
+     */
+    public final static void encodeAll(String str, StringBuffer ret) {
+        encodeAll(str, ret, true);
+    }
+
+    /**
+     *  Compatibility version of {@link #encodeAll(String, StringBuilder, boolean)}
+     *  for code using StringBuffers.
+     */
+    public final static void encodeAll(String str, StringBuffer ret, boolean encodeNewline) {
+        if (str != null) {
+            StringBuilder builder = new StringBuilder(Math.round(str.length() * 1.2f));
+            encodeAll(str, builder, encodeNewline);
+            ret.append(builder);
+        }
+    }
+
+    /**
+     *  Compatibility version of {@link #encodeXml(String, StringBuilder)}
+     *  for code using StringBuffers.
+     */
+    public final static void encodeXml(String str, StringBuffer ret) {
+        if (str != null) {
+            StringBuilder builder = new StringBuilder(Math.round(str.length() * 1.2f));
+            encodeXml(str, builder);
+            ret.append(builder);
+        }
+    }
+
     // test method
     public static String printCharRange(int from, int to) {
         StringBuffer response = new StringBuffer();
@@ -0,0 +1,124 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 2009 Helma Project. All Rights Reserved.
+ */
+
+package helma.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring buffer for log entries. Any number of threads
+ * may add entries concurrently while the logger thread takes them out.
+ * Each slot carries a sequence number telling producers and consumers
+ * whether it is free or filled for the current lap around the ring, so that
+ * claiming a slot only takes a compare-and-set on the tail or head counter.
+ * Since removing is safe from any thread as well, producers can make room
+ * by discarding the oldest entry when the buffer is full.
+ */
+class LogBuffer {
+
+    private final AtomicReferenceArray items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Create a buffer holding at least the given number of entries. The
+     * capacity is rounded up to the next power of two.
+     * @param size the minimal capacity
+     */
+    LogBuffer(int size) {
+        int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.items = new AtomicReferenceArray(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            this.sequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Add an entry to the buffer.
+     * @param item the entry
+     * @return false if the buffer is full
+     */
+    boolean offer(Object item) {
+        while (true) {
+            long pos = this.tail.get();
+            int index = (int) pos & this.mask;
+            long diff = this.sequences.get(index) - pos;
+            if (diff == 0) {
+                if (this.tail.compareAndSet(pos, pos + 1)) {
+                    this.items.lazySet(index, item);
+                    // publish the slot to the consumer
+                    this.sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // slot still holds an entry from the previous lap
+                return false;
+            }
+            // another producer claimed the slot, retry with new tail
+        }
+    }
+
+    /**
+     * Remove and return the oldest entry in the buffer.
+     * @return the oldest entry, or null if the buffer is empty
+     */
+    Object poll() {
+        while (true) {
+            long pos = this.head.get();
+            int index = (int) pos & this.mask;
+            long diff = this.sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (this.head.compareAndSet(pos, pos + 1)) {
+                    Object item = this.items.get(index);
+                    this.items.lazySet(index, null);
+                    // release the slot for the next lap
+                    this.sequences.set(index, pos + this.mask + 1);
+                    return item;
+                }
+            } else if (diff < 0) {
+                // slot not yet published
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Get the approximate number of entries in the buffer.
+     * @return the number of entries
+     */
+    int size() {
+        long size = this.tail.get() - this.head.get();
+        return (int) Math.max(0, Math.min(size, this.mask + 1));
+    }
+
+    /**
+     * Get the number of entries this buffer can hold.
+     * @return the capacity
+     */
+    int capacity() {
+        return this.mask + 1;
+    }
+
+    /**
+     * Check whether the buffer is empty.
+     * @return true if there are no entries in the buffer
+     */
+    boolean isEmpty() {
+        return this.tail.get() == this.head.get();
+    }
+}
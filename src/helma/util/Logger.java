@@ -16,10 +16,12 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.logging.Log;
 
@@ -28,9 +30,41 @@ import org.apache.commons.logging.Log;
  */
 public class Logger implements Log {
 
-    // buffer for log items; create a synchronized list for log entries since
-    // different threads may attempt to modify the list at the same time
-    List entries = Collections.synchronizedList(new LinkedList());
+    /**
+     * Overflow policy waiting for the logger thread to make room in the buffer
+     */
+    public final static int BLOCK = 1;
+    /**
+     * Overflow policy discarding the oldest queued entry to make room
+     */
+    public final static int DROP_OLDEST = 2;
+    /**
+     * Overflow policy discarding the new entry
+     */
+    public final static int DROP_NEWEST = 3;
+
+    // maximum time to block when the buffer is full, in case the logger
+    // thread has gone
+    final static long MAX_BLOCK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // buffer for log items; entries are added without locking by any thread
+    // and taken out by the logger thread
+    LogBuffer entries;
+
+    // what to do when the buffer is full
+    int overflowPolicy = DROP_NEWEST;
+
+    // number of entries written and discarded, and of discarded entries
+    // already reported in the log
+    final AtomicLong written = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    long droppedReported = 0;
+
+    // time in milliseconds entries were queued before being written
+    final Histogram latencies = new Histogram(new long[] {0, 10, 100, 500, 1000, 10000});
+
+    // reused by the logger thread to render entries
+    private final StringBuilder encoder = new StringBuilder(256);
 
     // Writer for log output
     PrintWriter writer;
@@ -43,6 +77,8 @@ public class Logger implements Log {
     static long dateLastRendered;
     static String dateCache;
 
+    static final String LINE_SEPARATOR = System.getProperty("line.separator"); //$NON-NLS-1$
+
     public final static int TRACE = 1;
     public final static int DEBUG = 2;
     public final static int INFO =  3;
@@ -77,9 +113,24 @@ public class Logger implements Log {
     }
 
     /**
-     * Get loglevel from System properties
+     * Get loglevel and buffer settings from System properties
      */
      private void init() {
+        int size = 2048;
+        try {
+            size = Integer.parseInt(System.getProperty("helma.logbuffer.size", "2048")); //$NON-NLS-1$ //$NON-NLS-2$
+        } catch (NumberFormatException nfe) {
+            System.err.println(Messages.getString("Logger.16") + nfe); //$NON-NLS-1$
+        }
+        this.entries = new LogBuffer(size);
+        String overflow = System.getProperty("helma.logbuffer.overflow"); //$NON-NLS-1$
+        if ("block".equalsIgnoreCase(overflow)) //$NON-NLS-1$
+            this.overflowPolicy = BLOCK;
+        else if ("dropoldest".equalsIgnoreCase(overflow)) //$NON-NLS-1$
+            this.overflowPolicy = DROP_OLDEST;
+        else if ("dropnewest".equalsIgnoreCase(overflow)) //$NON-NLS-1$
+            this.overflowPolicy = DROP_NEWEST;
+
         String level = System.getProperty("helma.loglevel"); //$NON-NLS-1$
         if ("trace".equalsIgnoreCase(level)) //$NON-NLS-1$
             this.logLevel = TRACE;
@@ -111,6 +162,50 @@ public class Logger implements Log {
         this.logLevel = logLevel;
     }
 
+    /**
+     * Get the policy applied when the log buffer is full.
+     * @return one of BLOCK, DROP_OLDEST or DROP_NEWEST
+     */
+    public int getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    /**
+     * Set the policy applied when the log buffer is full.
+     * @param overflowPolicy one of BLOCK, DROP_OLDEST or DROP_NEWEST
+     */
+    public void setOverflowPolicy(int overflowPolicy) {
+        if (overflowPolicy < BLOCK || overflowPolicy > DROP_NEWEST) {
+            throw new IllegalArgumentException(Messages.getString("Logger.17") + overflowPolicy); //$NON-NLS-1$
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Get the number of log entries discarded because the buffer was full
+     * or the log couldn't be written.
+     * @return the number of discarded entries
+     */
+    public long getDroppedEntries() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Get statistics about this logger: the number of entries written,
+     * discarded and currently queued, the buffer capacity, and a histogram
+     * of the times in milliseconds entries were queued before being written.
+     * @return a map containing written, dropped, queued, capacity and latencies
+     */
+    public Map getStatistics() {
+        Map stats = new HashMap();
+        stats.put("written", new Long(this.written.get())); //$NON-NLS-1$
+        stats.put("dropped", new Long(this.dropped.get())); //$NON-NLS-1$
+        stats.put("queued", new Integer(this.entries.size())); //$NON-NLS-1$
+        stats.put("capacity", new Integer(this.entries.capacity())); //$NON-NLS-1$
+        stats.put("latencies", this.latencies.getStatistics()); //$NON-NLS-1$
+        return stats;
+    }
+
     /**
      * Return a string representation of this Logger
      */
@@ -141,13 +236,36 @@ public class Logger implements Log {
         if ((this.lastMessage - 1000) > dateLastRendered) {
             renderDate();
         }
-        // add a safety net so we don't grow indefinitely even if writer thread
-        // has gone. the 2000 entries threshold is somewhat arbitrary. 
-        if (this.entries.size() < 2000) {
-            String message = msg == null ? "null" : msg.toString(); //$NON-NLS-1$
-            Thread thread = Thread.currentThread();
-            String threadId = "[" + thread.getName() + "] ";  //$NON-NLS-1$//$NON-NLS-2$
-            this.entries.add(new Entry(dateCache, level, message, threadId, exception));
+        String message = msg == null ? "null" : msg.toString(); //$NON-NLS-1$
+        Thread thread = Thread.currentThread();
+        String threadId = "[" + thread.getName() + "] ";  //$NON-NLS-1$//$NON-NLS-2$
+        Entry entry = new Entry(dateCache, level, message, threadId, exception);
+
+        if (this.entries.offer(entry)) {
+            return;
+        }
+        // the buffer is full, so the logger thread is falling behind or has gone
+        switch (this.overflowPolicy) {
+            case BLOCK:
+                long start = System.nanoTime();
+                Logging.wakeup();
+                while (!this.entries.offer(entry)) {
+                    if (System.nanoTime() - start > MAX_BLOCK_NANOS) {
+                        this.dropped.incrementAndGet();
+                        return;
+                    }
+                    LockSupport.parkNanos(1000000);
+                }
+                break;
+            case DROP_OLDEST:
+                while (!this.entries.offer(entry)) {
+                    if (this.entries.poll() != null) {
+                        this.dropped.incrementAndGet();
+                    }
+                }
+                break;
+            default:
+                this.dropped.incrementAndGet();
         }
     }
 
@@ -155,7 +273,8 @@ public class Logger implements Log {
      * This is called by the runner thread to perform actual output.
      */
     protected synchronized void write() {
-        if (this.entries.isEmpty()) {
+        long dropCount = this.dropped.get();
+        if (this.entries.isEmpty() && dropCount == this.droppedReported) {
             return;
         }
 
@@ -163,28 +282,56 @@ public class Logger implements Log {
             // make sure we have a valid writer
             ensureOpen();
 
+            StringBuilder buffer = this.encoder;
+            buffer.setLength(0);
+            long now = System.nanoTime();
+            // only write what's there now, so busy producers can't keep us here
             int l = this.entries.size();
             for (int i = 0; i < l; i++) {
-                Entry entry = (Entry) this.entries.remove(0);
-                this.writer.print(entry.date);
-                this.writer.print(entry.level);
-                this.writer.print(entry.threadId);
-                this.writer.println(entry.message);
-                if (entry.exception != null)
+                Entry entry = (Entry) this.entries.poll();
+                if (entry == null) {
+                    break;
+                }
+                this.latencies.record(TimeUnit.NANOSECONDS.toMillis(now - entry.queued));
+                buffer.append(entry.date).append(entry.level)
+                      .append(entry.threadId).append(entry.message)
+                      .append(LINE_SEPARATOR);
+                if (entry.exception != null) {
+                    this.writer.append(buffer);
+                    buffer.setLength(0);
                     entry.exception.printStackTrace(this.writer);
+                } else if (buffer.length() > 8192) {
+                    this.writer.append(buffer);
+                    buffer.setLength(0);
+                }
+                this.written.incrementAndGet();
+            }
+            if (dropCount > this.droppedReported) {
+                // let readers of the log know that entries are missing
+                buffer.append(dateCache).append(Messages.getString("Logger.11")) //$NON-NLS-1$
+                      .append(Messages.getString("Logger.2")) //$NON-NLS-1$
+                      .append(dropCount - this.droppedReported)
+                      .append(Messages.getString("Logger.3")) //$NON-NLS-1$
+                      .append(LINE_SEPARATOR);
+                this.droppedReported = dropCount;
             }
+            this.writer.append(buffer);
+            buffer.setLength(0);
             this.writer.flush();
 
         } catch (Exception x) {
             int size = this.entries.size();
 
-            if (size > 1000) {
-                // more than 1000 entries queued plus exception - something
+            if (size > this.entries.capacity() / 2) {
+                // buffer half full plus exception - something
                 // is definitely wrong with this logger. Write a message to std err and
                 // discard queued log entries.
                 System.err.println(Messages.getString("Logger.0") + this + Messages.getString("Logger.1") + x); //$NON-NLS-1$ //$NON-NLS-2$
                 System.err.println(Messages.getString("Logger.2") + size + Messages.getString("Logger.3")); //$NON-NLS-1$ //$NON-NLS-2$
-                this.entries.clear();
+                while (this.entries.poll() != null) {
+                    this.dropped.incrementAndGet();
+                }
+                this.droppedReported = this.dropped.get();
             }
         }
     }
@@ -301,6 +448,7 @@ public class Logger implements Log {
     class Entry {
         final String date, level, message, threadId;
         final Throwable exception;
+        final long queued;
 
         Entry(String date, String level, String message, String threadId, Throwable exception) {
             this.date = date;
@@ -308,6 +456,7 @@ public class Logger implements Log {
             this.message = message;
             this.threadId = threadId;
             this.exception = exception;
+            this.queued = System.nanoTime();
         }
     }
 
@@ -15,6 +15,8 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogConfigurationException;
@@ -32,7 +34,7 @@ import org.apache.commons.logging.LogFactory;
 public class Logging extends LogFactory {
 
     // we use one static thread for all Loggers
-    static Runner runner;
+    static volatile Runner runner;
 
     // the list of active loggers
     static ArrayList loggers = new ArrayList();
@@ -154,6 +156,17 @@ public class Logging extends LogFactory {
         }
     }
 
+    /**
+     * Wake up the logger thread to write out log entries immediately,
+     * e.g. because a log buffer is full.
+     */
+    static void wakeup() {
+        Runner r = runner;
+        if (r != null) {
+            LockSupport.unpark(r);
+        }
+    }
+
     /**
      * Shut down logging, stopping the logger thread and closing all logs.
      */
@@ -241,7 +254,7 @@ public class Logging extends LogFactory {
     static class Runner extends Thread {
 
         @Override
-        public synchronized void run() {
+        public void run() {
             long nextMidnight = nextMidnight();
 
             while ((runner == this) && !isInterrupted()) {
@@ -274,11 +287,8 @@ public class Logging extends LogFactory {
                     }
                 }
 
-                try {
-                    wait(333);
-                } catch (InterruptedException ix) {
-                    break;
-                }
+                // sleep until the next round or until woken up by a full log buffer
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(333));
             }
         }
 
@@ -14,19 +14,27 @@ package helma.util;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import helma.framework.core.Application;
 import helma.framework.repository.RepositoryInterface;
 import helma.framework.repository.ResourceInterface;
 
 /**
- *  A property dictionary that is updated from property resources
+ *  A property dictionary that is updated from property resources.
+ *
+ *  Lookups by key don't lock: they read an immutable snapshot of the
+ *  properties with keys already converted to lower case if case is ignored,
+ *  which is replaced whenever the properties change. Checking the resources
+ *  for changes is done by at most one thread per check interval, other
+ *  threads keep reading the current snapshot in the meantime.
  */
 public class ResourceProperties extends Properties {
 
@@ -46,8 +54,8 @@ public class ResourceProperties extends Properties {
     // Cached checksum of last check
     private long lastChecksum = 0;
 
-    // Time of last check
-    private long lastCheck = 0;
+    // Time of next check, claimed by the thread doing the check
+    private final AtomicLong nextCheck = new AtomicLong();
 
     // Time porperties were last modified
     private long lastModified = System.currentTimeMillis();
@@ -64,6 +72,13 @@ public class ResourceProperties extends Properties {
     // lower case key to original key mapping for case insensitive lookups
     private Properties keyMap = new Properties();
 
+    // immutable copy of the properties by lookup key, i.e. the lower case
+    // key if case is ignored, replaced whenever the properties change
+    private volatile HashMap snapshot = new HashMap();
+
+    // true while the snapshot is not to be updated on each change
+    private boolean deferSnapshot = false;
+
     // prefix for sub-properties
     private String prefix;
 
@@ -203,14 +218,15 @@ public class ResourceProperties extends Properties {
      * Updates all properties if there is a need to update
      */
     public synchronized void update() {
-        // set lastCheck first to reduce risk of recursive calls
-        this.lastCheck = System.currentTimeMillis();
+        // set next check first to reduce risk of recursive calls
+        this.nextCheck.set(System.currentTimeMillis() + this.CACHE_TIME);
         if (getChecksum() != this.lastChecksum) {
             // First collect properties into a temporary collection,
             // in a second step copy over new properties,
             // and in the final step delete properties which have gone.
             ResourceProperties temp = new ResourceProperties();
             temp.setIgnoreCase(this.ignoreCase);
+            temp.deferSnapshot = true;
 
             // first of all, properties are load from default properties
             if (this.defaultProperties != null) {
@@ -272,20 +288,83 @@ public class ResourceProperties extends Properties {
             }
 
             // Copy over new properties ...
-            putAll(temp);
-            // ... and remove properties which have been removed.
-            Iterator it = super.keySet().iterator();
-            while (it.hasNext()) {
-                if (!temp.containsKey(it.next())) {
-                    it.remove();
+            this.deferSnapshot = true;
+            try {
+                putAll(temp);
+                // ... and remove properties which have been removed.
+                Iterator it = super.keySet().iterator();
+                while (it.hasNext()) {
+                    if (!temp.hasKey(it.next())) {
+                        it.remove();
+                    }
                 }
+                // copy new up-to-date keyMap to ourself
+                this.keyMap = temp.keyMap;
+            } finally {
+                this.deferSnapshot = false;
             }
-            // copy new up-to-date keyMap to ourself
-            this.keyMap = temp.keyMap;
+            publishSnapshot();
 
             this.lastChecksum = getChecksum();
-            this.lastCheck = this.lastModified = System.currentTimeMillis();
+            this.lastModified = System.currentTimeMillis();
+            this.nextCheck.set(this.lastModified + this.CACHE_TIME);
+        }
+    }
+
+    /**
+     * Check the resources for changes if the check interval has passed and no
+     * other thread is already checking. This never waits for another thread.
+     */
+    private void checkForUpdate() {
+        long now = System.currentTimeMillis();
+        long next = this.nextCheck.get();
+        if (now >= next && this.nextCheck.compareAndSet(next, now + this.CACHE_TIME)) {
+            update();
+        }
+    }
+
+    /**
+     * Replace the snapshot used for lookups with a copy of the current
+     * properties. Must be called while holding the lock.
+     */
+    private void publishSnapshot() {
+        HashMap map = new HashMap();
+        if (this.ignoreCase) {
+            Iterator it = this.keyMap.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry) it.next();
+                Object value = super.get(entry.getValue());
+                if (value != null) {
+                    map.put(entry.getKey(), value);
+                }
+            }
+        } else {
+            Iterator it = super.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry) it.next();
+                map.put(entry.getKey(), entry.getValue());
+            }
         }
+        this.snapshot = map;
+    }
+
+    /**
+     * Check if a key is contained in the properties themselves rather than
+     * in the snapshot, which isn't maintained for temporary instances.
+     */
+    private synchronized boolean hasKey(Object key) {
+        if (this.ignoreCase) {
+            return this.keyMap.containsKey(key.toString().toLowerCase());
+        }
+        return super.containsKey(key.toString());
+    }
+
+    /**
+     * Look up a value in the current snapshot.
+     */
+    private Object lookup(Object key) {
+        String strkey = key.toString();
+        return this.snapshot.get(this.ignoreCase ? strkey.toLowerCase() : strkey);
     }
 
     /**
@@ -311,9 +390,7 @@ public class ResourceProperties extends Properties {
      */
     @Override
     public synchronized boolean contains(Object value) {
-        if ((System.currentTimeMillis() - this.lastCheck) > this.CACHE_TIME) {
-            update();
-        }
+        checkForUpdate();
         return super.contains(value.toString());
     }
 
@@ -323,14 +400,9 @@ public class ResourceProperties extends Properties {
      * @return true if the key is found in the key list
      */
     @Override
-    public synchronized boolean containsKey(Object key) {
-        if ((System.currentTimeMillis() - this.lastCheck) > this.CACHE_TIME) {
-            update();
-        }
-        if (this.ignoreCase) {
-            return this.keyMap.containsKey(key.toString().toLowerCase());
-        }
-        return super.containsKey(key.toString());
+    public boolean containsKey(Object key) {
+        checkForUpdate();
+        return lookup(key) != null;
     }
 
     /**
@@ -339,9 +411,7 @@ public class ResourceProperties extends Properties {
      */
     @Override
     public synchronized Enumeration elements() {
-        if ((System.currentTimeMillis() - this.lastCheck) > this.CACHE_TIME) {
-            update();
-        }
+        checkForUpdate();
         return super.elements();
     }
 
@@ -351,17 +421,9 @@ public class ResourceProperties extends Properties {
      * @return value belonging to the given key
      */
     @Override
-    public synchronized Object get(Object key) {
-        if ((System.currentTimeMillis() - this.lastCheck) > this.CACHE_TIME) {
-            update();
-        }
-        String strkey = key.toString();
-        if (this.ignoreCase) {
-            strkey = this.keyMap.getProperty(strkey.toLowerCase());
-            if (strkey == null)
-                return null;
-        }
-        return super.get(strkey);
+    public Object get(Object key) {
+        checkForUpdate();
+        return lookup(key);
     }
 
     /**
@@ -369,9 +431,7 @@ public class ResourceProperties extends Properties {
      * @return last modified date
      */
     public long lastModified() {
-        if ((System.currentTimeMillis() - this.lastCheck) > this.CACHE_TIME) {
-            update();
-        }
+        checkForUpdate();
         return this.lastModified;
     }
 
@@ -416,15 +476,8 @@ public class ResourceProperties extends Properties {
      */
     @Override
     public String getProperty(String key, String defaultValue) {
-        if ((System.currentTimeMillis() - this.lastCheck) > this.CACHE_TIME) {
-            update();
-        }
-        if (this.ignoreCase) {
-            key = this.keyMap.getProperty(key.toLowerCase());
-            if (key == null)
-                return defaultValue;
-        }
-        return super.getProperty(key, defaultValue);
+        String value = getProperty(key);
+        return value == null ? defaultValue : value;
     }
 
     /**
@@ -434,15 +487,9 @@ public class ResourceProperties extends Properties {
      */
     @Override
     public String getProperty(String key) {
-        if ((System.currentTimeMillis() - this.lastCheck) > this.CACHE_TIME) {
-            update();
-        }
-        if (this.ignoreCase) {
-            key = this.keyMap.getProperty(key.toLowerCase());
-            if (key == null)
-                return null;
-        }
-        return super.getProperty(key);
+        checkForUpdate();
+        Object value = lookup(key);
+        return value instanceof String ? (String) value : null;
     }
 
     /**
@@ -451,9 +498,7 @@ public class ResourceProperties extends Properties {
      */
     @Override
     public synchronized boolean isEmpty() {
-        if ((System.currentTimeMillis() - this.lastCheck) > this.CACHE_TIME) {
-            update();
-        }
+        checkForUpdate();
         return super.isEmpty();
     }
 
@@ -471,9 +516,7 @@ public class ResourceProperties extends Properties {
      */
     @Override
     public synchronized Enumeration keys() {
-        if ((System.currentTimeMillis() - this.lastCheck) > this.CACHE_TIME) {
-            update();
-        }
+        checkForUpdate();
         return super.keys();
     }
 
@@ -483,9 +526,7 @@ public class ResourceProperties extends Properties {
      */
     @Override
     public Set keySet() {
-        if ((System.currentTimeMillis() - this.lastCheck) > this.CACHE_TIME) {
-            update();
-        }
+        checkForUpdate();
         return super.keySet();
     }
 
@@ -504,7 +545,34 @@ public class ResourceProperties extends Properties {
         if (this.ignoreCase) {
             this.keyMap.put(strkey.toLowerCase(), strkey);
         }
-        return super.put(strkey, value);
+        Object old = super.put(strkey, value);
+        if (!this.deferSnapshot) {
+            publishSnapshot();
+        }
+        return old;
+    }
+
+    /**
+     * Puts all key-value pairs of the given map into the properties list,
+     * updating the lookup snapshot only once
+     * @param map the map to copy
+     */
+    @Override
+    public synchronized void putAll(Map map) {
+        boolean defer = this.deferSnapshot;
+        this.deferSnapshot = true;
+        try {
+            Iterator it = map.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry entry = (Map.Entry) it.next();
+                put(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            this.deferSnapshot = defer;
+        }
+        if (!defer) {
+            publishSnapshot();
+        }
     }
 
     /**
@@ -520,7 +588,11 @@ public class ResourceProperties extends Properties {
             if (strkey == null)
                 return null;
         }
-        return super.remove(strkey);
+        Object old = super.remove(strkey);
+        if (!this.deferSnapshot) {
+            publishSnapshot();
+        }
+        return old;
     }
 
     /**
@@ -540,9 +612,7 @@ public class ResourceProperties extends Properties {
      */
     @Override
     public synchronized int size() {
-        if ((System.currentTimeMillis() - this.lastCheck) > this.CACHE_TIME) {
-            update();
-        }
+        checkForUpdate();
         return super.size();
     }
 
@@ -553,6 +623,7 @@ public class ResourceProperties extends Properties {
     public synchronized void clear() {
         this.keyMap.clear();
         super.clear();
+        this.snapshot = new HashMap();
     }
 
     /**